@@ -283,7 +283,7 @@ public class BackupManager {
 
 	public static boolean repairDeck(String deckPath) {
 		File deckFile = new File(deckPath);
-		AnkiDatabaseManager.closeDatabase(deckPath);
+		AnkiDatabaseManager.forceCloseDatabase(deckPath);
 
     	// repair file
     	String execString = "sqlite3 " + deckPath + " .dump | sqlite3 " + deckPath + ".tmp";
@@ -324,7 +324,7 @@ public class BackupManager {
 
 	public static boolean moveDeckToBrokenFolder(String deckPath) {
 		File deckFile = new File(deckPath);
-		AnkiDatabaseManager.closeDatabase(deckPath);
+		AnkiDatabaseManager.forceCloseDatabase(deckPath);
         Date value = Utils.genToday(Utils.utcOffset());
         String movedFilename = String.format(Utils.ENGLISH_LOCALE, deckFile.getName().replace(".anki", "") + "-corrupt-%tF.anki", value);
         File movedFile = new File(getBrokenDirectory().getPath(), movedFilename);
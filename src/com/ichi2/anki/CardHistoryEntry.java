@@ -71,7 +71,7 @@ public class CardHistoryEntry {
 
 
     /**
-     * Write review history to the database.
+     * Write review history to the database, through the cached single row insert.
      */
     public void writeSQL() {
         Map<String, Object> values = new HashMap<String, Object>();
@@ -87,7 +87,6 @@ public class CardHistoryEntry {
         values.put("yesCount", mYesCount);
         values.put("noCount", mNoCount);
         values.put("time", Utils.now());
-
         mDeck.getDB().insert(mDeck, "reviewHistory", null, values);
     }
 }
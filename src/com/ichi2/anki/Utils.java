@@ -376,6 +376,16 @@ public class Utils {
         return list;
     }
 
+
+    public static long[] jsonArrayToLongArray(JSONArray jsonArray) throws JSONException {
+        int len = jsonArray.length();
+        long[] array = new long[len];
+        for (int i = 0; i < len; i++) {
+            array[i] = jsonArray.getLong(i);
+        }
+        return array;
+    }
+
     /**
      * Strip HTML but keep media filenames
      */
@@ -755,18 +765,60 @@ public class Utils {
      * Tags
      **************************************/
     
+    /**
+     * @return true if c separates tags: a comma or any white space
+     */
+    public static boolean isTagSeparator(char c) {
+        return c == ',' || Character.isWhitespace(c);
+    }
+
+    /**
+     * @return the index of the first character of the next tag at or after from, or the length of tags if there is none
+     */
+    public static int nextTagStart(String tags, int from) {
+        int length = tags.length();
+        while (from < length && isTagSeparator(tags.charAt(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * @return the index after the last character of the tag starting at start
+     */
+    public static int tagEnd(String tags, int start) {
+        int length = tags.length();
+        while (start < length && !isTagSeparator(tags.charAt(start))) {
+            start++;
+        }
+        return start;
+    }
+
     /**
      * Parse a string and return a list of tags.
      * 
-     * @param tags A string containing tags separated by space or comma (optionally followed by space)
-     * @return An array of Strings containing the individual tags 
+     * @param tags A string containing tags separated by spaces and/or commas
+     * @return An array of Strings containing the individual tags, without empty ones
      */
     public static String[] parseTags(String tags) {
-        if (tags != null && tags.length() != 0) {
-            return tags.trim().split(" +|, *");
-        } else {
+        if (tags == null || tags.length() == 0) {
             return new String[] {};
         }
+        // Count first, to allocate the result only
+        int count = 0;
+        int start = nextTagStart(tags, 0);
+        while (start < tags.length()) {
+            count++;
+            start = nextTagStart(tags, tagEnd(tags, start));
+        }
+        String[] parsed = new String[count];
+        start = nextTagStart(tags, 0);
+        for (int i = 0; i < count; i++) {
+            int end = tagEnd(tags, start);
+            parsed[i] = tags.substring(start, end);
+            start = nextTagStart(tags, end);
+        }
+        return parsed;
     }
     
     /**
@@ -778,26 +830,33 @@ public class Utils {
     public static String joinTags(Collection<String> tags) {
         StringBuilder result = new StringBuilder(128);
         for (String tag : tags) {
-            result.append(tag).append(" ");
+            if (result.length() != 0) {
+                result.append(' ');
+            }
+            result.append(tag);
         }
-        return result.toString().trim();
+        return result.toString();
     }
     
     /**
-     * Strip leading/trailing/superfluous spaces/commas from a tags string. Remove duplicates and sort.
+     * Strip leading/trailing/superfluous spaces/commas from a tags string, and leading colons from the tags. Remove
+     * duplicates and sort.
      * 
      * @param tags The string containing the tags, separated by spaces or commas
      * @return The canonified string, as described above
      */
     public static String canonifyTags(String tags) {
-        List<String> taglist = Arrays.asList(parseTags(tags));
-        for (int i = 0; i < taglist.size(); i++) {
-            String t = taglist.get(i);
-            if (t.startsWith(":")) {
-                taglist.set(i, t.replace("^:+", ""));
+        TreeSet<String> canonified = new TreeSet<String>();
+        for (String t : parseTags(tags)) {
+            int start = 0;
+            while (start < t.length() && t.charAt(start) == ':') {
+                start++;
+            }
+            if (start < t.length()) {
+                canonified.add(start == 0 ? t : t.substring(start));
             }
         }
-        return joinTags(new TreeSet<String>(taglist));
+        return joinTags(canonified);
     }
 
     /**
@@ -808,9 +867,8 @@ public class Utils {
      * @return True is the tag is found in the set, false otherwise
      */
     public static boolean findTag(String tag, List<String> tags) {
-        String lowercase = tag.toLowerCase();
         for (String t : tags) {
-            if (t.toLowerCase().compareTo(lowercase) == 0) {
+            if (t.equalsIgnoreCase(tag)) {
                 return true;
             }
         }
@@ -15,15 +15,28 @@
 package com.ichi2.anki.db;
 
 import java.io.UnsupportedEncodingException;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Registry of the open Anki databases, one per path.
+ *
+ * The registry is a ConcurrentHashMap of per-path holders, installed with putIfAbsent: a database is opened under
+ * the monitor of its own holder only, so different decks open and close in parallel while concurrent callers for the
+ * same path wait for, and share, a single AnkiDb.
+ *
+ * Every getDatabase() takes a reference on the database and must be paired with a closeDatabase(), which closes it
+ * when the last reference is released, so that a deck closing does not close the database under other users of the
+ * same file. forceCloseDatabase() closes it whatever the references.
+ */
 public class AnkiDatabaseManager {
 
-    private static HashMap<String, AnkiDb> sAnkiDatabases = new HashMap<String, AnkiDb>();
+    private static ConcurrentHashMap<String, DatabaseHolder> sAnkiDatabases =
+            new ConcurrentHashMap<String, DatabaseHolder>();
+
+    private static volatile AnkiDbConfig sDefaultConfig = new AnkiDbConfig();
 
     private static Logger log = LoggerFactory.getLogger(AnkiDatabaseManager.class);
     
@@ -31,59 +44,118 @@ public class AnkiDatabaseManager {
     private AnkiDatabaseManager() { }
 
     /**
-     * Get a reference over an Anki database, creating the connection if needed.
+     * Get a reference over an Anki database, creating the connection if needed. Release it with closeDatabase().
      * @param pathDB the path to the database.
      * @return the Anki database.
      */
     public static AnkiDb getDatabase(String pathDB) {
     	return getDatabase(pathDB, false);
     }
+
+
+    /**
+     * Get a reference over an Anki database, creating the connection if needed.
+     * @param pathDB the path to the database.
+     * @param forceDeleteJournalMode if true, the database is switched to journal_mode DELETE (checkpointing a WAL
+     * log), e.g. before the deck file is copied.
+     * @return the Anki database.
+     */
     public static AnkiDb getDatabase(String pathDB, boolean forceDeleteJournalMode) {
-    	if (forceDeleteJournalMode) {
-    		closeDatabase(pathDB);
+    	if (!forceDeleteJournalMode) {
+    		return getDatabase(pathDB, sDefaultConfig);
     	}
+    	DatabaseHolder holder = sAnkiDatabases.get(pathDB);
+    	AnkiDb ankiDB = holder != null ? holder.acquire() : null;
+    	if (ankiDB != null) {
+    		// Switch in place: closing would break decks still holding this database
+    		if (!ankiDB.setJournalMode(AnkiDbConfig.JournalMode.DELETE)) {
+    			log.error("AnkiDatabaseManager - could not switch " + pathDB + " to DELETE journal mode");
+    		}
+    		return ankiDB;
+    	}
+    	return getDatabase(pathDB, sDefaultConfig.withDeleteJournalMode());
+    }
 
-        // If the DB is already opened
-        if (sAnkiDatabases.containsKey(pathDB)) {
-            return sAnkiDatabases.get(pathDB);
+
+    /**
+     * Get a reference over an Anki database, creating the connection with the given settings if needed. The
+     * settings are ignored if the database is already open.
+     * @param pathDB the path to the database.
+     * @param config the SQLite settings to open the database with.
+     * @return the Anki database.
+     */
+    public static AnkiDb getDatabase(String pathDB, AnkiDbConfig config) {
+        while (true) {
+            DatabaseHolder holder = sAnkiDatabases.get(pathDB);
+            if (holder == null) {
+                // No computeIfAbsent before Java 8: race to install an empty holder, the loser uses the winner's
+                DatabaseHolder created = new DatabaseHolder(pathDB);
+                holder = sAnkiDatabases.putIfAbsent(pathDB, created);
+                if (holder == null) {
+                    holder = created;
+                }
+            }
+            try {
+                AnkiDb ankiDB = holder.open(config);
+                if (ankiDB != null) {
+                    return ankiDB;
+                }
+                // Closed while we were waiting for it: install a new holder
+                sAnkiDatabases.remove(pathDB, holder);
+            } catch (UnsupportedEncodingException e) {
+                log.error("Can not open AnkiDB : ", e);
+                sAnkiDatabases.remove(pathDB, holder);
+                return null;
+            }
         }
+    }
 
-        // If a connection to the desired DB does not exist, we create it
-        AnkiDb ankiDB = null;
-		try {
-			ankiDB = new AnkiDb(pathDB, forceDeleteJournalMode);
-		} catch (UnsupportedEncodingException e) {
-			log.error("Can not open AnkiDB : ", e);
-			return null;
-		}
 
-        // Insert the new DB to the map of opened DBs
-        sAnkiDatabases.put(pathDB, ankiDB);
+    /**
+     * Set the settings used by getDatabase(String) for databases opened from now on, e.g. AnkiDbConfig.wal().
+     */
+    public static void setDefaultConfig(AnkiDbConfig config) {
+    	sDefaultConfig = new AnkiDbConfig(config);
+    }
 
-        return ankiDB;
+
+    public static AnkiDbConfig getDefaultConfig() {
+    	return sDefaultConfig;
     }
 
 
     /**
-     * Close connection to a given database.
+     * Release a reference taken by getDatabase(), closing the connection to the database if it was the last one.
      * @param pathDB the path to the database to close.
      */
     public static void closeDatabase(String pathDB) {
-        AnkiDb ankiDB = sAnkiDatabases.remove(pathDB);
-        if (ankiDB != null) {
-            ankiDB.closeDatabase();
+        DatabaseHolder holder = sAnkiDatabases.get(pathDB);
+        if (holder != null && holder.release()) {
+            sAnkiDatabases.remove(pathDB, holder);
+        }
+    }
+
+
+    /**
+     * Close the connection to a database whatever the references held on it, e.g. before its file is repaired or
+     * replaced.
+     * @param pathDB the path to the database to close.
+     */
+    public static void forceCloseDatabase(String pathDB) {
+        DatabaseHolder holder = sAnkiDatabases.remove(pathDB);
+        if (holder != null) {
+            holder.close();
         }
     }
 
 
     /**
-     * Close connections to all opened databases.
+     * Close connections to all opened databases, whatever the references held on them.
      * XXX Currently unused.
      */
     public static void closeAllDatabases() {
-        Set<String> databases = sAnkiDatabases.keySet();
-        for (String pathDB : databases) {
-            AnkiDatabaseManager.closeDatabase(pathDB);
+        for (String pathDB : sAnkiDatabases.keySet()) {
+            AnkiDatabaseManager.forceCloseDatabase(pathDB);
         }
     }
 
@@ -94,6 +166,77 @@ public class AnkiDatabaseManager {
      * @return True if the database is already opened, false otherwise.
      */
     public static boolean isDatabaseOpen(String pathDB) {
-        return sAnkiDatabases.containsKey(pathDB);
+        DatabaseHolder holder = sAnkiDatabases.get(pathDB);
+        return holder != null && holder.get() != null;
+    }
+
+
+    /**
+     * Opens the database of one path at most once and counts the references taken on it. Opening and closing hold
+     * the monitor of the holder only.
+     */
+    private static final class DatabaseHolder {
+        private final String mPath;
+        private AnkiDb mAnkiDb;
+        private int mReferences = 0;
+        private boolean mClosed = false;
+
+        DatabaseHolder(String path) {
+            mPath = path;
+        }
+
+        /**
+         * @return the database, opening it first if needed, or null if the holder has been closed
+         */
+        synchronized AnkiDb open(AnkiDbConfig config) throws UnsupportedEncodingException {
+            if (mClosed) {
+                return null;
+            }
+            if (mAnkiDb == null) {
+                mAnkiDb = new AnkiDb(mPath, config);
+            }
+            mReferences++;
+            return mAnkiDb;
+        }
+
+        /**
+         * @return the database with a new reference taken on it, or null if it is not open
+         */
+        synchronized AnkiDb acquire() {
+            if (mClosed || mAnkiDb == null) {
+                return null;
+            }
+            mReferences++;
+            return mAnkiDb;
+        }
+
+        synchronized AnkiDb get() {
+            return mClosed ? null : mAnkiDb;
+        }
+
+        /**
+         * Drop one reference, closing the database with the last one.
+         * @return true if the holder is closed
+         */
+        synchronized boolean release() {
+            if (mClosed) {
+                return true;
+            }
+            if (mReferences <= 0) {
+                log.warn("AnkiDatabaseManager - " + mPath + " closed more often than opened");
+            } else if (--mReferences > 0) {
+                return false;
+            }
+            close();
+            return true;
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            if (mAnkiDb != null) {
+                mAnkiDb.closeDatabase();
+                mAnkiDb = null;
+            }
+        }
     }
 }
@@ -25,10 +25,13 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
@@ -49,8 +52,6 @@ public class AnkiDb {
 
 	public static Logger log = LoggerFactory.getLogger(AnkiDb.class);
 
-	public enum SqlCommandType { SQL_INS, SQL_UPD, SQL_DEL };
-	
 	/**
 	 * The deck, which is actually an SQLite database.
 	 */
@@ -58,100 +59,136 @@ public class AnkiDb {
 	
 	private SQLiteDataSource mDatabase;
 
+	/**
+	 * Read-only twin of mDatabase, used by the reader connections of the pool.
+	 */
+	private SQLiteDataSource mReadOnlyDatabase;
+
+	/**
+	 * Long-lived connections to the deck file. Replaces opening a new connection for every query.
+	 */
+	private AnkiDbConnectionPool mPool;
+
+	/**
+	 * Settings the database was opened with.
+	 */
+	private AnkiDbConfig mConfig;
+
+	/**
+	 * Open transaction scopes, innermost last. Only touched by the thread holding the writer connection.
+	 */
+	private final LinkedList<TransactionScope> mTransactions = new LinkedList<TransactionScope>();
+
+	/**
+	 * Number of open id sets, each using its own temporary table. Guarded by the writer connection like mTransactions.
+	 */
+	private int mOpenIdSets = 0;
+
+	/**
+	 * Statements being recorded instead of executed, per thread. See beginCapture().
+	 */
+	private final ThreadLocal<Capture> mCapture = new ThreadLocal<Capture>();
+
+	/**
+	 * Run before the writer is leased by a thread which does not hold it yet, for a statement which is not captured,
+	 * e.g. to apply writes held back by a write-behind journal first. Never run for reads, nor inside a transaction.
+	 * Null if there is none.
+	 */
+	private volatile Runnable mBarrier;
+
 	/**
 	 * Open a database connection to an ".anki" SQLite file.
 	 * @throws UnsupportedEncodingException 
 	 */
 	public AnkiDb(String ankiFilename, boolean forceDeleteJournalMode) throws UnsupportedEncodingException {
+		this(ankiFilename, forceDeleteJournalMode ? new AnkiDbConfig().withDeleteJournalMode() : new AnkiDbConfig());
+	}
+
+	/**
+	 * Open a database connection to an ".anki" SQLite file, with the given journal mode, synchronous level and cache
+	 * settings.
+	 * @throws UnsupportedEncodingException 
+	 */
+	public AnkiDb(String ankiFilename, AnkiDbConfig config) throws UnsupportedEncodingException {
+		mConfig = new AnkiDbConfig(config);
 		
-		SQLiteConfig config = new SQLiteConfig();
-		config.setOpenMode(SQLiteOpenMode.READWRITE);
+		SQLiteConfig sqliteConfig = new SQLiteConfig();
+		sqliteConfig.setOpenMode(SQLiteOpenMode.READWRITE);
 		
-		mDatabase = new SQLiteDataSource(config);
+		mDatabase = new SQLiteDataSource(sqliteConfig);
 		mDatabase.setUrl("jdbc:sqlite:" + ankiFilename);
+
+		SQLiteConfig readOnlyConfig = new SQLiteConfig();
+		readOnlyConfig.setReadOnly(true);
+
+		mReadOnlyDatabase = new SQLiteDataSource(readOnlyConfig);
+		mReadOnlyDatabase.setUrl("jdbc:sqlite:" + ankiFilename);
+
+		mPool = new AnkiDbConnectionPool(ankiFilename, mDatabase, mReadOnlyDatabase,
+				AnkiDbConnectionPool.DEFAULT_MAX_IDLE_READERS, mConfig);
 		
-		/* mDatabase = SQLiteDatabase.openDatabase(ankiFilename, null,
-				SQLiteDatabase.OPEN_READWRITE
-						| SQLiteDatabase.NO_LOCALIZED_COLLATORS); */
-		if (mDatabase != null) {
-			//Cursor cur = null;
-			try {
-				//String mode;
-				// FIXME #URGENT !!
-				boolean walMode = false;
-				// FIXME #URGENT !!
-
-				if (walMode) {
-					Connection conn = null;
-					try {
-						conn = mDatabase.getConnection();
-						Statement stat = conn.createStatement();
-						stat.execute("PRAGMA journal_mode = WAL");
-					} catch (SQLException e) {
-						e.printStackTrace();
-						return ;
-					} finally {
-						if (conn != null) {
-							try {
-								conn.close();
-							} catch (SQLException e) {
-							}
-						}
-					}
-				} else {
-					//mDatabase.setJournalMode("DELETE");
-				}
-				
-				/*
-				cur = mDatabase.rawQuery("PRAGMA journal_mode", null);
-				if (cur.moveToFirst()) {
-					String journalModeOld = cur.getString(1);
-					cur.close();
-					log.warn("Current Journal mode: " + journalModeOld);
-					if (!journalModeOld.equalsIgnoreCase(mode)) {
-						cur = mDatabase.rawQuery("PRAGMA journal_mode = "
-								+ mode, null);
-						if (cur.moveToFirst()) {
-							String journalModeNew = cur.getString(1);
-							cur.close();
-							log.warn("Old journal mode was: " + journalModeOld
-									+ ". Trying to set journal mode to " + mode
-									+ ". Result: " + journalModeNew);
-							if (journalModeNew.equalsIgnoreCase("wal")
-									&& mode.equals("DELETE")) {
-								log.error("Journal could not be changed to DELETE. Deck will probably be unreadable on sqlite < 3.7");
-							}
-						}
-					}
-				} */
-				
-				// FIXME #URGENT !!
-				boolean asyncMode = false;
-				// FIXME #URGENT !!
-				
-				if (asyncMode) {
-					mDatabase.setSynchronous("OFF");
-					//cur = mDatabase.rawQuery("PRAGMA synchronous = 0", null);
-				} else {
-					mDatabase.setSynchronous("FULL");
-					//cur = mDatabase.rawQuery("PRAGMA synchronous = 2", null);
-				}
-				//cur.close();
-				/*
-				cur = mDatabase.rawQuery("PRAGMA synchronous", null);
-				if (cur.moveToFirst()) {
-					String syncMode = cur.getString(1);
-					log.warn("Current synchronous setting: " + syncMode);
-				}
-				cur.close();
-				*/
-			} finally {
-				/*
-				if (cur != null && !cur.isClosed()) {
-					cur.close();
+		log.info("AnkiDb - opening " + ankiFilename + " with " + mConfig);
+		setJournalMode(mConfig.getJournalMode());
+	}
+
+	/**
+	 * Switch the journal mode of the database file. Leaving WAL checkpoints the log into the main file first, so that
+	 * afterwards the deck file alone is complete and can be exported or uploaded. The switch needs the database to
+	 * itself: it fails (and returns false) while another thread holds an open transaction or read cursor.
+	 * 
+	 * @return true if the database is now in the requested mode
+	 */
+	public boolean setJournalMode(AnkiDbConfig.JournalMode mode) {
+		if (inTransaction()) {
+			log.error("AnkiDb - can not change the journal mode inside a transaction");
+			return false;
+		}
+		Connection conn = null;
+		Statement stat = null;
+		try {
+			conn = mPool.leaseWriter();
+			stat = conn.createStatement();
+			String current = queryJournalMode(stat, "PRAGMA journal_mode");
+			if (current.equalsIgnoreCase(mode.name())) {
+				return true;
+			}
+			mPool.closeIdleReaders();
+			if (current.equalsIgnoreCase("wal")) {
+				stat.execute("PRAGMA wal_checkpoint");
+			}
+			String result = queryJournalMode(stat, "PRAGMA journal_mode = " + mode.name());
+			log.warn("Old journal mode was: " + current + ". Trying to set journal mode to " + mode + ". Result: "
+					+ result);
+			if (!result.equalsIgnoreCase(mode.name())) {
+				if (result.equalsIgnoreCase("wal")) {
+					log.error("Journal could not be changed to " + mode
+							+ ". Deck will probably be unreadable on sqlite < 3.7");
 				}
-				*/
+				return false;
 			}
+			return true;
+		} catch (SQLException e) {
+			log.error("AnkiDb - setting journal mode " + mode + " failed", e);
+			return false;
+		} finally {
+			closeStatement(stat);
+			mPool.release(conn);
+		}
+	}
+
+	/**
+	 * @return the settings this database was opened with
+	 */
+	public AnkiDbConfig getConfig() {
+		return mConfig;
+	}
+
+	private static String queryJournalMode(Statement stat, String pragma) throws SQLException {
+		ResultSet result = stat.executeQuery(pragma);
+		try {
+			return result.next() ? result.getString(1) : "";
+		} finally {
+			result.close();
 		}
 	}
 
@@ -159,15 +196,18 @@ public class AnkiDb {
 	 * Closes a previously opened database connection.
 	 */
 	public void closeDatabase() {
-		/*
-		 * FIXME
-		if (mDatabase != null) {
-			mDatabase.close();
-			log.info("AnkiDb - closeDatabase, database " + mDatabase.getPath()
-					+ " closed = " + !mDatabase.isOpen());
-			mDatabase = null;
+		if (mPool != null) {
+			mPool.close();
+			log.info("AnkiDb - closeDatabase, database " + mDatabase.getUrl() + " closed = " + mPool.isClosed());
 		}
-		*/
+	}
+
+
+	/**
+	 * @return the connection pool of this database, mainly to report its statistics
+	 */
+	public AnkiDbConnectionPool getPool() {
+		return mPool;
 	}
 
 	/*
@@ -176,6 +216,222 @@ public class AnkiDb {
 	}
 	*/
 
+	/**
+	 * Begin a transaction on the writer connection, which stays pinned to the calling thread until the matching
+	 * endTransaction(). Transactions can be nested: inner scopes are savepoints, which are rolled back on their own
+	 * if they are not marked successful. Use it like this:
+	 * 
+	 * <pre>
+	 * db.beginTransaction();
+	 * try {
+	 *     ...
+	 *     db.setTransactionSuccessful();
+	 * } finally {
+	 *     db.endTransaction();
+	 * }
+	 * </pre>
+	 * 
+	 * Reads done by the same thread inside the scope see its uncommitted writes.
+	 */
+	public void beginTransaction() {
+		Capture capture = mCapture.get();
+		if (capture != null) {
+			capture.mDepth++;
+			return;
+		}
+		Connection conn = null;
+		try {
+			conn = leaseWriter();
+			String savepoint = null;
+			if (mTransactions.isEmpty() && conn.getAutoCommit()) {
+				conn.setAutoCommit(false);
+			} else {
+				// Nested scope, or a compiled statement already holds the connection in a transaction
+				savepoint = "anki_sp" + (mTransactions.size() + 1);
+				executeCached(conn, "SAVEPOINT " + savepoint, new Object[0]);
+			}
+			mTransactions.addLast(new TransactionScope(conn, savepoint));
+		} catch (SQLException e) {
+			mPool.release(conn);
+			throw new RuntimeException("AnkiDb - beginTransaction failed", e);
+		}
+	}
+
+
+	/**
+	 * Mark the innermost transaction as successful, so that endTransaction() commits it.
+	 */
+	public void setTransactionSuccessful() {
+		Capture capture = mCapture.get();
+		if (capture != null && capture.mDepth > 0) {
+			return;
+		}
+		if (!inTransaction()) {
+			throw new IllegalStateException("AnkiDb - setTransactionSuccessful without a transaction");
+		}
+		mTransactions.getLast().mSuccessful = true;
+	}
+
+
+	/**
+	 * End the innermost transaction, committing (or releasing the savepoint) if it was marked successful and rolling
+	 * it back otherwise. Hands the writer connection back to the pool.
+	 */
+	public void endTransaction() {
+		Capture capture = mCapture.get();
+		if (capture != null && capture.mDepth > 0) {
+			capture.mDepth--;
+			return;
+		}
+		if (!inTransaction()) {
+			throw new IllegalStateException("AnkiDb - endTransaction without a transaction");
+		}
+		TransactionScope scope = mTransactions.removeLast();
+		Connection conn = scope.mConnection;
+		boolean kept = false;
+		try {
+			if (scope.mSavepoint != null) {
+				if (!scope.mSuccessful) {
+					executeCached(conn, "ROLLBACK TO " + scope.mSavepoint, new Object[0]);
+				}
+				executeCached(conn, "RELEASE " + scope.mSavepoint, new Object[0]);
+			} else {
+				try {
+					if (scope.mSuccessful) {
+						conn.commit();
+					} else {
+						log.warn("AnkiDb - rolling back transaction on " + mDatabase.getUrl());
+						conn.rollback();
+					}
+				} finally {
+					conn.setAutoCommit(true);
+				}
+			}
+			kept = scope.mSuccessful;
+		} catch (SQLException e) {
+			log.error("AnkiDb - endTransaction failed", e);
+		} finally {
+			try {
+				notifyListeners(scope, kept);
+			} finally {
+				mPool.release(conn);
+			}
+		}
+	}
+	
+	/**
+	 * Tell listener how the innermost transaction scope of the current thread ends: onCommit() once the outermost
+	 * scope is committed, or onRollback() as soon as the scope or an enclosing one is rolled back.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the current thread is not in a transaction, or captures its writes
+	 */
+	public void addTransactionListener(TransactionListener listener) {
+		if (!inTransaction() || isCapturing()) {
+			throw new IllegalStateException("AnkiDb - addTransactionListener without a transaction");
+		}
+		TransactionScope scope = mTransactions.getLast();
+		if (scope.mListeners == null) {
+			scope.mListeners = new ArrayList<TransactionListener>();
+		}
+		scope.mListeners.add(listener);
+	}
+	
+	/**
+	 * Hand the listeners of a released savepoint to the enclosing scope, or tell them how the transaction ended.
+	 */
+	private void notifyListeners(TransactionScope scope, boolean kept) {
+		if (scope.mListeners == null) {
+			return;
+		}
+		if (kept && !mTransactions.isEmpty()) {
+			TransactionScope parent = mTransactions.getLast();
+			if (parent.mListeners == null) {
+				parent.mListeners = new ArrayList<TransactionListener>();
+			}
+			parent.mListeners.addAll(scope.mListeners);
+			return;
+		}
+		for (TransactionListener listener : scope.mListeners) {
+			try {
+				if (kept) {
+					listener.onCommit();
+				} else {
+					listener.onRollback();
+				}
+			} catch (RuntimeException e) {
+				log.error("AnkiDb - transaction listener failed", e);
+			}
+		}
+	}
+
+
+	/**
+	 * @return true if the current thread is inside a transaction scope of this database
+	 */
+	public boolean inTransaction() {
+		return mPool.isWriterHeldByCurrentThread() && !mTransactions.isEmpty();
+	}
+
+
+	/**
+	 * Run body in a transaction scope: its writes are committed once if it returns normally and rolled back if it
+	 * throws. Calls can be nested.
+	 * 
+	 * @return the value returned by body
+	 * @throws RuntimeException
+	 *             wrapping any checked exception thrown by body
+	 */
+	public <T> T runInTransaction(Callable<T> body) {
+		beginTransaction();
+		try {
+			T result = body.call();
+			setTransactionSuccessful();
+			return result;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		} finally {
+			endTransaction();
+		}
+	}
+
+
+	/**
+	 * Run body with the writer connection pinned to the current thread, without opening a transaction scope. The
+	 * reads of body go through the writer, so they see its temporary tables. Like any write, the first lease runs the
+	 * barrier.
+	 * 
+	 * @return the value returned by body
+	 * @throws RuntimeException
+	 *             wrapping any checked exception thrown by body
+	 */
+	public <T> T runOnWriter(Callable<T> body) {
+		Connection writer = holdWriter();
+		try {
+			return body.call();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		} finally {
+			releaseWriter(writer);
+		}
+	}
+
+
+	/**
+	 * Lease a connection for a read. A thread holding the writer (e.g. inside a transaction) reads through it, so that
+	 * it sees its own pending writes and does not hold a read lock against its own commit.
+	 */
+	private Connection leaseForRead() throws SQLException {
+		if (mPool.isWriterHeldByCurrentThread()) {
+			return mPool.leaseWriter();
+		}
+		return mPool.leaseReader();
+	}
+
 	/**
 	 * Convenience method for querying the database for a single integer result.
 	 * 
@@ -188,9 +444,10 @@ public class AnkiDb {
 		long scalar = -1;
 		Connection conn = null;
 		
+		Statement stat = null;
 		try {
-			conn = mDatabase.getConnection();
-			Statement stat = conn.createStatement();
+			conn = leaseForRead();
+			stat = conn.createStatement();
 			
 			ResultSet result = stat.executeQuery(query);
 			
@@ -217,17 +474,94 @@ public class AnkiDb {
 				cursor.close();
 			}
 			*/
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (SQLException e) {
-				}
-			}
+			closeStatement(stat);
+			mPool.release(conn);
 		}
 
 		return scalar;
 	}
 
+	/**
+	 * Stream the rows of a query to callback, through a single reusable row view, without buffering the result.
+	 * 
+	 * @return the number of rows, or -1 on error
+	 */
+	public int forEachRow(String query, RowCallback callback) {
+		Connection conn = null;
+		Statement stat = null;
+		int count = 0;
+		try {
+			conn = leaseForRead();
+			stat = conn.createStatement();
+			ResultSet result = stat.executeQuery(query);
+			Row row = new Row();
+			while (result.next()) {
+				row.moveTo(result, count++);
+				callback.onRow(row);
+			}
+		} catch (SQLException e) {
+			log.error("forEachRow failed : " + query, e);
+			count = -1;
+		} finally {
+			closeStatement(stat);
+			mPool.release(conn);
+		}
+		return count;
+	}
+
+	/**
+	 * Map every row of a query to an object.
+	 * 
+	 * @return the mapped rows, or null on error
+	 */
+	public <T> ArrayList<T> queryList(String query, final RowMapper<T> mapper) {
+		final ArrayList<T> results = new ArrayList<T>();
+		int count = forEachRow(query, new RowCallback() {
+			public void onRow(Row row) throws SQLException {
+				results.add(mapper.mapRow(row));
+			}
+		});
+		return count == -1 ? null : results;
+	}
+
+	/**
+	 * Read the first column of a query as primitive longs, without boxing.
+	 * 
+	 * @return the values, empty on error
+	 */
+	public long[] queryLongs(String query) {
+		final long[][] buffer = new long[][] { new long[64] };
+		int count = forEachRow(query, new RowCallback() {
+			public void onRow(Row row) throws SQLException {
+				int position = row.getPosition();
+				if (position == buffer[0].length) {
+					buffer[0] = Arrays.copyOf(buffer[0], position * 2);
+				}
+				buffer[0][position] = row.getLong(1);
+			}
+		});
+		return Arrays.copyOf(buffer[0], Math.max(count, 0));
+	}
+
+	/**
+	 * Read the first column of a query as primitive doubles, without boxing.
+	 * 
+	 * @return the values, empty on error
+	 */
+	public double[] queryDoubles(String query) {
+		final double[][] buffer = new double[][] { new double[64] };
+		int count = forEachRow(query, new RowCallback() {
+			public void onRow(Row row) throws SQLException {
+				int position = row.getPosition();
+				if (position == buffer[0].length) {
+					buffer[0] = Arrays.copyOf(buffer[0], position * 2);
+				}
+				buffer[0][position] = row.getDouble(1);
+			}
+		});
+		return Arrays.copyOf(buffer[0], Math.max(count, 0));
+	}
+
 	/**
 	 * Convenience method for querying the database for an entire column. The
 	 * column will be returned as an ArrayList of the specified class. See
@@ -247,9 +581,10 @@ public class AnkiDb {
 		//Cursor cursor = null;
 
 		Connection conn = null;
+		Statement stat = null;
 		try {
-			conn = mDatabase.getConnection();
-			Statement stat = conn.createStatement();
+			conn = leaseForRead();
+			stat = conn.createStatement();
 			
 			ResultSet result = stat.executeQuery(query);
 			
@@ -259,7 +594,7 @@ public class AnkiDb {
 			//array.getArray();
 			
 			while (result.next()) {
-				results.add(type.cast(result.getObject(column)));
+				results.add(readValue(type, result, column));
 			}
 			
 			//cursor = mDatabase.rawQuery(query, null);
@@ -292,111 +627,40 @@ public class AnkiDb {
 				cursor.close();
 			}*/
 			
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (SQLException e) {
-				}
-			}
+			closeStatement(stat);
+			mPool.release(conn);
 		}
 
 		return results;
 	}
 
 	/**
-	 * Method for executing db commands with simultaneous storing of undo
-	 * information. This should only be called from undo method.
-	 */
-	public void execSQL(Deck deck, SqlCommandType command, String table, Map<String, Object> values, String whereClause) {
-		if (command == SqlCommandType.SQL_INS) {
-			insert(deck, table, null, values);
-		} else if (command == SqlCommandType.SQL_UPD) {
-			update(deck, table, values, whereClause);
-		} else if (command == SqlCommandType.SQL_DEL) {
-			delete(deck, table, whereClause);
-		} else {
-			log.info("wrong command. no action performed");
-		}
-	}
-
-	/**
-	 * Method for inserting rows into the db with simultaneous storing of undo
-	 * information.
+	 * Method for inserting rows into the db. Undo information is written by the deck's undo triggers.
 	 * 
 	 * @return The id of the inserted row.
 	 */
 	public long insert(Deck deck, String table, String nullColumnHack, Map<String, Object> values) {
-		
-		Connection conn = null;
-		try {
-			conn = mDatabase.getConnection();
-			Statement stat = conn.createStatement();
-			
-			String query = "INSERT INTO " + table + "(";
-			
-			for (Entry<String, Object> entry : values.entrySet()) {
-				query += entry.getKey() + ",";
-			}
-			query = query.substring(0, query.length() - 1);
-			query += ")";
-			
-			query += " VALUES (";
-			for (Entry<String, Object> entry : values.entrySet()) {
-				query +=  entry.getValue() + ",";
-			}
-			query = query.substring(0, query.length() - 1);
-			query += ")";
-			
-			log.debug(query);
-			
-			stat.executeUpdate(query);
-			
-		} catch (SQLException e) {
-			e.printStackTrace();
-		} finally {
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (SQLException e) {
-				}
-			}
-		}
-		
-		// FIXME
-		// WRONG
-		long rowid = 1;
-		
-		//long rowid = mDatabase.insert(table, nullColumnHack, values);
-		
-		if (rowid != -1 && deck.recordUndoInformation()) {
-			deck.addUndoCommand(SqlCommandType.SQL_DEL, table, null, "rowid = " + rowid);
-		}
-		return rowid;
+		return insert(table, values);
 	}
 
 	/**
-	 * Method for updating rows of the database with simultaneous storing of
-	 * undo information.
+	 * Method for updating rows of the database. Undo information is written by the deck's undo triggers.
 	 * 
 	 * @param values
 	 *            A map from column names to new column values. Values must not
 	 *            contain sql code/variables. Otherwise use update(Deck deck,
 	 *            String table, Map<String, Object> values, String whereClause,
-	 *            String[] whereArgs, boolean onlyFixedValues) with
-	 *            'onlyFixedValues' = false.
+	 *            boolean onlyFixedValues) with 'onlyFixedValues' = false.
 	 * @param whereClause
 	 *            The optional WHERE clause to apply when updating. Passing null
 	 *            will update all rows.
-	 * @param whereArgs
-	 *            Arguments which will replace all '?'s of the whereClause.
 	 */
 	public void update(Deck deck, String table, Map<String, Object> values, String whereClause) {
 		update(deck, table, values, whereClause, true);
 	}
 
 	/**
-	 * Method for updating rows of the database with simultaneous storing of
-	 * undo information.
+	 * Method for updating rows of the database. Undo information is written by the deck's undo triggers.
 	 * 
 	 * @param values
 	 *            A map from column names to new column values. null is a valid
@@ -404,77 +668,12 @@ public class AnkiDb {
 	 * @param whereClause
 	 *            The optional WHERE clause to apply when updating. Passing null
 	 *            will update all rows.
-	 * @param whereArgs
-	 *            Arguments which will replace all '?'s of the whereClause.
 	 * @param onlyFixedValues
 	 *            Set this to true, if 'values' contains only fixed values (no
 	 *            sql code). Otherwise, it must be set to false and fixed string
 	 *            values have to be extra quoted ("\'example-value\'").
 	 */
 	public void update(Deck deck, String table, Map<String, Object> values, String whereClause, boolean onlyFixedValues) {
-		update(deck, table, values, whereClause, onlyFixedValues, null, null);
-	}
-
-	public void update(Deck deck, String table, Map<String, Object> values, String whereClause, boolean onlyFixedValues,
-			Map<String, Object>[] oldValuesArray, String[] whereClauseArray) {
-		if (deck.recordUndoInformation()) {
-			if (oldValuesArray != null) {
-				for (int i = 0; i < oldValuesArray.length; i++) {
-					deck.addUndoCommand(SqlCommandType.SQL_UPD, table, oldValuesArray[i],
-							whereClauseArray[i]);
-				}
-			} else {
-				ArrayList<String> ar = new ArrayList<String>();
-				for (String key : values.keySet()) {
-					ar.add(key);
-				}
-				int len = ar.size();
-				String[] columns = new String[len + 1];
-				ar.toArray(columns);
-				columns[len] = "rowid";
-
-				ResultSet result = null;
-				try {
-					result = query(table, columns, whereClause);
-					while (result.next()) {
-						Map<String, Object> oldvalues = new HashMap<String, Object>();
-						for (int i = 0; i < len; i++) {
-							// String typeName;
-							// if (values.get(columns[i]) != null) {
-							// typeName =
-							// values.get(columns[i]).getClass().getSimpleName();
-							// } else {
-							// typeName = "String";
-							// }
-							// if (typeName.equals("String")) {
-							// oldvalues.put(columns[i], cursor.getString(i));
-							// } else if (typeName.equals("Long")) {
-							// oldvalues.put(columns[i], cursor.getLong(i));
-							// } else if (typeName.equals("Double")) {
-							// oldvalues.put(columns[i], cursor.getDouble(i));
-							// } else if (typeName.equals("Integer")) {
-							// oldvalues.put(columns[i], cursor.getInt(i));
-							// } else if (typeName.equals("Float")) {
-							// oldvalues.put(columns[i], cursor.getFloat(i));
-							// } else {
-							oldvalues.put(columns[i], result.getString(i + 1));
-							// }
-						}
-						deck.addUndoCommand(SqlCommandType.SQL_UPD, table, oldvalues,
-								"rowid = " + result.getString(len + 1));
-					}
-				} catch (SQLException e) {
-					e.printStackTrace();
-				} finally {
-					if (result != null) {
-						try {
-							result.close();
-						} catch (SQLException e) {
-						}
-					}
-				}
-			}
-		}
 		if (onlyFixedValues) {
 			update(table, values, whereClause);
 		} else {
@@ -490,78 +689,9 @@ public class AnkiDb {
 	}
 
 	/**
-	 * Method for deleting rows of the database with simultaneous storing of
-	 * undo information.
+	 * Method for deleting rows of the database. Undo information is written by the deck's undo triggers.
 	 */
 	public void delete(Deck deck, String table, String whereClause) {
-		if (deck.recordUndoInformation()) {
-			ArrayList<String> columnsNames = new ArrayList<String>();
-			// ArrayList<String> columnTypes = new ArrayList<String>();
-			ResultSet result = null;
-
-			try {
-				result = rawQuery("PRAGMA TABLE_INFO(" + table + ")");
-				while (result.next()) {
-					columnsNames.add(result.getString(1));
-					// String t = cursor.getString(2).toLowerCase();
-					// String typeName = "";
-					// if (t.subSequence(0, 3).equals("int")) {
-					// typeName = "Long";
-					// } else if (t.equals("float")) {
-					// typeName = "Double";
-					// } else {
-					// typeName = "String";
-					// }
-					// columnTypes.add(typeName);
-				}
-			} catch (SQLException e) {
-				e.printStackTrace();
-			} finally {
-				if (result != null) {
-					try {
-						result.close();
-					} catch (SQLException e) {
-					}
-				}
-			}
-
-			int len = columnsNames.size();
-			String[] columns = new String[len];
-			columnsNames.toArray(columns);
-
-			try {
-				result = query(table, columns, whereClause);
-				while (result.next()) {
-					Map<String, Object> oldvalues = new HashMap<String, Object>();
-					for (int i = 0; i < len; i++) {
-						// String typeName = columnTypes.get(i);
-						// if (typeName.equals("String")) {
-						// oldvalues.put(columns[i], cursor.getString(i));
-						// } else if (typeName.equals("Long")) {
-						// oldvalues.put(columns[i], cursor.getLong(i));
-						// } else if (typeName.equals("Double")) {
-						// oldvalues.put(columns[i], cursor.getDouble(i));
-						// } else if (typeName.equals("Integer")) {
-						// oldvalues.put(columns[i], cursor.getInt(i));
-						// } else if (typeName.equals("Float")) {
-						// oldvalues.put(columns[i], cursor.getFloat(i));
-						// } else {
-						oldvalues.put(columns[i], result.getString(i + 1));
-						// }
-					}
-					deck.addUndoCommand(SqlCommandType.SQL_INS, table, oldvalues, null);
-				}
-			} catch (SQLException e) {
-				e.printStackTrace();
-			} finally {
-				if (result != null) {
-					try {
-						result.close();
-					} catch (SQLException e) {
-					}
-				}
-			}
-		}
 		delete(table, whereClause);
 	}
 
@@ -570,17 +700,18 @@ public class AnkiDb {
 		ResultSet result = null;
 		
 		try {
-			conn = mDatabase.getConnection();
+			conn = leaseForRead();
 			Statement stat = conn.createStatement();
 			
 			result = stat.executeQuery(query);
 
 		} catch (SQLException e) {
 			log.error("Raw Query failed :", e);
+			mPool.release(conn);
 			return null;
 		}
 		
-		return new ConnectionAwareResultSet(result, conn);
+		return new ConnectionAwareResultSet(result, conn, mPool);
 	}
 	
 	public ResultSet query(String table, String columns[], String whereClause) {
@@ -614,12 +745,16 @@ public class AnkiDb {
 	 * @return true if no pb
 	 */
 	public int execSQL(String query) {
+		if (capture(query, null)) {
+			return 0;
+		}
 		Connection conn = null;
 		int result = -1;
 		
+		Statement stat = null;
 		try {
-			conn = mDatabase.getConnection();
-			Statement stat = conn.createStatement();
+			conn = leaseWriter();
+			stat = conn.createStatement();
 			
 			result = stat.executeUpdate(query);
 
@@ -627,66 +762,412 @@ public class AnkiDb {
 			log.error("Raw Query failed :", e);
 			result = -1;
 		} finally {
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (SQLException e) {
-					result = -1;
-				}
-			}
+			closeStatement(stat);
+			mPool.release(conn);
 		}
 		
 		return result;
 	}
 	
 	public PreparedStatement compileStatement(String query) {
+		Connection conn = null;
 		try {
-			Connection conn = mDatabase.getConnection();
-			conn.setAutoCommit(false);
+			conn = leaseWriter();
+			// Inside a transaction scope, the statement's work is committed with the scope
+			boolean ownTransaction = !inTransaction() && conn.getAutoCommit();
+			if (ownTransaction) {
+				conn.setAutoCommit(false);
+			}
 			
 			PreparedStatement stat = conn.prepareStatement(query);
 			
-			return new ConnectionAwarePreparedStatement(stat, conn);
+			return new ConnectionAwarePreparedStatement(stat, conn, mPool, ownTransaction);
 		} catch (SQLException e) {
 			log.error("Compile Statement failed failed :", e);
+			if (conn != null && !inTransaction()) {
+				try {
+					conn.setAutoCommit(true);
+				} catch (SQLException e1) {
+				}
+			}
+			mPool.release(conn);
 		}
 		return null;
 	}
 	
-	public void delete(String table, String whereClause) {
+	/**
+	 * Execute a parameterized statement, reusing its compiled form from the statement cache of the writer
+	 * connection.
+	 * 
+	 * @param query
+	 *            The SQL statement, with '?' placeholders.
+	 * @param bindArgs
+	 *            The values bound to the placeholders, see bindValue() for the supported types.
+	 * @return the number of changed rows, or -1 on error
+	 */
+	public int execSQL(String query, Object... bindArgs) {
+		if (capture(query, bindArgs)) {
+			return 0;
+		}
+		Connection conn = null;
+		try {
+			conn = leaseWriter();
+			return executeCached(conn, query, bindArgs);
+		} catch (SQLException e) {
+			log.error("Statement failed : " + query, e);
+			return -1;
+		} finally {
+			mPool.release(conn);
+		}
+	}
+	
+	/**
+	 * Insert a row, binding the values as parameters. The statement is cached by table and column set, so repeated
+	 * inserts of the same shape are compiled only once.
+	 * 
+	 * @return the rowid of the new row, or -1 on error
+	 */
+	public long insert(String table, Map<String, Object> values) {
+		String[] columns = sortedColumns(values);
+		Object[] args = new Object[columns.length];
+		StringBuilder sb = new StringBuilder(32 + columns.length * 16);
+		sb.append("INSERT INTO ").append(table).append(" (");
+		for (int i = 0; i < columns.length; i++) {
+			sb.append(i == 0 ? "" : ", ").append(columns[i]);
+			args[i] = values.get(columns[i]);
+		}
+		sb.append(") VALUES (");
+		for (int i = 0; i < columns.length; i++) {
+			sb.append(i == 0 ? "?" : ", ?");
+		}
+		sb.append(")");
+		String query = sb.toString();
+		if (capture(query, args)) {
+			return 0;
+		}
+		
+		Connection conn = null;
+		try {
+			conn = leaseWriter();
+			executeCached(conn, query, args);
+			return lastInsertRowId(conn);
+		} catch (SQLException e) {
+			log.error("INSERT failed : " + query, e);
+			return -1;
+		} finally {
+			mPool.release(conn);
+		}
+	}
+	
+	/**
+	 * Update rows, binding the new values and the arguments of the WHERE clause as parameters. The statement is
+	 * cached by table, column set and WHERE clause.
+	 * 
+	 * @param values
+	 *            A map from column names to new column values. Values are never interpreted as SQL.
+	 * @param whereClause
+	 *            The optional WHERE clause, with '?' placeholders for whereArgs. Passing null will update all rows.
+	 * @return the number of changed rows, or -1 on error
+	 */
+	public int update(String table, Map<String, Object> values, String whereClause, Object... whereArgs) {
+		String[] columns = sortedColumns(values);
+		Object[] args = new Object[columns.length + whereArgs.length];
+		StringBuilder sb = new StringBuilder(32 + columns.length * 16);
+		sb.append("UPDATE ").append(table).append(" SET ");
+		for (int i = 0; i < columns.length; i++) {
+			sb.append(i == 0 ? "" : ", ").append(columns[i]).append(" = ?");
+			args[i] = values.get(columns[i]);
+		}
+		if (StringUtils.isNotBlank(whereClause)) {
+			sb.append(" WHERE ").append(whereClause);
+		}
+		System.arraycopy(whereArgs, 0, args, columns.length, whereArgs.length);
+		return execSQL(sb.toString(), args);
+	}
+	
+	/**
+	 * Delete rows, binding the arguments of the WHERE clause as parameters.
+	 * 
+	 * @return the number of deleted rows, or -1 on error
+	 */
+	public int delete(String table, String whereClause, Object... whereArgs) {
 		
 		if (StringUtils.isBlank(table) || StringUtils.isBlank(whereClause)) {
 			log.error("DELETE failed : table and whereClause must not be blank {} {}", table, whereClause);
-			return;
+			return -1;
 		}
 		
-		String query = "DELETE FROM " + table + " WHERE " + whereClause;
-		execSQL(query);
+		return execSQL("DELETE FROM " + table + " WHERE " + whereClause, whereArgs);
 	}
 	
-	public void update(String table, Map<String, Object> values, String whereClause) {
-		StringBuilder sb = new StringBuilder();
-		sb.append("UPDATE ").append(table).append(" SET ");
-		for (Entry<String, Object> entry : values.entrySet()) {
-			String key = entry.getKey();
-			Object object = entry.getValue();
-			
-			if (object instanceof String) {
-				String s = (String) object;
-				if (s == null || s.length() == 0) {
-					continue;
-				}
-				sb.append(key).append(" = \"").append(s).append("\", ");
-			} else if (object instanceof Long || object instanceof Float || object instanceof Double) {
-				sb.append(key).append(" = ").append(object).append(", ");
+	/**
+	 * Start a batched insert into table, using the bulk batch size of the configuration. See {@link BulkInsert}.
+	 * 
+	 * @param deck
+	 *            The deck the rows belong to, or null. Undo information is written by the deck's undo triggers.
+	 */
+	public BulkInsert bulkInsert(Deck deck, String table, String... columns) {
+		return bulkInsert(deck, table, mConfig.getBulkBatchSize(), columns);
+	}
+	
+	public BulkInsert bulkInsert(Deck deck, String table, int batchSize, String... columns) {
+		return new BulkInsert(this, table, columns, batchSize);
+	}
+	
+	/**
+	 * Like {@link #bulkInsert(Deck, String, String...)}, but rows that would violate a unique constraint of the table
+	 * are skipped instead of failing the insert.
+	 */
+	public BulkInsert bulkInsertOrIgnore(Deck deck, String table, String... columns) {
+		return new BulkInsert(this, table, BulkInsert.insertSql("INSERT OR IGNORE", table, columns), columns.length,
+				mConfig.getBulkBatchSize());
+	}
+	
+	/**
+	 * Start a batched update of table by key column, using the bulk batch size of the configuration. See
+	 * {@link BulkUpdate}.
+	 * 
+	 * @param deck
+	 *            The deck the rows belong to, or null. Undo information is written by the deck's undo triggers.
+	 */
+	public BulkUpdate bulkUpdate(Deck deck, String table, String key, String... columns) {
+		return new BulkUpdate(this, table, key, columns, mConfig.getBulkBatchSize());
+	}
+	
+	/**
+	 * Put ids in a temporary table, to be used with "IN " + set.getSubquery() instead of Utils.ids2str(). The caller
+	 * must close the set. See {@link IdSet}.
+	 */
+	public IdSet idSet(long[] ids) {
+		return IdSet.fromIds(this, ids);
+	}
+	
+	/**
+	 * Put the ids selected by query (first column) in a temporary table. See {@link IdSet}.
+	 */
+	public IdSet idSetFromQuery(String query) {
+		return IdSet.fromQuery(this, query);
+	}
+	
+	/**
+	 * Record the writes of the current thread instead of executing them, until endCapture(). Covers execSQL(),
+	 * insert(), update(), delete() and bulkInsert(); transaction scopes opened meanwhile do nothing. Reads still run,
+	 * without seeing the captured writes.
+	 */
+	public void beginCapture() {
+		if (mCapture.get() != null) {
+			throw new IllegalStateException("AnkiDb - capture already started");
+		}
+		mCapture.set(new Capture());
+	}
+	
+	/**
+	 * @return the statements captured since beginCapture(), or null if the current thread was not capturing
+	 */
+	public StatementLog endCapture() {
+		Capture capture = mCapture.get();
+		mCapture.remove();
+		return capture != null ? capture.mLog : null;
+	}
+	
+	public boolean isCapturing() {
+		return mCapture.get() != null;
+	}
+	
+	/**
+	 * @return true if the statement was captured, false if it has to be executed
+	 */
+	boolean capture(String query, Object[] bindArgs) {
+		Capture capture = mCapture.get();
+		if (capture == null) {
+			return false;
+		}
+		capture.mLog.add(query, bindArgs);
+		return true;
+	}
+	
+	/**
+	 * Execute captured statements on the writer connection. The caller should hold a transaction scope, so that they
+	 * are applied atomically.
+	 */
+	public void apply(StatementLog statements) throws SQLException {
+		Connection conn = leaseWriter();
+		try {
+			for (int i = 0; i < statements.size(); i++) {
+				executeCached(conn, statements.getStatement(i), statements.getArgs(i));
+			}
+		} finally {
+			mPool.release(conn);
+		}
+	}
+	
+	/**
+	 * Set the action run before every write started outside a transaction which is not captured, or null to remove
+	 * it. The action must guard itself against the statements it runs.
+	 */
+	public void setBarrier(Runnable barrier) {
+		mBarrier = barrier;
+	}
+	
+	public Runnable getBarrier() {
+		return mBarrier;
+	}
+	
+	private void runBarrier() {
+		Runnable barrier = mBarrier;
+		if (barrier != null && mCapture.get() == null) {
+			barrier.run();
+		}
+	}
+	
+	private Connection leaseWriter() throws SQLException {
+		if (!mPool.isWriterHeldByCurrentThread()) {
+			runBarrier();
+		}
+		return mPool.leaseWriter();
+	}
+	
+	/**
+	 * Pin the writer connection to the current thread without opening a transaction scope, until the matching
+	 * releaseWriter(). Reads of the thread meanwhile run on the writer, and writes of the other threads wait. Prefer
+	 * runOnWriter() when the work fits in one call.
+	 */
+	public Connection holdWriter() {
+		try {
+			return leaseWriter();
+		} catch (SQLException e) {
+			throw new RuntimeException("AnkiDb - could not lease the writer of " + mDatabase.getUrl(), e);
+		}
+	}
+	
+	public void releaseWriter(Connection writer) {
+		mPool.release(writer);
+	}
+	
+	int acquireIdSetSlot() {
+		return ++mOpenIdSets;
+	}
+	
+	void releaseIdSetSlot() {
+		mOpenIdSets--;
+	}
+	
+	/**
+	 * @return the hit and miss counters of the statement caches, as kept by the connection pool
+	 */
+	public long getStatementCacheHits() {
+		return mPool.getStatementCacheHits();
+	}
+	
+	public long getStatementCacheMisses() {
+		return mPool.getStatementCacheMisses();
+	}
+	
+	private int executeCached(Connection conn, String query, Object[] bindArgs) throws SQLException {
+		StatementCache cache = mPool.getStatementCache(conn);
+		try {
+			PreparedStatement stat = cache.prepare(query);
+			for (int i = 0; i < bindArgs.length; i++) {
+				bindValue(stat, i + 1, bindArgs[i]);
 			}
+			return stat.executeUpdate();
+		} catch (SQLException e) {
+			// Do not keep a statement in an unknown state
+			cache.evict(query);
+			throw e;
+		}
+	}
+	
+	private long lastInsertRowId(Connection conn) throws SQLException {
+		ResultSet result = mPool.getStatementCache(conn).prepare("SELECT last_insert_rowid()").executeQuery();
+		try {
+			return result.next() ? result.getLong(1) : -1;
+		} finally {
+			result.close();
 		}
-		sb.deleteCharAt(sb.length() - 2);
-		sb.append("WHERE ").append(whereClause);
-		execSQL(sb.toString());
 	}
 	
+	/**
+	 * Bind a Java value to a statement parameter. Numbers are bound as integers or reals, booleans as 0/1, byte
+	 * arrays as blobs and null as NULL. Anything else is bound as its string representation.
+	 */
+	public static void bindValue(PreparedStatement stat, int index, Object value) throws SQLException {
+		if (value == null) {
+			stat.setNull(index, Types.NULL);
+		} else if (value instanceof Long || value instanceof Integer || value instanceof Short
+				|| value instanceof Byte) {
+			stat.setLong(index, ((Number) value).longValue());
+		} else if (value instanceof Double || value instanceof Float) {
+			stat.setDouble(index, ((Number) value).doubleValue());
+		} else if (value instanceof Boolean) {
+			stat.setInt(index, ((Boolean) value).booleanValue() ? 1 : 0);
+		} else if (value instanceof byte[]) {
+			stat.setBytes(index, (byte[]) value);
+		} else {
+			stat.setString(index, value.toString());
+		}
+	}
+	
+	private static class Capture {
+		private final StatementLog mLog = new StatementLog();
+		// Transaction scopes opened while capturing
+		private int mDepth = 0;
+	}
 	
+	private static class TransactionScope {
+		private final Connection mConnection;
+		// null for the outermost scope
+		private final String mSavepoint;
+		private boolean mSuccessful = false;
+		// Added by addTransactionListener(), or null
+		private ArrayList<TransactionListener> mListeners;
+
+		private TransactionScope(Connection connection, String savepoint) {
+			mConnection = connection;
+			mSavepoint = savepoint;
+		}
+	}
+	
+	/**
+	 * Read a column with the getter matching type, so that e.g. small integers are not returned as Integer when Long
+	 * was asked for.
+	 */
+	private static <T> T readValue(Class<T> type, ResultSet result, int column) throws SQLException {
+		Object value;
+		if (type == Long.class) {
+			value = result.getLong(column);
+		} else if (type == Integer.class) {
+			value = result.getInt(column);
+		} else if (type == Double.class) {
+			value = result.getDouble(column);
+		} else if (type == Float.class) {
+			value = result.getFloat(column);
+		} else if (type == String.class) {
+			value = result.getString(column);
+		} else {
+			value = result.getObject(column);
+		}
+		return result.wasNull() ? null : type.cast(value);
+	}
+	
+	private static String[] sortedColumns(Map<String, Object> values) {
+		// A stable column order gives one cache entry per column set, whatever the map implementation
+		String[] columns = values.keySet().toArray(new String[values.size()]);
+		Arrays.sort(columns);
+		return columns;
+	}
+	
+	
+	private static void closeStatement(Statement stat) {
+		if (stat != null) {
+			try {
+				stat.close();
+			} catch (SQLException e) {
+			}
+		}
+	}
+
+
 	/**
 	 * Mapping of Java type names to the corresponding Cursor.get method.
 	 * 
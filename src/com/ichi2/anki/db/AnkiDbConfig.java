@@ -0,0 +1,191 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * SQLite settings used to open a deck database.
+ *
+ * The defaults match what AnkiDb always did: journal_mode DELETE and synchronous FULL, which keep the deck file
+ * readable by sqlite < 3.7 and safe to copy at any time. WAL with synchronous NORMAL (see {@link #wal()}) lets the
+ * read connections of the pool run while the writer commits, at the price of a -wal file next to the deck: switch
+ * back to DELETE with {@link AnkiDb#setJournalMode(JournalMode)} before the file is exported or uploaded.
+ */
+public class AnkiDbConfig {
+
+	public enum JournalMode { DELETE, TRUNCATE, PERSIST, MEMORY, WAL, OFF };
+
+	public enum Synchronous { OFF, NORMAL, FULL };
+
+	public enum TempStore { DEFAULT, FILE, MEMORY };
+
+	public static final int DEFAULT_BUSY_TIMEOUT = 3000;
+
+	public static final int DEFAULT_BULK_BATCH_SIZE = 500;
+
+	private JournalMode mJournalMode = JournalMode.DELETE;
+	private Synchronous mSynchronous = Synchronous.FULL;
+	/** Page cache size in pages, 0 keeps the SQLite default */
+	private int mCacheSize = 0;
+	/** Memory-mapped I/O size in bytes, 0 disables it */
+	private long mMmapSize = 0;
+	private TempStore mTempStore = TempStore.DEFAULT;
+	/** Time in milliseconds a connection waits for a lock before failing with SQLITE_BUSY */
+	private int mBusyTimeout = DEFAULT_BUSY_TIMEOUT;
+	/** Rows per JDBC batch of a {@link BulkInsert} */
+	private int mBulkBatchSize = DEFAULT_BULK_BATCH_SIZE;
+
+
+	public AnkiDbConfig() {
+	}
+
+
+	public AnkiDbConfig(AnkiDbConfig other) {
+		mJournalMode = other.mJournalMode;
+		mSynchronous = other.mSynchronous;
+		mCacheSize = other.mCacheSize;
+		mMmapSize = other.mMmapSize;
+		mTempStore = other.mTempStore;
+		mBusyTimeout = other.mBusyTimeout;
+		mBulkBatchSize = other.mBulkBatchSize;
+	}
+
+
+	/**
+	 * @return a WAL configuration with synchronous NORMAL, for concurrent readers and cheap commits
+	 */
+	public static AnkiDbConfig wal() {
+		AnkiDbConfig config = new AnkiDbConfig();
+		config.setJournalMode(JournalMode.WAL);
+		config.setSynchronous(Synchronous.NORMAL);
+		return config;
+	}
+
+
+	/**
+	 * @return a copy of this configuration using journal_mode DELETE, for decks which are about to be copied
+	 */
+	public AnkiDbConfig withDeleteJournalMode() {
+		AnkiDbConfig config = new AnkiDbConfig(this);
+		config.setJournalMode(JournalMode.DELETE);
+		if (mSynchronous == Synchronous.NORMAL) {
+			// NORMAL is only durable with WAL
+			config.setSynchronous(Synchronous.FULL);
+		}
+		return config;
+	}
+
+
+	/**
+	 * Apply the per-connection settings. The journal mode is a property of the database file and is set once by
+	 * AnkiDb on the writer connection.
+	 */
+	public void applyTo(Connection conn) throws SQLException {
+		Statement stat = conn.createStatement();
+		try {
+			stat.execute("PRAGMA synchronous = " + mSynchronous.name());
+			stat.execute("PRAGMA temp_store = " + mTempStore.name());
+			if (mCacheSize != 0) {
+				stat.execute("PRAGMA cache_size = " + mCacheSize);
+			}
+			if (mMmapSize > 0) {
+				stat.execute("PRAGMA mmap_size = " + mMmapSize);
+			}
+			stat.execute("PRAGMA busy_timeout = " + mBusyTimeout);
+		} finally {
+			stat.close();
+		}
+	}
+
+
+	public JournalMode getJournalMode() {
+		return mJournalMode;
+	}
+
+
+	public void setJournalMode(JournalMode journalMode) {
+		mJournalMode = journalMode;
+	}
+
+
+	public Synchronous getSynchronous() {
+		return mSynchronous;
+	}
+
+
+	public void setSynchronous(Synchronous synchronous) {
+		mSynchronous = synchronous;
+	}
+
+
+	public int getCacheSize() {
+		return mCacheSize;
+	}
+
+
+	public void setCacheSize(int cacheSize) {
+		mCacheSize = cacheSize;
+	}
+
+
+	public long getMmapSize() {
+		return mMmapSize;
+	}
+
+
+	public void setMmapSize(long mmapSize) {
+		mMmapSize = mmapSize;
+	}
+
+
+	public TempStore getTempStore() {
+		return mTempStore;
+	}
+
+
+	public void setTempStore(TempStore tempStore) {
+		mTempStore = tempStore;
+	}
+
+
+	public int getBusyTimeout() {
+		return mBusyTimeout;
+	}
+
+
+	public void setBusyTimeout(int busyTimeout) {
+		mBusyTimeout = busyTimeout;
+	}
+
+
+	public int getBulkBatchSize() {
+		return mBulkBatchSize;
+	}
+
+
+	public void setBulkBatchSize(int bulkBatchSize) {
+		mBulkBatchSize = bulkBatchSize;
+	}
+
+
+	@Override
+	public String toString() {
+		return "journal_mode=" + mJournalMode + ", synchronous=" + mSynchronous + ", cache_size=" + mCacheSize
+				+ ", mmap_size=" + mMmapSize + ", temp_store=" + mTempStore + ", busy_timeout=" + mBusyTimeout;
+	}
+}
@@ -0,0 +1,378 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteDataSource;
+
+/**
+ * Keeps the SQLite connections of one deck file open between calls.
+ *
+ * There is a single long-lived writer connection, which is leased to one thread at a time (the lease is re-entrant,
+ * so a thread holding an open statement can still run other writes), and a small pool of read-only connections. At
+ * most maxIdleReaders read connections are kept open; bursts beyond that open short-lived connections which are
+ * closed again on release, up to maxReaders read connections in all. Past that, reads are served by the writer
+ * connection, waiting for it if needed, so the number of open connections stays bounded under load. Waiting for the
+ * writer cannot deadlock: a thread holding the writer reads through it and never waits for a reader. Every pooled
+ * connection has its own {@link StatementCache}.
+ */
+public class AnkiDbConnectionPool {
+
+	private static Logger log = LoggerFactory.getLogger(AnkiDbConnectionPool.class);
+
+	public static final int DEFAULT_MAX_IDLE_READERS = 3;
+	public static final int DEFAULT_MAX_READERS = 6;
+
+	private final String mPath;
+	private final SQLiteDataSource mWriterSource;
+	private final SQLiteDataSource mReaderSource;
+	private final int mMaxIdleReaders;
+	private final int mMaxReaders;
+	private final AnkiDbConfig mConfig;
+
+	private final ReentrantLock mWriterLock = new ReentrantLock(true);
+	private Connection mWriter;
+	private final LinkedList<Connection> mIdleReaders = new LinkedList<Connection>();
+	// Read connections open, idle or leased, guarded by mIdleReaders
+	private int mOpenReaders = 0;
+	private final IdentityHashMap<Connection, StatementCache> mStatementCaches =
+			new IdentityHashMap<Connection, StatementCache>();
+	private volatile boolean mClosed = false;
+
+	// Statistics
+	private final AtomicLong mOpenCount = new AtomicLong();
+	private final AtomicLong mLeaseCount = new AtomicLong();
+	private final AtomicLong mReuseCount = new AtomicLong();
+	private final AtomicInteger mActiveLeases = new AtomicInteger();
+	private final AtomicLong mWriterFallbackCount = new AtomicLong();
+	// Counters of statement caches whose connection has been closed
+	private final AtomicLong mRetiredStatementHits = new AtomicLong();
+	private final AtomicLong mRetiredStatementMisses = new AtomicLong();
+
+
+	public AnkiDbConnectionPool(String path, SQLiteDataSource writerSource, SQLiteDataSource readerSource,
+			int maxIdleReaders) {
+		this(path, writerSource, readerSource, maxIdleReaders, null);
+	}
+
+
+	/**
+	 * @param config
+	 *            settings applied to every connection when it is opened, or null to keep the driver defaults
+	 */
+	public AnkiDbConnectionPool(String path, SQLiteDataSource writerSource, SQLiteDataSource readerSource,
+			int maxIdleReaders, AnkiDbConfig config) {
+		this(path, writerSource, readerSource, maxIdleReaders, Math.max(maxIdleReaders, DEFAULT_MAX_READERS), config);
+	}
+
+
+	/**
+	 * @param maxReaders
+	 *            the most read connections open at once, at least maxIdleReaders
+	 * @param config
+	 *            settings applied to every connection when it is opened, or null to keep the driver defaults
+	 */
+	public AnkiDbConnectionPool(String path, SQLiteDataSource writerSource, SQLiteDataSource readerSource,
+			int maxIdleReaders, int maxReaders, AnkiDbConfig config) {
+		mPath = path;
+		mWriterSource = writerSource;
+		mReaderSource = readerSource;
+		mMaxIdleReaders = maxIdleReaders;
+		mMaxReaders = Math.max(maxIdleReaders, maxReaders);
+		mConfig = config;
+	}
+
+
+	/**
+	 * Lease the writer connection. Blocks while another thread holds it. Every lease must be handed back through
+	 * {@link #release(Connection)}, from the same thread.
+	 */
+	public Connection leaseWriter() throws SQLException {
+		mWriterLock.lock();
+		try {
+			if (mClosed) {
+				throw new SQLException("Connection pool for " + mPath + " is closed");
+			}
+			if (mWriter == null || mWriter.isClosed()) {
+				mWriter = open(mWriterSource);
+			} else {
+				mReuseCount.incrementAndGet();
+			}
+			mLeaseCount.incrementAndGet();
+			mActiveLeases.incrementAndGet();
+			return mWriter;
+		} catch (SQLException e) {
+			mWriterLock.unlock();
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Lease a read-only connection, reusing an idle one if available. When maxReaders read connections are already
+	 * open, the writer is leased instead, blocking while another thread holds it.
+	 */
+	public Connection leaseReader() throws SQLException {
+		if (mClosed) {
+			throw new SQLException("Connection pool for " + mPath + " is closed");
+		}
+		Connection conn = null;
+		boolean full = false;
+		synchronized (mIdleReaders) {
+			conn = mIdleReaders.poll();
+			if (conn == null) {
+				full = mOpenReaders >= mMaxReaders;
+				if (!full) {
+					// Take the slot before opening outside the lock
+					mOpenReaders++;
+				}
+			}
+		}
+		if (conn != null) {
+			mReuseCount.incrementAndGet();
+		} else if (full) {
+			mWriterFallbackCount.incrementAndGet();
+			return leaseWriter();
+		} else {
+			try {
+				conn = open(mReaderSource);
+			} catch (SQLException e) {
+				synchronized (mIdleReaders) {
+					mOpenReaders--;
+				}
+				throw e;
+			}
+		}
+		mLeaseCount.incrementAndGet();
+		mActiveLeases.incrementAndGet();
+		return conn;
+	}
+
+
+	/**
+	 * Hand a leased connection back to the pool. Connections are only closed if the pool is full or closed.
+	 */
+	public void release(Connection conn) {
+		if (conn == null) {
+			return;
+		}
+		mActiveLeases.decrementAndGet();
+		if (conn == mWriter) {
+			if (mWriterLock.isHeldByCurrentThread()) {
+				mWriterLock.unlock();
+			} else {
+				log.error("AnkiDbConnectionPool - writer of " + mPath + " released by a thread not holding it");
+			}
+			return;
+		}
+		synchronized (mIdleReaders) {
+			if (!mClosed && mIdleReaders.size() < mMaxIdleReaders) {
+				mIdleReaders.addFirst(conn);
+				return;
+			}
+			mOpenReaders--;
+		}
+		closeQuietly(conn);
+	}
+
+
+	/**
+	 * Return the statement cache of a leased connection, creating it on first use.
+	 */
+	public StatementCache getStatementCache(Connection conn) {
+		synchronized (mStatementCaches) {
+			StatementCache cache = mStatementCaches.get(conn);
+			if (cache == null) {
+				cache = new StatementCache(conn, StatementCache.DEFAULT_CAPACITY);
+				mStatementCaches.put(conn, cache);
+			}
+			return cache;
+		}
+	}
+
+
+	/**
+	 * @return true if the current thread holds a lease on the writer connection
+	 */
+	public boolean isWriterHeldByCurrentThread() {
+		return mWriterLock.isHeldByCurrentThread();
+	}
+
+
+	/**
+	 * Close the idle read connections, e.g. before changing the journal mode, which needs the database to itself.
+	 */
+	public void closeIdleReaders() {
+		synchronized (mIdleReaders) {
+			for (Connection conn : mIdleReaders) {
+				closeQuietly(conn);
+			}
+			mOpenReaders -= mIdleReaders.size();
+			mIdleReaders.clear();
+		}
+	}
+
+
+	/**
+	 * Close all pooled connections. Waits for a pending writer lease to be released first; leased read connections
+	 * are closed when they come back.
+	 */
+	public void close() {
+		log.info("AnkiDbConnectionPool - closing " + mPath + ": " + getStatistics());
+		mClosed = true;
+		closeIdleReaders();
+		mWriterLock.lock();
+		try {
+			if (mWriter != null) {
+				closeQuietly(mWriter);
+				mWriter = null;
+			}
+		} finally {
+			mWriterLock.unlock();
+		}
+	}
+
+
+	public boolean isClosed() {
+		return mClosed;
+	}
+
+
+	/**
+	 * @return the number of physical connections opened so far
+	 */
+	public long getOpenCount() {
+		return mOpenCount.get();
+	}
+
+
+	/**
+	 * @return the number of leases handed out so far
+	 */
+	public long getLeaseCount() {
+		return mLeaseCount.get();
+	}
+
+
+	/**
+	 * @return the number of leases served by an already open connection
+	 */
+	public long getReuseCount() {
+		return mReuseCount.get();
+	}
+
+
+	/**
+	 * @return the number of read leases served by the writer because maxReaders read connections were open
+	 */
+	public long getWriterFallbackCount() {
+		return mWriterFallbackCount.get();
+	}
+
+
+	/**
+	 * @return the number of read connections open, idle or leased
+	 */
+	public int getOpenReaders() {
+		synchronized (mIdleReaders) {
+			return mOpenReaders;
+		}
+	}
+
+
+	/**
+	 * @return the number of leases not yet released
+	 */
+	public int getActiveLeases() {
+		return mActiveLeases.get();
+	}
+
+
+	/**
+	 * @return the number of statements served from the statement caches
+	 */
+	public long getStatementCacheHits() {
+		long hits = mRetiredStatementHits.get();
+		synchronized (mStatementCaches) {
+			for (StatementCache cache : mStatementCaches.values()) {
+				hits += cache.getHits();
+			}
+		}
+		return hits;
+	}
+
+
+	/**
+	 * @return the number of statements compiled by the statement caches
+	 */
+	public long getStatementCacheMisses() {
+		long misses = mRetiredStatementMisses.get();
+		synchronized (mStatementCaches) {
+			for (StatementCache cache : mStatementCaches.values()) {
+				misses += cache.getMisses();
+			}
+		}
+		return misses;
+	}
+
+
+	public String getStatistics() {
+		return "opened=" + getOpenCount() + ", leases=" + getLeaseCount() + ", reused=" + getReuseCount()
+				+ ", active=" + getActiveLeases() + ", writerFallbacks=" + getWriterFallbackCount()
+				+ ", statementHits=" + getStatementCacheHits() + ", statementMisses=" + getStatementCacheMisses();
+	}
+
+
+	private Connection open(SQLiteDataSource source) throws SQLException {
+		Connection conn = source.getConnection();
+		if (mConfig != null) {
+			try {
+				mConfig.applyTo(conn);
+			} catch (SQLException e) {
+				conn.close();
+				throw e;
+			}
+		}
+		mOpenCount.incrementAndGet();
+		return conn;
+	}
+
+
+	private void closeQuietly(Connection conn) {
+		StatementCache cache;
+		synchronized (mStatementCaches) {
+			cache = mStatementCaches.remove(conn);
+		}
+		if (cache != null) {
+			mRetiredStatementHits.addAndGet(cache.getHits());
+			mRetiredStatementMisses.addAndGet(cache.getMisses());
+			cache.clear();
+		}
+		try {
+			conn.close();
+		} catch (SQLException e) {
+			log.warn("AnkiDbConnectionPool - error while closing connection", e);
+		}
+	}
+}
@@ -0,0 +1,204 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ichi2.anki.model.Deck;
+
+/**
+ * Inserts many rows of the same shape into one table with JDBC batches, inside a single transaction. Obtain one from
+ * {@link AnkiDb#bulkInsert(Deck, String, String...)} and use it like a transaction:
+ *
+ * <pre>
+ * BulkInsert insert = ankiDb.bulkInsert(deck, "cardTags", "cardId", "tagId", "src");
+ * try {
+ *     for (...) {
+ *         insert.addRow(cardId, tagId, src);
+ *     }
+ *     insert.finish();
+ * } finally {
+ *     insert.close();
+ * }
+ * </pre>
+ *
+ * If close() is called without finish(), the rows are rolled back. Undo information, if recorded, is written row by
+ * row by the deck's undo triggers. While the thread captures its writes (see {@link AnkiDb#beginCapture()}), every
+ * row is captured as one insert statement.
+ */
+public class BulkInsert {
+
+	private static Logger log = LoggerFactory.getLogger(BulkInsert.class);
+
+	private final AnkiDb mDb;
+	private final String mTable;
+	private final int mColumnCount;
+	private final int mBatchSize;
+	private final String mSql;
+	private final String mName;
+	// null while capturing
+	private PreparedStatement mStatement;
+
+	private int mPending = 0;
+	private long mRowCount = 0;
+	private final long mStartTime;
+	private long mElapsed = -1;
+	private boolean mFinished = false;
+	private boolean mClosed = false;
+
+
+	BulkInsert(AnkiDb db, String table, String[] columns, int batchSize) {
+		this(db, table, insertSql("INSERT", table, columns), columns.length, batchSize);
+	}
+
+
+	/**
+	 * @param sql the statement run for each row, with columnCount '?' placeholders
+	 */
+	BulkInsert(AnkiDb db, String table, String sql, int columnCount, int batchSize) {
+		mDb = db;
+		mTable = table;
+		mColumnCount = columnCount;
+		mBatchSize = Math.max(1, batchSize);
+		mSql = sql;
+		mName = getClass().getSimpleName();
+
+		mDb.beginTransaction();
+		if (mDb.isCapturing()) {
+			mStartTime = System.currentTimeMillis();
+			return;
+		}
+		mStatement = mDb.compileStatement(mSql);
+		if (mStatement == null) {
+			mDb.endTransaction();
+			mClosed = true;
+			throw new RuntimeException(mName + " - could not compile " + sql);
+		}
+		mStartTime = System.currentTimeMillis();
+	}
+
+
+	/**
+	 * Queue one row, in the order of the columns given at creation. Runs the batch when it is full.
+	 */
+	public void addRow(Object... values) {
+		if (values.length != mColumnCount) {
+			throw new IllegalArgumentException(mName + " - expected " + mColumnCount + " values, got "
+					+ values.length);
+		}
+		if (mStatement == null) {
+			mDb.capture(mSql, values.clone());
+			mRowCount++;
+			return;
+		}
+		try {
+			for (int i = 0; i < values.length; i++) {
+				AnkiDb.bindValue(mStatement, i + 1, values[i]);
+			}
+			mStatement.addBatch();
+			mPending++;
+			mRowCount++;
+			if (mPending >= mBatchSize) {
+				flush();
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException(mName + " - " + mSql + " failed", e);
+		}
+	}
+
+
+	/**
+	 * Run the last batch and mark the transaction successful. The rows are committed by close().
+	 */
+	public void finish() {
+		try {
+			flush();
+		} catch (SQLException e) {
+			throw new RuntimeException(mName + " - " + mSql + " failed", e);
+		}
+		mDb.setTransactionSuccessful();
+		mFinished = true;
+		mElapsed = System.currentTimeMillis() - mStartTime;
+		log.info(mName + " - " + mRowCount + " rows of " + mTable + " in " + mElapsed + " ms ("
+				+ Math.round(getRowsPerSecond()) + " rows/s)");
+	}
+
+
+	/**
+	 * End the transaction, committing if finish() was called and rolling back otherwise.
+	 */
+	public void close() {
+		if (mClosed) {
+			return;
+		}
+		mClosed = true;
+		try {
+			if (mStatement != null) {
+				mStatement.close();
+			}
+		} catch (SQLException e) {
+			log.error(mName + " - error while closing statement", e);
+		} finally {
+			if (!mFinished) {
+				log.warn(mName + " - rolling back " + mRowCount + " rows of " + mTable);
+			}
+			mDb.endTransaction();
+		}
+	}
+
+
+	public long getRowCount() {
+		return mRowCount;
+	}
+
+
+	/**
+	 * @return the insert rate from creation to finish(), or so far if not finished
+	 */
+	public double getRowsPerSecond() {
+		long elapsed = mElapsed >= 0 ? mElapsed : System.currentTimeMillis() - mStartTime;
+		return mRowCount * 1000.0 / Math.max(1, elapsed);
+	}
+
+
+	/**
+	 * @param verb "INSERT", or "INSERT OR IGNORE" to skip rows that violate a unique constraint
+	 */
+	static String insertSql(String verb, String table, String[] columns) {
+		StringBuilder sb = new StringBuilder(32 + columns.length * 16);
+		sb.append(verb).append(" INTO ").append(table).append(" (");
+		for (int i = 0; i < columns.length; i++) {
+			sb.append(i == 0 ? "" : ", ").append(columns[i]);
+		}
+		sb.append(") VALUES (");
+		for (int i = 0; i < columns.length; i++) {
+			sb.append(i == 0 ? "?" : ", ?");
+		}
+		sb.append(")");
+		return sb.toString();
+	}
+
+
+	private void flush() throws SQLException {
+		if (mStatement != null && mPending > 0) {
+			mStatement.executeBatch();
+			mPending = 0;
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+
+package com.ichi2.anki.db;
+
+import com.ichi2.anki.model.Deck;
+
+/**
+ * Updates many rows of one table by key with JDBC batches, inside a single transaction. Obtain one from
+ * {@link AnkiDb#bulkUpdate(Deck, String, String, String...)} and use it like a {@link BulkInsert}; each row gives the
+ * new values of the columns, in order, then the key of the row to update.
+ */
+public class BulkUpdate extends BulkInsert {
+
+	BulkUpdate(AnkiDb db, String table, String key, String[] columns, int batchSize) {
+		super(db, table, updateSql(table, key, columns), columns.length + 1, batchSize);
+	}
+
+
+	private static String updateSql(String table, String key, String[] columns) {
+		StringBuilder sb = new StringBuilder(32 + columns.length * 16);
+		sb.append("UPDATE ").append(table).append(" SET ");
+		for (int i = 0; i < columns.length; i++) {
+			sb.append(i == 0 ? "" : ", ").append(columns[i]).append(" = ?");
+		}
+		sb.append(" WHERE ").append(key).append(" = ?");
+		return sb.toString();
+	}
+}
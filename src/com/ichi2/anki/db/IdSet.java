@@ -0,0 +1,168 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A set of ids held in a temporary table of the writer connection, to be joined against instead of building a literal
+ * "IN (1, 2, ...)" list. Statements using it have a constant shape, so they stay in the statement cache, and the
+ * number of ids is not bounded by the SQLite expression limits.
+ *
+ * An id set holds the writer connection (which owns the temporary table) until it is closed, so the queries the thread
+ * runs meanwhile go through that connection. It does not open a transaction scope: writes made while the set is open
+ * are committed or rolled back by the caller's own scopes, or run on their own if there are none. Use it like this:
+ *
+ * <pre>
+ * IdSet cardIds = ankiDb.idSet(ids);
+ * try {
+ *     ankiDb.delete(deck, "cardTags", "cardId IN " + cardIds.getSubquery());
+ * } finally {
+ *     cardIds.close();
+ * }
+ * </pre>
+ *
+ * Id sets can be nested; each level uses its own table.
+ */
+public class IdSet {
+
+	private static final int BATCH_SIZE = 500;
+
+	private final AnkiDb mDb;
+	private final Connection mWriter;
+	private final String mTable;
+	private int mSize = 0;
+	private boolean mClosed = false;
+
+
+	private IdSet(AnkiDb db) {
+		mDb = db;
+		mWriter = mDb.holdWriter();
+		mTable = "temp.anki_ids" + mDb.acquireIdSetSlot();
+		String name = mTable.substring("temp.".length());
+		try {
+			if (mDb.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + name + " (id INTEGER PRIMARY KEY)") == -1) {
+				throw new RuntimeException("IdSet - could not create " + mTable);
+			}
+			// Ids left over if the emptying in close() was rolled back with the caller's transaction
+			mDb.execSQL("DELETE FROM " + mTable);
+		} catch (RuntimeException e) {
+			release();
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Fill a new id set from ids. Duplicates are ignored.
+	 */
+	static IdSet fromIds(AnkiDb db, long[] ids) {
+		IdSet set = new IdSet(db);
+		PreparedStatement statement = db.compileStatement("INSERT OR IGNORE INTO " + set.mTable + " (id) VALUES (?)");
+		try {
+			if (statement == null) {
+				throw new SQLException("Can not compile insert into " + set.mTable);
+			}
+			int pending = 0;
+			for (long id : ids) {
+				statement.setLong(1, id);
+				statement.addBatch();
+				if (++pending == BATCH_SIZE) {
+					statement.executeBatch();
+					pending = 0;
+				}
+			}
+			if (pending > 0) {
+				statement.executeBatch();
+			}
+			set.mSize = (int) db.queryScalar("SELECT count(*) FROM " + set.mTable);
+		} catch (SQLException e) {
+			set.close();
+			throw new RuntimeException("IdSet - filling " + set.mTable + " failed", e);
+		} finally {
+			if (statement != null) {
+				try {
+					statement.close();
+				} catch (SQLException e) {
+				}
+			}
+		}
+		return set;
+	}
+
+
+	/**
+	 * Fill a new id set from the first column of query, without moving the ids through Java.
+	 */
+	static IdSet fromQuery(AnkiDb db, String query) {
+		IdSet set = new IdSet(db);
+		int inserted = db.execSQL("INSERT OR IGNORE INTO " + set.mTable + " (id) " + query);
+		if (inserted == -1) {
+			set.close();
+			throw new RuntimeException("IdSet - filling " + set.mTable + " failed: " + query);
+		}
+		set.mSize = (int) db.queryScalar("SELECT count(*) FROM " + set.mTable);
+		return set;
+	}
+
+
+	/**
+	 * @return the qualified name of the temporary table, which has a single "id" column, for joins
+	 */
+	public String getTable() {
+		return mTable;
+	}
+
+
+	/**
+	 * @return "(SELECT id FROM table)", to be used after IN
+	 */
+	public String getSubquery() {
+		return "(SELECT id FROM " + mTable + ")";
+	}
+
+
+	/**
+	 * @return the number of distinct ids in the set
+	 */
+	public int size() {
+		return mSize;
+	}
+
+
+	/**
+	 * Empty the temporary table and hand back the writer connection. Does not commit anything.
+	 */
+	public void close() {
+		if (mClosed) {
+			return;
+		}
+		mClosed = true;
+		try {
+			mDb.execSQL("DELETE FROM " + mTable);
+		} finally {
+			release();
+		}
+	}
+
+
+	private void release() {
+		mClosed = true;
+		mDb.releaseIdSetSlot();
+		mDb.releaseWriter(mWriter);
+	}
+}
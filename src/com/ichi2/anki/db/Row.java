@@ -0,0 +1,80 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Read-only view of the current row of a streamed query. The same instance is handed to the callback for every row,
+ * so it must not be kept after the callback returns. Columns are numbered from 1, like in JDBC.
+ */
+public final class Row {
+
+	private ResultSet mResult;
+	private int mPosition = -1;
+
+
+	Row() {
+	}
+
+
+	void moveTo(ResultSet result, int position) {
+		mResult = result;
+		mPosition = position;
+	}
+
+
+	/**
+	 * @return the index of the current row in the result, starting at 0
+	 */
+	public int getPosition() {
+		return mPosition;
+	}
+
+
+	public long getLong(int column) throws SQLException {
+		return mResult.getLong(column);
+	}
+
+
+	public int getInt(int column) throws SQLException {
+		return mResult.getInt(column);
+	}
+
+
+	public double getDouble(int column) throws SQLException {
+		return mResult.getDouble(column);
+	}
+
+
+	public String getString(int column) throws SQLException {
+		return mResult.getString(column);
+	}
+
+
+	public byte[] getBytes(int column) throws SQLException {
+		return mResult.getBytes(column);
+	}
+
+
+	/**
+	 * @return true if the value of column in the current row is NULL
+	 */
+	public boolean isNull(int column) throws SQLException {
+		mResult.getObject(column);
+		return mResult.wasNull();
+	}
+}
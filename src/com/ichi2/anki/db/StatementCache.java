@@ -0,0 +1,124 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of compiled statements of one connection, keyed by their parameterized SQL. Statements handed out stay
+ * owned by the cache: callers must not close them, and must only use them while holding the lease on the
+ * connection.
+ */
+public class StatementCache {
+
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private final Connection mConnection;
+	private final LinkedHashMap<String, PreparedStatement> mStatements;
+
+	private long mHits = 0;
+	private long mMisses = 0;
+	private long mEvictions = 0;
+
+
+	public StatementCache(Connection connection, final int capacity) {
+		mConnection = connection;
+		mStatements = new LinkedHashMap<String, PreparedStatement>(capacity, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() > capacity) {
+					mEvictions++;
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+
+	/**
+	 * Return the compiled statement for sql, compiling and caching it on a miss. Parameters of a cached statement are
+	 * cleared before it is returned.
+	 */
+	public synchronized PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement statement = mStatements.get(sql);
+		if (statement != null) {
+			mHits++;
+			statement.clearParameters();
+			return statement;
+		}
+		mMisses++;
+		statement = mConnection.prepareStatement(sql);
+		mStatements.put(sql, statement);
+		return statement;
+	}
+
+
+	/**
+	 * Drop and close the statement cached for sql, e.g. after it failed.
+	 */
+	public synchronized void evict(String sql) {
+		PreparedStatement statement = mStatements.remove(sql);
+		if (statement != null) {
+			closeQuietly(statement);
+		}
+	}
+
+
+	/**
+	 * Close all cached statements. Must be called before the connection is closed.
+	 */
+	public synchronized void clear() {
+		for (PreparedStatement statement : mStatements.values()) {
+			closeQuietly(statement);
+		}
+		mStatements.clear();
+	}
+
+
+	public synchronized int size() {
+		return mStatements.size();
+	}
+
+
+	public synchronized long getHits() {
+		return mHits;
+	}
+
+
+	public synchronized long getMisses() {
+		return mMisses;
+	}
+
+
+	public synchronized long getEvictions() {
+		return mEvictions;
+	}
+
+
+	private static void closeQuietly(PreparedStatement statement) {
+		try {
+			statement.close();
+		} catch (SQLException e) {
+		}
+	}
+}
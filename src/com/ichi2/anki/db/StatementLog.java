@@ -0,0 +1,143 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.db;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * An ordered list of write statements with their bound values, as recorded by {@link AnkiDb#beginCapture()}. It can
+ * be written to a stream and read back, to be applied later with {@link AnkiDb#apply(StatementLog)}.
+ */
+public class StatementLog {
+
+	private static final byte TYPE_NULL = 0;
+	private static final byte TYPE_LONG = 1;
+	private static final byte TYPE_DOUBLE = 2;
+	private static final byte TYPE_STRING = 3;
+	private static final byte TYPE_BLOB = 4;
+
+	private final ArrayList<String> mStatements = new ArrayList<String>();
+	private final ArrayList<Object[]> mArgs = new ArrayList<Object[]>();
+
+
+	public void add(String sql, Object[] args) {
+		mStatements.add(sql);
+		mArgs.add(args != null ? args : new Object[0]);
+	}
+
+
+	public int size() {
+		return mStatements.size();
+	}
+
+
+	public String getStatement(int i) {
+		return mStatements.get(i);
+	}
+
+
+	public Object[] getArgs(int i) {
+		return mArgs.get(i);
+	}
+
+
+	/**
+	 * Write the statements and values. Values are stored with the types {@link AnkiDb#bindValue} binds them as.
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(mStatements.size());
+		for (int i = 0; i < mStatements.size(); i++) {
+			writeString(out, mStatements.get(i));
+			Object[] args = mArgs.get(i);
+			out.writeInt(args.length);
+			for (Object value : args) {
+				if (value == null) {
+					out.writeByte(TYPE_NULL);
+				} else if (value instanceof Long || value instanceof Integer || value instanceof Short
+						|| value instanceof Byte) {
+					out.writeByte(TYPE_LONG);
+					out.writeLong(((Number) value).longValue());
+				} else if (value instanceof Double || value instanceof Float) {
+					out.writeByte(TYPE_DOUBLE);
+					out.writeDouble(((Number) value).doubleValue());
+				} else if (value instanceof Boolean) {
+					out.writeByte(TYPE_LONG);
+					out.writeLong(((Boolean) value).booleanValue() ? 1 : 0);
+				} else if (value instanceof byte[]) {
+					out.writeByte(TYPE_BLOB);
+					out.writeInt(((byte[]) value).length);
+					out.write((byte[]) value);
+				} else {
+					out.writeByte(TYPE_STRING);
+					writeString(out, value.toString());
+				}
+			}
+		}
+	}
+
+
+	public static StatementLog readFrom(DataInputStream in) throws IOException {
+		StatementLog log = new StatementLog();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			String sql = readString(in);
+			Object[] args = new Object[in.readInt()];
+			for (int j = 0; j < args.length; j++) {
+				byte type = in.readByte();
+				switch (type) {
+					case TYPE_NULL:
+						args[j] = null;
+						break;
+					case TYPE_LONG:
+						args[j] = in.readLong();
+						break;
+					case TYPE_DOUBLE:
+						args[j] = in.readDouble();
+						break;
+					case TYPE_STRING:
+						args[j] = readString(in);
+						break;
+					case TYPE_BLOB:
+						byte[] blob = new byte[in.readInt()];
+						in.readFully(blob);
+						args[j] = blob;
+						break;
+					default:
+						throw new IOException("StatementLog - unknown value type " + type);
+				}
+			}
+			log.add(sql, args);
+		}
+		return log;
+	}
+
+
+	// writeUTF() is limited to 64 KB
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
@@ -0,0 +1,32 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+package com.ichi2.anki.db;
+
+/**
+ * Told how the transaction scope it was added to ends, see {@link AnkiDb#addTransactionListener(TransactionListener)}.
+ * Runs on the thread ending the scope, while it still holds the writer connection.
+ */
+public interface TransactionListener {
+
+	/**
+	 * Called once the outermost scope is committed.
+	 */
+	void onCommit();
+
+
+	/**
+	 * Called when the scope, or an enclosing one, is rolled back.
+	 */
+	void onRollback();
+}
@@ -0,0 +1,484 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ichi2.anki.db.AnkiDb;
+import com.ichi2.anki.db.StatementLog;
+import com.ichi2.anki.db.TransactionListener;
+
+/**
+ * Write-behind journal of answered cards. The writes of an answer are captured (see {@link AnkiDb#beginCapture()}),
+ * appended to a journal file next to the deck with a single fsync, and applied to the deck in batched transactions
+ * by a background flusher. Until then the deck works from its in-memory state.
+ *
+ * Pending answers are applied by the background flusher, or at the deck's sync points (see Deck.flushAnswerJournal()).
+ * A sync point inside a transaction of the caller applies them in that transaction, and they leave the journal once
+ * it is committed. The journal also installs itself as the write barrier of the database, so that a write started
+ * outside any transaction is never reordered before them; reads do not wait for them.
+ *
+ * Each record carries a sequence number, and the number of the last record applied is stored in the deck with the
+ * records themselves, in the deckVars table under {@link #SEQ_KEY}, so that records found in the file at the next
+ * openDeck() (after a crash) are applied exactly once, see {@link #replay(AnkiDb, String)}. Captured answers hold writes to the deck
+ * tables only, so they can be replayed before the undo tables of the session exist.
+ */
+public class AnswerJournal {
+
+    private static Logger log = LoggerFactory.getLogger(AnswerJournal.class);
+
+    public static final long DEFAULT_FLUSH_INTERVAL = 2000;
+    public static final int DEFAULT_MAX_PENDING = 32;
+
+    /**
+     * Key of the deck variable holding the sequence number of the last record applied. Local to the device: it is
+     * not synced.
+     */
+    public static final String SEQ_KEY = "answerJournalSeq";
+
+    private static final String SUFFIX = "-answers";
+    // Records larger than this are taken for a torn write
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private static ScheduledExecutorService sFlusher;
+
+    /**
+     * Runs in the transaction applying a record, before and after its statements, on the thread flushing.
+     */
+    public interface ApplyHook {
+        public void beforeApply();
+
+
+        public void afterApply();
+    }
+
+    private static final class Record {
+        private final long mSeq;
+        private final StatementLog mStatements;
+        private final ApplyHook mHook;
+
+
+        Record(long seq, StatementLog statements, ApplyHook hook) {
+            mSeq = seq;
+            mStatements = statements;
+            mHook = hook;
+        }
+    }
+
+    private final AnkiDb mDb;
+    private final File mFile;
+    private final int mMaxPending;
+    private FileOutputStream mOut;
+
+    // Guards mOut, mPending and mSeq. Never held while waiting for the writer connection.
+    private final Object mAppendLock = new Object();
+    private final LinkedList<Record> mPending = new LinkedList<Record>();
+    private volatile int mPendingCount = 0;
+    private long mSeq;
+    // Number of pending records applied in a transaction which is not committed yet. Guarded by the writer connection.
+    private int mUncommitted = 0;
+
+    // Serializes flushes; taken after the writer connection
+    private final Object mFlushLock = new Object();
+    // Set while the current thread flushes, so that the write barrier does not recurse
+    private final ThreadLocal<Boolean> mFlushing = new ThreadLocal<Boolean>();
+    private final Runnable mBarrier;
+    private ScheduledFuture<?> mTimer;
+
+    // Statistics
+    private long mAppended = 0;
+    private long mFlushes = 0;
+    private long mApplied = 0;
+
+
+    private AnswerJournal(AnkiDb db, File file, int maxPending) throws IOException {
+        mDb = db;
+        mFile = file;
+        mMaxPending = maxPending;
+        mSeq = getAppliedSeq(db);
+        mOut = new FileOutputStream(file, true);
+        mBarrier = new Runnable() {
+            public void run() {
+                flush();
+            }
+        };
+    }
+
+
+    /**
+     * Start journaling answers for a deck. Records left by a previous session must have been replayed first: the
+     * journal is not opened while its file still holds any, so that new records never follow them.
+     *
+     * @return the journal, or null if its file can not be written or has not been replayed
+     */
+    public static AnswerJournal open(AnkiDb db, String deckPath, long flushInterval, int maxPending) {
+        File file = new File(deckPath + SUFFIX);
+        if (file.length() > 0) {
+            log.error("AnswerJournal - " + file + " holds answers which have not been replayed, not journaling");
+            return null;
+        }
+        if (!hasDeckVars(db)) {
+            log.error("AnswerJournal - " + deckPath + " has no deckVars table, not journaling");
+            return null;
+        }
+        final AnswerJournal journal;
+        try {
+            journal = new AnswerJournal(db, file, maxPending);
+        } catch (IOException e) {
+            log.error("AnswerJournal - can not open journal of " + deckPath, e);
+            return null;
+        }
+        db.setBarrier(journal.mBarrier);
+        journal.mTimer = getFlusher().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    journal.flush();
+                } catch (RuntimeException e) {
+                    log.error("AnswerJournal - background flush failed", e);
+                }
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        return journal;
+    }
+
+
+    /**
+     * Apply the records a previous session left in the journal of a deck, if any, and delete the journal.
+     *
+     * @return the number of records applied, or -1 if they could not be applied
+     */
+    public static int replay(AnkiDb db, String deckPath) {
+        File file = new File(deckPath + SUFFIX);
+        if (!file.exists()) {
+            return 0;
+        }
+        long applied = getAppliedSeq(db);
+        ArrayList<Record> records = new ArrayList<Record>();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                Record record;
+                while ((record = readRecord(in)) != null) {
+                    if (record.mSeq > applied) {
+                        records.add(record);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.error("AnswerJournal - can not read " + file, e);
+            return -1;
+        }
+        if (!records.isEmpty()) {
+            db.beginTransaction();
+            try {
+                for (Record record : records) {
+                    db.apply(record.mStatements);
+                }
+                setAppliedSeq(db, records.get(records.size() - 1).mSeq);
+                db.setTransactionSuccessful();
+            } catch (SQLException e) {
+                log.error("AnswerJournal - replay of " + file + " failed, keeping it", e);
+                return -1;
+            } finally {
+                db.endTransaction();
+            }
+        }
+        log.info("AnswerJournal - replayed " + records.size() + " answers into " + deckPath);
+        if (!file.delete()) {
+            log.warn("AnswerJournal - can not delete " + file);
+        }
+        return records.size();
+    }
+
+
+    /**
+     * Append the captured writes of one answer. Returns once they are on disk; they are applied to the deck later.
+     *
+     * @param hook
+     *            run around the statements when they are applied, or null
+     */
+    public void append(StatementLog statements, ApplyHook hook) {
+        boolean durable = true;
+        boolean full;
+        synchronized (mAppendLock) {
+            Record record = new Record(++mSeq, statements, hook);
+            try {
+                writeRecord(record);
+            } catch (IOException e) {
+                log.error("AnswerJournal - can not write " + mFile + ", applying the answer now", e);
+                durable = false;
+            }
+            mPending.addLast(record);
+            mPendingCount = mPending.size();
+            mAppended++;
+            full = mPendingCount >= mMaxPending;
+        }
+        if (!durable) {
+            flush();
+        } else if (full) {
+            getFlusher().execute(mBarrier);
+        }
+    }
+
+
+    /**
+     * Apply all pending records to the deck, in one transaction. Inside a transaction of the current thread, they are
+     * applied in a nested scope and only dropped from the journal once the transaction is committed. Does nothing if
+     * the current thread is capturing its writes.
+     */
+    public void flush() {
+        if (mPendingCount == 0 || mFlushing.get() != null) {
+            return;
+        }
+        if (mDb.isCapturing()) {
+            log.debug("AnswerJournal - not flushing while capturing, leaving it to the flusher");
+            return;
+        }
+        mFlushing.set(Boolean.TRUE);
+        try {
+            boolean enclosed = mDb.inTransaction();
+            ArrayList<Record> batch;
+            // The writer connection first, then the flush lock: a thread holding the writer may flush as well
+            mDb.beginTransaction();
+            try {
+                synchronized (mFlushLock) {
+                    synchronized (mAppendLock) {
+                        // Records applied by an enclosing transaction are left to it
+                        batch = new ArrayList<Record>(mPending.subList(mUncommitted, mPending.size()));
+                    }
+                    if (!batch.isEmpty()) {
+                        for (Record record : batch) {
+                            if (record.mHook != null) {
+                                record.mHook.beforeApply();
+                            }
+                            mDb.apply(record.mStatements);
+                            if (record.mHook != null) {
+                                record.mHook.afterApply();
+                            }
+                        }
+                        setAppliedSeq(mDb, batch.get(batch.size() - 1).mSeq);
+                    }
+                    mDb.setTransactionSuccessful();
+                }
+            } catch (SQLException e) {
+                log.error("AnswerJournal - applying " + mPendingCount + " answers failed, will retry", e);
+                return;
+            } finally {
+                mDb.endTransaction();
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            final int count = batch.size();
+            if (!enclosed) {
+                applied(count);
+                return;
+            }
+            mUncommitted += count;
+            mDb.addTransactionListener(new TransactionListener() {
+                public void onCommit() {
+                    mUncommitted -= count;
+                    applied(count);
+                }
+
+
+                public void onRollback() {
+                    // Applied again by the next flush
+                    mUncommitted -= count;
+                }
+            });
+        } finally {
+            mFlushing.remove();
+        }
+    }
+
+
+    /**
+     * Drop the first count pending records, once they are committed to the deck.
+     */
+    private void applied(int count) {
+        synchronized (mAppendLock) {
+            mPending.subList(0, count).clear();
+            mFlushes++;
+            mApplied += count;
+            if (mPending.isEmpty()) {
+                truncate();
+            }
+            mPendingCount = mPending.size();
+        }
+    }
+
+
+    /**
+     * Apply the pending records, stop the flusher and delete the journal file.
+     */
+    public void close() {
+        if (mTimer != null) {
+            mTimer.cancel(false);
+        }
+        flush();
+        if (mDb.getBarrier() == mBarrier) {
+            mDb.setBarrier(null);
+        }
+        synchronized (mAppendLock) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                log.warn("AnswerJournal - error while closing " + mFile, e);
+            }
+            if (mPending.isEmpty() && !mFile.delete()) {
+                log.warn("AnswerJournal - can not delete " + mFile);
+            }
+        }
+        log.info("AnswerJournal - closing " + mFile + ": " + getStatistics());
+    }
+
+
+    public int getPendingCount() {
+        return mPendingCount;
+    }
+
+
+    public String getStatistics() {
+        synchronized (mAppendLock) {
+            return "appended=" + mAppended + ", applied=" + mApplied + ", flushes=" + mFlushes + ", pending="
+                    + mPendingCount;
+        }
+    }
+
+
+    /**
+     * @return the sequence number of the last record applied to the deck, 0 if none ever was
+     */
+    private static long getAppliedSeq(AnkiDb db) {
+        if (!hasDeckVars(db)) {
+            return 0;
+        }
+        return Math.max(db.queryScalar("SELECT ifnull(max(CAST(value AS INTEGER)), 0) FROM deckVars WHERE key = '"
+                + SEQ_KEY + "'"), 0);
+    }
+
+
+    private static void setAppliedSeq(AnkiDb db, long seq) throws SQLException {
+        // Part of the transaction applying the records
+        if (db.execSQL("INSERT OR REPLACE INTO deckVars (key, value) VALUES (?, ?)", SEQ_KEY,
+                Long.toString(seq)) == -1) {
+            throw new SQLException("AnswerJournal - can not store sequence number " + seq);
+        }
+    }
+
+
+    private static boolean hasDeckVars(AnkiDb db) {
+        return db.queryScalar("SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = 'deckVars'") > 0;
+    }
+
+
+    /**
+     * Frame: length of the record, the record (sequence number and statements), CRC32 of the record.
+     */
+    private void writeRecord(Record record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeLong(record.mSeq);
+        record.mStatements.writeTo(data);
+        data.flush();
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        DataOutputStream out = new DataOutputStream(bytes);
+        bytes.reset();
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeLong(crc.getValue());
+        out.flush();
+        mOut.write(bytes.toByteArray());
+        mOut.getFD().sync();
+    }
+
+
+    /**
+     * @return the next record, or null at the end of the file or at a torn or corrupt record
+     */
+    private static Record readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length <= 0 || length > MAX_RECORD_SIZE) {
+                log.warn("AnswerJournal - invalid record length " + length + ", ignoring the rest of the journal");
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            long checksum = in.readLong();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (crc.getValue() != checksum) {
+                log.warn("AnswerJournal - corrupt record, ignoring the rest of the journal");
+                return null;
+            }
+            DataInputStream data = new DataInputStream(new java.io.ByteArrayInputStream(payload));
+            long seq = data.readLong();
+            return new Record(seq, StatementLog.readFrom(data), null);
+        } catch (EOFException e) {
+            // End of file, or a record whose write was interrupted
+            return null;
+        }
+    }
+
+
+    private void truncate() {
+        try {
+            mOut.getChannel().truncate(0);
+        } catch (IOException e) {
+            log.warn("AnswerJournal - can not truncate " + mFile, e);
+        }
+    }
+
+
+    private static synchronized ScheduledExecutorService getFlusher() {
+        if (sFlusher == null) {
+            sFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "AnswerJournal-flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sFlusher;
+    }
+}
@@ -20,7 +20,6 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
@@ -414,9 +413,7 @@ public class Card {
      * Delete this card.
      */
     public void delete() {
-        List<String> ids = new ArrayList<String>();
-        ids.add(Long.toString(mId));
-        mDeck.deleteCards(ids);
+        mDeck.deleteCards(new long[] { mId });
     }
 
 
@@ -697,6 +694,7 @@ public class Card {
         values.put("combinedDue", Math.max(mSpaceUntil, mDue));
         values.put("relativeDelay", 0.0);
         mDeck.getDB().insert(mDeck, "cards", null, values);
+        mDeck.cardWritten(mId);
 
     }
 
@@ -740,7 +738,8 @@ public class Card {
         values.put("type", mType);
         values.put("combinedDue", mCombinedDue);
         values.put("relativeDelay", mRelativeDelay);
-        mDeck.getDB().update(mDeck, "cards", values, "id = " + mId, true);
+        mDeck.getDB().update("cards", values, "id = ?", mId);
+        mDeck.cardWritten(mId);
 
         // TODO: Should also write JOINED entries: CardModel and Fact.
     }
@@ -755,7 +754,8 @@ public class Card {
         values.put("modified", mModified);
         values.put("question", mQuestion);
         values.put("answer", mAnswer);
-        mDeck.getDB().update(mDeck, "cards", values, "id = " + mId);
+        mDeck.getDB().update("cards", values, "id = ?", mId);
+        mDeck.cardWritten(mId);
     }
 
 
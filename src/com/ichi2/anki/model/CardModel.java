@@ -210,7 +210,7 @@ public class CardModel implements Comparator<CardModel> {
         values.put("answerAlign", mAnswerAlign);
         values.put("lastFontColour", mLastFontColour);
         
-        deck.getDB().update(deck, "cardModels", values, "id = " + mId);
+        deck.getDB().update("cardModels", values, "id = ?", mId);
     }
 
 
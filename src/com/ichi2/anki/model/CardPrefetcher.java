@@ -0,0 +1,240 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the cards which are likely to be shown next on a background thread, while the current card is studied, so
+ * that Deck.getCard() finds them ready: the card row, its tags, fact and card model.
+ *
+ * A prefetched card is a snapshot, so it is dropped whenever the deck writes to it or to its fact (answering a card
+ * spaces its siblings), and on reset(). Loads are read-only and run on the read connections of the deck.
+ */
+public class CardPrefetcher {
+
+    private static Logger log = LoggerFactory.getLogger(CardPrefetcher.class);
+
+    // Shared by all decks; prefetching is cheap and only one deck is studied at a time
+    private static ExecutorService sExecutor;
+
+    private final Deck mDeck;
+    private final int mLookahead;
+    private final HashMap<Long, Prefetched> mPrefetched = new HashMap<Long, Prefetched>();
+
+    // Statistics
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mInvalidations = new AtomicLong();
+
+
+    private static final class Prefetched {
+        private final long mFactId;
+        private final Future<Card> mFuture;
+
+
+        Prefetched(long factId, Future<Card> future) {
+            mFactId = factId;
+            mFuture = future;
+        }
+    }
+
+
+    /**
+     * @param lookahead
+     *            the maximum number of cards loaded ahead
+     */
+    public CardPrefetcher(Deck deck, int lookahead) {
+        mDeck = deck;
+        mLookahead = lookahead;
+    }
+
+
+    public int getLookahead() {
+        return mLookahead;
+    }
+
+
+    /**
+     * Start loading the given cards, in that order, and drop the prefetched cards which are not among them.
+     */
+    public synchronized void prefetch(long[] cardIds, long[] factIds, int count) {
+        HashMap<Long, Prefetched> kept = new HashMap<Long, Prefetched>();
+        for (int i = 0; i < count && kept.size() < mLookahead; i++) {
+            Prefetched entry = mPrefetched.remove(cardIds[i]);
+            if (entry == null) {
+                entry = new Prefetched(factIds[i], getExecutor().submit(newLoader(cardIds[i])));
+            }
+            kept.put(cardIds[i], entry);
+        }
+        cancelAll();
+        mPrefetched.putAll(kept);
+    }
+
+
+    /**
+     * Hand over a prefetched card, waiting for it if it is still loading.
+     *
+     * @return the card, or null if it was not prefetched or could not be loaded
+     */
+    public Card take(long cardId) {
+        Prefetched entry;
+        synchronized (this) {
+            entry = mPrefetched.remove(cardId);
+        }
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        try {
+            Card card = entry.mFuture.get();
+            if (card != null) {
+                mHits.incrementAndGet();
+            } else {
+                mMisses.incrementAndGet();
+            }
+            return card;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.warn("CardPrefetcher - loading card " + cardId + " failed", e.getCause());
+        }
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+
+    /**
+     * Drop a card which has been written to.
+     */
+    public synchronized void invalidateCard(long cardId) {
+        Prefetched entry = mPrefetched.remove(cardId);
+        if (entry != null) {
+            entry.mFuture.cancel(false);
+            mInvalidations.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Drop the cards of a fact which has been written to, or whose cards have been spaced.
+     */
+    public synchronized void invalidateFact(long factId) {
+        Iterator<Map.Entry<Long, Prefetched>> it = mPrefetched.entrySet().iterator();
+        while (it.hasNext()) {
+            Prefetched entry = it.next().getValue();
+            if (entry.mFactId == factId) {
+                entry.mFuture.cancel(false);
+                it.remove();
+                mInvalidations.incrementAndGet();
+            }
+        }
+    }
+
+
+    /**
+     * Drop all prefetched cards.
+     */
+    public synchronized void clear() {
+        mInvalidations.addAndGet(mPrefetched.size());
+        cancelAll();
+    }
+
+
+    public long getHits() {
+        return mHits.get();
+    }
+
+
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+
+    public long getInvalidations() {
+        return mInvalidations.get();
+    }
+
+
+    public String getStatistics() {
+        return "lookahead=" + mLookahead + ", hits=" + getHits() + ", misses=" + getMisses() + ", invalidations="
+                + getInvalidations();
+    }
+
+
+    private void cancelAll() {
+        for (Prefetched entry : mPrefetched.values()) {
+            entry.mFuture.cancel(false);
+        }
+        mPrefetched.clear();
+    }
+
+
+    /**
+     * @return the task loading a card, run on the prefetch thread
+     */
+    Callable<Card> newLoader(long cardId) {
+        return new Loader(cardId);
+    }
+
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CardPrefetcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+
+    private class Loader implements Callable<Card> {
+        private final long mCardId;
+
+
+        Loader(long cardId) {
+            mCardId = cardId;
+        }
+
+
+        public Card call() {
+            Card card = new Card(mDeck);
+            if (!card.fromDB(mCardId)) {
+                return null;
+            }
+            // What the reviewer needs besides the row: tags (marked state), fact and card model
+            card.loadTags();
+            card.getFact();
+            card.getCardModel();
+            return card;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A scheduler queue of (cardId, factId, due) entries, held in a ring buffer of parallel primitive arrays instead of a
+ * list of objects. Queues are filled with addFirst(), in the order the cards were selected, and consumed from the
+ * last entry, so the first card selected is the next one shown. Not thread safe.
+ */
+public class CardQueue {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // Heap bytes per slot of the three arrays
+    private static final long SLOT_SIZE_ESTIMATE = 24;
+
+    private long[] mCardIds;
+    private long[] mFactIds;
+    private double[] mDues;
+    /** Index of the first entry */
+    private int mHead = 0;
+    private int mSize = 0;
+
+
+    public CardQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+
+    public CardQueue(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mCardIds = new long[capacity];
+        mFactIds = new long[capacity];
+        mDues = new double[capacity];
+    }
+
+
+    public int size() {
+        return mSize;
+    }
+
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+
+    public void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+
+    public void addFirst(long cardId, long factId, double due) {
+        if (mSize == mCardIds.length) {
+            grow();
+        }
+        mHead = (mHead == 0 ? mCardIds.length : mHead) - 1;
+        mCardIds[mHead] = cardId;
+        mFactIds[mHead] = factId;
+        mDues[mHead] = due;
+        mSize++;
+    }
+
+
+    public void addFirst(long cardId, long factId) {
+        addFirst(cardId, factId, 0.0);
+    }
+
+
+    public long getLastCardId() {
+        return mCardIds[last()];
+    }
+
+
+    public long getLastFactId() {
+        return mFactIds[last()];
+    }
+
+
+    public double getLastDue() {
+        return mDues[last()];
+    }
+
+
+    /**
+     * @param fromLast
+     *            0 for the last entry, 1 for the one before, ...
+     */
+    public long getCardId(int fromLast) {
+        return mCardIds[index(fromLast)];
+    }
+
+
+    public long getFactId(int fromLast) {
+        return mFactIds[index(fromLast)];
+    }
+
+
+    /**
+     * Drop the last entry.
+     *
+     * @return its card id
+     */
+    public long removeLast() {
+        long cardId = mCardIds[last()];
+        mSize--;
+        return cardId;
+    }
+
+
+    /**
+     * @return a rough estimate of the heap used by the queue, in bytes
+     */
+    public long estimateRetainedSize() {
+        return SLOT_SIZE_ESTIMATE * mCardIds.length;
+    }
+
+
+    private int last() {
+        return index(0);
+    }
+
+
+    private int index(int fromLast) {
+        if (fromLast < 0 || fromLast >= mSize) {
+            throw new NoSuchElementException();
+        }
+        int index = mHead + mSize - 1 - fromLast;
+        return index < mCardIds.length ? index : index - mCardIds.length;
+    }
+
+
+    private void grow() {
+        int capacity = mCardIds.length * 2;
+        long[] cardIds = new long[capacity];
+        long[] factIds = new long[capacity];
+        double[] dues = new double[capacity];
+        // Unwrap the entries to the start of the new arrays
+        int first = Math.min(mSize, mCardIds.length - mHead);
+        System.arraycopy(mCardIds, mHead, cardIds, 0, first);
+        System.arraycopy(mFactIds, mHead, factIds, 0, first);
+        System.arraycopy(mDues, mHead, dues, 0, first);
+        System.arraycopy(mCardIds, 0, cardIds, first, mSize - first);
+        System.arraycopy(mFactIds, 0, factIds, first, mSize - first);
+        System.arraycopy(mDues, 0, dues, first, mSize - first);
+        mCardIds = cardIds;
+        mFactIds = factIds;
+        mDues = dues;
+        mHead = 0;
+    }
+}
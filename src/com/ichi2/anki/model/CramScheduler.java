@@ -0,0 +1,115 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+/**
+ * Reviews the cards with the active cram tags, in the cram order, failed cards coming back in the same session.
+ */
+public class CramScheduler extends StandardScheduler {
+
+    public CramScheduler(Deck deck) {
+        super(deck);
+    }
+
+
+    @Override
+    public String getName() {
+        return "cram";
+    }
+
+
+    @Override
+    public long getCardId(boolean check) {
+        return mDeck._getCramCardId(check);
+    }
+
+
+    @Override
+    public void fillFailedQueue() {
+        mDeck._fillFailedCramQueue();
+    }
+
+
+    @Override
+    public void fillRevQueue() {
+        mDeck._fillCramQueue();
+    }
+
+
+    @Override
+    public void rebuildFailedCount() {
+        mDeck._rebuildFailedCramCount();
+    }
+
+
+    @Override
+    public void rebuildRevCount() {
+        mDeck._rebuildCramCount();
+    }
+
+
+    @Override
+    public void rebuildNewCount() {
+        mDeck._rebuildNewCramCount();
+    }
+
+
+    @Override
+    public void requeueCard(Card card, boolean oldIsRev) {
+        mDeck._requeueCramCard(card, oldIsRev);
+    }
+
+
+    @Override
+    public int cardQueue(Card card) {
+        return mDeck._cramCardQueue(card);
+    }
+
+
+    @Override
+    public boolean hasFinishScheduler() {
+        return true;
+    }
+
+
+    @Override
+    public void finishScheduler() {
+        mDeck._finishCramScheduler();
+    }
+
+
+    @Override
+    public void answerCard(Card card, int ease) {
+        mDeck._answerCramCard(card, ease);
+    }
+
+
+    @Override
+    public String cardLimit(String[] active, String[] inactive, String sql) {
+        return mDeck._cramCardLimit(active, inactive, sql);
+    }
+
+
+    @Override
+    public void answerPreSave(Card card, int ease) {
+        mDeck._cramPreSave(card, ease);
+    }
+
+
+    @Override
+    public void spaceCards(Card card) {
+        mDeck._spaceCramCards(card);
+    }
+}
@@ -20,15 +20,15 @@
 package com.ichi2.anki.model;
 
 import java.io.File;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -40,7 +40,8 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.Stack;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -51,7 +52,11 @@ import com.ichi2.anki.CardHistoryEntry;
 import com.ichi2.anki.Utils;
 import com.ichi2.anki.db.AnkiDatabaseManager;
 import com.ichi2.anki.db.AnkiDb;
-import com.ichi2.anki.db.AnkiDb.SqlCommandType;
+import com.ichi2.anki.db.BulkInsert;
+import com.ichi2.anki.db.IdSet;
+import com.ichi2.anki.db.Row;
+import com.ichi2.anki.db.RowCallback;
+import com.ichi2.anki.db.RowMapper;
 import com.ichi2.anki.model.Fact.Field;
 
 /**
@@ -64,6 +69,8 @@ public class Deck {
 	
     public static final String TAG_MARKED = "Marked";
 
+    private static final Pattern BR_PATTERN = Pattern.compile("<br(\\s*\\/*)>");
+
     public static final int DECK_VERSION = 65;
 
     private static final int NEW_CARDS_DISTRIBUTE = 0;
@@ -82,7 +89,7 @@ public class Deck {
     public static final double FACTOR_FOUR = 1.3;
     public static final double INITIAL_FACTOR = 2.5;
     private static final double MINIMUM_AVERAGE = 1.7;
-    private static final double MAX_SCHEDULE_TIME = 36500.0;
+    static final double MAX_SCHEDULE_TIME = 36500.0;
 
     public static final String UNDO_TYPE_ANSWER_CARD = "Answer Card";
     public static final String UNDO_TYPE_SUSPEND_CARD = "Suspend Card";
@@ -92,13 +99,26 @@ public class Deck {
     public static final String UNDO_TYPE_DELETE_CARD = "Delete Card";
 
     public String mCurrentUndoRedoType = "";
+    // Range bound of an undo entry whose writes are journaled and not applied yet
+    private static final long UNDO_ROW_PENDING = -1;
+
 
+    // Rough heap sizes used by estimateRetainedSize(), in bytes
+    private static final long DECK_SIZE_ESTIMATE = 4096;
+    private static final long MAP_ENTRY_SIZE_ESTIMATE = 64;
+    private static final long UNDO_ROW_SIZE_ESTIMATE = 96;
 
     // Card order strings for building SQL statements
     private static final String[] revOrderStrings = { "priority desc, interval desc", "priority desc, interval",
             "priority desc, combinedDue", "priority desc, RANDOM()" };
     private static final String[] newOrderStrings = { "priority desc, RANDOM()", "priority desc, due",
             "priority desc, due desc" };
+    // The same orders for the due card index
+    private static final int[] revIndexOrders = { DueCardIndex.ORDER_PRIORITY_INTERVAL_DESC,
+            DueCardIndex.ORDER_PRIORITY_INTERVAL, DueCardIndex.ORDER_PRIORITY_COMBINED_DUE,
+            DueCardIndex.ORDER_PRIORITY_RANDOM };
+    private static final int[] newIndexOrders = { DueCardIndex.ORDER_PRIORITY_RANDOM,
+            DueCardIndex.ORDER_PRIORITY_DUE, DueCardIndex.ORDER_PRIORITY_DUE_DESC };
 
     // BEGIN: SQL table columns
     private long mId;
@@ -193,23 +213,57 @@ public class Deck {
     private double mDueCutoff;
     private double mFailedCutoff;
 
+    /** Built from the settings above on first use, dropped whenever one of them changes */
+    private IntervalSimulator mIntervalSimulator;
+
     private String mScheduler;
 
     // Any comments resulting from upgrading the deck should be stored here, both in success and failure
     private ArrayList<String> upgradeNotes;
 
     // Queues
-    private LinkedList<QueueItem> mFailedQueue;
-    private LinkedList<QueueItem> mRevQueue;
-    private LinkedList<QueueItem> mNewQueue;
-    private LinkedList<QueueItem> mFailedCramQueue;
-    private HashMap<Long, Double> mSpacedFacts;
+    private CardQueue mFailedQueue;
+    private CardQueue mRevQueue;
+    private CardQueue mNewQueue;
+    private CardQueue mFailedCramQueue;
+    private SpacedFacts mSpacedFacts;
     private LinkedList<SpacedCardsItem> mSpacedCards;
     private int mQueueLimit;
 
+    // In-memory index of the due cards, null when counts and queues come from SQL
+    private DueCardIndex mDueCardIndex;
+    private static volatile boolean sUseDueCardIndex = false;
+
+    // In-memory bitmaps of cardTags, null when tag limits are applied in SQL
+    private TagBitmapIndex mTagBitmapIndex;
+    private static volatile boolean sUseTagBitmapIndex = false;
+    // Filter of the last tag limit, and the tag variables it was made from
+    private TagBitmapIndex.Filter mTagFilter;
+    private String mTagFilterKey;
+    // Tags seen in the deck, interned
+    private TagDictionary mTagDictionary;
+
+    // Loads the next cards in the background, null when lookahead is off
+    private CardPrefetcher mPrefetcher;
+
+    // Write-behind journal of answers, null when answers are written at once
+    private AnswerJournal mAnswerJournal;
+    private static volatile boolean sUseAnswerJournal = false;
+    // Undo entry of the answer being captured for the journal
+    private UndoRow mCapturedUndoRow;
+    // Last undoLog row to delete once that answer is applied, 0 for none
+    private long mCapturedUndoPrune = 0;
+
+    // Due counts maintained by triggers, null when counts come from the cards table
+    private DueCounts mDueCounts;
+    private static volatile boolean sUseDueCounts = false;
+    private static volatile boolean sPersistDueCounts = false;
+
     // Cramming
     private String[] mActiveCramTags;
     private String mCramOrder;
+    // Position in the cramSession table of the last card queued
+    private long mCramPosition;
 
     // Not in Anki Desktop
     private String mDeckPath;
@@ -230,15 +284,17 @@ public class Deck {
     private Stack<UndoRow> mUndoStack;
     private Stack<UndoRow> mRedoStack;
     private boolean mUndoEnabled = false;
-    private Stack<UndoRow> mUndoRedoStackToRecord = null;
+    private UndoLog mUndoLog;
 
     private AnkiDb ankiDb = null;
 
-    public static synchronized Deck openDeck(String path, boolean rebuild, boolean forceDeleteJournalMode) throws SQLException {
+    public static Deck openDeck(String path, boolean rebuild, boolean forceDeleteJournalMode) throws SQLException {
         Deck deck = null;
         ResultSet result = null;
         log.info("openDeck - Opening database " + path);
         AnkiDb ankiDB = AnkiDatabaseManager.getDatabase(path, forceDeleteJournalMode);
+        // Answers journaled by a session which ended before they were applied
+        AnswerJournal.replay(ankiDB, path);
 
         try {
             // Read in deck table columns
@@ -292,21 +348,26 @@ public class Deck {
             //log.info("openDeck - Read " + result.getColumnCount() + " columns from decks table.");
         } catch (SQLException e) {
         	log.error("Error During open deck", e);
+            deck = null;
             return null;
         } finally {
             if (result != null) {
                 result.close();
                 result = null;
             }
+            if (deck == null) {
+                // Not opened: release the reference on the database
+                AnkiDatabaseManager.closeDatabase(path);
+            }
         }
         log.info(String.format(Utils.ENGLISH_LOCALE, "openDeck - modified: %f currentTime: %f", deck.mModified, Utils.now()));
 
         // Initialise queues
-        deck.mFailedQueue = new LinkedList<QueueItem>();
-        deck.mRevQueue = new LinkedList<QueueItem>();
-        deck.mNewQueue = new LinkedList<QueueItem>();
-        deck.mFailedCramQueue = new LinkedList<QueueItem>();
-        deck.mSpacedFacts = new HashMap<Long, Double>();
+        deck.mFailedQueue = new CardQueue();
+        deck.mRevQueue = new CardQueue();
+        deck.mNewQueue = new CardQueue();
+        deck.mFailedCramQueue = new CardQueue();
+        deck.mSpacedFacts = new SpacedFacts();
         deck.mSpacedCards = new LinkedList<SpacedCardsItem>();
 
         deck.mDeckPath = path;
@@ -327,6 +388,10 @@ public class Deck {
         }
 
         deck.initVars();
+        if (sUseDueCounts && (rebuild || sPersistDueCounts)) {
+            // A temporary table is not worth building for the few counts of a minimal open: see rebuild()
+            deck.initDueCounts();
+        }
 
         // Upgrade to latest version
         deck.upgradeDeck();
@@ -339,63 +404,83 @@ public class Deck {
             return deck;
         }
 
-        if (deck.mNeedUnpack) {
-            deck.addIndices();
+        deck.rebuild();
+        return deck;
+    }
+
+
+    /**
+     * Build what openDeck() skips when called with rebuild=false: the dynamic indices, the card indexes, the queues,
+     * undo and the answer journal. Called by openDeck() with rebuild=true, or later for a deck first opened without.
+     */
+    public void rebuild() throws SQLException {
+        ResultSet result = null;
+        if (mNeedUnpack) {
+            addIndices();
         }
 
-        double oldMod = deck.mModified;
+        double oldMod = mModified;
 
         // Ensure necessary indices are available
-        deck.updateDynamicIndices();
+        updateDynamicIndices();
 
         // FIXME: Temporary code for upgrade - ensure cards suspended on older clients are recognized
         // Ensure cards suspended on older clients are recognized
-        deck.ankiDb.execSQL(
+        ankiDb.execSQL(
                 "UPDATE cards SET type = type - 3 WHERE type BETWEEN 0 AND 2 AND priority = -3");
 
         // - New delay1 handling
-        if (deck.mDelay1 > 7l) {
-            deck.mDelay1 = 0l;
+        if (mDelay1 > 7l) {
+            mDelay1 = 0l;
         }
 
-        ArrayList<Long> ids = new ArrayList<Long>();
         // Unsuspend buried/rev early - can remove priorities in the future
-        ids = deck.ankiDb.queryColumn(Long.class,
-                "SELECT id FROM cards WHERE type > 2 OR (priority BETWEEN -2 AND -1)", 1);
-        if (!ids.isEmpty()) {
-            deck.updatePriorities(Utils.toPrimitive(ids));
-            deck.ankiDb.execSQL("UPDATE cards SET type = relativeDelay WHERE type > 2");
+        long[] ids = ankiDb.queryLongs(
+                "SELECT id FROM cards WHERE type > 2 OR (priority BETWEEN -2 AND -1)");
+        if (ids.length > 0) {
+            updatePriorities(ids);
+            ankiDb.execSQL("UPDATE cards SET type = relativeDelay WHERE type > 2");
             // Save deck to database
-            deck.commitToDB();
+            commitToDB();
         }
 
         // Determine starting factor for new cards
         try {
-        	result = deck.ankiDb.rawQuery("SELECT avg(factor) FROM cards WHERE type = 1");
+        	result = ankiDb.rawQuery("SELECT avg(factor) FROM cards WHERE type = 1");
             if (result.next()) {
-                deck.mAverageFactor = result.getDouble(1);
+                mAverageFactor = result.getDouble(1);
             } else {
-                deck.mAverageFactor = INITIAL_FACTOR;
+                mAverageFactor = INITIAL_FACTOR;
             }
-            if (deck.mAverageFactor == 0.0) {
-                deck.mAverageFactor = INITIAL_FACTOR;
+            if (mAverageFactor == 0.0) {
+                mAverageFactor = INITIAL_FACTOR;
             }
         } catch (Exception e) {
-            deck.mAverageFactor = INITIAL_FACTOR;
+            mAverageFactor = INITIAL_FACTOR;
         } finally {
             if (result != null) {
             	result.close();
             	result = null;
             }
         }
-        deck.mAverageFactor = Math.max(deck.mAverageFactor, MINIMUM_AVERAGE);
+        mAverageFactor = Math.max(mAverageFactor, MINIMUM_AVERAGE);
+
+        if (sUseDueCounts && mDueCounts == null) {
+            initDueCounts();
+        }
+        if (sUseDueCardIndex) {
+            mDueCardIndex = DueCardIndex.build(ankiDb);
+        }
+        if (sUseTagBitmapIndex) {
+            mTagBitmapIndex = TagBitmapIndex.build(ankiDb);
+        }
 
         // Rebuild queue
-        deck.reset();
+        reset();
         // Make sure we haven't accidentally bumped the modification time
         double dbMod = 0.0;
         try {
-        	result = deck.ankiDb.rawQuery("SELECT modified FROM decks");
+        	result = ankiDb.rawQuery("SELECT modified FROM decks");
             if (result.next()) {
                 dbMod = result.getDouble(1);
             }
@@ -406,12 +491,12 @@ public class Deck {
         }
         // FIXME : may be surpress ?
         assert Math.abs(dbMod - oldMod) < 1.0e-9;
-        assert deck.mModified == oldMod;
+        assert mModified == oldMod;
         // 4.3.2011: deactivated since it's not used anywhere
         // Create a temporary view for random new cards. Randomizing the cards by themselves
         // as is done in desktop Anki in Deck.randomizeNewCards() takes too long.
 //        try {
-//            deck.ankiDb.execSQL(
+//            ankiDb.execSQL(
 //                    "CREATE TEMPORARY VIEW acqCardsRandom AS SELECT * FROM cards " + "WHERE type = " + Card.TYPE_NEW
 //                            + " AND isDue = 1 ORDER BY RANDOM()");
 //        } catch (SQLException e) {
@@ -420,10 +505,14 @@ public class Deck {
 //        }
 
         // Initialize Undo
-        deck.initUndo();
-        return deck;
+        initUndo();
+        if (sUseAnswerJournal) {
+            mAnswerJournal = AnswerJournal.open(ankiDb, mDeckPath, AnswerJournal.DEFAULT_FLUSH_INTERVAL,
+                    AnswerJournal.DEFAULT_MAX_PENDING);
+        }
     }
-    
+
+
     public void createMetadata() {
         // Just create table deckvars for now
         ankiDb.execSQL(
@@ -440,20 +529,272 @@ public class Deck {
         	// FIXME
         	//DeckTask.waitToFinish(); // Wait for any thread working on the deck to finish.
         }
-        if (finishSchedulerMethod != null) {
+        if (mUndoLog != null) {
+            // Range left open by an action which failed before setUndoEnd()
+            mUndoLog.release();
+        }
+        if (mAnswerJournal != null) {
+            mAnswerJournal.close();
+            mAnswerJournal = null;
+        }
+        if (hasFinishScheduler()) {
             finishScheduler();
             reset();
         }
         if (modifiedSinceSave()) {
             commitToDB();
         }
+        if (mDueCounts != null) {
+            // After the last save, so that a persistent table is stamped with the stored modification time
+            mDueCounts.close(mModified);
+            mDueCounts = null;
+        }
+        if (mPrefetcher != null) {
+            log.info("closeDeck - prefetch " + mPrefetcher.getStatistics());
+            mPrefetcher.clear();
+        }
         AnkiDatabaseManager.closeDatabase(mDeckPath);
+        Model.releaseModels(this);
+    }
+
+
+    /**
+     * @return a rough estimate of the heap retained by this deck, in bytes: the deck itself, its queues, spaced facts
+     *         and cards, undo entries, deck variables, in-memory indexes and loaded models
+     */
+    public long estimateRetainedSize() {
+        long size = DECK_SIZE_ESTIMATE;
+        size += sizeOf(mFailedQueue) + sizeOf(mRevQueue) + sizeOf(mNewQueue) + sizeOf(mFailedCramQueue);
+        // Only sizes are read, so that the estimate is safe while another thread uses the deck
+        size += mSpacedFacts != null ? mSpacedFacts.estimateRetainedSize() : 0;
+        size += MAP_ENTRY_SIZE_ESTIMATE * (2 * sizeOf(mSpacedCards) + 2 * sizeOf(mDeckVars));
+        size += UNDO_ROW_SIZE_ESTIMATE * (sizeOf(mUndoStack) + sizeOf(mRedoStack));
+        DueCardIndex index = mDueCardIndex;
+        if (index != null) {
+            size += index.estimateRetainedSize();
+        }
+        TagBitmapIndex bitmaps = mTagBitmapIndex;
+        if (bitmaps != null) {
+            size += bitmaps.estimateRetainedSize();
+        }
+        return size + Model.estimateRetainedSize(this);
+    }
+
+
+    private static int sizeOf(Collection<?> collection) {
+        return collection != null ? collection.size() : 0;
+    }
+
+
+    private static int sizeOf(Map<?, ?> map) {
+        return map != null ? map.size() : 0;
+    }
+
+
+    private static long sizeOf(CardQueue queue) {
+        return queue != null ? queue.estimateRetainedSize() : 0;
+    }
+
+
+    /**
+     * Keep an in-memory index of the due cards of the decks opened from now on, so that due counts and queue refills
+     * do not query the cards table. Costs about 70 bytes per failed, review or new card. Off by default.
+     */
+    public static void setUseDueCardIndex(boolean use) {
+        sUseDueCardIndex = use;
+    }
+
+
+    /**
+     * Build or drop the due card index of this deck.
+     */
+    public void setDueCardIndexEnabled(boolean enabled) {
+        mDueCardIndex = enabled ? DueCardIndex.build(ankiDb) : null;
+    }
+
+
+    public boolean isDueCardIndexEnabled() {
+        return mDueCardIndex != null;
+    }
+
+
+    /**
+     * Reload the due card index from the cards table, after changes it was not told about. Caller must .reset()
+     */
+    public void rebuildDueCardIndex() {
+        if (mDueCardIndex != null) {
+            mDueCardIndex = DueCardIndex.build(ankiDb);
+        }
+    }
+
+
+    /**
+     * Re-read the given cards into the due card index, after they have been written outside of the deck (e.g. by
+     * sync). Caller must .reset()
+     */
+    public void refreshDueCardIndex(long[] ids) {
+        DueCardIndex index = mDueCardIndex;
+        if (index != null) {
+            index.refresh(ankiDb, ids);
+        }
+    }
+
+
+    /**
+     * Keep bitmaps of the cards of each tag for the decks opened from now on, so that counts and queues limited by
+     * tags are served by the due card index instead of joins with cardTags. Off by default.
+     */
+    public static void setUseTagBitmapIndex(boolean use) {
+        sUseTagBitmapIndex = use;
+    }
+
+
+    /**
+     * Build or drop the tag bitmaps of this deck. Caller must .reset()
+     */
+    public void setTagBitmapIndexEnabled(boolean enabled) {
+        mTagBitmapIndex = enabled ? TagBitmapIndex.build(ankiDb) : null;
+        mTagFilter = null;
+    }
+
+
+    public boolean isTagBitmapIndexEnabled() {
+        return mTagBitmapIndex != null;
+    }
+
+
+    /**
+     * Reload the tag bitmaps from cardTags, after changes they were not told about. Caller must .reset()
+     */
+    public void rebuildTagBitmapIndex() {
+        if (mTagBitmapIndex != null) {
+            mTagBitmapIndex = TagBitmapIndex.build(ankiDb);
+            mTagFilter = null;
+        }
+    }
+
+
+    /**
+     * Journal the answers of the decks opened from now on: answering a card appends its writes to a journal file
+     * next to the deck with one fsync, and they are applied to the deck in batches by a background flusher, before any
+     * write started outside a transaction, and at the sync points of flushAnswerJournal(). Other reads of the database
+     * may not see them yet. Off by default.
+     */
+    public static void setUseAnswerJournal(boolean use) {
+        sUseAnswerJournal = use;
+    }
+
+
+    /**
+     * Start or stop journaling the answers of this deck. Stopping applies the pending answers.
+     */
+    public void setAnswerJournalEnabled(boolean enabled) {
+        if (enabled && mAnswerJournal == null) {
+            mAnswerJournal = AnswerJournal.open(ankiDb, mDeckPath, AnswerJournal.DEFAULT_FLUSH_INTERVAL,
+                    AnswerJournal.DEFAULT_MAX_PENDING);
+        } else if (!enabled && mAnswerJournal != null) {
+            mAnswerJournal.close();
+            mAnswerJournal = null;
+        }
+    }
+
+
+    public boolean isAnswerJournalEnabled() {
+        return mAnswerJournal != null;
+    }
+
+
+    /**
+     * Apply the journaled answers which have not been applied yet. This is a sync point: it is called before the deck
+     * is read for queues or counts, and before undo, redo and saving; the flusher applies the answers otherwise.
+     */
+    public void flushAnswerJournal() {
+        AnswerJournal journal = mAnswerJournal;
+        if (journal != null) {
+            journal.flush();
+        }
+    }
+
+
+    /**
+     * Maintain the due counts of the decks opened from now on in a temporary dueCounts table, built when the deck is
+     * opened with rebuild, so that counting does not scan the cards table. Off by default.
+     */
+    public static void setUseDueCounts(boolean use) {
+        sUseDueCounts = use;
+    }
+
+
+    /**
+     * Keep the dueCounts table in the deck file between sessions, so that opening a deck, with or without rebuild,
+     * checks the stored counts instead of building them. Only used with setUseDueCounts(true). Off by default: the
+     * table then goes with the file, e.g. to full syncs.
+     */
+    public static void setPersistDueCounts(boolean persist) {
+        sPersistDueCounts = persist;
+    }
+
+
+    /**
+     * Open the dueCounts table, with days starting at the current day cutoff.
+     */
+    private void initDueCounts() {
+        long anchor = ((long) mFailedCutoff) % 86400;
+        if (sPersistDueCounts) {
+            mDueCounts = DueCounts.openPersistent(ankiDb, anchor, mModified);
+        } else {
+            mDueCounts = DueCounts.open(ankiDb, anchor);
+        }
+    }
+
+
+    /**
+     * @return the number of cards of type due before the cutoff from the dueCounts table, or -1 if it can not serve
+     *         counts limited by the given tag variables
+     */
+    private int dueCount(int type, double cutoff, String active, String inactive) {
+        if (mDueCounts == null || Utils.parseTags(getVar(active)).length != 0
+                || Utils.parseTags(getVar(inactive)).length != 0) {
+            return -1;
+        }
+        return mDueCounts.count(type, cutoff);
     }
 
 
-    public static synchronized int getDeckVersion(String path) throws SQLException {
-        int version = (int) AnkiDatabaseManager.getDatabase(path).queryScalar("SELECT version FROM decks LIMIT 1");
-        return version;
+    /**
+     * @return true if counts and queues limited by the given tag variables can be served by the due card index
+     */
+    private boolean useDueCardIndex(String active, String inactive) {
+        return mDueCardIndex != null && (mTagBitmapIndex != null || (Utils.parseTags(getVar(active)).length == 0
+                && Utils.parseTags(getVar(inactive)).length == 0));
+    }
+
+
+    /**
+     * @return the cards of the limit set by the given tag variables, from the tag bitmaps, or null if there is no limit
+     */
+    private DueCardIndex.CardFilter tagFilter(String active, String inactive) {
+        String[] yes = Utils.parseTags(getVar(active));
+        String[] no = Utils.parseTags(getVar(inactive));
+        if ((yes.length == 0 && no.length == 0) || mTagBitmapIndex == null) {
+            return null;
+        }
+        String key = Arrays.toString(yes) + Arrays.toString(no);
+        if (mTagFilter == null || !mTagFilter.isCurrent() || !key.equals(mTagFilterKey)) {
+            mTagFilter = mTagBitmapIndex.filter(yes.length > 0 ? Utils.toPrimitive(tagIds(yes, false).values())
+                    : null, Utils.toPrimitive(tagIds(no, false).values()));
+            mTagFilterKey = key;
+        }
+        return mTagFilter;
+    }
+
+
+    public static int getDeckVersion(String path) throws SQLException {
+        try {
+            return (int) AnkiDatabaseManager.getDatabase(path).queryScalar("SELECT version FROM decks LIMIT 1");
+        } finally {
+            AnkiDatabaseManager.closeDatabase(path);
+        }
     }
 
 
@@ -732,7 +1073,7 @@ public class Deck {
             commitToDB();
         }
         if (mVersion < 48) {
-            updateFieldCache(Utils.toPrimitive(ankiDb.queryColumn(Long.class, "SELECT id FROM facts", 1)));
+            updateFieldCache(ankiDb.queryLongs("SELECT id FROM facts"));
             mVersion = 48;
             commitToDB();
         }
@@ -761,6 +1102,7 @@ public class Deck {
                 if (Math.abs(mHardIntervalMin - 0.333) < 0.001) {
                     mHardIntervalMin = Math.max(1.0, mHardIntervalMin);
                     mHardIntervalMax = Math.max(1.1, mHardIntervalMax);
+                    mIntervalSimulator = null;
                 }
             }
             mVersion = 53;
@@ -1060,38 +1402,18 @@ public class Deck {
      * Queue Management*****************************
      */
 
-    private class QueueItem {
-        private long cardID;
-        private long factID;
-        private double due;
-
-
-        QueueItem(long cardID, long factID) {
-            this.cardID = cardID;
-            this.factID = factID;
-            this.due = 0.0;
-        }
-
+    // Adds the cards selected from the due card index to the front of a queue, like the SQL fills do
+    private class QueueFiller implements DueCardIndex.EntryCallback {
+        private CardQueue queue;
 
-        QueueItem(long cardID, long factID, double due) {
-            this.cardID = cardID;
-            this.factID = factID;
-            this.due = due;
-        }
-
-
-        long getCardID() {
-            return cardID;
-        }
 
-
-        long getFactID() {
-            return factID;
+        QueueFiller(CardQueue queue) {
+            this.queue = queue;
         }
 
 
-        double getDue() {
-            return due;
+        public void onEntry(long cardId, long factId, double combinedDue) {
+            queue.addFirst(cardId, factId, combinedDue);
         }
     }
 
@@ -1136,6 +1458,24 @@ public class Deck {
     }
 
 
+    /**
+     * Count the review cards due on each of the next days in one query, as getNextDueCards() and
+     * getNextDueMatureCards() do for one day.
+     *
+     * @param projection true to keep the cards for DueForecast.project(), which then also reads the overdue cards
+     * @return the forecast, or null on error
+     */
+    public DueForecast getDueForecast(int days, boolean projection) {
+        String sql = String.format(Utils.ENGLISH_LOCALE, "SELECT combinedDue, interval, priority, factor, "
+                + "lastInterval, fuzz FROM cards c WHERE type = 1 AND combinedDue < %f", DueForecast.end(mDueCutoff,
+                days));
+        if (!projection) {
+            sql += String.format(Utils.ENGLISH_LOCALE, " AND combinedDue >= %f", DueForecast.start(mDueCutoff));
+        }
+        return DueForecast.scan(ankiDb, cardLimit("revActive", "revInactive", sql), mDueCutoff, days, projection);
+    }
+
+
     /*
      * Get failed cards count ******************************
      */
@@ -1296,260 +1636,121 @@ public class Deck {
     /*
      * Scheduler related overridable methods******************************
      */
-    private Method getCardIdMethod;
-    private Method fillFailedQueueMethod;
-    private Method fillRevQueueMethod;
-    private Method fillNewQueueMethod;
-    private Method rebuildFailedCountMethod;
-    private Method rebuildRevCountMethod;
-    private Method rebuildNewCountMethod;
-    private Method requeueCardMethod;
-    private Method timeForNewCardMethod;
-    private Method updateNewCountTodayMethod;
-    private Method cardQueueMethod;
-    private Method finishSchedulerMethod;
-    private Method answerCardMethod;
-    private Method cardLimitMethod;
-    private Method answerPreSaveMethod;
-    private Method spaceCardsMethod;
+    private Scheduler mCurrentScheduler;
+
+
+    /**
+     * @return the scheduler in use, see {@link Scheduler}
+     */
+    public Scheduler getCurrentScheduler() {
+        return mCurrentScheduler;
+    }
+
+
+    /**
+     * Install a scheduler, e.g. a custom subclass of StandardScheduler. Caller must .reset()
+     */
+    public void setScheduler(Scheduler scheduler) {
+        mCurrentScheduler = scheduler;
+        mScheduler = scheduler.getName();
+    }
 
 
     private long getCardId() {
-        try {
-            return ((Long) getCardIdMethod.invoke(Deck.this, true)).longValue();
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        return mCurrentScheduler.getCardId(true);
     }
 
 
     private long getCardId(boolean check) {
-        try {
-            return ((Long) getCardIdMethod.invoke(Deck.this, check)).longValue();
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        return mCurrentScheduler.getCardId(check);
     }
 
 
     private void fillFailedQueue() {
-        try {
-            fillFailedQueueMethod.invoke(Deck.this);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        flushAnswerJournal();
+        mCurrentScheduler.fillFailedQueue();
     }
 
 
     private void fillRevQueue() {
-        try {
-            fillRevQueueMethod.invoke(Deck.this);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        flushAnswerJournal();
+        mCurrentScheduler.fillRevQueue();
     }
 
 
     private void fillNewQueue() {
-        try {
-            fillNewQueueMethod.invoke(Deck.this);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        flushAnswerJournal();
+        mCurrentScheduler.fillNewQueue();
     }
 
 
     private void rebuildFailedCount() {
-        try {
-            rebuildFailedCountMethod.invoke(Deck.this);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        mCurrentScheduler.rebuildFailedCount();
     }
 
 
     private void rebuildRevCount() {
-        try {
-            rebuildRevCountMethod.invoke(Deck.this);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        mCurrentScheduler.rebuildRevCount();
     }
 
 
     private void rebuildNewCount() {
-        try {
-            rebuildNewCountMethod.invoke(Deck.this);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        mCurrentScheduler.rebuildNewCount();
     }
 
 
     private void requeueCard(Card card, boolean oldIsRev) {
-        try {
-            requeueCardMethod.invoke(Deck.this, card, oldIsRev);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        mCurrentScheduler.requeueCard(card, oldIsRev);
     }
 
 
     private boolean timeForNewCard() {
-        try {
-            return ((Boolean) timeForNewCardMethod.invoke(Deck.this)).booleanValue();
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        return mCurrentScheduler.timeForNewCard();
     }
 
 
     private void updateNewCountToday() {
-        try {
-            updateNewCountTodayMethod.invoke(Deck.this);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        mCurrentScheduler.updateNewCountToday();
     }
 
 
     private int cardQueue(Card card) {
-        try {
-            return ((Integer) cardQueueMethod.invoke(Deck.this, card)).intValue();
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        return mCurrentScheduler.cardQueue(card);
     }
 
 
     public void finishScheduler() {
-        try {
-            finishSchedulerMethod.invoke(Deck.this);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        mCurrentScheduler.finishScheduler();
     }
 
 
     public void answerCard(Card card, int ease) {
-        try {
-            answerCardMethod.invoke(Deck.this, card, ease);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        mCurrentScheduler.answerCard(card, ease);
     }
 
 
     private String cardLimit(String active, String inactive, String sql) {
-        try {
-            return ((String) cardLimitMethod.invoke(Deck.this, active, inactive, sql));
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        return mCurrentScheduler.cardLimit(active, inactive, sql);
     }
 
 
     private String cardLimit(String[] active, String[] inactive, String sql) {
-        try {
-            return ((String) cardLimitMethod.invoke(Deck.this, active, inactive, sql));
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        return mCurrentScheduler.cardLimit(active, inactive, sql);
     }
 
 
     private void answerPreSave(Card card, int ease) {
-        try {
-            answerPreSaveMethod.invoke(Deck.this, card, ease);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        mCurrentScheduler.answerPreSave(card, ease);
     }
 
 
     private void spaceCards(Card card) {
-        try {
-            spaceCardsMethod.invoke(Deck.this, card);
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException(e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        mCurrentScheduler.spaceCards(card);
     }
 
 
     public boolean hasFinishScheduler() {
-        return !(finishSchedulerMethod == null);
+        return mCurrentScheduler.hasFinishScheduler();
     }
 
 
@@ -1562,27 +1763,7 @@ public class Deck {
      * Standard Scheduling*****************************
      */
     public void setupStandardScheduler() {
-        try {
-            getCardIdMethod = Deck.class.getDeclaredMethod("_getCardId", boolean.class);
-            fillFailedQueueMethod = Deck.class.getDeclaredMethod("_fillFailedQueue");
-            fillRevQueueMethod = Deck.class.getDeclaredMethod("_fillRevQueue");
-            fillNewQueueMethod = Deck.class.getDeclaredMethod("_fillNewQueue");
-            rebuildFailedCountMethod = Deck.class.getDeclaredMethod("_rebuildFailedCount");
-            rebuildRevCountMethod = Deck.class.getDeclaredMethod("_rebuildRevCount");
-            rebuildNewCountMethod = Deck.class.getDeclaredMethod("_rebuildNewCount");
-            requeueCardMethod = Deck.class.getDeclaredMethod("_requeueCard", Card.class, boolean.class);
-            timeForNewCardMethod = Deck.class.getDeclaredMethod("_timeForNewCard");
-            updateNewCountTodayMethod = Deck.class.getDeclaredMethod("_updateNewCountToday");
-            cardQueueMethod = Deck.class.getDeclaredMethod("_cardQueue", Card.class);
-            finishSchedulerMethod = null;
-            answerCardMethod = Deck.class.getDeclaredMethod("_answerCard", Card.class, int.class);
-            cardLimitMethod = Deck.class.getDeclaredMethod("_cardLimit", String.class, String.class, String.class);
-            answerPreSaveMethod = null;
-            spaceCardsMethod = Deck.class.getDeclaredMethod("_spaceCards", Card.class);
-        } catch (NoSuchMethodException e) {
-            throw new RuntimeException(e);
-        }
-        mScheduler = "standard";
+        setScheduler(new StandardScheduler(this));
         // Restore any cards temporarily suspended by alternate schedulers
         if (mVersion == DECK_VERSION) {
             resetAfterReviewEarly();
@@ -1594,15 +1775,6 @@ public class Deck {
         fillFailedQueue();
         fillRevQueue();
         fillNewQueue();
-        //for (QueueItem i : mFailedQueue) {
-        //    log.info("failed queue: cid: " + i.getCardID() + " fid: " + i.getFactID() + " cd: " + i.getDue());
-        //}
-        //for (QueueItem i : mRevQueue) {
-        //    log.info("rev queue: cid: " + i.getCardID() + " fid: " + i.getFactID());
-        //}
-        //for (QueueItem i : mNewQueue) {
-        //    log.info("new queue: cid: " + i.getCardID() + " fid: " + i.getFactID());
-        //}
     }
 
 
@@ -1613,8 +1785,13 @@ public class Deck {
 
     private void rebuildCounts() {
         // global counts
-    	mCardCount = (int) ankiDb.queryScalar("SELECT count(*) from cards");
-        mFactCount = (int) ankiDb.queryScalar("SELECT count(*) from facts");
+        if (mDueCounts != null) {
+            mCardCount = mDueCounts.cardCount();
+            mFactCount = mDueCounts.factCount();
+        } else {
+            mCardCount = (int) ankiDb.queryScalar("SELECT count(*) from cards");
+            mFactCount = (int) ankiDb.queryScalar("SELECT count(*) from facts");
+        }
     
         if (mCardCount == -1 || mFactCount == -1) {
             log.error("rebuildCounts: Error while getting global counts: ");
@@ -1628,10 +1805,12 @@ public class Deck {
     }
 
 
-    @SuppressWarnings("unused")
-    private String _cardLimit(String active, String inactive, String sql) {
-        String[] yes = Utils.parseTags(getVar(active));
-        String[] no = Utils.parseTags(getVar(inactive));
+    String _cardLimit(String active, String inactive, String sql) {
+        return _cardLimit(Utils.parseTags(getVar(active)), Utils.parseTags(getVar(inactive)), sql);
+    }
+
+
+    String _cardLimit(String[] yes, String[] no, String sql) {
         if (yes.length > 0) {
             long yids[] = Utils.toPrimitive(tagIds(yes).values());
             long nids[] = Utils.toPrimitive(tagIds(no).values());
@@ -1652,49 +1831,75 @@ public class Deck {
      * This is a count of all failed cards within the current day cutoff. The cards may not be ready for review yet, but
      * can still be displayed if failedCardsMax is reached.
      */
-    @SuppressWarnings("unused")
-    private void _rebuildFailedCount() {
+    void _rebuildFailedCount() {
+        if (useDueCardIndex("revActive", "revInactive")) {
+            mFailedSoonCount = mDueCardIndex.count(Card.TYPE_FAILED, mFailedCutoff,
+                    tagFilter("revActive", "revInactive"));
+            return;
+        }
+        int count = dueCount(Card.TYPE_FAILED, mFailedCutoff, "revActive", "revInactive");
+        if (count != -1) {
+            mFailedSoonCount = count;
+            return;
+        }
         String sql = String.format(Utils.ENGLISH_LOCALE,
                 "SELECT count(*) FROM cards c WHERE type = 0 AND combinedDue < %f", mFailedCutoff);
         mFailedSoonCount = (int) ankiDb.queryScalar(cardLimit("revActive", "revInactive", sql));
     }
 
 
-    @SuppressWarnings("unused")
-    private void _rebuildRevCount() {
+    void _rebuildRevCount() {
+        if (useDueCardIndex("revActive", "revInactive")) {
+            mRevCount = mDueCardIndex.count(Card.TYPE_REV, mDueCutoff, tagFilter("revActive", "revInactive"));
+            return;
+        }
+        int count = dueCount(Card.TYPE_REV, mDueCutoff, "revActive", "revInactive");
+        if (count != -1) {
+            mRevCount = count;
+            return;
+        }
         String sql = String.format(Utils.ENGLISH_LOCALE,
                 "SELECT count(*) FROM cards c WHERE type = 1 AND combinedDue < %f", mDueCutoff);
         mRevCount = (int) ankiDb.queryScalar(cardLimit("revActive", "revInactive", sql));
     }
 
 
-    @SuppressWarnings("unused")
-    private void _rebuildNewCount() {
+    void _rebuildNewCount() {
         String sql = String.format(Utils.ENGLISH_LOCALE,
                 "SELECT count(*) FROM cards c WHERE type = 2 AND combinedDue < %f", mDueCutoff);
-        mNewCount = (int) ankiDb.queryScalar(cardLimit("newActive", "newInactive", sql));
+        int count;
+        if (useDueCardIndex("newActive", "newInactive")) {
+            mNewCount = mDueCardIndex.count(Card.TYPE_NEW, mDueCutoff, tagFilter("newActive", "newInactive"));
+        } else if ((count = dueCount(Card.TYPE_NEW, mDueCutoff, "newActive", "newInactive")) != -1) {
+            mNewCount = count;
+        } else {
+            mNewCount = (int) ankiDb.queryScalar(cardLimit("newActive", "newInactive", sql));
+        }
         updateNewCountToday();
         mSpacedCards.clear();
     }
 
 
-    @SuppressWarnings("unused")
-    private void _updateNewCountToday() {
+    void _updateNewCountToday() {
         mNewCountToday = Math.max(Math.min(mNewCount, mNewCardsPerDay - newCardsDoneToday()), 0);
     }
 
 
-    @SuppressWarnings("unused")
-    private void _fillFailedQueue() {
+    void _fillFailedQueue() {
         if ((mFailedSoonCount != 0) && mFailedQueue.isEmpty()) {
+            if (useDueCardIndex("revActive", "revInactive")) {
+                mDueCardIndex.select(Card.TYPE_FAILED, mFailedCutoff, DueCardIndex.ORDER_COMBINED_DUE, mQueueLimit,
+                        tagFilter("revActive", "revInactive"), new QueueFiller(mFailedQueue));
+                return;
+            }
         	ResultSet result = null;
             try {
                 String sql = "SELECT c.id, factId, combinedDue FROM cards c WHERE type = 0 AND combinedDue < "
                         + mFailedCutoff + " ORDER BY combinedDue LIMIT " + mQueueLimit;
                 result = ankiDb.rawQuery(cardLimit("revActive", "revInactive", sql));
                 while (result.next()) {
-                    QueueItem qi = new QueueItem(result.getLong(1), result.getLong(2), result.getDouble(3));
-                    mFailedQueue.add(0, qi); // Add to front, so list is reversed as it is built
+                    // Add to front, so queue is reversed as it is built
+                    mFailedQueue.addFirst(result.getLong(1), result.getLong(2), result.getDouble(3));
                 }
             } catch (SQLException e) {
 				e.printStackTrace();
@@ -1710,17 +1915,21 @@ public class Deck {
     }
 
 
-    @SuppressWarnings("unused")
-    private void _fillRevQueue() {
+    void _fillRevQueue() {
         if ((mRevCount != 0) && mRevQueue.isEmpty()) {
+            if (useDueCardIndex("revActive", "revInactive")) {
+                mDueCardIndex.select(Card.TYPE_REV, mDueCutoff, revIndexOrders[mRevCardOrder], mQueueLimit,
+                        tagFilter("revActive", "revInactive"), new QueueFiller(mRevQueue));
+                return;
+            }
             ResultSet result = null;
             try {
                 String sql = "SELECT c.id, factId, combinedDue FROM cards c WHERE type = 1 AND combinedDue < "
                         + mDueCutoff + " ORDER BY " + revOrder() + " LIMIT " + mQueueLimit;
                 result = ankiDb.rawQuery(cardLimit("revActive", "revInactive", sql));
                 while (result.next()) {
-                    QueueItem qi = new QueueItem(result.getLong(1), result.getLong(2), result.getDouble(3));
-                    mRevQueue.add(0, qi); // Add to front, so list is reversed as it is built
+                    // Add to front, so queue is reversed as it is built
+                    mRevQueue.addFirst(result.getLong(1), result.getLong(2), result.getDouble(3));
                 }
             } catch (SQLException e) {
 				e.printStackTrace();
@@ -1736,17 +1945,21 @@ public class Deck {
     }
 
 
-    @SuppressWarnings("unused")
-    private void _fillNewQueue() {
+    void _fillNewQueue() {
         if ((mNewCountToday != 0) && mNewQueue.isEmpty() && mSpacedCards.isEmpty()) {
+            if (useDueCardIndex("newActive", "newInactive")) {
+                mDueCardIndex.select(Card.TYPE_NEW, mDueCutoff, newIndexOrders[mNewCardOrder], mQueueLimit,
+                        tagFilter("newActive", "newInactive"), new QueueFiller(mNewQueue));
+                return;
+            }
             ResultSet result = null;
             try {
                 String sql = "SELECT c.id, factId, combinedDue FROM cards c WHERE type = 2 AND combinedDue < "
                         + mDueCutoff + " ORDER BY " + newOrder() + " LIMIT " + mQueueLimit;
                 result = ankiDb.rawQuery(cardLimit("newActive", "newInactive", sql));
                 while (result.next()) {
-                    QueueItem qi = new QueueItem(result.getLong(1), result.getLong(2), result.getDouble(3));
-                    mNewQueue.addFirst(qi); // Add to front, so list is reversed as it is built
+                    // Add to front, so queue is reversed as it is built
+                    mNewQueue.addFirst(result.getLong(1), result.getLong(2), result.getDouble(3));
                 }
             } catch (SQLException e) {
 				e.printStackTrace();
@@ -1762,22 +1975,21 @@ public class Deck {
     }
 
 
-    private boolean queueNotEmpty(LinkedList<QueueItem> queue, Method fillFunc) {
-        return queueNotEmpty(queue, fillFunc, false);
-    }
-
-
-    private boolean queueNotEmpty(LinkedList<QueueItem> queue, Method fillFunc, boolean _new) {
+    private boolean queueNotEmpty(CardQueue queue, boolean _new) {
 //        while (true) {
             removeSpaced(queue, _new);
             if (!queue.isEmpty()) {
                 return true;
             }
             try {
-                fillFunc.invoke(Deck.this);
+                if (_new) {
+                    fillNewQueue();
+                } else {
+                    fillRevQueue();
+                }
                 // with libanki
-            } catch (Exception e) {
-                log.error("queueNotEmpty: Error while invoking overridable fill method:", e);
+            } catch (RuntimeException e) {
+                log.error("queueNotEmpty: Error while filling the queue:", e);
                 return false;
             }
 //            if (queue.isEmpty()) {
@@ -1787,18 +1999,18 @@ public class Deck {
     }
 
 
-    private void removeSpaced(LinkedList<QueueItem> queue, boolean _new) {
+    private void removeSpaced(CardQueue queue, boolean _new) {
         ArrayList<Long> popped = new ArrayList<Long>();
         double delay = 0.0;
         while (!queue.isEmpty()) {
-            long fid = ((QueueItem) queue.getLast()).getFactID();
+            long fid = queue.getLastFactId();
             if (mSpacedFacts.containsKey(fid)) {
                 // Still spaced
-                long id = queue.removeLast().getCardID();
+                long id = queue.removeLast();
                 // Assuming 10 cards/minute, track id if likely to expire before queue refilled
                 if (_new && (mNewSpacing < (double) mQueueLimit * 6.0)) {
                     popped.add(id);
-                    delay = mSpacedFacts.get(fid);
+                    delay = mSpacedFacts.get(fid, 0.0);
                 }
             } else {
                 if (!popped.isEmpty()) {
@@ -1811,17 +2023,16 @@ public class Deck {
 
 
     private boolean revNoSpaced() {
-        return queueNotEmpty(mRevQueue, fillRevQueueMethod);
+        return queueNotEmpty(mRevQueue, false);
     }
 
 
     private boolean newNoSpaced() {
-        return queueNotEmpty(mNewQueue, fillNewQueueMethod, true);
+        return queueNotEmpty(mNewQueue, true);
     }
 
 
-    @SuppressWarnings("unused")
-    private void _requeueCard(Card card, boolean oldIsRev) {
+    void _requeueCard(Card card, boolean oldIsRev) {
         int newType = 0;
         // try {
         if (card.getReps() == 1) {
@@ -1874,11 +2085,11 @@ public class Deck {
                 "UPDATE cards SET " + "relativeDelay = (CASE WHEN successive THEN 1 WHEN reps THEN 0 ELSE 2 END)");
         ankiDb.execSQL(
                 "UPDATE cards SET " + "type = (CASE WHEN type >= 0 THEN relativeDelay ELSE relativeDelay - 3 END)");
+        rebuildDueCardIndex();
     }
 
 
-    @SuppressWarnings("unused")
-    private int _cardQueue(Card card) {
+    int _cardQueue(Card card) {
         return cardType(card);
     }
 
@@ -1917,6 +2128,7 @@ public class Deck {
         // Cutoff must not be more than 24 hours in the future
         cutoff = Math.min(System.currentTimeMillis() / 1000 + 86400, cutoff);
         mFailedCutoff = cutoff;
+        mIntervalSimulator = null;
         if (getBool("perDay")) {
             mDueCutoff = (double) cutoff;
         } else {
@@ -1926,12 +2138,16 @@ public class Deck {
 
 
     public void reset() {
+        flushAnswerJournal();
         // Setup global/daily stats
         mGlobalStats = Stats.globalStats(this);
         mDailyStats = Stats.dailyStats(this);
         // Recheck counts
         rebuildCounts();
         // Empty queues; will be refilled by getCard()
+        if (mPrefetcher != null) {
+            mPrefetcher.clear();
+        }
         mFailedQueue.clear();
         mRevQueue.clear();
         mNewQueue.clear();
@@ -1972,20 +2188,11 @@ public class Deck {
      */
 
     public void setupReviewEarlyScheduler() {
-        try {
-            fillRevQueueMethod = Deck.class.getDeclaredMethod("_fillRevEarlyQueue");
-            rebuildRevCountMethod = Deck.class.getDeclaredMethod("_rebuildRevEarlyCount");
-            finishSchedulerMethod = Deck.class.getDeclaredMethod("_onReviewEarlyFinished");
-            answerPreSaveMethod = Deck.class.getDeclaredMethod("_reviewEarlyPreSave", Card.class, int.class);
-        } catch (NoSuchMethodException e) {
-            throw new RuntimeException(e);
-        }
-        mScheduler = "reviewEarly";
+        setScheduler(new ReviewEarlyScheduler(this));
     }
 
 
-    @SuppressWarnings("unused")
-    private void _reviewEarlyPreSave(Card card, int ease) {
+    void _reviewEarlyPreSave(Card card, int ease) {
         if (ease > 1) {
             // Prevent it from appearing in next queue fill
             card.setType(card.getType() + 6);
@@ -1996,19 +2203,18 @@ public class Deck {
     private void resetAfterReviewEarly() {
         // Put temporarily suspended cards back into play. Caller must .reset()
         // FIXME: Can ignore priorities in the future (following libanki)
-        ArrayList<Long> ids = ankiDb.queryColumn(Long.class,
-                "SELECT id FROM cards WHERE type BETWEEN 6 AND 8 OR priority = -1", 1);
+        long[] ids = ankiDb.queryLongs("SELECT id FROM cards WHERE type BETWEEN 6 AND 8 OR priority = -1");
 
-        if (!ids.isEmpty()) {
-            updatePriorities(Utils.toPrimitive(ids));
+        if (ids.length > 0) {
+            updatePriorities(ids);
             ankiDb.execSQL("UPDATE cards SET type = type -6 WHERE type BETWEEN 6 AND 8");
+            rebuildDueCardIndex();
             flushMod();
         }
     }
 
 
-    @SuppressWarnings("unused")
-    private void _onReviewEarlyFinished() {
+    void _onReviewEarlyFinished() {
         // Clean up buried cards
         resetAfterReviewEarly();
         // And go back to regular scheduler
@@ -2016,8 +2222,7 @@ public class Deck {
     }
 
 
-    @SuppressWarnings("unused")
-    private void _rebuildRevEarlyCount() {
+    void _rebuildRevEarlyCount() {
         // In the future it would be nice to skip the first x days of due cards
 
         mRevCount = (int) ankiDb.queryScalar(cardLimit("revActive", "revInactive", String.format(Utils.ENGLISH_LOCALE,
@@ -2025,8 +2230,7 @@ public class Deck {
     }
 
 
-    @SuppressWarnings("unused")
-    private void _fillRevEarlyQueue() {
+    void _fillRevEarlyQueue() {
         if ((mRevCount != 0) && mRevQueue.isEmpty()) {
             ResultSet result = null;
             try {
@@ -2035,8 +2239,8 @@ public class Deck {
                                 "SELECT id, factId, combinedDue FROM cards c WHERE type = 1 AND combinedDue > %f " +
                                 "ORDER BY combinedDue LIMIT %d", mDueCutoff, mQueueLimit)));
                 while (result.next()) {
-                    QueueItem qi = new QueueItem(result.getLong(1), result.getLong(2));
-                    mRevQueue.add(0, qi); // Add to front, so list is reversed as it is built
+                    // Add to front, so queue is reversed as it is built
+                    mRevQueue.addFirst(result.getLong(1), result.getLong(2));
                 }
             } catch (SQLException e) {
 				e.printStackTrace();
@@ -2057,19 +2261,11 @@ public class Deck {
      */
 
     public void setupLearnMoreScheduler() {
-        try {
-            rebuildNewCountMethod = Deck.class.getDeclaredMethod("_rebuildLearnMoreCount");
-            updateNewCountTodayMethod = Deck.class.getDeclaredMethod("_updateLearnMoreCountToday");
-            finishSchedulerMethod = Deck.class.getDeclaredMethod("setupStandardScheduler");
-        } catch (NoSuchMethodException e) {
-            throw new RuntimeException(e);
-        }
-        mScheduler = "learnMore";
+        setScheduler(new LearnMoreScheduler(this));
     }
 
 
-    @SuppressWarnings("unused")
-    private void _rebuildLearnMoreCount() {
+    void _rebuildLearnMoreCount() {
         mNewCount = (int) ankiDb.queryScalar(
                 cardLimit("newActive", "newInactive", String.format(Utils.ENGLISH_LOCALE,
                         "SELECT count(*) FROM cards c WHERE type = 2 AND combinedDue < %f", mDueCutoff)));
@@ -2077,8 +2273,7 @@ public class Deck {
     }
 
 
-    @SuppressWarnings("unused")
-    private void _updateLearnMoreCountToday() {
+    void _updateLearnMoreCountToday() {
         mNewCountToday = mNewCount;
     }
 
@@ -2088,55 +2283,74 @@ public class Deck {
      */
 
     public void setupCramScheduler(String[] active, String order) {
+        mActiveCramTags = active;
+        mCramOrder = order;
+        mFailedCramQueue.clear();
+        setScheduler(new CramScheduler(this));
+        // Select the cards once, in cram order: refills and counts then read the session table by position
+        long start = System.currentTimeMillis();
+        ankiDb.beginTransaction();
         try {
-            getCardIdMethod = Deck.class.getDeclaredMethod("_getCramCardId", boolean.class);
-            mActiveCramTags = active;
-            mCramOrder = order;
-            rebuildFailedCountMethod = Deck.class.getDeclaredMethod("_rebuildFailedCramCount");
-            rebuildRevCountMethod = Deck.class.getDeclaredMethod("_rebuildCramCount");
-            rebuildNewCountMethod = Deck.class.getDeclaredMethod("_rebuildNewCramCount");
-            fillFailedQueueMethod = Deck.class.getDeclaredMethod("_fillFailedCramQueue");
-            fillRevQueueMethod = Deck.class.getDeclaredMethod("_fillCramQueue");
-            finishSchedulerMethod = Deck.class.getDeclaredMethod("setupStandardScheduler");
-            mFailedCramQueue.clear();
-            requeueCardMethod = Deck.class.getDeclaredMethod("_requeueCramCard", Card.class, boolean.class);
-            cardQueueMethod = Deck.class.getDeclaredMethod("_cramCardQueue", Card.class);
-            answerCardMethod = Deck.class.getDeclaredMethod("_answerCramCard", Card.class, int.class);
-            spaceCardsMethod = Deck.class.getDeclaredMethod("_spaceCramCards", Card.class);
-            // Reuse review early's code
-            answerPreSaveMethod = Deck.class.getDeclaredMethod("_cramPreSave", Card.class, int.class);
-            cardLimitMethod = Deck.class.getDeclaredMethod("_cramCardLimit", String[].class, String[].class,
-                    String.class);
-        } catch (NoSuchMethodException e) {
-            throw new RuntimeException(e);
+            ankiDb.execSQL("CREATE TEMPORARY TABLE IF NOT EXISTS cramSession (pos INTEGER PRIMARY KEY, "
+                    + "cardId INTEGER NOT NULL, factId INTEGER NOT NULL)");
+            ankiDb.execSQL("DELETE FROM cramSession");
+            String sql = "SELECT id, factId FROM cards c WHERE type BETWEEN 0 AND 2 ORDER BY " + mCramOrder;
+            if (mTagBitmapIndex != null && mActiveCramTags.length > 0) {
+                // Filter the cards in cram order against the tag bitmaps, rather than joining them with cardTags
+                final DueCardIndex.CardFilter filter = mTagBitmapIndex.filter(
+                        Utils.toPrimitive(tagIds(mActiveCramTags, false).values()), new long[0]);
+                final BulkInsert insert = ankiDb.bulkInsert(this, "cramSession", "cardId", "factId");
+                try {
+                    ankiDb.forEachRow(sql, new RowCallback() {
+                        public void onRow(Row row) throws SQLException {
+                            if (filter.accept(row.getLong(1))) {
+                                insert.addRow(row.getLong(1), row.getLong(2));
+                            }
+                        }
+                    });
+                    insert.finish();
+                } finally {
+                    insert.close();
+                }
+            } else {
+                ankiDb.execSQL("INSERT INTO cramSession (cardId, factId) " + cardLimit(mActiveCramTags, null, sql));
+            }
+            ankiDb.setTransactionSuccessful();
+        } finally {
+            ankiDb.endTransaction();
         }
-        mScheduler = "cram";
+        mCramPosition = 0;
+        log.info("setupCramScheduler - selected cards in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+
+    void _finishCramScheduler() {
+        ankiDb.execSQL("DELETE FROM cramSession");
+        setupStandardScheduler();
     }
 
 
-    @SuppressWarnings("unused")
-    private void _answerCramCard(Card card, int ease) {
+    void _answerCramCard(Card card, int ease) {
         _answerCard(card, ease);
         if (ease == 1) {
-            mFailedCramQueue.addFirst(new QueueItem(card.getId(), card.getFactId()));
+            mFailedCramQueue.addFirst(card.getId(), card.getFactId());
         }
     }
 
 
-    @SuppressWarnings("unused")
-    private long _getCramCardId(boolean check) {
+    long _getCramCardId(boolean check) {
         checkDailyStats();
         fillQueues();
 
         if ((mFailedCardMax != 0) && (mFailedSoonCount >= mFailedCardMax)) {
-            return ((QueueItem) mFailedQueue.getLast()).getCardID();
+            return mFailedQueue.getLastCardId();
         }
         // Card due for review?
         if (revNoSpaced()) {
-            return ((QueueItem) mRevQueue.getLast()).getCardID();
+            return mRevQueue.getLastCardId();
         }
         if (!mFailedQueue.isEmpty()) {
-            return ((QueueItem) mFailedQueue.getLast()).getCardID();
+            return mFailedQueue.getLastCardId();
         }
         if (check) {
             // Collapse spaced cards before reverting back to old scheduler
@@ -2144,7 +2358,7 @@ public class Deck {
             return getCardId(false);
         }
         // If we're in a custom scheduler, we may need to switch back
-        if (finishSchedulerMethod != null) {
+        if (hasFinishScheduler()) {
             finishScheduler();
             reset();
             return getCardId();
@@ -2153,9 +2367,8 @@ public class Deck {
     }
 
 
-    @SuppressWarnings("unused")
-    private int _cramCardQueue(Card card) {
-        if ((!mRevQueue.isEmpty()) && (((QueueItem) mRevQueue.getLast()).getCardID() == card.getId())) {
+    int _cramCardQueue(Card card) {
+        if ((!mRevQueue.isEmpty()) && (mRevQueue.getLastCardId() == card.getId())) {
             return 1;
         } else {
             return 0;
@@ -2163,8 +2376,7 @@ public class Deck {
     }
 
 
-    @SuppressWarnings("unused")
-    private void _requeueCramCard(Card card, boolean oldIsRev) {
+    void _requeueCramCard(Card card, boolean oldIsRev) {
         if (cardQueue(card) == 1) {
             mRevQueue.removeLast();
         } else {
@@ -2173,15 +2385,13 @@ public class Deck {
     }
 
 
-    @SuppressWarnings("unused")
-    private void _rebuildNewCramCount() {
+    void _rebuildNewCramCount() {
         mNewCount = 0;
         mNewCountToday = 0;
     }
 
 
-    @SuppressWarnings("unused")
-    private String _cramCardLimit(String active[], String inactive[], String sql) {
+    String _cramCardLimit(String active[], String inactive[], String sql) {
         // inactive is (currently) ignored
         if (active.length > 0) {
             long yids[] = Utils.toPrimitive(tagIds(active).values());
@@ -2193,63 +2403,59 @@ public class Deck {
     }
 
 
-    @SuppressWarnings("unused")
-    private void _fillCramQueue() {
+    void _fillCramQueue() {
         if ((mRevCount != 0) && mRevQueue.isEmpty()) {
-            ResultSet result = null;
-            try {
-                log.info("fill cram queue: " + Arrays.toString(mActiveCramTags) + " " + mCramOrder + " " + mQueueLimit);
-                String sql = "SELECT id, factId FROM cards c WHERE type BETWEEN 0 AND 2 ORDER BY " + mCramOrder
-                        + " LIMIT " + mQueueLimit;
-                sql = cardLimit(mActiveCramTags, null, sql);
-                log.info("SQL: " + sql);
-                result = ankiDb.rawQuery(sql);
-                while (result.next()) {
-                    QueueItem qi = new QueueItem(result.getLong(1), result.getLong(2));
-                    mRevQueue.add(0, qi); // Add to front, so list is reversed as it is built
+            log.info("fill cram queue: " + Arrays.toString(mActiveCramTags) + " " + mCramOrder + " " + mQueueLimit);
+            // Answered cards have left types 0-2 (see _cramPreSave), so they are skipped
+            final String sql = "SELECT s.pos, s.cardId, s.factId FROM cramSession s CROSS JOIN cards c "
+                    + "WHERE s.pos > " + mCramPosition + " AND c.id = s.cardId AND c.type BETWEEN 0 AND 2 "
+                    + "ORDER BY s.pos LIMIT " + mQueueLimit;
+            // The cramSession table belongs to the writer connection
+            ankiDb.runOnWriter(new Callable<Void>() {
+                public Void call() {
+                    ankiDb.forEachRow(sql, new RowCallback() {
+                        public void onRow(Row row) throws SQLException {
+                            mCramPosition = row.getLong(1);
+                            // Add to front, so queue is reversed as it is built
+                            mRevQueue.addFirst(row.getLong(2), row.getLong(3));
+                        }
+                    });
+                    return null;
                 }
-            } catch (SQLException e) {
-				e.printStackTrace();
-			} finally {
-                try {
-					if (result != null) {
-						result.close();
-					}
-				} catch (SQLException e) {
-				}
-            }
-
+            });
         }
     }
 
 
-    @SuppressWarnings("unused")
-    private void _rebuildCramCount() {
-        mRevCount = (int) ankiDb.queryScalar(
-                cardLimit(mActiveCramTags, null, "SELECT count(*) FROM cards c WHERE type BETWEEN 0 AND 2"));
+    void _rebuildCramCount() {
+        // Called by reset(), which empties the queue: refill from the start of the session again
+        mCramPosition = 0;
+        // The cramSession table belongs to the writer connection
+        mRevCount = ankiDb.runOnWriter(new Callable<Integer>() {
+            public Integer call() {
+                return (int) ankiDb.queryScalar("SELECT count(*) FROM cramSession s CROSS JOIN cards c "
+                        + "WHERE c.id = s.cardId AND c.type BETWEEN 0 AND 2");
+            }
+        });
     }
 
 
-    @SuppressWarnings("unused")
-    private void _rebuildFailedCramCount() {
+    void _rebuildFailedCramCount() {
         mFailedSoonCount = mFailedCramQueue.size();
     }
 
 
-    @SuppressWarnings("unused")
-    private void _fillFailedCramQueue() {
+    void _fillFailedCramQueue() {
         mFailedQueue = mFailedCramQueue;
     }
 
 
-    @SuppressWarnings("unused")
-    private void _spaceCramCards(Card card) {
+    void _spaceCramCards(Card card) {
         mSpacedFacts.put(card.getFactId(), Utils.now() + mNewSpacing);
     }
 
 
-    @SuppressWarnings("unused")
-    private void _cramPreSave(Card card, int ease) {
+    void _cramPreSave(Card card, int ease) {
         // prevent it from appearing in next queue fill
         card.setType(card.getType() + 6);
     }
@@ -2273,6 +2479,7 @@ public class Deck {
 
     public void commitToDB() {
         log.info("commitToDB - Saving deck to DB...");
+        flushAnswerJournal();
         Map<String, Object> values = new HashMap<String, Object>();
         values.put("created", mCreated);
         values.put("modified", mModified);
@@ -2310,7 +2517,7 @@ public class Deck {
         values.put("newCount", mNewCount);
         values.put("revCardOrder", mRevCardOrder);
 
-        ankiDb.update(this, "decks", values, "id = " + mId);
+        ankiDb.update("decks", values, "id = ?", mId);
     }
 
 
@@ -2516,6 +2723,32 @@ public class Deck {
     }
 
 
+    /**
+     * Ids of the cards with one of the active tags and none of the inactive ones, e.g. to list them in a browser.
+     *
+     * @param active Tags of the cards to list; every card without an inactive tag if empty
+     * @param inactive Tags of the cards to leave out
+     * @return the card ids, sorted
+     */
+    public long[] getCardIdsByTags(String[] active, String[] inactive) {
+        long[] yids = Utils.toPrimitive(tagIds(active, false).values());
+        long[] nids = Utils.toPrimitive(tagIds(inactive, false).values());
+        if (mTagBitmapIndex != null && active.length > 0) {
+            return mTagBitmapIndex.cardIds(yids, nids);
+        }
+        StringBuilder sql = new StringBuilder("SELECT id FROM cards c WHERE 1");
+        if (active.length > 0) {
+            sql.append(" AND id IN (SELECT cardId FROM cardTags WHERE tagId IN ").append(Utils.ids2str(yids))
+                    .append(")");
+        }
+        if (nids.length > 0) {
+            sql.append(" AND id NOT IN (SELECT cardId FROM cardTags WHERE tagId IN ").append(Utils.ids2str(nids))
+                    .append(")");
+        }
+        return ankiDb.queryLongs(sql.append(" ORDER BY id").toString());
+    }
+
+
     /**
      * @return True, if there are any tag limits
      */
@@ -2720,13 +2953,107 @@ public class Deck {
     public Card getCard() {
         mCurrentCardId = getCardId();
         if (mCurrentCardId != 0l) {
-            return cardFromId(mCurrentCardId);
+            Card card = null;
+            CardPrefetcher prefetcher = mPrefetcher;
+            if (prefetcher != null) {
+                card = prefetcher.take(mCurrentCardId);
+                if (card != null) {
+                    card.mDeck = this;
+                    card.genFuzz();
+                    card.startTimer();
+                }
+            }
+            if (card == null) {
+                card = cardFromId(mCurrentCardId);
+            }
+            if (prefetcher != null) {
+                prefetchNextCards(prefetcher);
+            }
+            return card;
         } else {
             return null;
         }
     }
 
 
+    /**
+     * Load up to cards of the next cards in the background while the current one is studied, so that getCard()
+     * returns without reading the database. 0 turns lookahead off, which is the default.
+     */
+    public void setLookahead(int cards) {
+        if (mPrefetcher != null) {
+            log.info("setLookahead - " + mPrefetcher.getStatistics());
+            mPrefetcher.clear();
+        }
+        mPrefetcher = cards > 0 ? new CardPrefetcher(this, cards) : null;
+    }
+
+
+    public int getLookahead() {
+        return mPrefetcher != null ? mPrefetcher.getLookahead() : 0;
+    }
+
+
+    /**
+     * Prefetch the cards at the end of the failed, new and review queues, taking them in turn, except the current card
+     * and its siblings: those are spaced when it is answered.
+     */
+    private void prefetchNextCards(CardPrefetcher prefetcher) {
+        CardQueue[] queues = new CardQueue[] { mFailedQueue, mNewQueue, mRevQueue };
+        // The current card is the last one of its queue
+        long currentFactId = -1;
+        for (CardQueue queue : queues) {
+            if (!queue.isEmpty() && queue.getLastCardId() == mCurrentCardId) {
+                currentFactId = queue.getLastFactId();
+            }
+        }
+        int lookahead = prefetcher.getLookahead();
+        long[] cardIds = new long[lookahead];
+        long[] factIds = new long[lookahead];
+        int count = 0;
+        boolean more = true;
+        for (int depth = 0; more && count < lookahead; depth++) {
+            more = false;
+            for (CardQueue queue : queues) {
+                if (depth >= queue.size() || count == lookahead) {
+                    continue;
+                }
+                more = true;
+                long factId = queue.getFactId(depth);
+                if (factId != currentFactId) {
+                    cardIds[count] = queue.getCardId(depth);
+                    factIds[count++] = factId;
+                }
+            }
+        }
+        prefetcher.prefetch(cardIds, factIds, count);
+    }
+
+
+    /**
+     * Called after a card has been written, to drop the copies of it held in memory.
+     */
+    void cardWritten(long cardId) {
+        refreshDueCardIndex(new long[] { cardId });
+        mSpacedFacts.dropSiblings();
+        CardPrefetcher prefetcher = mPrefetcher;
+        if (prefetcher != null) {
+            prefetcher.invalidateCard(cardId);
+        }
+    }
+
+
+    /**
+     * Called after a fact has been written, to drop the prefetched cards showing it.
+     */
+    void factWritten(long factId) {
+        CardPrefetcher prefetcher = mPrefetcher;
+        if (prefetcher != null) {
+            prefetcher.invalidateFact(factId);
+        }
+    }
+
+
     // Refreshes the current card and returns it (used when editing cards)
     public Card getCurrentCard() {
         return cardFromId(mCurrentCardId);
@@ -2739,21 +3066,20 @@ public class Deck {
      * @param check Check for expired, or new day rollover
      * @return The Id of the next card, or 0 in case of error
      */
-    @SuppressWarnings("unused")
-    private long _getCardId(boolean check) {
+    long _getCardId(boolean check) {
         checkDailyStats();
         fillQueues();
         updateNewCountToday();
         if (!mFailedQueue.isEmpty()) {
             // Failed card due?
             if (mDelay0 != 0l) {
-                if ((long) ((QueueItem) mFailedQueue.getLast()).getDue() + mDelay0 < System.currentTimeMillis() / 1000) {
-                    return mFailedQueue.getLast().getCardID();
+                if ((long) mFailedQueue.getLastDue() + mDelay0 < System.currentTimeMillis() / 1000) {
+                    return mFailedQueue.getLastCardId();
                 }
             }
             // Failed card queue too big?
             if ((mFailedCardMax != 0) && (mFailedSoonCount >= mFailedCardMax)) {
-                return mFailedQueue.getLast().getCardID();
+                return mFailedQueue.getLastCardId();
             }
         }
         // Distribute new cards?
@@ -2765,7 +3091,7 @@ public class Deck {
         }
         // Card due for review?
         if (revNoSpaced()) {
-            return mRevQueue.getLast().getCardID();
+            return mRevQueue.getLastCardId();
         }
         // New cards left?
         if (mNewCountToday != 0) {
@@ -2779,10 +3105,10 @@ public class Deck {
         }
         // Display failed cards early/last
         if ((!check) && showFailedLast() && (!mFailedQueue.isEmpty())) {
-            return mFailedQueue.getLast().getCardID();
+            return mFailedQueue.getLastCardId();
         }
         // If we're in a custom scheduler, we may need to switch back
-        if (finishSchedulerMethod != null) {
+        if (hasFinishScheduler()) {
             finishScheduler();
             reset();
             return getCardId();
@@ -2795,8 +3121,7 @@ public class Deck {
      * Get card: helper functions*****************************
      */
 
-    @SuppressWarnings("unused")
-    private boolean _timeForNewCard() {
+    boolean _timeForNewCard() {
         // True if it's time to display a new card when distributing.
         if (mNewCountToday == 0) {
             return false;
@@ -2811,7 +3136,7 @@ public class Deck {
         try {
             if (!mRevQueue.isEmpty()) {
                 if (ankiDb.queryScalar(
-                        "SELECT 1 FROM cards WHERE id = " + mRevQueue.getLast().getCardID() + " AND priority = 4") == 1) {
+                        "SELECT 1 FROM cards WHERE id = " + mRevQueue.getLastCardId() + " AND priority = 4") == 1) {
                     return false;
                 }
             }
@@ -2847,7 +3172,7 @@ public class Deck {
             return mSpacedCards.get(0).getCards().get(0);
         } else {
             mNewFromCache = false;
-            return mNewQueue.getLast().getCardID();
+            return mNewQueue.getLastCardId();
         }
     }
 
@@ -2942,111 +3267,177 @@ public class Deck {
      */
 
     public void _answerCard(Card card, int ease) {
-        log.info("answerCard");
-        double now = Utils.now();
-        long id = card.getId();
-
-        String undoName = UNDO_TYPE_ANSWER_CARD;
-        setUndoStart(undoName, id);
-
-        // Old state
-        String oldState = card.getState();
-        int oldQueue = cardQueue(card);
-        double lastDelaySecs = Utils.now() - card.getCombinedDue();
-        double lastDelay = lastDelaySecs / 86400.0;
-        boolean oldIsRev = card.isRev();
-        Map<String, Object> oldvalues = card.getAnswerValues();
-
-        // update card details
-        double last = card.getInterval();
-        card.setInterval(nextInterval(card, ease));
-        if (lastDelay >= 0) {
-            card.setLastInterval(last); // keep last interval if reviewing early
-        }
-        if (!card.isNew()) {
-            card.setLastDue(card.getDue()); // only update if card was not new
-        }
-        card.setDue(nextDue(card, ease, oldState));
-        card.setIsDue(0);
-        card.setLastFactor(card.getFactor());
-        card.setSpaceUntil(0);
-        if (lastDelay >= 0) {
-            card.updateFactor(ease, mAverageFactor); // don't update factor if learning ahead
-        }
-
-        // Spacing
-        spaceCards(card);
-        // Adjust counts for current card
-        if (ease == 1) {
-            if (card.getDue() < mFailedCutoff) {
-                mFailedSoonCount += 1;
-            }
-        }
-        if (oldQueue == 0) {
-            mFailedSoonCount -= 1;
-        } else if (oldQueue == 1) {
-            mRevCount -= 1;
+        AnswerJournal journal = mAnswerJournal;
+        if (journal != null && ankiDb.inTransaction()) {
+            // Written with the caller's transaction instead, after the answers journaled before it
+            journal.flush();
+            journal = null;
+        }
+        if (journal != null) {
+            // The writes are recorded instead, and go to the journal
+            ankiDb.beginCapture();
         } else {
-            mNewCount -= 1;
+            ankiDb.beginTransaction();
         }
+        try {
+            log.info("answerCard");
+            double now = Utils.now();
+            long id = card.getId();
+
+            String undoName = UNDO_TYPE_ANSWER_CARD;
+            setUndoStart(undoName, id);
+
+            // Old state
+            String oldState = card.getState();
+            int oldQueue = cardQueue(card);
+            double lastDelaySecs = Utils.now() - card.getCombinedDue();
+            double lastDelay = lastDelaySecs / 86400.0;
+            boolean oldIsRev = card.isRev();
+
+            // update card details
+            double last = card.getInterval();
+            card.setInterval(nextInterval(card, ease));
+            if (lastDelay >= 0) {
+                card.setLastInterval(last); // keep last interval if reviewing early
+            }
+            if (!card.isNew()) {
+                card.setLastDue(card.getDue()); // only update if card was not new
+            }
+            card.setDue(nextDue(card, ease, oldState));
+            card.setIsDue(0);
+            card.setLastFactor(card.getFactor());
+            card.setSpaceUntil(0);
+            if (lastDelay >= 0) {
+                card.updateFactor(ease, mAverageFactor); // don't update factor if learning ahead
+            }
 
-        // card stats
-        card.updateStats(ease, oldState);
-        // Update type & ensure past cutoff
-        card.setType(cardType(card));
-        card.setRelativeDelay(card.getType());
-        if (ease != 1) {
-            card.setDue(Math.max(card.getDue(), mDueCutoff + 1));
-        }
+            // Spacing
+            spaceCards(card);
+            // Also drops the answered card itself
+            factWritten(card.getFactId());
+            // Adjust counts for current card
+            if (ease == 1) {
+                if (card.getDue() < mFailedCutoff) {
+                    mFailedSoonCount += 1;
+                }
+            }
+            if (oldQueue == 0) {
+                mFailedSoonCount -= 1;
+            } else if (oldQueue == 1) {
+                mRevCount -= 1;
+            } else {
+                mNewCount -= 1;
+            }
 
-        // Allow custom schedulers to munge the card
-        if (answerPreSaveMethod != null) {
+            // card stats
+            card.updateStats(ease, oldState);
+            // Update type & ensure past cutoff
+            card.setType(cardType(card));
+            card.setRelativeDelay(card.getType());
+            if (ease != 1) {
+                card.setDue(Math.max(card.getDue(), mDueCutoff + 1));
+            }
+
+            // Allow custom schedulers to munge the card
             answerPreSave(card, ease);
-        }
 
-        // Save
-        card.setCombinedDue(card.getDue());
-        // card.toDB();
-        
-        ankiDb.update(this, "cards", card.getAnswerValues(), "id = " + id, true,
-        	(HashMap<String, Object>[]) new Object[] {oldvalues}, new String[] {"id = " + id});
+            // Save
+            card.setCombinedDue(card.getDue());
+            // card.toDB();
+            ankiDb.update("cards", card.getAnswerValues(), "id = ?", id);
+            mSpacedFacts.cardAnswered(card.getFactId(), id, card.getType(), card.getCombinedDue(), card.getInterval());
+            writeSpacedSiblings();
+            if (mDueCardIndex != null) {
+                mDueCardIndex.put(id, card.getFactId(), card.getType(), card.getPriority(), card.getCombinedDue(),
+                        card.getInterval(), card.getDue());
+            }
 
-        // global/daily stats
-        Stats.updateAllStats(mGlobalStats, mDailyStats, card, ease, oldState);
+            // global/daily stats
+            Stats.updateAllStats(mGlobalStats, mDailyStats, card, ease, oldState);
 
-        // review history
-        CardHistoryEntry entry = new CardHistoryEntry(this, card, ease, lastDelay);
-        entry.writeSQL();
-        mModified = now;
-        setUndoEnd(undoName);
+            // review history
+            CardHistoryEntry entry = new CardHistoryEntry(this, card, ease, lastDelay);
+            entry.writeSQL();
+            mModified = now;
+            setUndoEnd(undoName);
+            if (journal != null) {
+                journal.append(ankiDb.endCapture(), mCapturedUndoRow != null ? new UndoApplyHook(mCapturedUndoRow,
+                        mCapturedUndoPrune) : null);
+                mCapturedUndoRow = null;
+                mCapturedUndoPrune = 0;
+            }
 
-        // Remove form queue
-        requeueCard(card, oldIsRev);
+            // Remove form queue
+            requeueCard(card, oldIsRev);
 
-        // Leech handling - we need to do this after the queue, as it may cause a reset
-        if (isLeech(card)) {
-            log.info("card is leech!");
-            handleLeech(card);
+            // Leech handling - we need to do this after the queue, as it may cause a reset
+            if (isLeech(card)) {
+                log.info("card is leech!");
+                handleLeech(card);
+            }
+            if (journal == null) {
+                ankiDb.setTransactionSuccessful();
+            }
+        } finally {
+            if (journal == null) {
+                ankiDb.endTransaction();
+            } else if (ankiDb.isCapturing()) {
+                // Failed before the answer was journaled: drop its writes
+                ankiDb.endCapture();
+                mCapturedUndoRow = null;
+                mCapturedUndoPrune = 0;
+            }
         }
     }
 
 
-    @SuppressWarnings("unused")
-    private void _spaceCards(Card card) {
+    void _spaceCards(Card card) {
         // Update new counts
         double _new = Utils.now() + mNewSpacing;
-        Map<String, Object> values = new HashMap<String, Object>();
-        values.put("combinedDue", String.format(Utils.ENGLISH_LOCALE, "(CASE WHEN type = 1 THEN " +
-                		"combinedDue + 86400 * (CASE WHEN interval*%f < 1 THEN 0 ELSE interval*%f END) " +
-                		"WHEN type = 2 THEN %f ELSE combinedDue END)", mRevSpacing, mRevSpacing, _new));
-        values.put("modified", String.format(Utils.ENGLISH_LOCALE, "%f", Utils.now()));
-        values.put("isDue", 0);
-        ankiDb.update(this, "cards", values, String.format(Utils.ENGLISH_LOCALE, "id != %d AND factId = %d " 
-                + "AND combinedDue < %f AND type BETWEEN 1 AND 2", card.getId(), card.getFactId(), mDueCutoff), false);
+        if (!mSpacedFacts.hasSiblings(card.getFactId())) {
+            loadSiblings(card.getFactId());
+        }
+        // Spaced in memory, the moved rows are written with the answer
+        mSpacedFacts.space(card.getFactId(), card.getId(), mDueCutoff, mRevSpacing, _new);
+        if (mDueCardIndex != null) {
+            // Not read back: the update may only be journaled yet
+            mDueCardIndex.spaceFact(card.getFactId(), card.getId(), mDueCutoff, mRevSpacing, _new);
+        }
         mSpacedFacts.put(card.getFactId(), _new);
     }
 
 
+    /**
+     * Read the scheduling columns of the cards of a fact into mSpacedFacts (by ix_cards_factId).
+     */
+    private void loadSiblings(final long factId) {
+        ankiDb.forEachRow("SELECT id, type, combinedDue, interval FROM cards WHERE factId = " + factId,
+                new RowCallback() {
+                    public void onRow(Row row) throws SQLException {
+                        mSpacedFacts.addSibling(factId, row.getLong(1), row.getInt(2), row.getDouble(3),
+                                row.getDouble(4));
+                    }
+                });
+    }
+
+
+    /**
+     * Write the siblings moved by the last spacing, one row each.
+     */
+    private void writeSpacedSiblings() {
+        int count = mSpacedFacts.getChangedCount();
+        if (count == 0) {
+            return;
+        }
+        double now = Utils.now();
+        for (int i = 0; i < count; i++) {
+            ankiDb.execSQL("UPDATE cards SET combinedDue = ?, modified = ?, isDue = 0 WHERE id = ?",
+                    mSpacedFacts.getChangedCombinedDue(i), now, mSpacedFacts.getChangedCardId(i));
+        }
+        mSpacedFacts.clearChanged();
+    }
+
+
     private boolean isLeech(Card card) {
         int no = card.getNoCount();
         int fmax = 0;
@@ -3073,6 +3464,21 @@ public class Deck {
 
 
     private void handleLeech(Card card) {
+        // Answers may be journaled, so the leech is not written with the answer
+        ankiDb.beginTransaction();
+        try {
+            // The answer must be applied first: it rewrites the type and priority the leech may suspend
+            flushAnswerJournal();
+            tagLeech(card);
+            ankiDb.setTransactionSuccessful();
+        } finally {
+            ankiDb.endTransaction();
+        }
+        reset();
+    }
+
+
+    private void tagLeech(Card card) {
         Card scard = cardFromId(card.getId());
         String tags = scard.getFact().getTags();
         tags = Utils.addTags("Leech", tags);
@@ -3092,7 +3498,6 @@ public class Deck {
         	card.setSuspendedFlag(true);
         	setUndoEnd(undoName);
         }
-        reset();
     }
 
 
@@ -3107,120 +3512,36 @@ public class Deck {
 
 
     private double nextInterval(Card card, double delay, int ease) {
-        double interval = card.getInterval();
-        double factor = card.getFactor();
-
-        // if shown early and not failed
-        if ((delay < 0) && card.isRev()) {
-            // FIXME: From libanki: This should recreate lastInterval from interval /
-            // lastFactor, or we lose delay information when reviewing early
-            interval = Math.max(card.getLastInterval(), card.getInterval() + delay);
-            if (interval < mMidIntervalMin) {
-                interval = 0;
-            }
-            delay = 0;
-        }
-
-        // if interval is less than mid interval, use presets
-        if (ease == Card.EASE_FAILED) {
-            interval *= mDelay2;
-            if (interval < mHardIntervalMin) {
-                interval = 0;
-            }
-        } else if (interval == 0) {
-            if (ease == Card.EASE_HARD) {
-                interval = mHardIntervalMin + card.getFuzz() * (mHardIntervalMax - mHardIntervalMin);
-            } else if (ease == Card.EASE_MID) {
-                interval = mMidIntervalMin + card.getFuzz() * (mMidIntervalMax - mMidIntervalMin);
-            } else if (ease == Card.EASE_EASY) {
-                interval = mEasyIntervalMin + card.getFuzz() * (mEasyIntervalMax - mEasyIntervalMin);
-            }
-        } else {
-            // if not cramming, boost initial 2
-            if ((interval < mHardIntervalMax) && (interval > 0.166)) {
-                double mid = (mMidIntervalMin + mMidIntervalMax) / 2.0;
-                interval = mid / factor;
-            }
-            // multiply last interval by factor
-            if (ease == Card.EASE_HARD) {
-                interval = (interval + delay / 4.0) * 1.2;
-            } else if (ease == Card.EASE_MID) {
-                interval = (interval + delay / 2.0) * factor;
-            } else if (ease == Card.EASE_EASY) {
-                interval = (interval + delay) * factor * FACTOR_FOUR;
-            }
-            interval *= 0.95 + card.getFuzz() * (1.05 - 0.95);
-        }
-        interval = Math.min(interval, MAX_SCHEDULE_TIME);
-        return interval;
+        return getIntervalSimulator().nextInterval(card.getInterval(), card.getFactor(), card.getLastInterval(),
+                card.getFuzz(), delay, card.isRev(), ease);
     }
 
 
     private double nextDue(Card card, int ease, String oldState) {
-        double due;
-        if (ease == Card.EASE_FAILED) {
-        	// 600 is a magic value which means no bonus, and is used to ease upgrades
-            if (oldState.equals(Card.STATE_MATURE) && mDelay1 != 0 && mDelay1 != 600) {
-                // user wants a bonus of 1+ days. put the failed cards at the
-            	// start of the future day, so that failures that day will come
-            	// after the waiting cards
-            	return mFailedCutoff + (mDelay1 - 1) * 86400;
-            } else {
-                due = 0.0;
-            }
-        } else {
-            due = card.getInterval() * 86400.0;
-        }
-        return (due + Utils.now());
+        return getIntervalSimulator().nextDue(oldState.equals(Card.STATE_MATURE), card.getInterval(), ease,
+                Utils.now());
     }
 
 
-    /*
-     * Tags: Querying*****************************
-     */
-
     /**
-     * Get a map of card IDs to their associated tags (fact, model and template)
-     *
-     * @param where SQL restriction on the query. If empty, then returns tags for all the cards
-     * @return The map of card IDs to an array of strings with 3 elements representing the triad {card tags, model tags,
-     *         template tags}
+     * @return the simulator holding the current interval settings of the deck, for bulk scheduling of cards held in
+     *         arrays. It is shared with the deck and must not be changed; use new IntervalSimulator(deck) for a copy
+     *         to try other settings on.
      */
-    private HashMap<Long, List<String>> splitTagsList() {
-        return splitTagsList("");
-    }
-
-
-    private HashMap<Long, List<String>> splitTagsList(String where) {
-        ResultSet result = null;
-        HashMap<Long, List<String>> results = new HashMap<Long, List<String>>();
-        try {
-        	result = ankiDb.rawQuery(
-                    "SELECT cards.id, facts.tags, models.tags, cardModels.name "
-                            + "FROM cards, facts, models, cardModels "
-                            + "WHERE cards.factId == facts.id AND facts.modelId == models.id "
-                            + "AND cards.cardModelId = cardModels.id " + where);
-            while (result.next()) {
-                ArrayList<String> tags = new ArrayList<String>();
-                tags.add(result.getString(2));
-                tags.add(result.getString(3));
-                tags.add(result.getString(4));
-                results.put(result.getLong(1), tags);
-            }
-        } catch (SQLException e) {
-            log.error("splitTagsList: Error while retrieving tags from DB: ", e);
-        } finally {
-            try {
-				if (result != null) {
-					result.close();
-				}
-			} catch (SQLException e) {
-			}
+    public IntervalSimulator getIntervalSimulator() {
+        IntervalSimulator simulator = mIntervalSimulator;
+        if (simulator == null) {
+            simulator = new IntervalSimulator(this);
+            mIntervalSimulator = simulator;
         }
-        return results;
+        return simulator;
     }
 
 
+    /*
+     * Tags: Querying*****************************
+     */
+
     /**
      * Returns all model tags, all template tags and a filtered set of fact tags
      *
@@ -3233,20 +3554,12 @@ public class Deck {
 
 
     private String[] allTags_(String where) {
-    	try {
-            ArrayList<String> t = new ArrayList<String>();
-            t.addAll(ankiDb.queryColumn(String.class, "SELECT tags FROM facts " + where, 1));
-            t.addAll(ankiDb.queryColumn(String.class, "SELECT tags FROM models", 1));
-            t.addAll(ankiDb.queryColumn(String.class, "SELECT name FROM cardModels", 1));
-            String joined = Utils.joinTags(t);
-            String[] parsed = Utils.parseTags(joined);
-            List<String> joinedList = Arrays.asList(parsed);
-            TreeSet<String> joinedSet = new TreeSet<String>(joinedList);
-            return joinedSet.toArray(new String[joinedSet.size()]);
-    	} catch (OutOfMemoryError e) {
-    		log.error("OutOfMemoryError on retrieving allTags: ", e);
-    		return null;
-    	}
+        BitSet codes = new BitSet();
+        if (!collectTags("SELECT tags FROM facts " + where, codes) || !collectTags("SELECT tags FROM models", codes)
+                || !collectTags("SELECT name FROM cardModels", codes)) {
+            return null;
+        }
+        return getTagDictionary().getNames(codes);
     }
 
 
@@ -3256,18 +3569,43 @@ public class Deck {
 
 
     public String[] allUserTags(String where) {
-    	try {
-    		ArrayList<String> t = new ArrayList<String>();
-            t.addAll(ankiDb.queryColumn(String.class, "SELECT tags FROM facts " + where, 1));
-            String joined = Utils.joinTags(t);
-            String[] parsed = Utils.parseTags(joined);
-            List<String> joinedList = Arrays.asList(parsed);
-            TreeSet<String> joinedSet = new TreeSet<String>(joinedList);
-            return joinedSet.toArray(new String[joinedSet.size()]);
-    	} catch (OutOfMemoryError e) {
-    		log.error("OutOfMemoryError on retrieving allTags: ", e);
-    		return null;
-    	}
+        BitSet codes = new BitSet();
+        if (!collectTags("SELECT tags FROM facts " + where, codes)) {
+            return null;
+        }
+        return getTagDictionary().getNames(codes);
+    }
+
+
+    /**
+     * Mark the codes of the tags in the first column of a query, row by row, so that memory does not grow with the
+     * number of rows.
+     *
+     * @return false on error
+     */
+    private boolean collectTags(String query, final BitSet codes) {
+        final TagDictionary dictionary = getTagDictionary();
+        int rows = ankiDb.forEachRow(query, new RowCallback() {
+            public void onRow(Row row) throws SQLException {
+                dictionary.collect(row.getString(1), codes);
+            }
+        });
+        if (rows == -1) {
+            log.error("Error on retrieving tags: " + query);
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * @return the tags of the deck seen so far, interned
+     */
+    public synchronized TagDictionary getTagDictionary() {
+        if (mTagDictionary == null) {
+            mTagDictionary = new TagDictionary();
+        }
+        return mTagDictionary;
     }
 
 
@@ -3276,8 +3614,7 @@ public class Deck {
      */
 
     public void updateFactTags(long[] factIds) {
-        updateCardTags(Utils.toPrimitive(ankiDb.queryColumn(Long.class,
-                "SELECT id FROM cards WHERE factId IN " + Utils.ids2str(factIds), 1)));
+        updateCardTags(ankiDb.queryLongs("SELECT id FROM cards WHERE factId IN " + Utils.ids2str(factIds)));
     }
 
 
@@ -3286,114 +3623,65 @@ public class Deck {
     }
 
 
-    public void updateCardTags(long[] cardIds) {
-        HashMap<String, Long> tagIds = new HashMap<String, Long>();
-        HashMap<Long, List<String>> cardsWithTags = new HashMap<Long, List<String>>();
-        if (cardIds == null) {
-            ankiDb.execSQL("DELETE FROM cardTags");
-            ankiDb.execSQL("DELETE FROM tags");
-            String[] allTags = allTags_();
-            if (allTags != null) {
-                tagIds = tagIds(allTags);
-            }
-            cardsWithTags = splitTagsList();
-        } else {
-            log.info("updateCardTags cardIds: " + Arrays.toString(cardIds));
-            ankiDb.delete(this, "cardTags", "cardId IN " + Utils.ids2str(cardIds));
-            String factIds = Utils.ids2str(Utils.toPrimitive(ankiDb.queryColumn(Long.class,
-                    "SELECT factId FROM cards WHERE id IN " + Utils.ids2str(cardIds), 1)));
-            log.info("updateCardTags factIds: " + factIds);
-            String[] allTags = allTags_("WHERE id IN " + factIds);
-            if (allTags != null) {
-                tagIds = tagIds(allTags);
-            }
-            log.info("updateCardTags tagIds keys: " + Arrays.toString(tagIds.keySet().toArray(new String[tagIds.size()])));
-            log.info("updateCardTags tagIds values: " + Arrays.toString(tagIds.values().toArray(new Long[tagIds.size()])));
-            cardsWithTags = splitTagsList("AND facts.id IN " + factIds);
-            log.info("updateCardTags cardTags keys: " + Arrays.toString(cardsWithTags.keySet().toArray(new Long[cardsWithTags.size()])));
-            for (List<String> tags : cardsWithTags.values()) {
-                log.info("updateCardTags cardTags values: ");
-                for (String tag : tags) {
-                    log.info("updateCardTags row item: " + tag);
-                }
+    /**
+     * Bring cardTags in line with the tags of some cards, writing only the associations that changed.
+     *
+     * @param cardIds The cards, or null to rebuild the table for the whole deck
+     */
+    public void updateCardTags(final long[] cardIds) {
+        ankiDb.runInTransaction(new Callable<Void>() {
+            public Void call() {
+                _updateCardTags(cardIds);
+                return null;
             }
-        }
+        });
+    }
 
-        ArrayList<HashMap<String, Long>> cardTags = new ArrayList<HashMap<String, Long>>();
 
-        for (Entry<Long, List<String>> card : cardsWithTags.entrySet()) {
-            Long cardId = card.getKey();
-            for (int src = 0; src < 3; src++) { // src represents the tag type, fact: 0, model: 1, template: 2
-                for (String tag : Utils.parseTags(card.getValue().get(src))) {
-                    HashMap<String, Long> association = new HashMap<String, Long>();
-                    association.put("cardId", cardId);
-                    association.put("tagId", tagIds.get(tag.toLowerCase()));
-                    association.put("src", new Long(src));
-                    log.info("populating association " + src + " " + tag);
-                    cardTags.add(association);
-                }
+    private void _updateCardTags(long[] cardIds) {
+        TagIndexer indexer = new TagIndexer(ankiDb, getTagDictionary(), mTagBitmapIndex);
+        if (cardIds == null) {
+            indexer.rebuild();
+        } else {
+            log.info("updateCardTags cardIds: " + cardIds.length);
+            IdSet cardIdSet = ankiDb.idSet(cardIds);
+            try {
+                indexer.update(cardIdSet.getSubquery());
+            } finally {
+                cardIdSet.close();
             }
         }
-
-        for (HashMap<String, Long> cardTagAssociation : cardTags) {
-        	Map<String, Object> values = new HashMap<String, Object>();
-            values.put("cardId", cardTagAssociation.get("cardId"));
-            values.put("tagId", cardTagAssociation.get("tagId"));
-            values.put("src",  cardTagAssociation.get("src"));
-            ankiDb.insert(this, "cardTags", null, values);
-        }
-        ankiDb.delete(this, "tags", "priority = 2 AND id NOT IN (SELECT DISTINCT tagId FROM cardTags)");
     }
 
 
     public ArrayList<HashMap<String, String>> getCards(int chunk, String startId) {
-    	ArrayList<HashMap<String, String>> cards = new ArrayList<HashMap<String, String>>();
-
-        ResultSet result = null;
-        try {
-        	result = ankiDb.rawQuery("SELECT cards.id, cards.question, cards.answer, " +
-        			"facts.tags, models.tags, cardModels.name, cards.priority, cards.due, cards.interval, " +
-        			"cards.factor, cards.created FROM cards, facts, " +
-        			"models, cardModels WHERE cards.factId == facts.id AND facts.modelId == models.id " +
-        			"AND cards.cardModelId = cardModels.id " + (startId != "" ? ("AND cards.id > " + startId) : "") +
-        			" ORDER BY cards.id LIMIT " + chunk);
-            while (result.next()) {
-            	HashMap<String, String> data = new HashMap<String, String>();
-            	data.put("id", Long.toString(result.getLong(1)));
-            	data.put("question", Utils.stripHTML(result.getString(2).replaceAll("<br(\\s*\\/*)>","\n")));
-            	data.put("answer", Utils.stripHTML(result.getString(3).replaceAll("<br(\\s*\\/*)>","\n")));
-            	String tags = result.getString(4);
-            	String flags = null;
-           	    if (tags.contains(TAG_MARKED)) {
-           	    	flags = "1";
-           	    } else {
-           	    	flags = "0";
-           	    }
-            	if (result.getString(7).equals("-3")) {
-            		flags = flags + "1";
-                } else {
-                	flags = flags + "0";
-                }
-            	data.put("tags", tags + " " + result.getString(5) + " " + result.getString(6));
-            	data.put("flags", flags);
-            	data.put("due", Double.toString(result.getDouble(7)));
-            	data.put("interval", Double.toString(result.getDouble(8)));
-            	data.put("factor", Double.toString(result.getDouble(9)));
-            	data.put("created", Double.toString(result.getDouble(10)));
-            	cards.add(data);
+        ArrayList<HashMap<String, String>> cards = ankiDb.queryList("SELECT cards.id, cards.question, cards.answer, " +
+                "facts.tags, models.tags, cardModels.name, cards.priority, cards.due, cards.interval, " +
+                "cards.factor, cards.created FROM cards, facts, " +
+                "models, cardModels WHERE cards.factId == facts.id AND facts.modelId == models.id " +
+                "AND cards.cardModelId = cardModels.id " + (startId != "" ? ("AND cards.id > " + startId) : "") +
+                " ORDER BY cards.id LIMIT " + chunk, new RowMapper<HashMap<String, String>>() {
+            public HashMap<String, String> mapRow(Row row) throws SQLException {
+                HashMap<String, String> data = new HashMap<String, String>();
+                data.put("id", Long.toString(row.getLong(1)));
+                data.put("question", Utils.stripHTML(BR_PATTERN.matcher(row.getString(2)).replaceAll("\n")));
+                data.put("answer", Utils.stripHTML(BR_PATTERN.matcher(row.getString(3)).replaceAll("\n")));
+                String tags = row.getString(4);
+                String flags = tags.contains(TAG_MARKED) ? "1" : "0";
+                flags = flags + (row.getInt(7) == -3 ? "1" : "0");
+                data.put("tags", tags + " " + row.getString(5) + " " + row.getString(6));
+                data.put("flags", flags);
+                data.put("due", Double.toString(row.getDouble(7)));
+                data.put("interval", Double.toString(row.getDouble(8)));
+                data.put("factor", Double.toString(row.getDouble(9)));
+                data.put("created", Double.toString(row.getDouble(10)));
+                return data;
             }
-        } catch (SQLException e) {
-            log.error("getAllCards: ", e);
-            return null;
-        } finally {
-            try {
-				if (result != null) {
-					result.close();
-				}
-			} catch (SQLException e) {
-			}
+        });
+        if (cards == null) {
+            log.error("getAllCards: query failed");
         }
-    	return cards;
+        return cards;
     }
 
 
@@ -3465,7 +3753,7 @@ public class Deck {
             	Map<String, Object> values = new HashMap<String, Object>();
             	values.put("tags", newTags);
             	values.put("modified", String.format(Utils.ENGLISH_LOCALE, "%f", Utils.now()));
-                ankiDb.update(this, "facts", values, "id = " + factIds[i]);
+                ankiDb.update("facts", values, "id = ?", factIds[i]);
             }
         }
 
@@ -3482,6 +3770,9 @@ public class Deck {
                 values.put("tagId", tagId);
                 values.put("src", String.valueOf(Card.TAGS_FACT));
                 ankiDb.insert(this, "cardTags", null, values);
+                if (mTagBitmapIndex != null) {
+                    mTagBitmapIndex.add(Long.parseLong(cardId), tagId, Card.TAGS_FACT);
+                }
             }
         }
 
@@ -3527,7 +3818,7 @@ public class Deck {
             	Map<String, Object> values = new HashMap<String, Object>();
                 values.put("tags", newTags);
                 values.put("modified", String.format(Utils.ENGLISH_LOCALE, "%f", Utils.now()));
-                ankiDb.update(this, "facts", values, "id = " + factIds[i]);
+                ankiDb.update("facts", values, "id = ?", factIds[i]);
             }
         }
 
@@ -3536,11 +3827,14 @@ public class Deck {
 
         for (String cardId : cardIdList) {
         	ankiDb.delete(this, "cardTags", "cardId = " + cardId + " and tagId = " + tagId + " and src = " + Card.TAGS_FACT);
+            if (mTagBitmapIndex != null) {
+                mTagBitmapIndex.remove(Long.parseLong(cardId), tagId, Card.TAGS_FACT);
+            }
         }
 
         // delete unused tags from tags table
         if (ankiDb.queryScalar("select id from cardTags where tagId = " + tagId + " limit 1") == -1) {
-        	ankiDb.delete(this, "tags", "id = " + tagId);
+        	ankiDb.delete("tags", "id = ?", tagId);
         }
 
         flushMod();
@@ -3563,6 +3857,7 @@ public class Deck {
         values.put("modified", String.format(Utils.ENGLISH_LOCALE, "%f", Utils.now()));
         values.put("isDue", 0);
         ankiDb.update(this, "cards", values, "type >= 0 AND id IN " + Utils.ids2str(ids), false);
+        refreshDueCardIndex(ids);
         log.info("Cards suspended");
         flushMod();
     }
@@ -3581,6 +3876,7 @@ public class Deck {
         values.put("isDue", 0);
         ankiDb.update(this, "cards", values, "type < 0 AND id IN " + Utils.ids2str(ids), false);
         log.info("Cards unsuspended");
+        // Also refreshes the due card index
         updatePriorities(ids);
         flushMod();
     }
@@ -3617,6 +3913,9 @@ public class Deck {
         values.put("modified", String.format(Utils.ENGLISH_LOCALE, "%f", Utils.now()));
         values.put("isDue", 0);
         ankiDb.update(this, "cards", values, "type >= 0 AND type <= 3 AND factId = " + factId, false);
+        if (mDueCardIndex != null) {
+            mDueCardIndex.refreshFact(ankiDb, factId);
+        }
         setUndoEnd(undoName);
         flushMod();
     }
@@ -3644,96 +3943,43 @@ public class Deck {
     }
 
 
-    public void updateAllPriorities(boolean partial, boolean dirty) {
-        HashMap<Long, Integer> newPriorities = updateTagPriorities();
-        if (!partial) {
-            newPriorities.clear();
-            ResultSet result = null;
-            try {
-            	result = ankiDb.rawQuery("SELECT id, priority AS pri FROM tags");
-                while (result.next()) {
-                    newPriorities.put(result.getLong(1), result.getInt(2));
-                }
-            } catch (SQLException e) {
-                log.error("updateAllPriorities: Error while getting all tags: ", e);
-            } finally {
-                try {
-					if (result != null) {
-						result.close();
-					}
-				} catch (SQLException e) {
-				}
+    public void updateAllPriorities(final boolean partial, final boolean dirty) {
+        ankiDb.runInTransaction(new Callable<Void>() {
+            public Void call() {
+                _updateAllPriorities(partial, dirty);
+                return null;
             }
-            ArrayList<Long> cids = ankiDb.queryColumn(
-                    Long.class,
-                    "SELECT DISTINCT cardId FROM cardTags WHERE tagId in "
-                            + Utils.ids2str(Utils.toPrimitive(newPriorities.keySet())), 1);
-            updatePriorities(Utils.toPrimitive(cids), null, dirty);
+        });
+    }
+
+
+    private void _updateAllPriorities(boolean partial, boolean dirty) {
+        PriorityUpdater updater = new PriorityUpdater(this, ankiDb);
+        long[] tagIds = updateTagPriorities(updater);
+        long[] changed;
+        if (!partial) {
+            changed = updater.updateCardPriorities(null, dirty);
+        } else if (tagIds.length > 0) {
+            changed = updater.updateCardPriorities("(SELECT DISTINCT cardId FROM cardTags WHERE tagId IN "
+                    + Utils.ids2str(tagIds) + ")", dirty);
+        } else {
+            changed = new long[0];
         }
+        refreshDueCardIndex(changed);
     }
 
 
     /**
      * Update priority setting on tags table
+     *
+     * @return the ids of the tags whose priority changed
      */
-    private HashMap<Long, Integer> updateTagPriorities() {
+    private long[] updateTagPriorities(PriorityUpdater updater) {
         // Make sure all priority tags exist
         for (String s : new String[] { mLowPriority, mMedPriority, mHighPriority }) {
             tagIds(Utils.parseTags(s));
         }
-
-        HashMap<Long, Integer> newPriorities = new HashMap<Long, Integer>();
-        ResultSet result = null;
-        ArrayList<String> tagNames = null;
-        ArrayList<Long> tagIdList = null;
-        ArrayList<Integer> tagPriorities = null;
-        try {
-            tagNames = new ArrayList<String>();
-            tagIdList = new ArrayList<Long>();
-            tagPriorities = new ArrayList<Integer>();
-            result = ankiDb.rawQuery("SELECT tag, id, priority FROM tags");
-            while (result.next()) {
-                tagNames.add(result.getString(1).toLowerCase());
-                tagIdList.add(result.getLong(2));
-                tagPriorities.add(result.getInt(3));
-            }
-        } catch (SQLException e) {
-            log.error("updateTagPriorities: Error while tag priorities: ", e);
-        } finally {
-            try {
-				if (result != null) {
-					result.close();
-				}
-			} catch (SQLException e) {
-			}
-        }
-        HashMap<String, Integer> typeAndPriorities = new HashMap<String, Integer>();
-        typeAndPriorities.put(mLowPriority, 1);
-        typeAndPriorities.put(mMedPriority, 3);
-        typeAndPriorities.put(mHighPriority, 4);
-        HashMap<String, Integer> up = new HashMap<String, Integer>();
-        for (Entry<String, Integer> entry : typeAndPriorities.entrySet()) {
-            for (String tag : Utils.parseTags(entry.getKey().toLowerCase())) {
-                up.put(tag, entry.getValue());
-            }
-        }
-        String tag = null;
-        long tagId = 0l;
-        for (int i = 0; i < tagNames.size(); i++) {
-            tag = tagNames.get(i);
-            tagId = tagIdList.get(i).longValue();
-            if (up.containsKey(tag) && (up.get(tag).compareTo(tagPriorities.get(i)) == 0)) {
-                newPriorities.put(tagId, up.get(tag));
-            } else if ((!up.containsKey(tag)) && (tagPriorities.get(i).intValue() != 2)) {
-                newPriorities.put(tagId, 2);
-            } else {
-                continue;
-            }
-            Map<String, Object> values = new HashMap<String, Object>();
-            values.put("priority", newPriorities.get(tagId));
-            ankiDb.update(this, "tags", values, "id = " + tagId);
-        }
-        return newPriorities;
+        return updater.updateTagPriorities(mLowPriority, mMedPriority, mHighPriority);
     }
 
 
@@ -3749,70 +3995,38 @@ public class Deck {
     }
 
 
-    public void updatePriorities(long[] cardIds, String[] suspend, boolean dirty) {
-        ResultSet result = null;
+    public void updatePriorities(final long[] cardIds, final String[] suspend, final boolean dirty) {
         log.info("updatePriorities - Updating priorities...");
+        ankiDb.runInTransaction(new Callable<Void>() {
+            public Void call() {
+                _updatePriorities(cardIds, suspend, dirty);
+                return null;
+            }
+        });
+    }
+
+
+    private void _updatePriorities(long[] cardIds, String[] suspend, boolean dirty) {
         // Any tags to suspend
         if (suspend != null && suspend.length > 0) {
             long ids[] = Utils.toPrimitive(tagIds(suspend, false).values());
-        	Map<String, Object> values = new HashMap<String, Object>();
+            Map<String, Object> values = new HashMap<String, Object>();
             values.put("priority", 0);
-            ankiDb.update(this, "tags", values, "id in " + Utils.ids2str(ids));
+            IdSet tagIdSet = ankiDb.idSet(ids);
+            try {
+                ankiDb.update(this, "tags", values, "id IN " + tagIdSet.getSubquery());
+            } finally {
+                tagIdSet.close();
+            }
         }
 
-        String limit = "";
-        if (cardIds.length <= 1000) {
-            limit = "and cardTags.cardId in " + Utils.ids2str(cardIds);
-        }
-        String query = "SELECT count(*), cardTags.cardId, CASE WHEN max(tags.priority) > 2 THEN max(tags.priority) "
-                + "WHEN min(tags.priority) = 1 THEN 1 ELSE 2 END FROM cardTags,tags "
-                + "WHERE cardTags.tagId = tags.id " + limit + " GROUP BY cardTags.cardId";
+        IdSet cardIdSet = ankiDb.idSet(cardIds);
         try {
-        	result = ankiDb.rawQuery(query);
-            if (result.next()) {
-            	int len = result.getInt(1);
-                // FIXME
-                long[][] cards = new long[len][2];
-                for (int i = 0; i < len; i++) {
-                    cards[i][0] = result.getLong(2);
-                    cards[i][1] = result.getInt(3);
-                }
-
-                String extra = "";
-                if (dirty) {
-                    extra = ", modified = " + String.format(Utils.ENGLISH_LOCALE, "%f", Utils.now());
-                }
-                for (int pri = Card.PRIORITY_NONE; pri <= Card.PRIORITY_HIGH; pri++) {
-                    int count = 0;
-                    for (int i = 0; i < len; i++) {
-                        if (cards[i][1] == pri) {
-                            count++;
-                        }
-                    }
-                    long[] cs = new long[count];
-                    int j = 0;
-                    for (int i = 0; i < len; i++) {
-                        if (cards[i][1] == pri) {
-                            cs[j] = cards[i][0];
-                            j++;
-                        }
-                    }
-                    // Catch review early & buried but not suspended cards
-                    Map<String, Object> values = new HashMap<String, Object>();
-                    values.put("priority", pri + extra);
-                    ankiDb.update(this, "cards", values, "id IN " + Utils.ids2str(cs) + " AND priority != " + pri + " AND " + "priority >= -2");
-                }
-            }
-        } catch (SQLException e) {
-			e.printStackTrace();
-		} finally {
-            try {
-				if (result != null) {
-					result.close();
-				}
-			} catch (SQLException e) {
-			}
+            new PriorityUpdater(this, ankiDb).updateCardPriorities(cardIdSet.getSubquery(), dirty);
+        } finally {
+            cardIdSet.close();
         }
+        refreshDueCardIndex(cardIds);
     }
 
 
@@ -3832,72 +4046,73 @@ public class Deck {
     /**
      * Bulk delete cards by ID. Caller must .reset()
      *
-     * @param ids List of card IDs of the cards to be deleted.
+     * @param ids Card IDs of the cards to be deleted.
      */
-    public void deleteCards(List<String> ids) {
-        log.info("deleteCards = " + ids.toString());
+    public void deleteCards(final long[] ids) {
+        ankiDb.runInTransaction(new Callable<Void>() {
+            public Void call() {
+                _deleteCards(ids);
+                return null;
+            }
+        });
+    }
+
+
+    private void _deleteCards(long[] ids) {
+        log.info("deleteCards = " + ids.length + " cards");
         String undoName = UNDO_TYPE_DELETE_CARD;
-        if (ids.size() == 1) {
-            setUndoStart(undoName, Long.parseLong(ids.get(0)));
-        } else {
-            setUndoStart(undoName);
-        }
         // Bulk delete cards by ID
-        if (ids != null && ids.size() > 0) {
+        if (ids != null && ids.length > 0) {
+            if (ids.length == 1) {
+                setUndoStart(undoName, ids[0]);
+            } else {
+                setUndoStart(undoName);
+            }
             commitToDB();
             double now = Utils.now();
             log.info("Now = " + now);
-            String idsString = Utils.ids2str(ids);
-
-            // Grab fact ids
-            // ArrayList<String> factIds = ankiDB.queryColumn(String.class,
-            // "SELECT factId FROM cards WHERE id in " + idsString,
-            // 1);
-
-            // Delete cards
-            ankiDb.delete(this, "cards", "id IN " + idsString);
-
-            // Note deleted cards
-            for (String id : ids) {
-            	Map<String, Object> values = new HashMap<String, Object>();
-                values.put("cardId", id);
-                values.put("deletedTime", String.format(Utils.ENGLISH_LOCALE, "%f", now));
-                ankiDb.insert(this, "cardsDeleted", null, values);
-            }
-
-            // Gather affected tags (before we delete the corresponding cardTags)
-            ArrayList<String> tags = ankiDb.queryColumn(String.class,
-                    "SELECT tagId FROM cardTags WHERE cardId in " + idsString, 1);
+            IdSet cardIdSet = ankiDb.idSet(ids);
+            try {
+                // Delete cards
+                ankiDb.delete(this, "cards", "id IN " + cardIdSet.getSubquery());
+                if (mDueCardIndex != null) {
+                    for (long id : ids) {
+                        mDueCardIndex.remove(id);
+                    }
+                }
 
-            // Delete cardTags
-            ankiDb.delete(this, "cardTags", "cardId IN " + idsString);
+                // Note deleted cards
+                BulkInsert insert = ankiDb.bulkInsert(this, "cardsDeleted", "cardId", "deletedTime");
+                try {
+                    for (long id : ids) {
+                        insert.addRow(id, now);
+                    }
+                    insert.finish();
+                } finally {
+                    insert.close();
+                }
 
-            // Find out if this tags are used by anything else
-            ArrayList<String> unusedTags = new ArrayList<String>();
-            for (String tagId : tags) {
-                ResultSet result = null;
+                // Gather affected tags (before we delete the corresponding cardTags)
+                IdSet tagIdSet = ankiDb.idSetFromQuery("SELECT tagId FROM cardTags WHERE cardId IN "
+                        + cardIdSet.getSubquery());
                 try {
-                	result = ankiDb.rawQuery(
-                            "SELECT * FROM cardTags WHERE tagId = " + tagId + " LIMIT 1");
-                    if (!result.next()) {
-                        unusedTags.add(tagId);
+                    // Delete cardTags
+                    ankiDb.delete(this, "cardTags", "cardId IN " + cardIdSet.getSubquery());
+                    if (mTagBitmapIndex != null) {
+                        mTagBitmapIndex.removeCards(ids);
                     }
-                } catch (SQLException e) {
-					e.printStackTrace();
-				} finally {
-                    try {
-						if (result != null) {
-							result.close();
-						}
-					} catch (SQLException e) {
-					}
+
+                    // Delete the affected tags which are not used by anything else
+                    ankiDb.delete(this, "tags", "id IN " + tagIdSet.getSubquery() + " AND priority = "
+                            + Card.PRIORITY_NORMAL + " AND NOT EXISTS (SELECT 1 FROM cardTags WHERE "
+                            + "cardTags.tagId = tags.id)");
+                } finally {
+                    tagIdSet.close();
                 }
+            } finally {
+                cardIdSet.close();
             }
 
-            // Delete unused tags
-            ankiDb.delete(this, "tags", "id in " + Utils.ids2str(unusedTags) + " and priority = "
-                            + Card.PRIORITY_NORMAL);
-
             // Remove any dangling fact
             deleteDanglingFacts();
             setUndoEnd(undoName);
@@ -3918,7 +4133,27 @@ public class Deck {
     }
 
 
-    public int addFact(Fact fact, HashMap<Long, CardModel> cardModels, boolean reset) {
+    /**
+     * Add a fact and its cards in one transaction. Nothing is written if there are no card models.
+     *
+     * @return the number of cards added
+     */
+    public int addFact(final Fact fact, final HashMap<Long, CardModel> cardModels, final boolean reset) {
+        // get cardmodels for the new fact
+        // TreeMap<Long, CardModel> availableCardModels = availableCardModels(fact);
+        if (cardModels.isEmpty()) {
+            log.error("Error while adding fact: No cardmodels for the new fact");
+            return 0;
+        }
+        return ankiDb.runInTransaction(new Callable<Integer>() {
+            public Integer call() {
+                return _addFact(fact, cardModels, reset);
+            }
+        });
+    }
+
+
+    private int _addFact(Fact fact, HashMap<Long, CardModel> cardModels, boolean reset) {
         // TODO: assert fact is Valid
         // TODO: assert fact is Unique
         double now = Utils.now();
@@ -3932,12 +4167,6 @@ public class Deck {
         values.put("spaceUntil", 0);
         ankiDb.insert(this, "facts", null, values);
 
-        // get cardmodels for the new fact
-        // TreeMap<Long, CardModel> availableCardModels = availableCardModels(fact);
-        if (cardModels.isEmpty()) {
-            log.error("Error while adding fact: No cardmodels for the new fact");
-            return 0;
-        }
         // update counts
         mFactCount++;
 
@@ -4096,15 +4325,11 @@ public class Deck {
 
         if (modelExists) {
             // Delete the cards that use the model id, through fact
-            ArrayList<String> cardsToDelete = ankiDb
-                    .queryColumn(
-                            String.class,
-                            "SELECT cards.id FROM cards, facts WHERE facts.modelId = " + id
-                                    + " AND facts.id = cards.factId", 1);
-            deleteCards(cardsToDelete);
+            deleteCards(ankiDb.queryLongs("SELECT cards.id FROM cards, facts WHERE facts.modelId = " + id
+                    + " AND facts.id = cards.factId"));
 
             // Delete model
-            ankiDb.delete(this, "models", "id = " + id);
+            ankiDb.delete("models", "id = ?", id);
 
             // Note deleted model
             Map<String, Object> values = new HashMap<String, Object>();
@@ -4194,7 +4419,7 @@ public class Deck {
         // Note the model like modified (TODO: We should use the object model instead handling the DB directly)
     	Map<String, Object> values = new HashMap<String, Object>();
         values.put("modified", String.format(Utils.ENGLISH_LOCALE, "%f", Utils.now()));
-        ankiDb.update(this, "models", values, "id = " + modelId);
+        ankiDb.update("models", values, "id = ?", modelId);
         flushMod();
     }
 
@@ -4203,18 +4428,16 @@ public class Deck {
         log.info("deleteCardModel, modelId = " + modelId + ", fieldModelId = " + cardModelId);
 
         // Delete all cards that use card model from the deck
-        ArrayList<String> cardIds = ankiDb.queryColumn(String.class,
-                "SELECT id FROM cards WHERE cardModelId = " + cardModelId, 1);
-        deleteCards(cardIds);
+        deleteCards(ankiDb.queryLongs("SELECT id FROM cards WHERE cardModelId = " + cardModelId));
 
         // I assume that the line "model.cardModels.remove(cardModel)" actually deletes cardModel from DB (I might be
         // wrong)
-        ankiDb.delete(this, "cardModels", "id = " + cardModelId);
+        ankiDb.delete("cardModels", "id = ?", cardModelId);
 
         // Note the model like modified (TODO: We should use the object model instead handling the DB directly)
     	Map<String, Object> values = new HashMap<String, Object>();
         values.put("modified", String.format(Utils.ENGLISH_LOCALE, "%f", Utils.now()));
-        ankiDb.update(this, "models", values, "id = " + modelId);
+        ankiDb.update("models", values, "id = ?", modelId);
         flushMod();
     }
 
@@ -4360,34 +4583,59 @@ public class Deck {
     private class UndoRow {
         private String mName;
         private Long mCardId;
-        private ArrayList<UndoCommand> mUndoCommands;
+        // Range of undoLog sequence numbers written while the action ran: start < seq <= end. Set by the flusher
+        // thread for a journaled answer.
+        private volatile long mStart;
+        private volatile long mEnd;
 
-        UndoRow(String name, Long cardId) {
+        UndoRow(String name, Long cardId, long start) {
             mName = name;
             mCardId = cardId;
-            mUndoCommands = new ArrayList<UndoCommand>();
+            mStart = start;
+            mEnd = start;
         }
     }
 
 
-    private class UndoCommand {
-        private SqlCommandType mCommand;
-        private String mTable;
-        private Map<String, Object> mValues;
-        private String mWhereClause;
+    /**
+     * Sets the undo flag around the writes of a journaled answer when they are applied, and takes their undoLog range.
+     * The captured writes hold no undo statement: the undo tables are temporary, and do not exist yet when a journal
+     * is replayed at the next openDeck().
+     */
+    private class UndoApplyHook implements AnswerJournal.ApplyHook {
+        private final UndoRow mRow;
+        private final long mPrune;
+
+
+        UndoApplyHook(UndoRow row, long prune) {
+            mRow = row;
+            mPrune = prune;
+        }
+
+
+        public void beforeApply() {
+            mRow.mStart = mUndoLog.latest();
+            mUndoLog.setFlag(true);
+        }
+
 
-        UndoCommand(SqlCommandType command, String table, Map<String, Object> values, String whereClause) {
-        	mCommand = command;
-        	mTable = table;
-        	mValues = values;
-        	mWhereClause = whereClause;
+        public void afterApply() {
+            mUndoLog.setFlag(false);
+            mRow.mEnd = mUndoLog.latest();
+            if (mPrune > 0) {
+                mUndoLog.prune(mPrune);
+            }
         }
     }
 
 
+    /**
+     * Undo information is written by temporary triggers, see UndoLog.
+     */
     private void initUndo() {
         mUndoStack = new Stack<UndoRow>();
         mRedoStack = new Stack<UndoRow>();
+        mUndoLog = UndoLog.install(ankiDb);
         mUndoEnabled = true;
     }
 
@@ -4415,6 +4663,9 @@ public class Deck {
     public void resetUndo() {
         mUndoStack.clear();
         mRedoStack.clear();
+        if (mUndoEnabled) {
+            mUndoLog.clear();
+        }
     }
 
 
@@ -4455,11 +4706,33 @@ public class Deck {
                 return;
             }
         }
-        mUndoStack.push(new UndoRow(name, cardId));
+        boolean capturing = ankiDb.isCapturing();
+        UndoRow row;
+        if (capturing) {
+            // Journaled answer: the flag is set and its range taken when it is applied, see UndoApplyHook
+            row = new UndoRow(name, cardId, UNDO_ROW_PENDING);
+            mCapturedUndoRow = row;
+        } else {
+            // Until setUndoEnd(), no other thread writes; the answers journaled before are applied out of the range
+            mUndoLog.hold();
+            flushAnswerJournal();
+            row = new UndoRow(name, cardId, mUndoLog.latest());
+        }
+        mUndoStack.push(row);
         if (mUndoStack.size() > 20) {
-        	mUndoStack.removeElementAt(0);
+            UndoRow dropped = mUndoStack.remove(0);
+            // A pending entry still has its range to come, its log rows are left to resetUndo()
+            if (dropped != null && dropped.mEnd != UNDO_ROW_PENDING) {
+                if (capturing) {
+                    mCapturedUndoPrune = dropped.mEnd;
+                } else {
+                    mUndoLog.prune(dropped.mEnd);
+                }
+            }
+        }
+        if (!capturing) {
+            mUndoLog.setFlag(true);
         }
-        startRecordingUndoInfo(mUndoStack);
     }
 
 
@@ -4467,35 +4740,28 @@ public class Deck {
         if (!mUndoEnabled) {
             return;
         }
-        while (mUndoStack.peek() == null) {
-            mUndoStack.pop(); // Strip off barrier
+        if (!ankiDb.isCapturing()) {
+            mUndoLog.setFlag(false);
         }
-        UndoRow row = mUndoStack.peek();
-        if (row.mUndoCommands.size() == 0) {
-            mUndoStack.pop();
-        } else {
-            mRedoStack.clear();
+        try {
+            while (mUndoStack.peek() == null) {
+                mUndoStack.pop(); // Strip off barrier
+            }
+            UndoRow row = mUndoStack.peek();
+            if (row.mStart == UNDO_ROW_PENDING) {
+                // Journaled answer: its range is set when it is applied, and it always writes
+                mRedoStack.clear();
+                return;
+            }
+            row.mEnd = mUndoLog.latest();
+            if (row.mEnd == row.mStart) {
+                mUndoStack.pop();
+            } else {
+                mRedoStack.clear();
+            }
+        } finally {
+            mUndoLog.release();
         }
-        stopRecordingUndoInfo();
-    }
-
-    private void startRecordingUndoInfo(Stack<UndoRow> dst) {
-        mUndoRedoStackToRecord = dst;
-    }
-
-    private void stopRecordingUndoInfo() {
-        mUndoRedoStackToRecord = null;
-    }
-
-    public boolean recordUndoInformation() {
-    	return mUndoEnabled && (mUndoRedoStackToRecord != null);
-    }
-
-
-    public void addUndoCommand(SqlCommandType command, String table, Map<String, Object> values, String whereClause) {
-	if(!mUndoRedoStackToRecord.empty()) {
-	    	mUndoRedoStackToRecord.peek().mUndoCommands.add(new UndoCommand(command, table, values, whereClause));
-	}
     }
 
 
@@ -4507,25 +4773,16 @@ public class Deck {
                 break;
             }
         }
-        if (inReview) {
-           dst.push(new UndoRow(row.mName, row.mCardId));
-        } else {
-           dst.push(new UndoRow(row.mName, oldCardId));
-        }
-        startRecordingUndoInfo(dst);
-        //ankiDb.beginTransaction();
-        try {
-            for (UndoCommand u : row.mUndoCommands) {
-                ankiDb.execSQL(this, u.mCommand, u.mTable, u.mValues, u.mWhereClause);
-            }
-            //ankiDb.setTransactionSuccessful();
-        } finally {
-        	stopRecordingUndoInfo();
-        	//ankiDb.endTransaction();
-        }
-        if (row.mUndoCommands.size() == 0) {
-        	dst.pop();
+        // The statements reverting the replay become the opposite entry
+        long[] range = mUndoLog.replay(row.mStart, row.mEnd);
+        if (range[1] != range[0]) {
+            UndoRow inverse = new UndoRow(row.mName, inReview ? row.mCardId : oldCardId, range[0]);
+            inverse.mEnd = range[1];
+            dst.push(inverse);
         }
+        // The replayed statements are not known to the due card index nor to the tag bitmaps
+        rebuildDueCardIndex();
+        rebuildTagBitmapIndex();
         mCurrentUndoRedoType = row.mName;
         return row.mCardId;
     }
@@ -4535,6 +4792,8 @@ public class Deck {
      */
     public long undo(long oldCardId, boolean inReview) {
         long cardId = 0;
+        // Entries of journaled answers get their range when applied
+        flushAnswerJournal();
     	if (!mUndoStack.isEmpty()) {
             cardId = undoredo(mUndoStack, mRedoStack, oldCardId, inReview);
             commitToDB();
@@ -4549,6 +4808,7 @@ public class Deck {
      */
     public long redo(long oldCardId, boolean inReview) {
         long cardId = 0;
+        flushAnswerJournal();
         if (!mRedoStack.isEmpty()) {
         	cardId = undoredo(mRedoStack, mUndoStack, oldCardId, inReview);
             commitToDB();
@@ -4723,6 +4983,7 @@ public class Deck {
             // needLock
             mNewCardOrder = deckPayload.getInt("newCardOrder");
             mNewCardSpacing = deckPayload.getInt("newCardSpacing");
+            mIntervalSimulator = null;
             mNewCardsPerDay = deckPayload.getInt("newCardsPerDay");
             mNewCount = deckPayload.getInt("newCount");
             // progressHandlerCalled
@@ -4835,7 +5096,15 @@ public class Deck {
      */
     public static synchronized void initializeEmptyDeck(String deckPath) {
         AnkiDb db = AnkiDatabaseManager.getDatabase(deckPath);
+        try {
+            _initializeEmptyDeck(db);
+        } finally {
+            AnkiDatabaseManager.closeDatabase(deckPath);
+        }
+    }
+
 
+    private static void _initializeEmptyDeck(AnkiDb db) {
         // Regenerate IDs.
         long modelId = Utils.genID();
         db.execSQL("UPDATE models SET id=" + modelId);
@@ -4858,76 +5127,74 @@ public class Deck {
 
 
     public Map<String, Object> getDeckSummary() {
-    	Map<String, Object> values = new HashMap<String, Object>();
+        DeckSummary summary = getSummary();
+        return summary != null ? summary.toMap() : null;
+    }
 
-    	values.put("cardCount", (int)ankiDb.queryScalar("SELECT count(*) FROM cards"));
-    	values.put("factCount", (int)ankiDb.queryScalar("SELECT count(*) FROM facts"));
-    	values.put("matureCount", (int)ankiDb.queryScalar("SELECT count(*) FROM cards WHERE interval >= 21"));
-    	values.put("unseenCount", (int)ankiDb.queryScalar("SELECT count(*) FROM cards WHERE reps = 0"));
-        ResultSet result = null;
-        try {
-        	result = ankiDb.rawQuery("SELECT sum(interval) FROM cards WHERE reps > 0");
-            if (result.next()) {
-            	values.put("intervalSum", (int)result.getLong(1));            	
-            }
-        } catch (SQLException e) {
-			e.printStackTrace();
-		} finally {
-            if (result != null) {
-            	try {
-					result.close();
-				} catch (SQLException e) {
-					e.printStackTrace();
-				}
+
+    /**
+     * Compute the deck summary statistics with one scan of the cards, one read of the stats and a count of the facts.
+     *
+     * @return the summary, or null on error
+     */
+    public DeckSummary getSummary() {
+        DeckSummary summary = new DeckSummary();
+        String failedDelayed = "sum(type = 0 AND combinedDue >= " + mFailedCutoff + " AND priority > -1)";
+        // Review cards due today or tomorrow, as getNextDueCards(0) + getNextDueCards(1)
+        String dueTomorrow = String.format(Utils.ENGLISH_LOCALE,
+                "sum(type = 1 AND combinedDue BETWEEN %f AND %f AND priority > -1)", mDueCutoff - 86400,
+                mDueCutoff + 86400);
+        String cards = "SELECT count(*), total(interval >= " + Card.MATURE_THRESHOLD + "), total(reps = 0), "
+                + "total(CASE WHEN reps > 0 THEN interval ELSE 0 END), total(reps = 0 AND type >= 0)";
+        // The due figures share the scan unless they are limited by tags
+        String due = "SELECT " + failedDelayed + ", " + dueTomorrow + " FROM cards c WHERE type IN (0, 1)";
+        String limitedDue = cardLimit("revActive", "revInactive", due);
+        if (limitedDue.equals(due)) {
+            if (!summary.scanCards(ankiDb, cards + ", " + failedDelayed + ", " + dueTomorrow + " FROM cards c", true)) {
+                return null;
             }
+        } else if (!summary.scanCards(ankiDb, cards + " FROM cards c", false) || !summary.scanDue(ankiDb, limitedDue)) {
+            return null;
         }
-    	values.put("repsMatCount", (int)ankiDb.queryScalar("SELECT (matureEase1 + matureEase2 + matureEase3 + matureEase4) FROM stats WHERE type = 0"));
-    	values.put("repsMatNoCount", (int)ankiDb.queryScalar("SELECT (matureEase1) FROM stats WHERE type = 0"));
-    	values.put("repsYoungCount", (int)ankiDb.queryScalar("SELECT (youngEase1 + youngEase2 + youngEase3 + youngEase4) FROM stats WHERE type = 0"));
-    	values.put("repsYoungNoCount", (int)ankiDb.queryScalar("SELECT (youngEase1) FROM stats WHERE type = 0"));
-    	values.put("repsFirstCount", (int)ankiDb.queryScalar("SELECT (newEase1 + newEase2 + newEase3 + newEase4) FROM stats WHERE type = 0"));
-    	values.put("repsFirstNoCount", (int)ankiDb.queryScalar("SELECT (newEase1) FROM stats WHERE type = 0"));
-
-        Date value = Utils.genToday(getUtcOffset() + (86400 * 7));
-    	values.put("reviewsLastWeek", (int)ankiDb.queryScalar(String.format(Utils.ENGLISH_LOCALE,
-        		"SELECT sum(youngEase1 + youngEase2 + youngEase3 + youngEase4 + matureEase1 + matureEase2 + matureEase3 + matureEase4) FROM stats WHERE day > \'%tF\' AND type = %d", value, Stats.STATS_DAY)));
-    	values.put("newsLastWeek", (int)ankiDb.queryScalar(String.format(Utils.ENGLISH_LOCALE,
-        		"SELECT sum(newEase1 + newEase2 + newEase3 + newEase4) FROM stats WHERE day > \'%tF\' AND type = %d", value, Stats.STATS_DAY)));
-        value = Utils.genToday(getUtcOffset() + (86400 * 30));
-    	values.put("reviewsLastMonth", (int)ankiDb.queryScalar(String.format(Utils.ENGLISH_LOCALE,
-        		"SELECT sum(youngEase1 + youngEase2 + youngEase3 + youngEase4 + matureEase1 + matureEase2 + matureEase3 + matureEase4) FROM stats WHERE day > \'%tF\' AND type = %d", value, Stats.STATS_DAY)));
-    	values.put("newsLastMonth", (int)ankiDb.queryScalar(String.format(Utils.ENGLISH_LOCALE,
-        		"SELECT sum(newEase1 + newEase2 + newEase3 + newEase4) FROM stats WHERE day > \'%tF\' AND type = %d", value, Stats.STATS_DAY)));
-        value = Utils.genToday(getUtcOffset() + (86400 * 365));
-    	values.put("reviewsLastYear", (int)ankiDb.queryScalar(String.format(Utils.ENGLISH_LOCALE,
-        		"SELECT sum(youngEase1 + youngEase2 + youngEase3 + youngEase4 + matureEase1 + matureEase2 + matureEase3 + matureEase4) FROM stats WHERE day > \'%tF\' AND type = %d", value, Stats.STATS_DAY)));
-    	values.put("newsLastYear", (int)ankiDb.queryScalar(String.format(Utils.ENGLISH_LOCALE,
-        		"SELECT sum(newEase1 + newEase2 + newEase3 + newEase4) FROM stats WHERE day > \'%tF\' AND type = %d", value, Stats.STATS_DAY)));
-        Float created = 0.0f;
-    	try {
-    		result = ankiDb.rawQuery("SELECT created FROM decks");
-            if (result.next()) {
-            	created = result.getFloat(1);
-            }
-        } catch (SQLException e) {
-			e.printStackTrace();
-		} finally {
-            if (result != null) {
-            	try {
-					result.close();
-				} catch (SQLException e) {
-				}
-            }
+
+        String reviews = "youngEase1 + youngEase2 + youngEase3 + youngEase4 + matureEase1 + matureEase2 + matureEase3 "
+                + "+ matureEase4";
+        String news = "newEase1 + newEase2 + newEase3 + newEase4";
+        StringBuilder stats = new StringBuilder("SELECT ");
+        stats.append(lifeStat("matureEase1 + matureEase2 + matureEase3 + matureEase4")).append(", ");
+        stats.append(lifeStat("matureEase1")).append(", ");
+        stats.append(lifeStat("youngEase1 + youngEase2 + youngEase3 + youngEase4")).append(", ");
+        stats.append(lifeStat("youngEase1")).append(", ");
+        stats.append(lifeStat(news)).append(", ");
+        stats.append(lifeStat("newEase1"));
+        for (int days : new int[] { 7, 30, 365 }) {
+            Date since = Utils.genToday(getUtcOffset() + (86400 * days));
+            stats.append(", ").append(dayStat(reviews, since)).append(", ").append(dayStat(news, since));
+        }
+        stats.append(String.format(Utils.ENGLISH_LOCALE, " FROM stats WHERE type = %d OR (type = %d AND day > '%tF')",
+                Stats.STATS_LIFE, Stats.STATS_DAY, Utils.genToday(getUtcOffset() + (86400 * 365))));
+        if (!summary.scanStats(ankiDb, stats.toString())) {
+            return null;
         }
-    	values.put("deckAge", (int)((Utils.now() - created) / 86400));
-    	int failedCards = getFailedDelayedCount() + getFailedSoonCount();
-        int revCards = getNextDueCards(1) + getNextDueCards(0);
-        int newCards = Math.min(mNewCardsPerDay, (int)ankiDb.queryScalar("SELECT count(*) FROM cards WHERE reps = 0 AND type >= 0"));
-        int eta = getETA(failedCards, revCards, newCards, true);
-        values.put("revTomorrow", (int)(failedCards + revCards));
-        values.put("newTomorrow", (int)newCards);
-        values.put("timeTomorrow", (int)eta);
-        return values;
+
+        summary.setFactCount((int) ankiDb.queryScalar("SELECT count(*) FROM facts"));
+        summary.setDeckAge((int) ((Utils.now() - mCreated) / 86400));
+        int failedCards = summary.getFailedDelayed() + getFailedSoonCount();
+        int revCards = summary.getDueTomorrow();
+        int newCards = Math.min(mNewCardsPerDay, summary.getNewCards());
+        summary.setTomorrow(failedCards + revCards, newCards, getETA(failedCards, revCards, newCards, true));
+        return summary;
+    }
+
+
+    private static String lifeStat(String columns) {
+        return "total(CASE WHEN type = " + Stats.STATS_LIFE + " THEN " + columns + " ELSE 0 END)";
+    }
+
+
+    private static String dayStat(String columns, Date since) {
+        return String.format(Utils.ENGLISH_LOCALE, "total(CASE WHEN type = %d AND day > '%tF' THEN %s ELSE 0 END)",
+                Stats.STATS_DAY, since, columns);
     }
 
 	public String getHighPriority() {
@@ -4954,12 +5221,17 @@ public class Deck {
 		this.mLowPriority = mLowPriority;
 	}
 
+	public double getFailedCutoff() {
+		return mFailedCutoff;
+	}
+
 	public double getHardIntervalMin() {
 		return mHardIntervalMin;
 	}
 
 	public void setHardIntervalMin(double mHardIntervalMin) {
 		this.mHardIntervalMin = mHardIntervalMin;
+		mIntervalSimulator = null;
 	}
 
 	public double getHardIntervalMax() {
@@ -4968,6 +5240,7 @@ public class Deck {
 
 	public void setHardIntervalMax(double mHardIntervalMax) {
 		this.mHardIntervalMax = mHardIntervalMax;
+		mIntervalSimulator = null;
 	}
 
 	public double getMidIntervalMin() {
@@ -4976,6 +5249,7 @@ public class Deck {
 
 	public void setMidIntervalMin(double mMidIntervalMin) {
 		this.mMidIntervalMin = mMidIntervalMin;
+		mIntervalSimulator = null;
 	}
 
 	public double getMidIntervalMax() {
@@ -4984,6 +5258,7 @@ public class Deck {
 
 	public void setMidIntervalMax(double mMidIntervalMax) {
 		this.mMidIntervalMax = mMidIntervalMax;
+		mIntervalSimulator = null;
 	}
 
 	public double getEasyIntervalMin() {
@@ -4992,6 +5267,7 @@ public class Deck {
 
 	public void setEasyIntervalMin(double mEasyIntervalMin) {
 		this.mEasyIntervalMin = mEasyIntervalMin;
+		mIntervalSimulator = null;
 	}
 
 	public double getEasyIntervalMax() {
@@ -5000,6 +5276,7 @@ public class Deck {
 
 	public void setEasyIntervalMax(double mEasyIntervalMax) {
 		this.mEasyIntervalMax = mEasyIntervalMax;
+		mIntervalSimulator = null;
 	}
 
 	public long getDelay0() {
@@ -5016,6 +5293,7 @@ public class Deck {
 
 	public void setDelay1(long mDelay1) {
 		this.mDelay1 = mDelay1;
+		mIntervalSimulator = null;
 	}
 
 	public double getDelay2() {
@@ -5024,6 +5302,7 @@ public class Deck {
 
 	public void setDelay2(double mDelay2) {
 		this.mDelay2 = mDelay2;
+		mIntervalSimulator = null;
 	}
 
 }
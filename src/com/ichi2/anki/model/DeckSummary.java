@@ -0,0 +1,223 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+
+package com.ichi2.anki.model;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.ichi2.anki.db.AnkiDb;
+import com.ichi2.anki.db.Row;
+import com.ichi2.anki.db.RowCallback;
+
+/**
+ * The figures of the deck summary statistics. The card figures come from one aggregate scan of the cards and the
+ * review figures from one read of the stats table; see {@link Deck#getSummary()}. Summaries of several decks can be
+ * computed apart, e.g. in parallel, and merged.
+ */
+public class DeckSummary {
+
+    private int mCardCount = 0;
+    private int mFactCount = 0;
+    private int mMatureCount = 0;
+    private int mUnseenCount = 0;
+    private long mIntervalSum = 0;
+
+    // Lifetime reviews
+    private int mRepsMatCount = 0;
+    private int mRepsMatNoCount = 0;
+    private int mRepsYoungCount = 0;
+    private int mRepsYoungNoCount = 0;
+    private int mRepsFirstCount = 0;
+    private int mRepsFirstNoCount = 0;
+
+    // Daily reviews of the last week, month and year
+    private int mReviewsLastWeek = 0;
+    private int mNewsLastWeek = 0;
+    private int mReviewsLastMonth = 0;
+    private int mNewsLastMonth = 0;
+    private int mReviewsLastYear = 0;
+    private int mNewsLastYear = 0;
+
+    private int mDeckAge = 0;
+    private int mRevTomorrow = 0;
+    private int mNewTomorrow = 0;
+    private int mTimeTomorrow = 0;
+
+    // Filled by the card scan for the deck to finish the tomorrow figures
+    private int mNewCards = 0;
+    private int mFailedDelayed = 0;
+    private int mDueTomorrow = 0;
+
+
+    /**
+     * Read the card figures.
+     *
+     * @param sql an aggregate query over the cards returning count, mature count, unseen count, sum of the intervals of
+     *            seen cards and count of the new cards not suspended in this order, followed, if withDue, by the
+     *            columns of {@link #scanDue(AnkiDb, String)}
+     * @return false on error
+     */
+    boolean scanCards(AnkiDb db, String sql, final boolean withDue) {
+        return db.forEachRow(sql, new RowCallback() {
+            public void onRow(Row row) throws SQLException {
+                mCardCount = row.getInt(1);
+                mMatureCount = row.getInt(2);
+                mUnseenCount = row.getInt(3);
+                mIntervalSum = row.getLong(4);
+                mNewCards = row.getInt(5);
+                if (withDue) {
+                    mFailedDelayed = row.getInt(6);
+                    mDueTomorrow = row.getInt(7);
+                }
+            }
+        }) != -1;
+    }
+
+
+    /**
+     * Read the due figures, when they are limited by tags and cannot be part of the card scan.
+     *
+     * @param sql an aggregate query returning the count of the delayed failed cards and of the review cards due until
+     *            the end of tomorrow
+     * @return false on error
+     */
+    boolean scanDue(AnkiDb db, String sql) {
+        return db.forEachRow(sql, new RowCallback() {
+            public void onRow(Row row) throws SQLException {
+                mFailedDelayed = row.getInt(1);
+                mDueTomorrow = row.getInt(2);
+            }
+        }) != -1;
+    }
+
+
+    /**
+     * Read the review figures.
+     *
+     * @param sql an aggregate query over stats returning the lifetime mature, mature failed, young, young failed, first
+     *            and first failed reviews, then the reviews and new cards of the last week, month and year
+     * @return false on error
+     */
+    boolean scanStats(AnkiDb db, String sql) {
+        return db.forEachRow(sql, new RowCallback() {
+            public void onRow(Row row) throws SQLException {
+                mRepsMatCount = row.getInt(1);
+                mRepsMatNoCount = row.getInt(2);
+                mRepsYoungCount = row.getInt(3);
+                mRepsYoungNoCount = row.getInt(4);
+                mRepsFirstCount = row.getInt(5);
+                mRepsFirstNoCount = row.getInt(6);
+                mReviewsLastWeek = row.getInt(7);
+                mNewsLastWeek = row.getInt(8);
+                mReviewsLastMonth = row.getInt(9);
+                mNewsLastMonth = row.getInt(10);
+                mReviewsLastYear = row.getInt(11);
+                mNewsLastYear = row.getInt(12);
+            }
+        }) != -1;
+    }
+
+
+    void setFactCount(int factCount) {
+        mFactCount = factCount;
+    }
+
+
+    void setDeckAge(int deckAge) {
+        mDeckAge = deckAge;
+    }
+
+
+    void setTomorrow(int revCards, int newCards, int time) {
+        mRevTomorrow = revCards;
+        mNewTomorrow = newCards;
+        mTimeTomorrow = time;
+    }
+
+
+    int getNewCards() {
+        return mNewCards;
+    }
+
+
+    int getFailedDelayed() {
+        return mFailedDelayed;
+    }
+
+
+    int getDueTomorrow() {
+        return mDueTomorrow;
+    }
+
+
+    /**
+     * Add the figures of another deck to these, the deck age being that of the oldest deck.
+     */
+    public void merge(DeckSummary other) {
+        mCardCount += other.mCardCount;
+        mFactCount += other.mFactCount;
+        mMatureCount += other.mMatureCount;
+        mUnseenCount += other.mUnseenCount;
+        mIntervalSum += other.mIntervalSum;
+        mRepsMatCount += other.mRepsMatCount;
+        mRepsMatNoCount += other.mRepsMatNoCount;
+        mRepsYoungCount += other.mRepsYoungCount;
+        mRepsYoungNoCount += other.mRepsYoungNoCount;
+        mRepsFirstCount += other.mRepsFirstCount;
+        mRepsFirstNoCount += other.mRepsFirstNoCount;
+        mReviewsLastWeek += other.mReviewsLastWeek;
+        mNewsLastWeek += other.mNewsLastWeek;
+        mReviewsLastMonth += other.mReviewsLastMonth;
+        mNewsLastMonth += other.mNewsLastMonth;
+        mReviewsLastYear += other.mReviewsLastYear;
+        mNewsLastYear += other.mNewsLastYear;
+        mDeckAge = Math.max(mDeckAge, other.mDeckAge);
+        mRevTomorrow += other.mRevTomorrow;
+        mNewTomorrow += other.mNewTomorrow;
+        mTimeTomorrow += other.mTimeTomorrow;
+    }
+
+
+    /**
+     * @return the figures by the keys of the deck summary screen
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("cardCount", mCardCount);
+        values.put("factCount", mFactCount);
+        values.put("matureCount", mMatureCount);
+        values.put("unseenCount", mUnseenCount);
+        values.put("intervalSum", (int) mIntervalSum);
+        values.put("repsMatCount", mRepsMatCount);
+        values.put("repsMatNoCount", mRepsMatNoCount);
+        values.put("repsYoungCount", mRepsYoungCount);
+        values.put("repsYoungNoCount", mRepsYoungNoCount);
+        values.put("repsFirstCount", mRepsFirstCount);
+        values.put("repsFirstNoCount", mRepsFirstNoCount);
+        values.put("reviewsLastWeek", mReviewsLastWeek);
+        values.put("newsLastWeek", mNewsLastWeek);
+        values.put("reviewsLastMonth", mReviewsLastMonth);
+        values.put("newsLastMonth", mNewsLastMonth);
+        values.put("reviewsLastYear", mReviewsLastYear);
+        values.put("newsLastYear", mNewsLastYear);
+        values.put("deckAge", mDeckAge);
+        values.put("revTomorrow", mRevTomorrow);
+        values.put("newTomorrow", mNewTomorrow);
+        values.put("timeTomorrow", mTimeTomorrow);
+        return values;
+    }
+}
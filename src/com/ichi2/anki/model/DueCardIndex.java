@@ -0,0 +1,736 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ichi2.anki.db.AnkiDb;
+import com.ichi2.anki.db.IdSet;
+import com.ichi2.anki.db.Row;
+import com.ichi2.anki.db.RowCallback;
+import com.ichi2.utils.LongDoubleMap;
+
+/**
+ * In-memory copy of the scheduling columns of the cards which can be due: (type, priority, combinedDue, factId, id),
+ * plus interval and due for the queue orders. Cards of each type (failed, review, new) are kept sorted by combinedDue
+ * in a list of small blocks of parallel primitive arrays, with the block sizes in a Fenwick tree: putting or removing a
+ * card and counting the due cards take O(log n) plus a shift within one block, and queue refills read the due prefix
+ * only, skipping the blocks whose cards all have a lower priority than the ones already selected. None of it goes to
+ * SQLite.
+ *
+ * The index must be told about every change of these columns: see the callers of {@link #put}, {@link #refresh},
+ * {@link #refreshFact} and {@link #spaceFact} in Deck. Tag limits (revActive, newInactive, ...) are not indexed; the deck falls back to SQL
+ * when they are set.
+ */
+public class DueCardIndex {
+
+    private static Logger log = LoggerFactory.getLogger(DueCardIndex.class);
+
+    /** Queue orders, matching the ORDER BY clauses of Deck */
+    public static final int ORDER_COMBINED_DUE = 0;
+    public static final int ORDER_PRIORITY_INTERVAL_DESC = 1;
+    public static final int ORDER_PRIORITY_INTERVAL = 2;
+    public static final int ORDER_PRIORITY_COMBINED_DUE = 3;
+    public static final int ORDER_PRIORITY_RANDOM = 4;
+    public static final int ORDER_PRIORITY_DUE = 5;
+    public static final int ORDER_PRIORITY_DUE_DESC = 6;
+
+    private static final String COLUMNS = "id, factId, type, priority, combinedDue, interval, due";
+
+    // Heap bytes per indexed card: the block arrays and the slot of the id map
+    private static final long ENTRY_SIZE_ESTIMATE = 44 + 24;
+
+    /** Cards per block; a full block is split in two halves */
+    private static final int BLOCK_CAPACITY = 128;
+
+    /**
+     * Receives the selected cards, in queue order.
+     */
+    public interface EntryCallback {
+        public void onEntry(long cardId, long factId, double combinedDue);
+    }
+
+    /**
+     * Restricts counts and selections to some cards, e.g. those of a tag limit.
+     */
+    public interface CardFilter {
+        public boolean accept(long cardId);
+    }
+
+    private final Segment[] mSegments = new Segment[] { new Segment(), new Segment(), new Segment() };
+    /** combinedDue of every indexed card, to find its entry */
+    private final LongDoubleMap mCombinedDue;
+    private final Random mRandom = new Random();
+
+
+    private DueCardIndex(int expectedSize) {
+        mCombinedDue = new LongDoubleMap(expectedSize);
+    }
+
+
+    /**
+     * Load the failed, review and new cards of a deck.
+     *
+     * @return the index, or null if the cards could not be read
+     */
+    public static DueCardIndex build(AnkiDb db) {
+        long start = System.currentTimeMillis();
+        final DueCardIndex index = new DueCardIndex((int) db.queryScalar(
+                "SELECT count(*) FROM cards WHERE type BETWEEN 0 AND 2"));
+        int count = db.forEachRow("SELECT " + COLUMNS + " FROM cards WHERE type BETWEEN 0 AND 2 "
+                + "ORDER BY type, combinedDue, id", new RowCallback() {
+            public void onRow(Row row) throws SQLException {
+                index.put(row);
+            }
+        });
+        if (count == -1) {
+            return null;
+        }
+        log.info("DueCardIndex - indexed " + count + " cards in " + (System.currentTimeMillis() - start) + " ms");
+        return index;
+    }
+
+
+    /**
+     * Index a card, or drop it if its type is not failed, review or new.
+     */
+    public synchronized void put(long cardId, long factId, int type, int priority, double combinedDue,
+            double interval, double due) {
+        remove(cardId);
+        if (type >= 0 && type < mSegments.length) {
+            mSegments[type].insert(cardId, factId, priority, combinedDue, interval, due);
+            mCombinedDue.put(cardId, combinedDue);
+        }
+    }
+
+
+    /**
+     * Drop a card from the index.
+     */
+    public synchronized void remove(long cardId) {
+        if (!mCombinedDue.containsKey(cardId)) {
+            return;
+        }
+        double combinedDue = mCombinedDue.get(cardId, 0.0);
+        for (Segment segment : mSegments) {
+            if (segment.remove(cardId, combinedDue)) {
+                break;
+            }
+        }
+        mCombinedDue.remove(cardId);
+    }
+
+
+    /**
+     * Re-read cards after they have been changed in bulk. Cards which no longer exist are dropped.
+     */
+    public void refresh(AnkiDb db, long[] ids) {
+        if (ids == null || ids.length == 0) {
+            return;
+        }
+        synchronized (this) {
+            for (long id : ids) {
+                remove(id);
+            }
+        }
+        IdSet idSet = db.idSet(ids);
+        try {
+            db.forEachRow("SELECT " + COLUMNS + " FROM cards WHERE type BETWEEN 0 AND 2 AND id IN "
+                    + idSet.getSubquery(), new RowCallback() {
+                public void onRow(Row row) throws SQLException {
+                    put(row);
+                }
+            });
+        } finally {
+            idSet.close();
+        }
+    }
+
+
+    /**
+     * Re-read the cards of a fact, after they have been spaced or buried.
+     */
+    public void refreshFact(AnkiDb db, long factId) {
+        db.forEachRow("SELECT " + COLUMNS + " FROM cards WHERE factId = " + factId, new RowCallback() {
+            public void onRow(Row row) throws SQLException {
+                put(row);
+            }
+        });
+    }
+
+
+    /**
+     * Space the review and new cards of a fact in memory, as Deck._spaceCards() does in the deck, for when its update
+     * has not been applied yet.
+     */
+    public synchronized void spaceFact(long factId, long exceptCardId, double before, double revSpacing,
+            double newDue) {
+        for (int type = 1; type <= 2; type++) {
+            Segment segment = mSegments[type];
+            long[] spaced = new long[4];
+            int size = 0;
+            for (int b = 0; b < segment.mBlockCount; b++) {
+                Block block = segment.mBlocks[b];
+                int due = block.countBefore(before);
+                for (int i = 0; i < due; i++) {
+                    if (block.mFactIds[i] == factId && block.mCardIds[i] != exceptCardId) {
+                        if (size == spaced.length) {
+                            spaced = Arrays.copyOf(spaced, size * 2);
+                        }
+                        spaced[size++] = block.mCardIds[i];
+                    }
+                }
+                if (due < block.mSize) {
+                    break;
+                }
+            }
+            for (int k = 0; k < size; k++) {
+                long cardId = spaced[k];
+                int entry = segment.find(mCombinedDue.get(cardId, 0.0), cardId);
+                Block block = segment.mBlocks[entry / BLOCK_CAPACITY];
+                int i = entry % BLOCK_CAPACITY;
+                int priority = block.mPriorities[i];
+                double interval = block.mIntervals[i];
+                double cardDue = block.mDues[i];
+                double oldCombinedDue = block.mCombinedDue[i];
+                double combinedDue;
+                if (type == 1) {
+                    double delay = interval * revSpacing;
+                    combinedDue = oldCombinedDue + 86400 * (delay < 1 ? 0 : delay);
+                } else {
+                    combinedDue = newDue;
+                }
+                segment.remove(cardId, oldCombinedDue);
+                segment.insert(cardId, factId, priority, combinedDue, interval, cardDue);
+                mCombinedDue.put(cardId, combinedDue);
+            }
+        }
+    }
+
+
+    /**
+     * @return the number of cards of type with combinedDue before the cutoff
+     */
+    public synchronized int count(int type, double before) {
+        return mSegments[type].countBefore(before);
+    }
+
+
+    /**
+     * @return the number of cards of type with combinedDue before the cutoff accepted by filter, or by none if null
+     */
+    public synchronized int count(int type, double before, CardFilter filter) {
+        Segment segment = mSegments[type];
+        if (filter == null) {
+            return segment.countBefore(before);
+        }
+        int count = 0;
+        for (int b = 0; b < segment.mBlockCount; b++) {
+            Block block = segment.mBlocks[b];
+            int due = block.countBefore(before);
+            for (int i = 0; i < due; i++) {
+                if (filter.accept(block.mCardIds[i])) {
+                    count++;
+                }
+            }
+            if (due < block.mSize) {
+                break;
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * Hand the first limit cards of type due before the cutoff to callback, in the given order. This is the in-memory
+     * version of "SELECT id, factId, combinedDue FROM cards WHERE type = ? AND combinedDue < ? ORDER BY ... LIMIT ?".
+     *
+     * @return the number of cards selected
+     */
+    public synchronized int select(int type, double before, int order, int limit, EntryCallback callback) {
+        return select(type, before, order, limit, null, callback);
+    }
+
+
+    /**
+     * Same as select(), among the cards accepted by filter only, or all if null.
+     */
+    public synchronized int select(int type, double before, int order, int limit, CardFilter filter,
+            EntryCallback callback) {
+        Segment segment = mSegments[type];
+        int[] entries;
+        if (order == ORDER_COMBINED_DUE) {
+            entries = segment.first(before, limit, filter);
+        } else {
+            entries = segment.top(before, limit, order, filter, mRandom);
+        }
+        for (int entry : entries) {
+            Block block = segment.mBlocks[entry / BLOCK_CAPACITY];
+            int i = entry % BLOCK_CAPACITY;
+            callback.onEntry(block.mCardIds[i], block.mFactIds[i], block.mCombinedDue[i]);
+        }
+        return entries.length;
+    }
+
+
+    public synchronized int size() {
+        return mCombinedDue.size();
+    }
+
+
+    /**
+     * @return a rough estimate of the heap used by the index, in bytes
+     */
+    public synchronized long estimateRetainedSize() {
+        long slots = 0;
+        for (Segment segment : mSegments) {
+            slots += (long) segment.mBlockCount * BLOCK_CAPACITY;
+        }
+        return ENTRY_SIZE_ESTIMATE * Math.max(slots, mCombinedDue.capacity());
+    }
+
+
+    private void put(Row row) throws SQLException {
+        put(row.getLong(1), row.getLong(2), row.getInt(3), row.getInt(4), row.getDouble(5), row.getDouble(6),
+                row.getDouble(7));
+    }
+
+
+    /**
+     * The cards of one type sorted by (combinedDue, cardId), in blocks of at most BLOCK_CAPACITY cards. Blocks are
+     * never empty, except the only block of an empty segment. An entry is addressed as block * BLOCK_CAPACITY + offset,
+     * which stays valid until the segment is changed.
+     */
+    private static final class Segment {
+        private Block[] mBlocks = new Block[] { new Block() };
+        private int mBlockCount = 1;
+        /** Fenwick tree of the block sizes, indexed from 1 */
+        private int[] mTree = new int[2];
+
+
+        void insert(long cardId, long factId, int priority, double combinedDue, double interval, double due) {
+            int b = findBlock(combinedDue, cardId);
+            Block block = mBlocks[b];
+            int i = -block.search(combinedDue, cardId) - 1;
+            if (block.mSize == BLOCK_CAPACITY) {
+                if (b == mBlockCount - 1 && i == BLOCK_CAPACITY) {
+                    // Rows come sorted when the index is built: fill a new block rather than leave half empty ones
+                    addBlock(++b, new Block());
+                    block = mBlocks[b];
+                    i = 0;
+                } else {
+                    addBlock(b + 1, block.split());
+                    if (i > block.mSize) {
+                        i -= block.mSize;
+                        block = mBlocks[++b];
+                    }
+                }
+                rebuildTree();
+            }
+            block.insert(i, cardId, factId, priority, combinedDue, interval, due);
+            add(b, 1);
+        }
+
+
+        boolean remove(long cardId, double combinedDue) {
+            int b = findBlock(combinedDue, cardId);
+            Block block = mBlocks[b];
+            int i = block.search(combinedDue, cardId);
+            if (i < 0) {
+                return false;
+            }
+            block.remove(i);
+            if (block.mSize == 0 && mBlockCount > 1) {
+                mBlockCount--;
+                System.arraycopy(mBlocks, b + 1, mBlocks, b, mBlockCount - b);
+                mBlocks[mBlockCount] = null;
+                rebuildTree();
+            } else {
+                add(b, -1);
+            }
+            return true;
+        }
+
+
+        /**
+         * @return the entry of the card, or -1 if it is not in the segment
+         */
+        int find(double combinedDue, long cardId) {
+            int b = findBlock(combinedDue, cardId);
+            int i = mBlocks[b].search(combinedDue, cardId);
+            return i < 0 ? -1 : b * BLOCK_CAPACITY + i;
+        }
+
+
+        /**
+         * @return the number of entries with combinedDue strictly before the cutoff
+         */
+        int countBefore(double before) {
+            // Blocks whose last entry is before the cutoff are due as a whole
+            int low = 0;
+            int high = mBlockCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                Block block = mBlocks[middle];
+                if (block.mSize > 0 && block.mCombinedDue[block.mSize - 1] < before) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            int count = 0;
+            for (int i = low; i > 0; i -= i & -i) {
+                count += mTree[i];
+            }
+            if (low < mBlockCount) {
+                count += mBlocks[low].countBefore(before);
+            }
+            return count;
+        }
+
+
+        /**
+         * @return the first limit entries before the cutoff accepted by filter, in combinedDue order
+         */
+        int[] first(double before, int limit, CardFilter filter) {
+            int[] entries = new int[Math.max(0, Math.min(limit, countBefore(before)))];
+            int size = 0;
+            for (int b = 0; b < mBlockCount && size < entries.length; b++) {
+                Block block = mBlocks[b];
+                int due = block.countBefore(before);
+                for (int i = 0; i < due && size < entries.length; i++) {
+                    if (filter == null || filter.accept(block.mCardIds[i])) {
+                        entries[size++] = b * BLOCK_CAPACITY + i;
+                    }
+                }
+            }
+            return size < entries.length ? Arrays.copyOf(entries, size) : entries;
+        }
+
+
+        /**
+         * Select the first limit of the entries before the cutoff accepted by filter in the given order, with a
+         * bounded heap whose root is the worst entry kept so far. Once the heap is full, the blocks without a card of
+         * at least the priority of the root are skipped.
+         *
+         * @return the entries, in order
+         */
+        int[] top(double before, int limit, int order, CardFilter filter, Random random) {
+            int[] heap = new int[Math.max(0, Math.min(limit, countBefore(before)))];
+            double[] keys = new double[heap.length];
+            int size = 0;
+            for (int b = 0; b < mBlockCount && heap.length > 0; b++) {
+                Block block = mBlocks[b];
+                int due = block.countBefore(before);
+                if (size < heap.length || block.mMaxPriority >= priority(heap[0])) {
+                    for (int i = 0; i < due; i++) {
+                        if (filter != null && !filter.accept(block.mCardIds[i])) {
+                            continue;
+                        }
+                        int entry = b * BLOCK_CAPACITY + i;
+                        double key = order == ORDER_PRIORITY_RANDOM ? random.nextDouble() : 0;
+                        if (size < heap.length) {
+                            heap[size] = entry;
+                            keys[size] = key;
+                            siftUp(heap, keys, size++, order);
+                        } else if (before(entry, key, heap[0], keys[0], order)) {
+                            heap[0] = entry;
+                            keys[0] = key;
+                            siftDown(heap, keys, size, order);
+                        }
+                    }
+                }
+                if (due < block.mSize) {
+                    break;
+                }
+            }
+            // Pop the worst entries to the end
+            for (int end = size - 1; end > 0; end--) {
+                swap(heap, keys, 0, end);
+                siftDown(heap, keys, end, order);
+            }
+            return size < heap.length ? Arrays.copyOf(heap, size) : heap;
+        }
+
+
+        private void siftUp(int[] heap, double[] keys, int child, int order) {
+            while (child > 0) {
+                int parent = (child - 1) >>> 1;
+                if (!before(heap[parent], keys[parent], heap[child], keys[child], order)) {
+                    return;
+                }
+                swap(heap, keys, parent, child);
+                child = parent;
+            }
+        }
+
+
+        private void siftDown(int[] heap, double[] keys, int size, int order) {
+            int parent = 0;
+            while (true) {
+                int worst = parent;
+                int left = 2 * parent + 1;
+                if (left < size && before(heap[worst], keys[worst], heap[left], keys[left], order)) {
+                    worst = left;
+                }
+                if (left + 1 < size && before(heap[worst], keys[worst], heap[left + 1], keys[left + 1], order)) {
+                    worst = left + 1;
+                }
+                if (worst == parent) {
+                    return;
+                }
+                swap(heap, keys, parent, worst);
+                parent = worst;
+            }
+        }
+
+
+        private static void swap(int[] heap, double[] keys, int i, int j) {
+            int entry = heap[i];
+            heap[i] = heap[j];
+            heap[j] = entry;
+            double key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+        }
+
+
+        private int priority(int entry) {
+            return mBlocks[entry / BLOCK_CAPACITY].mPriorities[entry % BLOCK_CAPACITY];
+        }
+
+
+        /**
+         * @return true if entry a comes before entry b in the queue order. Ties are broken by combinedDue.
+         */
+        private boolean before(int a, double keyA, int b, double keyB, int order) {
+            Block blockA = mBlocks[a / BLOCK_CAPACITY];
+            Block blockB = mBlocks[b / BLOCK_CAPACITY];
+            int i = a % BLOCK_CAPACITY;
+            int j = b % BLOCK_CAPACITY;
+            if (blockA.mPriorities[i] != blockB.mPriorities[j]) {
+                return blockA.mPriorities[i] > blockB.mPriorities[j];
+            }
+            int result;
+            switch (order) {
+                case ORDER_PRIORITY_INTERVAL_DESC:
+                    result = Double.compare(blockB.mIntervals[j], blockA.mIntervals[i]);
+                    break;
+                case ORDER_PRIORITY_INTERVAL:
+                    result = Double.compare(blockA.mIntervals[i], blockB.mIntervals[j]);
+                    break;
+                case ORDER_PRIORITY_RANDOM:
+                    result = Double.compare(keyA, keyB);
+                    break;
+                case ORDER_PRIORITY_DUE:
+                    result = Double.compare(blockA.mDues[i], blockB.mDues[j]);
+                    break;
+                case ORDER_PRIORITY_DUE_DESC:
+                    result = Double.compare(blockB.mDues[j], blockA.mDues[i]);
+                    break;
+                default:
+                    result = 0;
+                    break;
+            }
+            return result != 0 ? result < 0 : a < b;
+        }
+
+
+        /**
+         * @return the block which holds the entry, or would hold it if it was inserted
+         */
+        private int findBlock(double combinedDue, long cardId) {
+            int low = 0;
+            int high = mBlockCount - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                Block block = mBlocks[middle];
+                if (block.compare(block.mSize - 1, combinedDue, cardId) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+
+        private void addBlock(int b, Block block) {
+            if (mBlockCount == mBlocks.length) {
+                mBlocks = Arrays.copyOf(mBlocks, mBlockCount * 2);
+            }
+            System.arraycopy(mBlocks, b, mBlocks, b + 1, mBlockCount - b);
+            mBlocks[b] = block;
+            mBlockCount++;
+        }
+
+
+        private void add(int b, int delta) {
+            for (int i = b + 1; i < mTree.length; i += i & -i) {
+                mTree[i] += delta;
+            }
+        }
+
+
+        /**
+         * Rebuild the tree of block sizes after blocks were added or removed, in linear time.
+         */
+        private void rebuildTree() {
+            mTree = new int[mBlocks.length + 1];
+            for (int i = 1; i <= mBlockCount; i++) {
+                mTree[i] += mBlocks[i - 1].mSize;
+                int parent = i + (i & -i);
+                if (parent < mTree.length) {
+                    mTree[parent] += mTree[i];
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Up to BLOCK_CAPACITY cards in parallel arrays sorted by (combinedDue, cardId), with their highest priority.
+     */
+    private static final class Block {
+        private final long[] mCardIds = new long[BLOCK_CAPACITY];
+        private final long[] mFactIds = new long[BLOCK_CAPACITY];
+        private final int[] mPriorities = new int[BLOCK_CAPACITY];
+        private final double[] mCombinedDue = new double[BLOCK_CAPACITY];
+        private final double[] mIntervals = new double[BLOCK_CAPACITY];
+        private final double[] mDues = new double[BLOCK_CAPACITY];
+        private int mSize = 0;
+        private int mMaxPriority = Integer.MIN_VALUE;
+
+
+        void insert(int i, long cardId, long factId, int priority, double combinedDue, double interval,
+                double due) {
+            int moved = mSize - i;
+            System.arraycopy(mCardIds, i, mCardIds, i + 1, moved);
+            System.arraycopy(mFactIds, i, mFactIds, i + 1, moved);
+            System.arraycopy(mPriorities, i, mPriorities, i + 1, moved);
+            System.arraycopy(mCombinedDue, i, mCombinedDue, i + 1, moved);
+            System.arraycopy(mIntervals, i, mIntervals, i + 1, moved);
+            System.arraycopy(mDues, i, mDues, i + 1, moved);
+            mCardIds[i] = cardId;
+            mFactIds[i] = factId;
+            mPriorities[i] = priority;
+            mCombinedDue[i] = combinedDue;
+            mIntervals[i] = interval;
+            mDues[i] = due;
+            mSize++;
+            mMaxPriority = Math.max(mMaxPriority, priority);
+        }
+
+
+        void remove(int i) {
+            int priority = mPriorities[i];
+            int moved = mSize - i - 1;
+            System.arraycopy(mCardIds, i + 1, mCardIds, i, moved);
+            System.arraycopy(mFactIds, i + 1, mFactIds, i, moved);
+            System.arraycopy(mPriorities, i + 1, mPriorities, i, moved);
+            System.arraycopy(mCombinedDue, i + 1, mCombinedDue, i, moved);
+            System.arraycopy(mIntervals, i + 1, mIntervals, i, moved);
+            System.arraycopy(mDues, i + 1, mDues, i, moved);
+            mSize--;
+            if (priority == mMaxPriority) {
+                updateMaxPriority();
+            }
+        }
+
+
+        /**
+         * Move the upper half of the cards to a new block.
+         *
+         * @return the new block
+         */
+        Block split() {
+            Block upper = new Block();
+            int half = mSize / 2;
+            int moved = mSize - half;
+            System.arraycopy(mCardIds, half, upper.mCardIds, 0, moved);
+            System.arraycopy(mFactIds, half, upper.mFactIds, 0, moved);
+            System.arraycopy(mPriorities, half, upper.mPriorities, 0, moved);
+            System.arraycopy(mCombinedDue, half, upper.mCombinedDue, 0, moved);
+            System.arraycopy(mIntervals, half, upper.mIntervals, 0, moved);
+            System.arraycopy(mDues, half, upper.mDues, 0, moved);
+            upper.mSize = moved;
+            mSize = half;
+            upper.updateMaxPriority();
+            updateMaxPriority();
+            return upper;
+        }
+
+
+        private void updateMaxPriority() {
+            mMaxPriority = Integer.MIN_VALUE;
+            for (int i = 0; i < mSize; i++) {
+                mMaxPriority = Math.max(mMaxPriority, mPriorities[i]);
+            }
+        }
+
+
+        /**
+         * @return the number of cards with combinedDue strictly before the cutoff
+         */
+        int countBefore(double before) {
+            int low = 0;
+            int high = mSize;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (mCombinedDue[middle] < before) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+
+        int compare(int i, double combinedDue, long cardId) {
+            int result = Double.compare(mCombinedDue[i], combinedDue);
+            if (result != 0) {
+                return result;
+            }
+            return mCardIds[i] < cardId ? -1 : (mCardIds[i] == cardId ? 0 : 1);
+        }
+
+
+        /**
+         * @return the offset of the card, or (-(insertion point) - 1) if it is not in the block
+         */
+        int search(double combinedDue, long cardId) {
+            int low = 0;
+            int high = mSize - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int result = compare(middle, combinedDue, cardId);
+                if (result < 0) {
+                    low = middle + 1;
+                } else if (result > 0) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -(low + 1);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ichi2.anki.Utils;
+import com.ichi2.anki.db.AnkiDb;
+
+/**
+ * Number of failed, review and new cards per due day, and the total numbers of cards and facts, kept in a temporary
+ * dueCounts table on the writer connection of the deck. Temporary triggers update it with every write to the cards and
+ * facts tables, whatever the code path (answers, suspend, bury, undo, sync...), so due counts are a sum over a few days
+ * instead of a count over the cards.
+ *
+ * By default nothing is stored in the deck: the table is built when the deck is opened, and goes with the connection.
+ * Every write of the session goes through the writer connection and its triggers, so it stays right until then. A
+ * persistent table (openPersistent) is kept in the deck file instead, with a stamp of the anchor and the deck
+ * modification time written at close. The next open checks the stamp and check() instead of rebuilding; the stamp is
+ * removed while the deck is open, so counts left by a session which did not close are rebuilt.
+ *
+ * Days start at a fixed offset from UTC midnight, the anchor, chosen when the table is built; a card is counted on day
+ * floor((combinedDue - anchor) / 86400). A cutoff which is not on a day boundary (perDay off, or the anchor moved with
+ * daylight saving time) adds a range count over the cards of the last day only.
+ */
+public class DueCounts {
+
+    private static Logger log = LoggerFactory.getLogger(DueCounts.class);
+
+    // Rows of the totals, below any card type
+    private static final int TOTAL_CARDS = -10;
+    private static final int TOTAL_FACTS = -11;
+    // Row of the stamp of a persistent table, with the anchor as day and the modification time in ms as count
+    private static final int STAMP = -12;
+
+    private final AnkiDb mDb;
+    private final long mAnchor;
+    private final boolean mPersistent;
+
+
+    private DueCounts(AnkiDb db, long anchor, boolean persistent) {
+        mDb = db;
+        mAnchor = anchor;
+        mPersistent = persistent;
+    }
+
+
+    /**
+     * Create and fill the table, and install the triggers, on the writer connection of a deck.
+     *
+     * @param anchor
+     *            seconds from UTC midnight to the start of a day, in [0, 86400)
+     */
+    public static DueCounts open(AnkiDb db, long anchor) {
+        DueCounts counts = new DueCounts(db, anchor, false);
+        db.beginTransaction();
+        try {
+            db.execSQL("CREATE TEMPORARY TABLE IF NOT EXISTS dueCounts (type INTEGER NOT NULL, day INTEGER NOT NULL, "
+                    + "count INTEGER NOT NULL, PRIMARY KEY (type, day))");
+            counts.addTriggers();
+            counts.rebuild();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return counts;
+    }
+
+
+    /**
+     * Open the dueCounts table kept in the deck file, creating it if needed, and install the triggers. The counts are
+     * only rebuilt if the stamp left by the last close() does not match anchor and modified, or check() fails.
+     *
+     * @param anchor
+     *            seconds from UTC midnight to the start of a day, in [0, 86400)
+     * @param modified
+     *            the modification time of the deck, which changes when the deck is written without the triggers
+     */
+    public static DueCounts openPersistent(AnkiDb db, long anchor, double modified) {
+        DueCounts counts = new DueCounts(db, anchor, true);
+        db.beginTransaction();
+        try {
+            db.execSQL("CREATE TABLE IF NOT EXISTS main.dueCounts (type INTEGER NOT NULL, day INTEGER NOT NULL, "
+                    + "count INTEGER NOT NULL, PRIMARY KEY (type, day))");
+            counts.addTriggers();
+            if (db.queryScalar("SELECT count(*) FROM dueCounts WHERE type = " + STAMP + " AND day = " + anchor
+                    + " AND count = " + stamp(modified)) == 1 && counts.check()) {
+                log.info("DueCounts - kept the stored counts");
+            } else {
+                counts.rebuild();
+            }
+            db.execSQL("DELETE FROM dueCounts WHERE type = " + STAMP);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return counts;
+    }
+
+
+    /**
+     * Drop the triggers, and the table unless it is persistent.
+     *
+     * @param modified
+     *            the modification time of the deck, stamped on a persistent table; written last, after the deck
+     */
+    public void close(double modified) {
+        mDb.beginTransaction();
+        try {
+            for (String trigger : new String[] { "cards_it", "cards_dt", "cards_ut", "facts_it", "facts_dt" }) {
+                mDb.execSQL("DROP TRIGGER IF EXISTS _dueCounts_" + trigger);
+            }
+            if (mPersistent) {
+                mDb.execSQL("INSERT OR REPLACE INTO dueCounts VALUES (" + STAMP + ", " + mAnchor + ", "
+                        + stamp(modified) + ")");
+            } else {
+                mDb.execSQL("DROP TABLE IF EXISTS temp.dueCounts");
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+
+    /**
+     * Drop the table and the triggers, see close(double).
+     */
+    public void close() {
+        close(0);
+    }
+
+
+    public long getAnchor() {
+        return mAnchor;
+    }
+
+
+    /**
+     * @return the number of cards of type with combinedDue before the cutoff, or -1 on error
+     */
+    public int count(int type, double cutoff) {
+        long day = (long) Math.floor((cutoff - mAnchor) / 86400.0);
+        double dayStart = mAnchor + 86400.0 * day;
+        long count = sum("type = " + type + " AND day < " + day);
+        if (count != -1 && cutoff > dayStart) {
+            long rest = mDb.queryScalar(String.format(Utils.ENGLISH_LOCALE, "SELECT count(*) FROM cards "
+                    + "WHERE type = %d AND combinedDue >= %f AND combinedDue < %f", type, dayStart, cutoff));
+            count = rest != -1 ? count + rest : -1;
+        }
+        return (int) count;
+    }
+
+
+    /**
+     * @return the number of cards, or -1 on error
+     */
+    public int cardCount() {
+        return (int) sum("type = " + TOTAL_CARDS);
+    }
+
+
+    /**
+     * @return the number of facts, or -1 on error
+     */
+    public int factCount() {
+        return (int) sum("type = " + TOTAL_FACTS);
+    }
+
+
+    /**
+     * Compare the number of counted cards of each type and the totals with the cards and facts tables. Cheaper than
+     * a rebuild, but does not see a card counted on the wrong day.
+     *
+     * @return true if they match
+     */
+    public boolean check() {
+        for (int type = Card.TYPE_FAILED; type <= Card.TYPE_NEW; type++) {
+            if (sum("type = " + type) != mDb.queryScalar("SELECT count(*) FROM cards WHERE type = " + type)) {
+                return false;
+            }
+        }
+        return sum("type = " + TOTAL_CARDS) == mDb.queryScalar("SELECT count(*) FROM cards")
+                && sum("type = " + TOTAL_FACTS) == mDb.queryScalar("SELECT count(*) FROM facts");
+    }
+
+
+    /**
+     * Recount everything from the cards and facts tables, in one transaction.
+     */
+    public void rebuild() {
+        long start = System.currentTimeMillis();
+        mDb.beginTransaction();
+        try {
+            mDb.execSQL("DELETE FROM dueCounts");
+            mDb.execSQL("INSERT INTO dueCounts SELECT type, day, count(*) FROM (SELECT type, " + day("cards")
+                    + " AS day FROM cards WHERE type BETWEEN 0 AND 2) GROUP BY type, day");
+            mDb.execSQL("INSERT INTO dueCounts SELECT " + TOTAL_CARDS + ", 0, count(*) FROM cards");
+            mDb.execSQL("INSERT INTO dueCounts SELECT " + TOTAL_FACTS + ", 0, count(*) FROM facts");
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        log.info("DueCounts - rebuilt in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+
+    private static long stamp(double modified) {
+        return Math.round(modified * 1000);
+    }
+
+
+    /**
+     * @return the sum of the counts of the rows matching where, or -1 on error
+     */
+    private long sum(final String where) {
+        // The table belongs to the writer connection
+        return mDb.runOnWriter(new Callable<Long>() {
+            public Long call() {
+                return mDb.queryScalar("SELECT ifnull(sum(count), 0) FROM dueCounts WHERE " + where);
+            }
+        });
+    }
+
+
+    private void addTriggers() {
+        String total = "UPDATE dueCounts SET count = count %s 1 WHERE type = %d AND day = 0;";
+        mDb.execSQL("CREATE TEMPORARY TRIGGER IF NOT EXISTS _dueCounts_cards_it AFTER INSERT ON cards BEGIN "
+                + String.format(total, "+", TOTAL_CARDS) + count("new", "+") + " END");
+        mDb.execSQL("CREATE TEMPORARY TRIGGER IF NOT EXISTS _dueCounts_cards_dt AFTER DELETE ON cards BEGIN "
+                + String.format(total, "-", TOTAL_CARDS) + count("old", "-") + " END");
+        mDb.execSQL("CREATE TEMPORARY TRIGGER IF NOT EXISTS _dueCounts_cards_ut AFTER UPDATE OF type, combinedDue "
+                + "ON cards WHEN old.type != new.type OR old.combinedDue != new.combinedDue BEGIN "
+                + count("old", "-") + count("new", "+") + " END");
+        mDb.execSQL("CREATE TEMPORARY TRIGGER IF NOT EXISTS _dueCounts_facts_it AFTER INSERT ON facts BEGIN "
+                + String.format(total, "+", TOTAL_FACTS) + " END");
+        mDb.execSQL("CREATE TEMPORARY TRIGGER IF NOT EXISTS _dueCounts_facts_dt AFTER DELETE ON facts BEGIN "
+                + String.format(total, "-", TOTAL_FACTS) + " END");
+    }
+
+
+    /**
+     * @return trigger statements adding or removing the card row in the count of its type and day
+     */
+    private String count(String row, String sign) {
+        String type = row + ".type";
+        String day = day(row);
+        String counted = type + " BETWEEN 0 AND 2";
+        StringBuilder sb = new StringBuilder();
+        if (sign.equals("+")) {
+            sb.append("INSERT OR IGNORE INTO dueCounts SELECT ").append(type).append(", ").append(day).append(", 0 ")
+                    .append("WHERE ").append(counted).append("; ");
+        }
+        sb.append("UPDATE dueCounts SET count = count ").append(sign).append(" 1 WHERE ").append(counted)
+                .append(" AND type = ").append(type).append(" AND day = ").append(day).append(";");
+        return sb.toString();
+    }
+
+
+    /**
+     * @return the day of the card row, rounded down like count() does: CAST alone rounds towards zero
+     */
+    private String day(String row) {
+        String days = "((" + row + ".combinedDue - " + mAnchor + ") / 86400.0)";
+        return "(CASE WHEN " + days + " >= 0 OR " + days + " = CAST(" + days + " AS INTEGER) THEN CAST(" + days
+                + " AS INTEGER) ELSE CAST(" + days + " AS INTEGER) - 1 END)";
+    }
+}
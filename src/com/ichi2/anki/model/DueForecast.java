@@ -0,0 +1,230 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import com.ichi2.anki.db.AnkiDb;
+import com.ichi2.anki.db.Row;
+import com.ichi2.anki.db.RowCallback;
+
+/**
+ * Review cards due per day over the next days, from one query and one pass over the cards: the same numbers as
+ * {@link Deck#getNextDueCards(int)} and {@link Deck#getNextDueMatureCards(int)} for every day at once. Day 0 is the day
+ * ending at the due cutoff, day i the day ending i days later.
+ *
+ * With projection on, the scheduling columns of the cards are kept, and {@link #project(IntervalSimulator, int)} can
+ * count the reviews of the coming days as if every card was answered when due.
+ */
+public class DueForecast {
+
+    private final double mDueCutoff;
+    private final int mDays;
+    private final int[] mDue;
+    private final int[] mMature;
+
+    // Scheduling columns of the cards, kept for projection
+    private final boolean mProjection;
+    private int mSize = 0;
+    private double[] mCombinedDue;
+    private double[] mInterval;
+    private double[] mFactor;
+    private double[] mLastInterval;
+    private double[] mFuzz;
+
+
+    private DueForecast(double dueCutoff, int days, boolean projection) {
+        mDueCutoff = dueCutoff;
+        mDays = days;
+        mDue = new int[days];
+        mMature = new int[days];
+        mProjection = projection;
+        if (projection) {
+            mCombinedDue = new double[256];
+            mInterval = new double[256];
+            mFactor = new double[256];
+            mLastInterval = new double[256];
+            mFuzz = new double[256];
+        }
+    }
+
+
+    /**
+     * @param sql a query over the review cards of the deck as "c", limited to the active tags, returning combinedDue,
+     *            interval, priority, factor, lastInterval and fuzz in this order
+     * @param projection true to keep the cards for project()
+     * @return the forecast, or null on error
+     */
+    static DueForecast scan(AnkiDb db, String sql, double dueCutoff, int days, boolean projection) {
+        final DueForecast forecast = new DueForecast(dueCutoff, days, projection);
+        int count = db.forEachRow(sql, new RowCallback() {
+            public void onRow(Row row) throws SQLException {
+                forecast.add(row.getDouble(1), row.getDouble(2), row.getInt(3), row.getDouble(4), row.getDouble(5),
+                        row.getDouble(6));
+            }
+        });
+        return count != -1 ? forecast : null;
+    }
+
+
+    /**
+     * @return the start of the first day a forecast over the cards due before the cutoff needs
+     */
+    static double start(double dueCutoff) {
+        return dueCutoff - 86400;
+    }
+
+
+    /**
+     * @return the end of the last day of a forecast over days days
+     */
+    static double end(double dueCutoff, int days) {
+        return dueCutoff + 86400.0 * (days - 1);
+    }
+
+
+    public int getDays() {
+        return mDays;
+    }
+
+
+    /**
+     * @return the number of review cards, not suspended or buried, due on the day
+     */
+    public int getDueCards(int day) {
+        return mDue[day];
+    }
+
+
+    /**
+     * @return the number of mature review cards due on the day
+     */
+    public int getDueMatureCards(int day) {
+        return mMature[day];
+    }
+
+
+    /**
+     * Count the reviews of the next days if every card, overdue ones first thing today, is answered with ease when due,
+     * with the intervals given by the simulator. A card counts once for each time it comes up again within the days.
+     * Only available if the forecast was scanned with projection on.
+     *
+     * @return the number of reviews per day
+     */
+    public int[] project(IntervalSimulator simulator, int ease) {
+        if (!mProjection) {
+            throw new IllegalStateException("DueForecast - scanned without projection");
+        }
+        int[] reviews = new int[mDays];
+        double start = start(mDueCutoff);
+        IntervalSimulator.Cards cards = new IntervalSimulator.Cards(mSize);
+        cards.delay = new double[mSize];
+        cards.rev = new boolean[mSize];
+        cards.nextDue = null;
+        System.arraycopy(mInterval, 0, cards.interval, 0, mSize);
+        System.arraycopy(mFactor, 0, cards.factor, 0, mSize);
+        System.arraycopy(mLastInterval, 0, cards.lastInterval, 0, mSize);
+        System.arraycopy(mFuzz, 0, cards.fuzz, 0, mSize);
+        Arrays.fill(cards.ease, ease);
+        Arrays.fill(cards.rev, true);
+        double[] due = Arrays.copyOf(mCombinedDue, mSize);
+        double[] answered = new double[mSize];
+
+        // Each round answers every card still due within the days once, the cards that come up again being moved to
+        // the front of the arrays for the next round
+        int size = mSize;
+        while (size > 0) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                double answer = Math.max(due[i], start);
+                int day = day(answer);
+                if (day >= mDays) {
+                    continue;
+                }
+                reviews[day]++;
+                if (kept != i) {
+                    due[kept] = due[i];
+                    cards.interval[kept] = cards.interval[i];
+                    cards.factor[kept] = cards.factor[i];
+                    cards.lastInterval[kept] = cards.lastInterval[i];
+                    cards.fuzz[kept] = cards.fuzz[i];
+                }
+                answered[kept] = answer;
+                cards.delay[kept] = (answer - due[kept]) / 86400.0;
+                kept++;
+            }
+            simulator.simulate(cards, 0, kept, 0);
+            size = 0;
+            for (int i = 0; i < kept; i++) {
+                double next = cards.nextInterval[i];
+                double nextDue = simulator.nextDue(cards.interval[i] > Card.MATURE_THRESHOLD, next, ease, answered[i]);
+                // A card which would not move forward is counted once only
+                if (nextDue <= answered[i]) {
+                    continue;
+                }
+                due[size] = nextDue;
+                cards.lastInterval[size] = cards.interval[i];
+                cards.interval[size] = next;
+                cards.factor[size] = cards.factor[i];
+                cards.fuzz[size] = cards.fuzz[i];
+                size++;
+            }
+        }
+        return reviews;
+    }
+
+
+    private void add(double combinedDue, double interval, int priority, double factor, double lastInterval,
+            double fuzz) {
+        if (combinedDue >= start(mDueCutoff)) {
+            int day = day(combinedDue);
+            if (day < mDays) {
+                if (priority > -1) {
+                    mDue[day]++;
+                }
+                if (interval >= Card.MATURE_THRESHOLD) {
+                    mMature[day]++;
+                }
+            }
+        }
+        if (!mProjection || priority <= -1) {
+            return;
+        }
+        if (mSize == mCombinedDue.length) {
+            int capacity = mSize * 2;
+            mCombinedDue = Arrays.copyOf(mCombinedDue, capacity);
+            mInterval = Arrays.copyOf(mInterval, capacity);
+            mFactor = Arrays.copyOf(mFactor, capacity);
+            mLastInterval = Arrays.copyOf(mLastInterval, capacity);
+            mFuzz = Arrays.copyOf(mFuzz, capacity);
+        }
+        mCombinedDue[mSize] = combinedDue;
+        mInterval[mSize] = interval;
+        mFactor[mSize] = factor;
+        mLastInterval[mSize] = lastInterval;
+        mFuzz[mSize] = fuzz;
+        mSize++;
+    }
+
+
+    /**
+     * @return the day a time falls on, time being at least the start of day 0
+     */
+    private int day(double time) {
+        double day = Math.floor((time - start(mDueCutoff)) / 86400.0);
+        return day >= mDays ? mDays : (int) day;
+    }
+}
@@ -204,14 +204,15 @@ public class Fact {
         updateValues.put("modified", now);
         updateValues.put("tags", mTags);
         updateValues.put("spaceUntil", mSpaceUntil);
-        mDeck.getDB().update(mDeck, "facts", updateValues, "id = " + mId);
+        mDeck.getDB().update("facts", updateValues, "id = ?", mId);
 
         // update fields table
         for (Field f : mFields) {
             updateValues = new HashMap<String, Object>();
             updateValues.put("value", f.mValue);
-            mDeck.getDB().update(mDeck, "fields", updateValues, "id = " + f.mFieldId);
+            mDeck.getDB().update("fields", updateValues, "id = ?", f.mFieldId);
         }
+        mDeck.factWritten(mId);
     }
 
 
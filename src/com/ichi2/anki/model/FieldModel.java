@@ -142,7 +142,7 @@ public class FieldModel implements Comparator<FieldModel> {
         values.put("quizFontFamily", mQuizFontFamily);
         values.put("quizFontSize", mQuizFontSize);
         values.put("quizFontColour", mQuizFontColour);
-        deck.getDB().update(deck, "fieldModels", values, "id = " + mId);
+        deck.getDB().update("fieldModels", values, "id = ?", mId);
     }
 
 
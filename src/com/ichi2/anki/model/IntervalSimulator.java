@@ -0,0 +1,331 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The scheduling arithmetic of a deck, on its own: next interval and next due of a card from its scheduling columns,
+ * for one card or for whole columns of cards held in primitive arrays. The deck schedules answered cards with it, and
+ * the bulk methods use the same code, so a forecast gives exactly what answering would.
+ *
+ * A simulator starts with a copy of the settings of its deck; changing them does not touch the deck or its database,
+ * so they can be used to see what other settings would do.
+ */
+public class IntervalSimulator {
+
+    /** Cards per chunk below which a parallel run does not split any further */
+    public static final int DEFAULT_CHUNK_SIZE = 16384;
+
+    private double mHardIntervalMin;
+    private double mHardIntervalMax;
+    private double mMidIntervalMin;
+    private double mMidIntervalMax;
+    private double mEasyIntervalMin;
+    private double mEasyIntervalMax;
+    private double mDelay2;
+    private long mDelay1;
+    private double mFailedCutoff;
+
+
+    public IntervalSimulator(Deck deck) {
+        mHardIntervalMin = deck.getHardIntervalMin();
+        mHardIntervalMax = deck.getHardIntervalMax();
+        mMidIntervalMin = deck.getMidIntervalMin();
+        mMidIntervalMax = deck.getMidIntervalMax();
+        mEasyIntervalMin = deck.getEasyIntervalMin();
+        mEasyIntervalMax = deck.getEasyIntervalMax();
+        mDelay1 = deck.getDelay1();
+        mDelay2 = deck.getDelay2();
+        mFailedCutoff = deck.getFailedCutoff();
+    }
+
+
+    /**
+     * Columns of cards to schedule, and the arrays the results go to. delay and rev may be null, for cards answered
+     * when due; nextDue may be null when only intervals are wanted. All other arrays must hold at least size values.
+     * Cards are taken as mature when their interval is over Card.MATURE_THRESHOLD, so new cards must have interval 0.
+     */
+    public static class Cards {
+        public double[] interval;
+        public double[] factor;
+        public double[] lastInterval;
+        public double[] fuzz;
+        public int[] ease;
+        /** Days since the card was due, negative when reviewed early, as from Card.adjustedDelay() */
+        public double[] delay;
+        /** True for cards with successive correct answers, as Card.isRev() */
+        public boolean[] rev;
+        public int size;
+
+        public double[] nextInterval;
+        public double[] nextDue;
+
+
+        public Cards(int size) {
+            this.size = size;
+            interval = new double[size];
+            factor = new double[size];
+            lastInterval = new double[size];
+            fuzz = new double[size];
+            ease = new int[size];
+            nextInterval = new double[size];
+            nextDue = new double[size];
+        }
+    }
+
+
+    /**
+     * @return the next interval of a card, in days
+     */
+    public double nextInterval(double interval, double factor, double lastInterval, double fuzz, double delay,
+            boolean rev, int ease) {
+        // if shown early and not failed
+        if ((delay < 0) && rev) {
+            // FIXME: From libanki: This should recreate lastInterval from interval /
+            // lastFactor, or we lose delay information when reviewing early
+            interval = Math.max(lastInterval, interval + delay);
+            if (interval < mMidIntervalMin) {
+                interval = 0;
+            }
+            delay = 0;
+        }
+
+        // if interval is less than mid interval, use presets
+        if (ease == Card.EASE_FAILED) {
+            interval *= mDelay2;
+            if (interval < mHardIntervalMin) {
+                interval = 0;
+            }
+        } else if (interval == 0) {
+            if (ease == Card.EASE_HARD) {
+                interval = mHardIntervalMin + fuzz * (mHardIntervalMax - mHardIntervalMin);
+            } else if (ease == Card.EASE_MID) {
+                interval = mMidIntervalMin + fuzz * (mMidIntervalMax - mMidIntervalMin);
+            } else if (ease == Card.EASE_EASY) {
+                interval = mEasyIntervalMin + fuzz * (mEasyIntervalMax - mEasyIntervalMin);
+            }
+        } else {
+            // if not cramming, boost initial 2
+            if ((interval < mHardIntervalMax) && (interval > 0.166)) {
+                double mid = (mMidIntervalMin + mMidIntervalMax) / 2.0;
+                interval = mid / factor;
+            }
+            // multiply last interval by factor
+            if (ease == Card.EASE_HARD) {
+                interval = (interval + delay / 4.0) * 1.2;
+            } else if (ease == Card.EASE_MID) {
+                interval = (interval + delay / 2.0) * factor;
+            } else if (ease == Card.EASE_EASY) {
+                interval = (interval + delay) * factor * Deck.FACTOR_FOUR;
+            }
+            interval *= 0.95 + fuzz * (1.05 - 0.95);
+        }
+        interval = Math.min(interval, Deck.MAX_SCHEDULE_TIME);
+        return interval;
+    }
+
+
+    /**
+     * @param mature true if the card was mature before the answer
+     * @param nextInterval the interval given by nextInterval()
+     * @return the next due time of a card, in seconds
+     */
+    public double nextDue(boolean mature, double nextInterval, int ease, double now) {
+        if (ease == Card.EASE_FAILED) {
+            // 600 is a magic value which means no bonus, and is used to ease upgrades
+            if (mature && mDelay1 != 0 && mDelay1 != 600) {
+                // user wants a bonus of 1+ days. put the failed cards at the
+                // start of the future day, so that failures that day will come
+                // after the waiting cards
+                return mFailedCutoff + (mDelay1 - 1) * 86400;
+            }
+            return now;
+        }
+        return nextInterval * 86400.0 + now;
+    }
+
+
+    /**
+     * Schedule the cards from..to-1 on the calling thread.
+     */
+    public void simulate(Cards cards, int from, int to, double now) {
+        double[] interval = cards.interval;
+        double[] factor = cards.factor;
+        double[] lastInterval = cards.lastInterval;
+        double[] fuzz = cards.fuzz;
+        int[] ease = cards.ease;
+        double[] delay = cards.delay;
+        boolean[] rev = cards.rev;
+        double[] nextInterval = cards.nextInterval;
+        double[] nextDue = cards.nextDue;
+        for (int i = from; i < to; i++) {
+            double next = nextInterval(interval[i], factor[i], lastInterval[i], fuzz[i],
+                    delay != null ? delay[i] : 0, rev != null && rev[i], ease[i]);
+            nextInterval[i] = next;
+            if (nextDue != null) {
+                nextDue[i] = nextDue(interval[i] > Card.MATURE_THRESHOLD, next, ease[i], now);
+            }
+        }
+    }
+
+
+    /**
+     * Schedule all the cards on the calling thread.
+     */
+    public void simulate(Cards cards, double now) {
+        simulate(cards, 0, cards.size, now);
+    }
+
+
+    /**
+     * Schedule all the cards in chunks of at most chunkSize cards, run on the pool. Returns when all are done.
+     */
+    public void simulate(ForkJoinPool pool, Cards cards, double now, int chunkSize) {
+        pool.invoke(new Chunk(cards, 0, cards.size, now, Math.max(1, chunkSize)));
+    }
+
+
+    public void simulate(ForkJoinPool pool, Cards cards, double now) {
+        simulate(pool, cards, now, DEFAULT_CHUNK_SIZE);
+    }
+
+
+    private class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Cards mCards;
+        private final int mFrom;
+        private final int mTo;
+        private final double mNow;
+        private final int mChunkSize;
+
+
+        Chunk(Cards cards, int from, int to, double now, int chunkSize) {
+            mCards = cards;
+            mFrom = from;
+            mTo = to;
+            mNow = now;
+            mChunkSize = chunkSize;
+        }
+
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= mChunkSize) {
+                simulate(mCards, mFrom, mTo, mNow);
+                return;
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(new Chunk(mCards, mFrom, middle, mNow, mChunkSize),
+                    new Chunk(mCards, middle, mTo, mNow, mChunkSize));
+        }
+    }
+
+
+    /*
+     * Settings*********************************************************
+     */
+
+    public double getHardIntervalMin() {
+        return mHardIntervalMin;
+    }
+
+
+    public void setHardIntervalMin(double hardIntervalMin) {
+        mHardIntervalMin = hardIntervalMin;
+    }
+
+
+    public double getHardIntervalMax() {
+        return mHardIntervalMax;
+    }
+
+
+    public void setHardIntervalMax(double hardIntervalMax) {
+        mHardIntervalMax = hardIntervalMax;
+    }
+
+
+    public double getMidIntervalMin() {
+        return mMidIntervalMin;
+    }
+
+
+    public void setMidIntervalMin(double midIntervalMin) {
+        mMidIntervalMin = midIntervalMin;
+    }
+
+
+    public double getMidIntervalMax() {
+        return mMidIntervalMax;
+    }
+
+
+    public void setMidIntervalMax(double midIntervalMax) {
+        mMidIntervalMax = midIntervalMax;
+    }
+
+
+    public double getEasyIntervalMin() {
+        return mEasyIntervalMin;
+    }
+
+
+    public void setEasyIntervalMin(double easyIntervalMin) {
+        mEasyIntervalMin = easyIntervalMin;
+    }
+
+
+    public double getEasyIntervalMax() {
+        return mEasyIntervalMax;
+    }
+
+
+    public void setEasyIntervalMax(double easyIntervalMax) {
+        mEasyIntervalMax = easyIntervalMax;
+    }
+
+
+    public long getDelay1() {
+        return mDelay1;
+    }
+
+
+    public void setDelay1(long delay1) {
+        mDelay1 = delay1;
+    }
+
+
+    public double getDelay2() {
+        return mDelay2;
+    }
+
+
+    public void setDelay2(double delay2) {
+        mDelay2 = delay2;
+    }
+
+
+    public double getFailedCutoff() {
+        return mFailedCutoff;
+    }
+
+
+    public void setFailedCutoff(double failedCutoff) {
+        mFailedCutoff = failedCutoff;
+    }
+}
@@ -0,0 +1,55 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+/**
+ * Shows new cards beyond the daily limit.
+ */
+public class LearnMoreScheduler extends StandardScheduler {
+
+    public LearnMoreScheduler(Deck deck) {
+        super(deck);
+    }
+
+
+    @Override
+    public String getName() {
+        return "learnMore";
+    }
+
+
+    @Override
+    public void rebuildNewCount() {
+        mDeck._rebuildLearnMoreCount();
+    }
+
+
+    @Override
+    public void updateNewCountToday() {
+        mDeck._updateLearnMoreCountToday();
+    }
+
+
+    @Override
+    public boolean hasFinishScheduler() {
+        return true;
+    }
+
+
+    @Override
+    public void finishScheduler() {
+        mDeck.setupStandardScheduler();
+    }
+}
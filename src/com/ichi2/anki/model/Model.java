@@ -22,10 +22,12 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -63,13 +65,18 @@ public class Model {
      * variable. If more than one Model is needed, then more RAM is needed, but on the other hand side Model and its
      * related CardModel and FieldModel are not reloaded again and again. This Map uses the Model.id field as key
      */
-    private static HashMap<Long, Model> sModels = new HashMap<Long, Model>();
+    private static ConcurrentHashMap<Long, Model> sModels = new ConcurrentHashMap<Long, Model>();
 
     /**
      * As above but mapping from CardModel to related Model (because when one has a Card, then you need to jump from
      * CardModel to Model.
      */
-    private static HashMap<Long, Model> sCardModelToModelMap = new HashMap<Long, Model>();
+    private static ConcurrentHashMap<Long, Model> sCardModelToModelMap = new ConcurrentHashMap<Long, Model>();
+
+    /** Rough heap sizes used by estimateRetainedSize(), in bytes */
+    private static final long MODEL_SIZE_ESTIMATE = 1024;
+    private static final long CARD_MODEL_SIZE_ESTIMATE = 2048;
+    private static final long FIELD_MODEL_SIZE_ESTIMATE = 512;
 
     // BEGIN SQL table entries
     private long mId; // Primary key
@@ -127,8 +134,41 @@ public class Model {
      * FIXME: this should be called whenever the deck is changed. Otherwise unnecessary space will be used. XXX: Unused
      */
     protected static final void reset() {
-        sModels = new HashMap<Long, Model>();
-        sCardModelToModelMap = new HashMap<Long, Model>();
+        sModels = new ConcurrentHashMap<Long, Model>();
+        sCardModelToModelMap = new ConcurrentHashMap<Long, Model>();
+    }
+
+
+    /**
+     * Drop the loaded Models of a deck, so that a closed deck does not stay reachable from the static maps.
+     */
+    protected static void releaseModels(Deck deck) {
+        for (Iterator<Model> it = sModels.values().iterator(); it.hasNext();) {
+            if (it.next().mDeck == deck) {
+                it.remove();
+            }
+        }
+        for (Iterator<Model> it = sCardModelToModelMap.values().iterator(); it.hasNext();) {
+            if (it.next().mDeck == deck) {
+                it.remove();
+            }
+        }
+    }
+
+
+    /**
+     * @return a rough estimate of the heap retained by the loaded Models of a deck, in bytes
+     */
+    protected static long estimateRetainedSize(Deck deck) {
+        long size = 0;
+        for (Model model : sModels.values()) {
+            if (model.mDeck != deck) {
+                continue;
+            }
+            size += MODEL_SIZE_ESTIMATE + model.mCardModelsMap.size() * CARD_MODEL_SIZE_ESTIMATE
+                    + model.mFieldModelsMap.size() * FIELD_MODEL_SIZE_ESTIMATE;
+        }
+        return size;
     }
 
 
@@ -259,7 +299,7 @@ public class Model {
         values.put("spacing", mSpacing);
         values.put("initialSpacing", mInitialSpacing);
         values.put("source", mSource);
-        deck.getDB().update(deck, "models", values, "id = " + mId);
+        deck.getDB().update("models", values, "id = ?", mId);
     }
 
 
@@ -0,0 +1,230 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+
+package com.ichi2.anki.model;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ichi2.anki.Utils;
+import com.ichi2.anki.db.AnkiDb;
+import com.ichi2.anki.db.BulkUpdate;
+import com.ichi2.anki.db.Row;
+import com.ichi2.anki.db.RowCallback;
+import com.ichi2.utils.LongDoubleMap;
+
+/**
+ * Computes the priorities of cards from the priorities of their tags, in one pass over cardTags sorted by card: a card
+ * gets the highest priority of its tags above normal, else low if one of its tags is low, else normal. The tag
+ * priorities are held in memory, so the pass needs no join with tags, and only the cards whose priority changes are
+ * written back, in batches. Suspended cards keep their priority.
+ *
+ * An updater is meant for one update, inside a transaction of the caller.
+ */
+public class PriorityUpdater {
+
+    private static Logger log = LoggerFactory.getLogger(PriorityUpdater.class);
+
+    private final Deck mDeck;
+    private final AnkiDb mDb;
+    /** tagId -> priority */
+    private LongDoubleMap mTagPriorities;
+
+    // Cards whose priority changes, filled by the pass and written after it
+    private long[] mChangedIds = new long[64];
+    private int[] mChangedPriorities = new int[64];
+    private int mChanged = 0;
+    private int mCards = 0;
+
+
+    public PriorityUpdater(Deck deck, AnkiDb db) {
+        mDeck = deck;
+        mDb = db;
+    }
+
+
+    /**
+     * Give the tags of the priority settings their priority, and every other tag the normal priority, writing only the
+     * tags which change.
+     *
+     * @param low the low priority tags, as a tags string
+     * @param medium the medium priority tags
+     * @param high the high priority tags
+     * @return the ids of the tags which changed
+     */
+    public long[] updateTagPriorities(String low, String medium, String high) {
+        final HashMap<String, Integer> wanted = new HashMap<String, Integer>();
+        for (String tag : Utils.parseTags(low.toLowerCase())) {
+            wanted.put(tag, Card.PRIORITY_LOW);
+        }
+        for (String tag : Utils.parseTags(medium.toLowerCase())) {
+            wanted.put(tag, Card.PRIORITY_MEDIUM);
+        }
+        for (String tag : Utils.parseTags(high.toLowerCase())) {
+            wanted.put(tag, Card.PRIORITY_HIGH);
+        }
+
+        mTagPriorities = new LongDoubleMap();
+        final long[][] changed = new long[][] { new long[16] };
+        final int[] count = new int[1];
+        int rows = mDb.forEachRow("SELECT tag, id, priority FROM tags", new RowCallback() {
+            public void onRow(Row row) throws SQLException {
+                Integer priority = wanted.get(row.getString(1).toLowerCase());
+                int newPriority = priority != null ? priority : Card.PRIORITY_NORMAL;
+                long tagId = row.getLong(2);
+                if (newPriority != row.getInt(3)) {
+                    if (count[0] == changed[0].length) {
+                        changed[0] = Arrays.copyOf(changed[0], count[0] * 2);
+                    }
+                    changed[0][count[0]++] = tagId;
+                }
+                mTagPriorities.put(tagId, newPriority);
+            }
+        });
+        if (rows == -1) {
+            throw new RuntimeException("PriorityUpdater: Error while retrieving tag priorities from DB");
+        }
+
+        long[] tagIds = Arrays.copyOf(changed[0], count[0]);
+        if (tagIds.length > 0) {
+            BulkUpdate update = mDb.bulkUpdate(mDeck, "tags", "id", "priority");
+            try {
+                for (long tagId : tagIds) {
+                    update.addRow((int) mTagPriorities.get(tagId, Card.PRIORITY_NORMAL), tagId);
+                }
+                update.finish();
+            } finally {
+                update.close();
+            }
+        }
+        log.info("PriorityUpdater - " + tagIds.length + " of " + rows + " tag priorities changed");
+        return tagIds;
+    }
+
+
+    /**
+     * Recompute the priorities of some cards, and write those which changed.
+     *
+     * @param cardIds the cards, as a subquery to use after IN, or null for every card
+     * @param dirty true to set the modified time of the changed cards
+     * @return the ids of the cards which changed
+     */
+    public long[] updateCardPriorities(String cardIds, boolean dirty) {
+        if (mTagPriorities == null) {
+            loadTagPriorities();
+        }
+        mChanged = 0;
+        mCards = 0;
+        final long[] card = new long[] { -1, 0, 0, 0 }; // id, priority, max and min of its tags
+        int rows = mDb.forEachRow("SELECT cardTags.cardId, cardTags.tagId, cards.priority FROM cardTags, cards "
+                + "WHERE cards.id = cardTags.cardId AND cards.priority >= " + Card.PRIORITY_BURIED
+                + (cardIds != null ? " AND cardTags.cardId IN " + cardIds : "") + " ORDER BY cardTags.cardId",
+                new RowCallback() {
+                    public void onRow(Row row) throws SQLException {
+                        long cardId = row.getLong(1);
+                        if (cardId != card[0]) {
+                            finishCard(card);
+                            card[0] = cardId;
+                            card[1] = row.getInt(3);
+                            card[2] = Integer.MIN_VALUE;
+                            card[3] = Integer.MAX_VALUE;
+                        }
+                        double priority = mTagPriorities.get(row.getLong(2), Double.NaN);
+                        // Like the join with tags did, rows of missing tags are ignored
+                        if (!Double.isNaN(priority)) {
+                            card[2] = Math.max(card[2], (long) priority);
+                            card[3] = Math.min(card[3], (long) priority);
+                        }
+                    }
+                });
+        if (rows == -1) {
+            throw new RuntimeException("PriorityUpdater: Error while retrieving card tags from DB");
+        }
+        finishCard(card);
+
+        long[] changed = Arrays.copyOf(mChangedIds, mChanged);
+        if (mChanged > 0) {
+            BulkUpdate update = dirty ? mDb.bulkUpdate(mDeck, "cards", "id", "priority", "modified") : mDb.bulkUpdate(
+                    mDeck, "cards", "id", "priority");
+            try {
+                double now = Utils.now();
+                for (int i = 0; i < mChanged; i++) {
+                    if (dirty) {
+                        update.addRow(mChangedPriorities[i], now, mChangedIds[i]);
+                    } else {
+                        update.addRow(mChangedPriorities[i], mChangedIds[i]);
+                    }
+                }
+                update.finish();
+            } finally {
+                update.close();
+            }
+        }
+        log.info("PriorityUpdater - " + mChanged + " of " + mCards + " card priorities changed");
+        return changed;
+    }
+
+
+    /**
+     * @return the priority of a card from the highest and lowest priorities of its tags
+     */
+    public static int cardPriority(int max, int min) {
+        if (max > Card.PRIORITY_NORMAL) {
+            return max;
+        }
+        return min == Card.PRIORITY_LOW ? Card.PRIORITY_LOW : Card.PRIORITY_NORMAL;
+    }
+
+
+    private void loadTagPriorities() {
+        final LongDoubleMap priorities = new LongDoubleMap();
+        int rows = mDb.forEachRow("SELECT id, priority FROM tags", new RowCallback() {
+            public void onRow(Row row) throws SQLException {
+                priorities.put(row.getLong(1), row.getInt(2));
+            }
+        });
+        if (rows == -1) {
+            throw new RuntimeException("PriorityUpdater: Error while retrieving tag priorities from DB");
+        }
+        mTagPriorities = priorities;
+    }
+
+
+    /**
+     * Queue the card of the pass if its priority changes.
+     */
+    private void finishCard(long[] card) {
+        // No card yet, or none of its tags exist
+        if (card[0] == -1 || card[2] == Integer.MIN_VALUE) {
+            return;
+        }
+        mCards++;
+        int priority = cardPriority((int) card[2], (int) card[3]);
+        if (priority == card[1]) {
+            return;
+        }
+        if (mChanged == mChangedIds.length) {
+            mChangedIds = Arrays.copyOf(mChangedIds, mChanged * 2);
+            mChangedPriorities = Arrays.copyOf(mChangedPriorities, mChanged * 2);
+        }
+        mChangedIds[mChanged] = card[0];
+        mChangedPriorities[mChanged] = priority;
+        mChanged++;
+    }
+}
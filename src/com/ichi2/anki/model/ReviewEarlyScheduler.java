@@ -0,0 +1,61 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+/**
+ * Reviews cards before they are due, burying the ones answered correctly until the scheduler is finished.
+ */
+public class ReviewEarlyScheduler extends StandardScheduler {
+
+    public ReviewEarlyScheduler(Deck deck) {
+        super(deck);
+    }
+
+
+    @Override
+    public String getName() {
+        return "reviewEarly";
+    }
+
+
+    @Override
+    public void fillRevQueue() {
+        mDeck._fillRevEarlyQueue();
+    }
+
+
+    @Override
+    public void rebuildRevCount() {
+        mDeck._rebuildRevEarlyCount();
+    }
+
+
+    @Override
+    public boolean hasFinishScheduler() {
+        return true;
+    }
+
+
+    @Override
+    public void finishScheduler() {
+        mDeck._onReviewEarlyFinished();
+    }
+
+
+    @Override
+    public void answerPreSave(Card card, int ease) {
+        mDeck._reviewEarlyPreSave(card, ease);
+    }
+}
@@ -0,0 +1,105 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+/**
+ * The scheduling hooks of a deck: how queues are filled, counts rebuilt, cards answered and requeued. The deck calls
+ * its current scheduler directly for every card, and switches between {@link StandardScheduler},
+ * {@link ReviewEarlyScheduler}, {@link LearnMoreScheduler} and {@link CramScheduler} in
+ * Deck.setupStandardScheduler() and the other setup methods. Custom schedulers can be installed with
+ * {@link Deck#setScheduler(Scheduler)}, typically by extending StandardScheduler.
+ */
+public interface Scheduler {
+
+    /**
+     * @return the name stored in the deck, e.g. "standard" or "cram"
+     */
+    public String getName();
+
+
+    /**
+     * @param check if true and no card is left, collapse spaced cards and look again
+     * @return the id of the next card to show, or 0 if there is none
+     */
+    public long getCardId(boolean check);
+
+
+    public void fillFailedQueue();
+
+
+    public void fillRevQueue();
+
+
+    public void fillNewQueue();
+
+
+    public void rebuildFailedCount();
+
+
+    public void rebuildRevCount();
+
+
+    public void rebuildNewCount();
+
+
+    public void requeueCard(Card card, boolean oldIsRev);
+
+
+    public boolean timeForNewCard();
+
+
+    public void updateNewCountToday();
+
+
+    /**
+     * @return 0 if the card comes from the failed queue, 1 from the review queue, 2 from the new queue
+     */
+    public int cardQueue(Card card);
+
+
+    /**
+     * @return true if this is a temporary scheduler, which finishScheduler() replaces with the standard one
+     */
+    public boolean hasFinishScheduler();
+
+
+    public void finishScheduler();
+
+
+    public void answerCard(Card card, int ease);
+
+
+    /**
+     * Restrict sql, which selects from "cards c", to the cards allowed by the active and inactive tags stored in the
+     * deck variables named active and inactive.
+     */
+    public String cardLimit(String active, String inactive, String sql);
+
+
+    /**
+     * Restrict sql, which selects from "cards c", to the cards with one of the active tags and none of the inactive
+     * ones.
+     */
+    public String cardLimit(String[] active, String[] inactive, String sql);
+
+
+    /**
+     * Called after a card has been answered, before it is saved.
+     */
+    public void answerPreSave(Card card, int ease);
+
+
+    public void spaceCards(Card card);
+}
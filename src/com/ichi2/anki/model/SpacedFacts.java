@@ -0,0 +1,239 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.ichi2.utils.LongDoubleMap;
+
+/**
+ * The facts spaced since the queues were last rebuilt, with the time until which their new cards are held back, and
+ * the scheduling columns of their cards. Spacing the siblings of an answered card is computed on these rows; only
+ * the rows whose combinedDue actually moves are handed out to be written with the answer.
+ *
+ * The rows of a fact are loaded the first time one of its cards is answered, and kept up to date by the deck until
+ * clear(), which reset() calls after any change made outside of answering. Not thread safe.
+ */
+public class SpacedFacts {
+
+    // Heap bytes per spaced fact in the map, and per loaded card row
+    private static final long FACT_SIZE_ESTIMATE = 17;
+    private static final long ROW_SIZE_ESTIMATE = 28;
+    private static final long SIBLINGS_SIZE_ESTIMATE = 96;
+
+    /** factId -> time until which the new cards of the fact are spaced */
+    private final LongDoubleMap mSpacedUntil = new LongDoubleMap();
+    private final HashMap<Long, Siblings> mSiblings = new HashMap<Long, Siblings>();
+    private long mRows = 0;
+
+    // Rows moved by the last space(), to be written
+    private long[] mChangedIds = new long[4];
+    private double[] mChangedDue = new double[4];
+    private int mChanged = 0;
+
+
+    /**
+     * The card rows of one fact, in parallel arrays.
+     */
+    private static final class Siblings {
+        private long[] mCardIds = new long[2];
+        private int[] mTypes = new int[2];
+        private double[] mCombinedDue = new double[2];
+        private double[] mIntervals = new double[2];
+        private int mSize = 0;
+
+
+        void add(long cardId, int type, double combinedDue, double interval) {
+            if (mSize == mCardIds.length) {
+                int capacity = mSize * 2;
+                mCardIds = Arrays.copyOf(mCardIds, capacity);
+                mTypes = Arrays.copyOf(mTypes, capacity);
+                mCombinedDue = Arrays.copyOf(mCombinedDue, capacity);
+                mIntervals = Arrays.copyOf(mIntervals, capacity);
+            }
+            mCardIds[mSize] = cardId;
+            mTypes[mSize] = type;
+            mCombinedDue[mSize] = combinedDue;
+            mIntervals[mSize] = interval;
+            mSize++;
+        }
+
+
+        int indexOf(long cardId) {
+            for (int i = 0; i < mSize; i++) {
+                if (mCardIds[i] == cardId) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+
+    public boolean containsKey(long factId) {
+        return mSpacedUntil.containsKey(factId);
+    }
+
+
+    public double get(long factId, double defaultValue) {
+        return mSpacedUntil.get(factId, defaultValue);
+    }
+
+
+    public void put(long factId, double spacedUntil) {
+        mSpacedUntil.put(factId, spacedUntil);
+    }
+
+
+    /**
+     * Forget the spaced facts and the loaded card rows.
+     */
+    public void clear() {
+        mSpacedUntil.clear();
+        dropSiblings();
+    }
+
+
+    /**
+     * Forget the loaded card rows, after cards have been written to one by one.
+     */
+    public void dropSiblings() {
+        mSiblings.clear();
+        mRows = 0;
+        mChanged = 0;
+    }
+
+
+    /**
+     * @return true if the card rows of the fact are loaded
+     */
+    public boolean hasSiblings(long factId) {
+        return mSiblings.containsKey(factId);
+    }
+
+
+    /**
+     * Load one card row of a fact.
+     */
+    public void addSibling(long factId, long cardId, int type, double combinedDue, double interval) {
+        Siblings siblings = mSiblings.get(factId);
+        if (siblings == null) {
+            siblings = new Siblings();
+            mSiblings.put(factId, siblings);
+        }
+        siblings.add(cardId, type, combinedDue, interval);
+        mRows++;
+    }
+
+
+    /**
+     * Record the new state of an answered card, if the rows of its fact are loaded.
+     */
+    public void cardAnswered(long factId, long cardId, int type, double combinedDue, double interval) {
+        Siblings siblings = mSiblings.get(factId);
+        if (siblings == null) {
+            return;
+        }
+        int i = siblings.indexOf(cardId);
+        if (i == -1) {
+            siblings.add(cardId, type, combinedDue, interval);
+            mRows++;
+        } else {
+            siblings.mTypes[i] = type;
+            siblings.mCombinedDue[i] = combinedDue;
+            siblings.mIntervals[i] = interval;
+        }
+    }
+
+
+    /**
+     * Space the review and new cards of a fact due before the cutoff, except the answered one: review cards are
+     * pushed back by their interval times revSpacing, if that is at least a day, and new cards to newDue. The rows of
+     * the fact must be loaded. The moved rows are available from getChangedCount() until the next call.
+     *
+     * @return the number of rows moved
+     */
+    public int space(long factId, long exceptCardId, double before, double revSpacing, double newDue) {
+        mChanged = 0;
+        Siblings siblings = mSiblings.get(factId);
+        if (siblings == null) {
+            return 0;
+        }
+        for (int i = 0; i < siblings.mSize; i++) {
+            double combinedDue = siblings.mCombinedDue[i];
+            if (siblings.mCardIds[i] == exceptCardId || combinedDue >= before) {
+                continue;
+            }
+            double spaced;
+            if (siblings.mTypes[i] == Card.TYPE_REV) {
+                double delay = siblings.mIntervals[i] * revSpacing;
+                spaced = combinedDue + 86400 * (delay < 1 ? 0 : delay);
+            } else if (siblings.mTypes[i] == Card.TYPE_NEW) {
+                spaced = newDue;
+            } else {
+                continue;
+            }
+            if (spaced != combinedDue) {
+                siblings.mCombinedDue[i] = spaced;
+                addChanged(siblings.mCardIds[i], spaced);
+            }
+        }
+        return mChanged;
+    }
+
+
+    public int getChangedCount() {
+        return mChanged;
+    }
+
+
+    public long getChangedCardId(int i) {
+        return mChangedIds[i];
+    }
+
+
+    public double getChangedCombinedDue(int i) {
+        return mChangedDue[i];
+    }
+
+
+    /**
+     * Forget the moved rows, once they have been written.
+     */
+    public void clearChanged() {
+        mChanged = 0;
+    }
+
+
+    /**
+     * @return a rough estimate of the heap used, in bytes
+     */
+    public long estimateRetainedSize() {
+        return FACT_SIZE_ESTIMATE * mSpacedUntil.capacity() + SIBLINGS_SIZE_ESTIMATE * mSiblings.size()
+                + ROW_SIZE_ESTIMATE * mRows;
+    }
+
+
+    private void addChanged(long cardId, double combinedDue) {
+        if (mChanged == mChangedIds.length) {
+            mChangedIds = Arrays.copyOf(mChangedIds, mChanged * 2);
+            mChangedDue = Arrays.copyOf(mChangedDue, mChanged * 2);
+        }
+        mChangedIds[mChanged] = cardId;
+        mChangedDue[mChanged] = combinedDue;
+        mChanged++;
+    }
+}
@@ -0,0 +1,121 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+/**
+ * The regular scheduler, and the base of the temporary ones, which override some of its hooks.
+ */
+public class StandardScheduler implements Scheduler {
+
+    protected final Deck mDeck;
+
+
+    public StandardScheduler(Deck deck) {
+        mDeck = deck;
+    }
+
+
+    public String getName() {
+        return "standard";
+    }
+
+
+    public long getCardId(boolean check) {
+        return mDeck._getCardId(check);
+    }
+
+
+    public void fillFailedQueue() {
+        mDeck._fillFailedQueue();
+    }
+
+
+    public void fillRevQueue() {
+        mDeck._fillRevQueue();
+    }
+
+
+    public void fillNewQueue() {
+        mDeck._fillNewQueue();
+    }
+
+
+    public void rebuildFailedCount() {
+        mDeck._rebuildFailedCount();
+    }
+
+
+    public void rebuildRevCount() {
+        mDeck._rebuildRevCount();
+    }
+
+
+    public void rebuildNewCount() {
+        mDeck._rebuildNewCount();
+    }
+
+
+    public void requeueCard(Card card, boolean oldIsRev) {
+        mDeck._requeueCard(card, oldIsRev);
+    }
+
+
+    public boolean timeForNewCard() {
+        return mDeck._timeForNewCard();
+    }
+
+
+    public void updateNewCountToday() {
+        mDeck._updateNewCountToday();
+    }
+
+
+    public int cardQueue(Card card) {
+        return mDeck._cardQueue(card);
+    }
+
+
+    public boolean hasFinishScheduler() {
+        return false;
+    }
+
+
+    public void finishScheduler() {
+    }
+
+
+    public void answerCard(Card card, int ease) {
+        mDeck._answerCard(card, ease);
+    }
+
+
+    public String cardLimit(String active, String inactive, String sql) {
+        return mDeck._cardLimit(active, inactive, sql);
+    }
+
+
+    public String cardLimit(String[] active, String[] inactive, String sql) {
+        return mDeck._cardLimit(active, inactive, sql);
+    }
+
+
+    public void answerPreSave(Card card, int ease) {
+    }
+
+
+    public void spaceCards(Card card) {
+        mDeck._spaceCards(card);
+    }
+}
@@ -182,13 +182,7 @@ public class Stats {
 
 
     public void toDB() {
-        mDeck.getDB().update(mDeck, "stats", getValues(), "id = " + mId);
-    }
-
-
-    public void toDB(Map<String, Object> oldValues) {
-        mDeck.getDB().update(mDeck, "stats", getValues(), "id = " + mId, true,
-        	(HashMap<String, Object>[]) new Object[] {oldValues}, new String[] {"id = " + mId});
+        mDeck.getDB().update("stats", getValues(), "id = ?", mId);
     }
 
 
@@ -225,7 +219,6 @@ public class Stats {
 
 
     public static void updateStats(Stats stats, Card card, int ease, String oldState) {
-    	Map<String, Object> oldValues = new HashMap<String, Object>();
         char[] newState = oldState.toCharArray();
         stats.mReps += 1;
         double delay = card.totalTime();
@@ -246,7 +239,7 @@ public class Stats {
         } catch (Exception e) {
             log.error("Failed to update " + attr.toString() + " : " + e.getMessage());
         }
-        stats.toDB(oldValues);
+        stats.toDB();
     }
 
 
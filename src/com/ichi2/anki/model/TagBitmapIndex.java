@@ -0,0 +1,282 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ichi2.anki.db.AnkiDb;
+import com.ichi2.anki.db.Row;
+import com.ichi2.anki.db.RowCallback;
+import com.ichi2.utils.LongDoubleMap;
+import com.ichi2.utils.RoaringBitmap;
+
+/**
+ * In-memory copy of the cardTags table of a deck: one compressed bitmap of cards per tag and source (fact, model or
+ * template). Cards are numbered densely in the order they are first seen, since card ids are too sparse for bitmaps.
+ * A tag limit of active and inactive tags becomes a union and a difference of bitmaps, which the due card index and
+ * the card lists then test cards against, instead of joining the cards with cardTags.
+ *
+ * The deck keeps it up to date through TagIndexer and its own writes to cardTags; after anything else writes to
+ * cardTags it must be rebuilt.
+ */
+public class TagBitmapIndex {
+
+    private static Logger log = LoggerFactory.getLogger(TagBitmapIndex.class);
+
+    /**
+     * Cards selected by a tag limit. The filter holds its own bitmap and the card numbers as they were when it was
+     * made, which the index no longer changes, so it is tested against without taking the lock of the index.
+     */
+    public final class Filter implements DueCardIndex.CardFilter {
+        private final LongDoubleMap mOrdinals;
+        private final RoaringBitmap mCards;
+        private final boolean mInclude;
+        private final int mVersion;
+
+
+        private Filter(LongDoubleMap ordinals, RoaringBitmap cards, boolean include, int version) {
+            mOrdinals = ordinals;
+            mCards = cards;
+            mInclude = include;
+            mVersion = version;
+        }
+
+
+        public boolean accept(long cardId) {
+            int ordinal = (int) mOrdinals.get(cardId, -1);
+            if (mInclude) {
+                return ordinal != -1 && mCards.contains(ordinal);
+            }
+            return ordinal == -1 || !mCards.contains(ordinal);
+        }
+
+
+        /**
+         * @return true if no card has been tagged or untagged since the filter was made
+         */
+        public boolean isCurrent() {
+            return mVersion == getVersion();
+        }
+    }
+
+    /** cardId -> card number; the numbers are ints, which doubles hold exactly */
+    private LongDoubleMap mOrdinals = new LongDoubleMap();
+    /** True while filters hold mOrdinals; it is then copied before it is changed */
+    private boolean mOrdinalsShared = false;
+    /** card number -> cardId */
+    private long[] mCardIds = new long[16];
+    private int mNextOrdinal = 0;
+    /** (tagId, src) key -> cards */
+    private final HashMap<Long, RoaringBitmap> mBitmaps = new HashMap<Long, RoaringBitmap>();
+    private int mVersion = 0;
+
+
+    private TagBitmapIndex() {
+    }
+
+
+    /**
+     * Load the cardTags table of a deck.
+     *
+     * @return the index, or null if the table could not be read
+     */
+    public static TagBitmapIndex build(AnkiDb db) {
+        long start = System.currentTimeMillis();
+        final TagBitmapIndex index = new TagBitmapIndex();
+        int rows = db.forEachRow("SELECT cardId, tagId, src FROM cardTags ORDER BY cardId", new RowCallback() {
+            public void onRow(Row row) throws SQLException {
+                index.add(row.getLong(1), row.getLong(2), row.getInt(3));
+            }
+        });
+        if (rows == -1) {
+            log.error("TagBitmapIndex - could not read cardTags");
+            return null;
+        }
+        log.info("TagBitmapIndex - " + rows + " card tags of " + index.mNextOrdinal + " cards, "
+                + index.mBitmaps.size() + " bitmaps, loaded in " + (System.currentTimeMillis() - start) + " ms");
+        return index;
+    }
+
+
+    /**
+     * Record that a card has a tag from a source.
+     */
+    public synchronized void add(long cardId, long tagId, int src) {
+        int ordinal = ordinal(cardId);
+        if (ordinal == -1) {
+            if (mNextOrdinal == mCardIds.length) {
+                mCardIds = Arrays.copyOf(mCardIds, mNextOrdinal * 2);
+            }
+            ordinal = mNextOrdinal++;
+            mCardIds[ordinal] = cardId;
+            writableOrdinals().put(cardId, ordinal);
+        }
+        long key = key(tagId, src);
+        RoaringBitmap cards = mBitmaps.get(key);
+        if (cards == null) {
+            cards = new RoaringBitmap();
+            mBitmaps.put(key, cards);
+        }
+        if (cards.add(ordinal)) {
+            mVersion++;
+        }
+    }
+
+
+    /**
+     * Record that a card no longer has a tag from a source.
+     */
+    public synchronized void remove(long cardId, long tagId, int src) {
+        int ordinal = ordinal(cardId);
+        long key = key(tagId, src);
+        RoaringBitmap cards = mBitmaps.get(key);
+        if (ordinal == -1 || cards == null || !cards.remove(ordinal)) {
+            return;
+        }
+        if (cards.isEmpty()) {
+            mBitmaps.remove(key);
+        }
+        mVersion++;
+    }
+
+
+    /**
+     * Forget the tags of deleted cards. Their numbers are not reused.
+     */
+    public synchronized void removeCards(long[] cardIds) {
+        RoaringBitmap removed = new RoaringBitmap();
+        for (long cardId : cardIds) {
+            int ordinal = ordinal(cardId);
+            if (ordinal != -1) {
+                removed.add(ordinal);
+                writableOrdinals().remove(cardId);
+                mCardIds[ordinal] = 0;
+            }
+        }
+        if (removed.isEmpty()) {
+            return;
+        }
+        for (Iterator<Map.Entry<Long, RoaringBitmap>> it = mBitmaps.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Long, RoaringBitmap> entry = it.next();
+            RoaringBitmap cards = RoaringBitmap.andNot(entry.getValue(), removed);
+            if (cards.isEmpty()) {
+                it.remove();
+            } else {
+                entry.setValue(cards);
+            }
+        }
+        mVersion++;
+    }
+
+
+    /**
+     * Forget every card, before cardTags is filled again.
+     */
+    public synchronized void clear() {
+        mOrdinals = new LongDoubleMap();
+        mOrdinalsShared = false;
+        mCardIds = new long[16];
+        mNextOrdinal = 0;
+        mBitmaps.clear();
+        mVersion++;
+    }
+
+
+    /**
+     * Select the cards which have one of the active tags and none of the inactive tags, from any source.
+     *
+     * @param activeTagIds the active tags, or null to select every card without an inactive tag, including cards
+     *            without any tag
+     */
+    public synchronized Filter filter(long[] activeTagIds, long[] inactiveTagIds) {
+        RoaringBitmap inactive = union(inactiveTagIds);
+        mOrdinalsShared = true;
+        if (activeTagIds == null) {
+            return new Filter(mOrdinals, inactive, false, mVersion);
+        }
+        return new Filter(mOrdinals, RoaringBitmap.andNot(union(activeTagIds), inactive), true, mVersion);
+    }
+
+
+    /**
+     * @return the ids of the cards which have one of the active tags and none of the inactive tags, sorted
+     */
+    public synchronized long[] cardIds(long[] activeTagIds, long[] inactiveTagIds) {
+        int[] ordinals = RoaringBitmap.andNot(union(activeTagIds), union(inactiveTagIds)).toArray();
+        long[] ids = new long[ordinals.length];
+        for (int i = 0; i < ordinals.length; i++) {
+            ids[i] = mCardIds[ordinals[i]];
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+
+    public synchronized int getVersion() {
+        return mVersion;
+    }
+
+
+    /**
+     * @return a rough estimate of the heap used by the index, in bytes
+     */
+    public synchronized long estimateRetainedSize() {
+        long size = 17L * mOrdinals.capacity() + 8L * mCardIds.length;
+        for (RoaringBitmap cards : mBitmaps.values()) {
+            size += 48 + cards.estimateRetainedSize();
+        }
+        return size;
+    }
+
+
+    private int ordinal(long cardId) {
+        return (int) mOrdinals.get(cardId, -1);
+    }
+
+
+    private LongDoubleMap writableOrdinals() {
+        if (mOrdinalsShared) {
+            mOrdinals = mOrdinals.copy();
+            mOrdinalsShared = false;
+        }
+        return mOrdinals;
+    }
+
+
+    private RoaringBitmap union(long[] tagIds) {
+        RoaringBitmap union = new RoaringBitmap();
+        for (long tagId : tagIds) {
+            for (int src = 0; src < 3; src++) {
+                RoaringBitmap cards = mBitmaps.get(key(tagId, src));
+                if (cards != null) {
+                    union = RoaringBitmap.or(union, cards);
+                }
+            }
+        }
+        return union;
+    }
+
+
+    private static long key(long tagId, int src) {
+        return (tagId << 2) | src;
+    }
+}
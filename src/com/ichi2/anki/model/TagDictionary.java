@@ -0,0 +1,204 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import com.ichi2.anki.Utils;
+import com.ichi2.anki.db.Row;
+
+/**
+ * The tags seen in a deck, each interned once and numbered with a small int code. Tags are told apart without case,
+ * like the tags table does, and keep the spelling they were first seen with.
+ *
+ * Tag strings are parsed in place: looking up a known tag hashes and compares the characters of the string it is part
+ * of, so parsing a tags column allocates nothing but the array of codes, and the strings of new tags. Memory grows
+ * with the number of distinct tags only.
+ */
+public class TagDictionary {
+
+    private String[] mNames = new String[64];
+    private int mSize = 0;
+    /** Open addressing table of code + 1, 0 for a free slot */
+    private int[] mTable = new int[128];
+    private int[] mHashes = new int[64];
+
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+
+    /**
+     * @return the tag with the given code, as first seen
+     */
+    public synchronized String getName(int code) {
+        return mNames[code];
+    }
+
+
+    /**
+     * @return the code of the tag, or -1 if it has not been seen
+     */
+    public synchronized int lookup(String tag) {
+        return find(tag, 0, tag.length(), false);
+    }
+
+
+    /**
+     * @return the code of the tag, which is added if it has not been seen
+     */
+    public synchronized int intern(String tag) {
+        return find(tag, 0, tag.length(), true);
+    }
+
+
+    /**
+     * Intern the tags of a tags string, separated as for Utils.parseTags().
+     *
+     * @return their codes, in order, each once
+     */
+    public synchronized int[] parse(String tags) {
+        if (tags == null || tags.length() == 0) {
+            return new int[0];
+        }
+        int[] codes = new int[4];
+        int count = 0;
+        int start = Utils.nextTagStart(tags, 0);
+        while (start < tags.length()) {
+            int end = Utils.tagEnd(tags, start);
+            int code = find(tags, start, end, true);
+            if (!contains(codes, count, code)) {
+                if (count == codes.length) {
+                    codes = Arrays.copyOf(codes, count * 2);
+                }
+                codes[count++] = code;
+            }
+            start = Utils.nextTagStart(tags, end);
+        }
+        return count == codes.length ? codes : Arrays.copyOf(codes, count);
+    }
+
+
+    /**
+     * Intern the tags of a column of a row, read straight from the result.
+     */
+    public int[] parse(Row row, int column) throws SQLException {
+        return parse(row.getString(column));
+    }
+
+
+    /**
+     * Intern the tags of a tags string and mark their codes in codes, without building any array.
+     */
+    public synchronized void collect(String tags, BitSet codes) {
+        if (tags == null) {
+            return;
+        }
+        int start = Utils.nextTagStart(tags, 0);
+        while (start < tags.length()) {
+            int end = Utils.tagEnd(tags, start);
+            codes.set(find(tags, start, end, true));
+            start = Utils.nextTagStart(tags, end);
+        }
+    }
+
+
+    /**
+     * @return the tags with the codes marked in codes, sorted
+     */
+    public synchronized String[] getNames(BitSet codes) {
+        String[] names = new String[codes.cardinality()];
+        int i = 0;
+        for (int code = codes.nextSetBit(0); code >= 0; code = codes.nextSetBit(code + 1)) {
+            names[i++] = mNames[code];
+        }
+        Arrays.sort(names);
+        return names;
+    }
+
+
+    private int find(String tags, int start, int end, boolean add) {
+        int hash = hash(tags, start, end);
+        int mask = mTable.length - 1;
+        for (int slot = hash & mask; mTable[slot] != 0; slot = (slot + 1) & mask) {
+            int code = mTable[slot] - 1;
+            String name = mNames[code];
+            if (mHashes[code] == hash && name.length() == end - start
+                    && name.regionMatches(true, 0, tags, start, end - start)) {
+                return code;
+            }
+        }
+        if (!add) {
+            return -1;
+        }
+        if (mSize == mNames.length) {
+            mNames = Arrays.copyOf(mNames, mSize * 2);
+            mHashes = Arrays.copyOf(mHashes, mSize * 2);
+        }
+        int code = mSize++;
+        mNames[code] = tags.substring(start, end);
+        mHashes[code] = hash;
+        if (mSize * 2 > mTable.length) {
+            rehash();
+        } else {
+            insert(code);
+        }
+        return code;
+    }
+
+
+    private void insert(int code) {
+        int mask = mTable.length - 1;
+        int slot = mHashes[code] & mask;
+        while (mTable[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mTable[slot] = code + 1;
+    }
+
+
+    private void rehash() {
+        mTable = new int[mTable.length * 2];
+        for (int code = 0; code < mSize; code++) {
+            insert(code);
+        }
+    }
+
+
+    /**
+     * Hash of the characters folded the way String.regionMatches(true, ...) compares them.
+     */
+    private static int hash(String tags, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + Character.toLowerCase(Character.toUpperCase(tags.charAt(i)));
+        }
+        // Spread the low bits used by the table
+        return hash ^ (hash >>> 16);
+    }
+
+
+    private static boolean contains(int[] codes, int count, int code) {
+        for (int i = 0; i < count; i++) {
+            if (codes[i] == code) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
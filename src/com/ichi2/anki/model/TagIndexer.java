@@ -0,0 +1,253 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ichi2.anki.Utils;
+import com.ichi2.anki.db.AnkiDb;
+import com.ichi2.anki.db.BulkInsert;
+import com.ichi2.anki.db.Row;
+import com.ichi2.anki.db.RowCallback;
+
+/**
+ * Keeps the cardTags table in line with the tags of the facts, models and card models. An update compares the rows of
+ * the given cards with their current tags and only inserts or deletes the associations that changed, so retagging a
+ * fact writes nothing for its other tags, nor for any other card. A full rebuild refills the table in one pass over
+ * the cards.
+ *
+ * Tags are parsed into the codes of the deck's tag dictionary, and their ids looked up by code in a cache loaded from
+ * the tags table; missing tags are created on first use. An indexer is meant for one update, inside a transaction of
+ * the caller.
+ */
+public class TagIndexer {
+
+    private static Logger log = LoggerFactory.getLogger(TagIndexer.class);
+
+    private final AnkiDb mDb;
+    private final TagBitmapIndex mBitmaps;
+    private final TagDictionary mDictionary;
+    /** Tag ids by code of the dictionary, 0 when not known yet */
+    private long[] mTagIds;
+
+    private int mInserted = 0;
+    private int mDeleted = 0;
+
+
+    /**
+     * @param bitmaps tag bitmaps to keep up to date with cardTags, or null
+     */
+    public TagIndexer(AnkiDb db, TagDictionary dictionary, TagBitmapIndex bitmaps) {
+        mDb = db;
+        mBitmaps = bitmaps;
+        mDictionary = dictionary;
+    }
+
+
+    /**
+     * Empty cardTags and fill it again from the tags of every card, then drop the tags no card uses anymore.
+     */
+    public void rebuild() {
+        mDb.execSQL("DELETE FROM cardTags");
+        if (mBitmaps != null) {
+            mBitmaps.clear();
+        }
+        final BulkInsert insert = mDb.bulkInsert(null, "cardTags", "cardId", "tagId", "src");
+        try {
+            final HashSet<Long> seen = new HashSet<Long>();
+            int cards = forEachCardTags("", new RowCallback() {
+                public void onRow(Row row) throws SQLException {
+                    long cardId = row.getLong(1);
+                    seen.clear();
+                    for (int src = 0; src < 3; src++) { // src represents the tag type, fact: 0, model: 1, template: 2
+                        for (int code : mDictionary.parse(row, src + 2)) {
+                            long tagId = tagId(code);
+                            if (seen.add(key(tagId, src))) {
+                                added(insert, cardId, tagId, src);
+                            }
+                        }
+                    }
+                }
+            });
+            if (cards == -1) {
+                throw new RuntimeException("TagIndexer: Error while retrieving tags from DB");
+            }
+            insert.finish();
+            mInserted = (int) insert.getRowCount();
+        } finally {
+            insert.close();
+        }
+        mDb.execSQL("DELETE FROM tags WHERE priority = 2 AND id NOT IN (SELECT DISTINCT tagId FROM cardTags)");
+        log.info("TagIndexer - rebuilt " + mInserted + " card tags");
+    }
+
+
+    /**
+     * Bring the cardTags rows of some cards in line with their tags, and drop the tags they were the last to use.
+     *
+     * @param cardIds the cards, as a subquery to use after IN
+     */
+    public void update(String cardIds) {
+        // Current rows of the cards, as cardId -> keys of (tagId, src)
+        final HashMap<Long, HashSet<Long>> current = new HashMap<Long, HashSet<Long>>();
+        int rows = mDb.forEachRow("SELECT cardId, tagId, src FROM cardTags WHERE cardId IN " + cardIds,
+                new RowCallback() {
+                    public void onRow(Row row) throws SQLException {
+                        long cardId = row.getLong(1);
+                        HashSet<Long> keys = current.get(cardId);
+                        if (keys == null) {
+                            keys = new HashSet<Long>();
+                            current.put(cardId, keys);
+                        }
+                        keys.add(key(row.getLong(2), row.getInt(3)));
+                    }
+                });
+        if (rows == -1) {
+            throw new RuntimeException("TagIndexer: Error while retrieving card tags from DB");
+        }
+
+        // Insert the rows missing, leaving in current the rows which are no longer wanted
+        final BulkInsert insert = mDb.bulkInsert(null, "cardTags", "cardId", "tagId", "src");
+        try {
+            final HashSet<Long> seen = new HashSet<Long>();
+            int cards = forEachCardTags("AND cards.id IN " + cardIds, new RowCallback() {
+                public void onRow(Row row) throws SQLException {
+                    long cardId = row.getLong(1);
+                    HashSet<Long> keys = current.get(cardId);
+                    seen.clear();
+                    for (int src = 0; src < 3; src++) {
+                        for (int code : mDictionary.parse(row, src + 2)) {
+                            long tagId = tagId(code);
+                            long key = key(tagId, src);
+                            if (seen.add(key) && (keys == null || !keys.remove(key))) {
+                                added(insert, cardId, tagId, src);
+                            }
+                        }
+                    }
+                }
+            });
+            if (cards == -1) {
+                throw new RuntimeException("TagIndexer: Error while retrieving tags from DB");
+            }
+            insert.finish();
+            mInserted = (int) insert.getRowCount();
+        } finally {
+            insert.close();
+        }
+
+        HashSet<Long> removedTags = new HashSet<Long>();
+        for (Map.Entry<Long, HashSet<Long>> entry : current.entrySet()) {
+            for (long key : entry.getValue()) {
+                mDb.execSQL("DELETE FROM cardTags WHERE cardId = ? AND tagId = ? AND src = ?", entry.getKey(),
+                        key >> 2, (int) (key & 3));
+                if (mBitmaps != null) {
+                    mBitmaps.remove(entry.getKey(), key >> 2, (int) (key & 3));
+                }
+                removedTags.add(key >> 2);
+                mDeleted++;
+            }
+        }
+        if (!removedTags.isEmpty()) {
+            mDb.execSQL("DELETE FROM tags WHERE priority = 2 AND id IN " + Utils.ids2str(Utils.toPrimitive(removedTags))
+                    + " AND NOT EXISTS (SELECT 1 FROM cardTags WHERE cardTags.tagId = tags.id)");
+        }
+        log.info("TagIndexer - " + mInserted + " card tags inserted, " + mDeleted + " deleted");
+    }
+
+
+    public int getInsertedCount() {
+        return mInserted;
+    }
+
+
+    public int getDeletedCount() {
+        return mDeleted;
+    }
+
+
+    /**
+     * Stream the card IDs with their associated tags (fact, model and template)
+     *
+     * @param where SQL restriction on the query. If empty, then returns tags for all the cards
+     * @param callback Receives rows of {card ID, card tags, model tags, template tags}
+     * @return The number of cards, or -1 on error
+     */
+    private int forEachCardTags(String where, RowCallback callback) {
+        return mDb.forEachRow("SELECT cards.id, facts.tags, models.tags, cardModels.name "
+                + "FROM cards, facts, models, cardModels "
+                + "WHERE cards.factId == facts.id AND facts.modelId == models.id "
+                + "AND cards.cardModelId = cardModels.id " + where, callback);
+    }
+
+
+    private void added(BulkInsert insert, long cardId, long tagId, int src) {
+        insert.addRow(cardId, tagId, src);
+        if (mBitmaps != null) {
+            mBitmaps.add(cardId, tagId, src);
+        }
+    }
+
+
+    /**
+     * @return the id of the tag with a code of the dictionary, which is created if needed
+     */
+    private long tagId(int code) {
+        if (mTagIds == null) {
+            loadTagIds();
+        }
+        long id = code < mTagIds.length ? mTagIds[code] : 0;
+        if (id == 0) {
+            String tag = mDictionary.getName(code);
+            String quoted = "'" + tag.replace("'", "''") + "'";
+            mDb.execSQL("INSERT OR IGNORE INTO tags (tag) VALUES (" + quoted + ")");
+            id = mDb.queryScalar("SELECT id FROM tags WHERE tag = " + quoted);
+            if (id == -1) {
+                throw new RuntimeException("TagIndexer: Could not create tag " + tag);
+            }
+            setTagId(code, id);
+        }
+        return id;
+    }
+
+
+    private void loadTagIds() {
+        mTagIds = new long[Math.max(mDictionary.size(), 16)];
+        mDb.forEachRow("SELECT tag, id FROM tags", new RowCallback() {
+            public void onRow(Row row) throws SQLException {
+                setTagId(mDictionary.intern(row.getString(1)), row.getLong(2));
+            }
+        });
+    }
+
+
+    private void setTagId(int code, long id) {
+        if (code >= mTagIds.length) {
+            mTagIds = Arrays.copyOf(mTagIds, Math.max(code + 1, mTagIds.length * 2));
+        }
+        mTagIds[code] = id;
+    }
+
+
+    private static long key(long tagId, int src) {
+        return (tagId << 2) | src;
+    }
+}
@@ -0,0 +1,193 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import com.ichi2.anki.db.AnkiDb;
+
+/**
+ * Undo information of a deck, written by temporary triggers as in libanki: while the undo flag is set, every insert,
+ * update and delete on a deck table stores the statement reverting it in the temporary undoLog table. Nothing is read
+ * back before a write, an action only remembers its range of log rows: start < seq <= end.
+ *
+ * The tables and triggers belong to the writer connection, and the flag is seen by every write going through it. An
+ * action therefore holds the writer from the start of its range to the end (hold() and release()), so that no write of
+ * another thread, e.g. the answer journal flusher, lands in the range or clears the flag.
+ */
+class UndoLog {
+
+    // Tables left out: the persistent due counts follow the cards through their own triggers
+    private static final String EXCLUDED_TABLES = "'dueCounts'";
+
+    private final AnkiDb mDb;
+    private Connection mWriter;
+
+
+    private UndoLog(AnkiDb db) {
+        mDb = db;
+    }
+
+
+    /**
+     * Create the undo tables and triggers on the writer of db, or empty the log if they exist.
+     */
+    static UndoLog install(final AnkiDb db) {
+        db.runInTransaction(new Callable<Void>() {
+            public Void call() {
+                db.execSQL("CREATE TEMPORARY TABLE IF NOT EXISTS undoLog (seq INTEGER PRIMARY KEY NOT NULL, sql TEXT)");
+                db.execSQL("CREATE TEMPORARY TABLE IF NOT EXISTS undoFlag (val INTEGER)");
+                db.execSQL("DELETE FROM undoLog");
+                db.execSQL("DELETE FROM undoFlag");
+                db.execSQL("INSERT INTO undoFlag VALUES (0)");
+                ArrayList<String> tables = db.queryColumn(String.class,
+                        "SELECT name FROM sqlite_master WHERE type = 'table' AND name NOT LIKE 'sqlite_%' "
+                                + "AND name NOT IN (" + EXCLUDED_TABLES + ")", 1);
+                for (String table : tables) {
+                    ArrayList<String> columns = db.queryColumn(String.class, "PRAGMA TABLE_INFO(" + table + ")", 2);
+                    for (String sql : triggerSql(table, columns)) {
+                        db.execSQL(sql);
+                    }
+                }
+                return null;
+            }
+        });
+        return new UndoLog(db);
+    }
+
+
+    /**
+     * @return the statements creating the insert, update and delete triggers of table
+     */
+    static List<String> triggerSql(String table, List<String> columns) {
+        List<String> triggers = new ArrayList<String>();
+        String when = " WHEN (SELECT val FROM undoFlag) ";
+        // Insert: delete the new row
+        triggers.add("CREATE TEMPORARY TRIGGER IF NOT EXISTS _undo_" + table + "_it AFTER INSERT ON " + table
+                + when + "BEGIN INSERT INTO undoLog VALUES (null, 'DELETE FROM " + table + " WHERE rowid = ' || "
+                + "new.rowid); END");
+        // Update: restore every column of the old row
+        StringBuilder sb = new StringBuilder();
+        sb.append("CREATE TEMPORARY TRIGGER IF NOT EXISTS _undo_").append(table).append("_ut AFTER UPDATE ON ")
+                .append(table).append(when).append("BEGIN INSERT INTO undoLog VALUES (null, 'UPDATE ")
+                .append(table).append(" SET ");
+        for (int i = 0; i < columns.size(); i++) {
+            String column = columns.get(i);
+            sb.append(i == 0 ? "" : " || ',").append("\"").append(column).append("\" = ' || quote(old.\"")
+                    .append(column).append("\")");
+        }
+        sb.append(" || ' WHERE rowid = ' || old.rowid); END");
+        triggers.add(sb.toString());
+        // Delete: insert the old row again, with its rowid
+        sb.setLength(0);
+        sb.append("CREATE TEMPORARY TRIGGER IF NOT EXISTS _undo_").append(table).append("_dt BEFORE DELETE ON ")
+                .append(table).append(when).append("BEGIN INSERT INTO undoLog VALUES (null, 'INSERT INTO ")
+                .append(table).append(" (rowid");
+        for (String column : columns) {
+            sb.append(", \"").append(column).append("\"");
+        }
+        sb.append(") VALUES (' || old.rowid");
+        for (String column : columns) {
+            sb.append(" || ', ' || quote(old.\"").append(column).append("\")");
+        }
+        sb.append(" || ')'); END");
+        triggers.add(sb.toString());
+        return triggers;
+    }
+
+
+    /**
+     * Hold the writer until release(), for the range of an action. Holding it again is a no-op.
+     */
+    void hold() {
+        if (mWriter == null) {
+            mWriter = mDb.holdWriter();
+        }
+    }
+
+
+    /**
+     * Release the writer held by hold(), if any.
+     */
+    void release() {
+        Connection writer = mWriter;
+        if (writer != null) {
+            mWriter = null;
+            mDb.releaseWriter(writer);
+        }
+    }
+
+
+    /**
+     * @return the last sequence number of the log, 0 when it is empty
+     */
+    long latest() {
+        // The log only exists on the writer connection
+        return mDb.runOnWriter(new Callable<Long>() {
+            public Long call() {
+                return mDb.queryScalar("SELECT ifnull(max(seq), 0) FROM undoLog");
+            }
+        });
+    }
+
+
+    void setFlag(boolean on) {
+        mDb.execSQL("UPDATE undoFlag SET val = " + (on ? 1 : 0));
+    }
+
+
+    /**
+     * Run the statements of a range backwards and remove them from the log. Running them logs the statements
+     * reverting the replay.
+     *
+     * @return the range of the statements reverting the replay, {start, end}
+     */
+    long[] replay(final long start, final long end) {
+        return mDb.runInTransaction(new Callable<long[]>() {
+            public long[] call() {
+                String range = "seq > " + start + " AND seq <= " + end;
+                ArrayList<String> statements = mDb.queryColumn(String.class,
+                        "SELECT sql FROM undoLog WHERE " + range + " ORDER BY seq DESC", 1);
+                mDb.execSQL("DELETE FROM undoLog WHERE " + range);
+                long inverseStart = latest();
+                setFlag(true);
+                try {
+                    for (String sql : statements) {
+                        mDb.execSQL(sql);
+                    }
+                } finally {
+                    setFlag(false);
+                }
+                return new long[] { inverseStart, latest() };
+            }
+        });
+    }
+
+
+    /**
+     * Remove the rows up to seq, of the actions dropped from the undo stack.
+     */
+    void prune(long seq) {
+        mDb.execSQL("DELETE FROM undoLog WHERE seq <= " + seq);
+    }
+
+
+    void clear() {
+        mDb.execSQL("DELETE FROM undoLog");
+    }
+}
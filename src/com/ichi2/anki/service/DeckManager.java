@@ -4,8 +4,16 @@ import java.io.File;
 import java.io.FileFilter;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
@@ -27,25 +35,73 @@ public class DeckManager {
 	public static final int REQUESTING_ACTIVITY_CARDEDITOR = 6;
 	public static final int REQUESTING_ACTIVITY_DOWNLOADMANAGER = 7;
 	
-	private static HashMap<String, DeckInformation> sLoadedDecks = new HashMap<String, DeckInformation>();
-	private static HashMap<String, ReentrantLock> sDeckLocks = new HashMap<String, ReentrantLock>();
+	/*
+	 * Decks are opened and closed under a lock of their own path, so different decks do not wait for each other.
+	 * A loaded deck is shared: every getDeck() adds its requesting activity to DeckInformation.mOpenedBy and is
+	 * paired with a closeDeck(path, requestingActivity), the deck being closed when the last one is released.
+	 *
+	 * With an eviction policy (setEvictionPolicy), released decks stay loaded instead, and are closed later when they
+	 * have been idle too long or when the loaded decks exceed the deck count or the memory budget, least recently
+	 * used first. Decks still referenced are never evicted.
+	 */
+	private static ConcurrentHashMap<String, DeckInformation> sLoadedDecks = new ConcurrentHashMap<String, DeckInformation>();
+	private static ConcurrentHashMap<String, ReentrantLock> sDeckLocks = new ConcurrentHashMap<String, ReentrantLock>();
 	
 	private String deckPath = "E:\\Project\\Java Anki\\Decks";
 	
-	private static String mainDeckPath;
+	private static volatile String mainDeckPath;
+
+	// Eviction policy, 0 disables a limit
+	private static volatile int sMaxLoadedDecks = 0;
+	private static volatile long sMaxIdleMillis = 0;
+	private static volatile long sMemoryBudget = 0;
+	private static ScheduledExecutorService sEvictionTimer;
+
+	// Eviction metrics
+	private static final AtomicLong sDeckHits = new AtomicLong();
+	private static final AtomicLong sDeckLoads = new AtomicLong();
+	private static final AtomicLong sIdleEvictions = new AtomicLong();
+	private static final AtomicLong sCapacityEvictions = new AtomicLong();
+	private static final AtomicLong sMemoryEvictions = new AtomicLong();
 	
 	public DeckManager() {
 		
 	}
 	
-	public synchronized static Deck getDeck(String deckpath, boolean setAsMainDeck, boolean doSafetyBackupIfNeeded, int requestingActivity, boolean rebuild) {
+	public static Deck getDeck(String deckpath, int requestingActivity) {
+		return getDeck(deckpath, true, true, requestingActivity, true);
+	}
+
+
+	public static Deck getDeck(String deckpath, int requestingActivity, boolean rebuild) {
+		return getDeck(deckpath, true, true, requestingActivity, rebuild);
+	}
+
+
+	public static Deck getDeck(String deckpath, boolean setAsMainDeck, boolean doSafetyBackupIfNeeded, int requestingActivity, boolean rebuild) {
 		Deck deck = null;
 		lockDeck(deckpath);
 		try {
-			if (sLoadedDecks.containsKey(deckpath)) {
+			DeckInformation deckInformation = sLoadedDecks.get(deckpath);
+			if (deckInformation != null) {
 				// do not open deck if already loaded
-				DeckInformation deckInformation = sLoadedDecks.get(deckpath);
-	        	deck = deckInformation.mDeck;                	
+	        	deck = deckInformation.mDeck;
+	        	if (rebuild && !deckInformation.mInitiallyRebuilt) {
+	        		// Opened for the deck picker only: build the queues and indexes now
+	        		try {
+	        			log.info("DeckManager: rebuilding deck " + deckpath + " (" + requestingActivity + ")");
+	        			deck.rebuild();
+	        			deckInformation.mInitiallyRebuilt = true;
+	        		} catch (SQLException e) {
+	        			log.error("DeckManager: deck " + deckpath + " could not be rebuilt = " + e.getMessage(), e);
+	        			deck = null;
+	        		}
+	        	}
+	        	if (deck != null) {
+	        		deckInformation.mOpenedBy.add(requestingActivity);
+	        		deckInformation.touch();
+	        		sDeckHits.incrementAndGet();
+	        	}
 
 			} else {
 		        try {
@@ -54,9 +110,10 @@ public class DeckManager {
 		            	BackupManager.safetyBackupNeeded(deckpath, BackupManager.SAFETY_BACKUP_THRESHOLD);
 		            }
 		            */
-		            deck = Deck.openDeck(deckpath, rebuild, true);
+		            deck = Deck.openDeck(deckpath, rebuild, false);
 		            log.info("DeckManager: Deck loaded!");
 		            sLoadedDecks.put(deckpath, new DeckInformation(deckpath, deck, requestingActivity, rebuild));
+		            sDeckLoads.incrementAndGet();
 				} catch (RuntimeException e) {
 		            log.error("DeckManager: deck " + deckpath + " could not be opened = " + e.getMessage(), e);
 					BackupManager.restoreDeckIfMissing(deckpath);
@@ -73,10 +130,268 @@ public class DeckManager {
 			}
 			unlockDeck(deckpath);
 		}
+		if (deck != null && isEvictionEnabled()) {
+			evictDecks();
+		}
 		return deck;
 	}
-	
-	
+
+
+	/**
+	 * Release the reference on a deck taken by getDeck() for requestingActivity. The deck is closed when no other
+	 * reference is left, unless an eviction policy is set: then it stays loaded until it is evicted.
+	 */
+	public static void closeDeck(String deckpath, int requestingActivity) {
+		lockDeck(deckpath);
+		try {
+			DeckInformation deckInformation = sLoadedDecks.get(deckpath);
+			if (deckInformation == null) {
+				return;
+			}
+			if (!deckInformation.mOpenedBy.remove(Integer.valueOf(requestingActivity))) {
+				log.warn("DeckManager: deck " + deckpath + " was not opened by " + requestingActivity);
+			}
+			if (deckInformation.mOpenedBy.isEmpty()) {
+				if (isEvictionEnabled()) {
+					deckInformation.touch();
+				} else {
+					closeLoadedDeck(deckInformation, false);
+				}
+			} else {
+				log.info("DeckManager: deck " + deckpath + " still opened by " + deckInformation.mOpenedBy);
+			}
+		} finally {
+			unlockDeck(deckpath);
+		}
+	}
+
+
+	/**
+	 * Close a deck whatever the references held on it, e.g. before its file is repaired or replaced.
+	 */
+	public static void closeDeck(String deckpath, boolean waitToFinish) {
+		lockDeck(deckpath);
+		try {
+			DeckInformation deckInformation = sLoadedDecks.get(deckpath);
+			if (deckInformation != null) {
+				closeLoadedDeck(deckInformation, waitToFinish);
+			}
+		} finally {
+			unlockDeck(deckpath);
+		}
+	}
+
+
+	public static void closeMainDeck(boolean waitToFinish) {
+		String path = mainDeckPath;
+		if (path != null) {
+			closeDeck(path, waitToFinish);
+		}
+	}
+
+
+	public static boolean isDeckLoaded(String deckpath) {
+		return sLoadedDecks.containsKey(deckpath);
+	}
+
+
+	/**
+	 * Keep released decks loaded, and close them when they exceed one of these limits. Call with zeros to close decks
+	 * on release again.
+	 *
+	 * @param maxLoadedDecks the number of decks to keep loaded, 0 for no limit
+	 * @param maxIdleMillis the time after which a released deck is closed, 0 for no limit; applied by evictDecks()
+	 * @param memoryBudget the estimated heap in bytes the loaded decks may use (see Deck.estimateRetainedSize()), 0
+	 *            for no limit
+	 */
+	public static void setEvictionPolicy(int maxLoadedDecks, long maxIdleMillis, long memoryBudget) {
+		sMaxLoadedDecks = maxLoadedDecks;
+		sMaxIdleMillis = maxIdleMillis;
+		sMemoryBudget = memoryBudget;
+		log.info("DeckManager: eviction policy maxLoadedDecks=" + maxLoadedDecks + ", maxIdleMillis=" + maxIdleMillis
+				+ ", memoryBudget=" + memoryBudget);
+		evictDecks();
+	}
+
+
+	public static boolean isEvictionEnabled() {
+		return sMaxLoadedDecks > 0 || sMaxIdleMillis > 0 || sMemoryBudget > 0;
+	}
+
+
+	/**
+	 * Run evictDecks() every periodMillis on a daemon thread, so that idle decks are closed without waiting for the
+	 * next getDeck().
+	 */
+	public static synchronized void startEvictionTimer(long periodMillis) {
+		stopEvictionTimer();
+		sEvictionTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "DeckManager-eviction");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		sEvictionTimer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					evictDecks();
+				} catch (RuntimeException e) {
+					log.error("DeckManager: eviction failed", e);
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+
+	public static synchronized void stopEvictionTimer() {
+		if (sEvictionTimer != null) {
+			sEvictionTimer.shutdown();
+			sEvictionTimer = null;
+		}
+	}
+
+
+	/**
+	 * Close the released decks which are idle for too long, then the least recently used released decks until the
+	 * loaded decks fit the deck count and memory budget. Whether a deck is released is only read under the lock of
+	 * its path, and checked again under that lock before it is closed.
+	 *
+	 * @return the number of decks closed
+	 */
+	public static int evictDecks() {
+		if (!isEvictionEnabled()) {
+			return 0;
+		}
+		int evicted = 0;
+		long now = System.currentTimeMillis();
+		long maxIdleMillis = sMaxIdleMillis;
+		ArrayList<DeckInformation> released = new ArrayList<DeckInformation>();
+		int loaded = 0;
+		long loadedSize = 0;
+		for (DeckInformation deckInformation : sLoadedDecks.values()) {
+			if (maxIdleMillis > 0 && now - deckInformation.mLastUsed > maxIdleMillis
+					&& evict(deckInformation, sIdleEvictions)) {
+				evicted++;
+				continue;
+			}
+			deckInformation.mRetainedSize = deckInformation.mDeck.estimateRetainedSize();
+			loadedSize += deckInformation.mRetainedSize;
+			loaded++;
+			if (isReleased(deckInformation)) {
+				released.add(deckInformation);
+			}
+		}
+
+		int maxLoadedDecks = sMaxLoadedDecks;
+		long memoryBudget = sMemoryBudget;
+		if ((maxLoadedDecks > 0 && loaded > maxLoadedDecks) || (memoryBudget > 0 && loadedSize > memoryBudget)) {
+			// Least recently used first
+			Collections.sort(released, new Comparator<DeckInformation>() {
+				public int compare(DeckInformation a, DeckInformation b) {
+					return a.mLastUsed < b.mLastUsed ? -1 : (a.mLastUsed == b.mLastUsed ? 0 : 1);
+				}
+			});
+			for (DeckInformation deckInformation : released) {
+				boolean overCount = maxLoadedDecks > 0 && loaded > maxLoadedDecks;
+				boolean overBudget = memoryBudget > 0 && loadedSize > memoryBudget;
+				if (!overCount && !overBudget) {
+					break;
+				}
+				if (evict(deckInformation, overCount ? sCapacityEvictions : sMemoryEvictions)) {
+					evicted++;
+					loaded--;
+					loadedSize -= deckInformation.mRetainedSize;
+				}
+			}
+			if (maxLoadedDecks > 0 && loaded > maxLoadedDecks) {
+				log.warn("DeckManager: " + loaded + " decks still loaded, the others are in use");
+			}
+		}
+		if (evicted > 0) {
+			log.info("DeckManager: evicted " + evicted + " decks, " + getEvictionStatistics());
+		}
+		return evicted;
+	}
+
+
+	public static long getIdleEvictionCount() {
+		return sIdleEvictions.get();
+	}
+
+
+	public static long getCapacityEvictionCount() {
+		return sCapacityEvictions.get();
+	}
+
+
+	public static long getMemoryEvictionCount() {
+		return sMemoryEvictions.get();
+	}
+
+
+	/**
+	 * @return the estimated heap retained by the loaded decks, in bytes
+	 */
+	public static long getLoadedDecksSize() {
+		long size = 0;
+		for (DeckInformation deckInformation : sLoadedDecks.values()) {
+			size += deckInformation.mDeck.estimateRetainedSize();
+		}
+		return size;
+	}
+
+
+	public static String getEvictionStatistics() {
+		return "loaded=" + sLoadedDecks.size() + ", hits=" + sDeckHits.get() + ", loads=" + sDeckLoads.get()
+				+ ", idleEvictions=" + sIdleEvictions.get() + ", capacityEvictions=" + sCapacityEvictions.get()
+				+ ", memoryEvictions=" + sMemoryEvictions.get();
+	}
+
+
+	private static boolean isReleased(DeckInformation deckInformation) {
+		lockDeck(deckInformation.mKey);
+		try {
+			return deckInformation.mOpenedBy.isEmpty();
+		} finally {
+			unlockDeck(deckInformation.mKey);
+		}
+	}
+
+
+	/**
+	 * Close a released deck, if nobody took it or closed it meanwhile.
+	 */
+	private static boolean evict(DeckInformation deckInformation, AtomicLong counter) {
+		lockDeck(deckInformation.mKey);
+		try {
+			if (sLoadedDecks.get(deckInformation.mKey) != deckInformation || !deckInformation.mOpenedBy.isEmpty()) {
+				return false;
+			}
+			counter.incrementAndGet();
+			closeLoadedDeck(deckInformation, false);
+			return true;
+		} finally {
+			unlockDeck(deckInformation.mKey);
+		}
+	}
+
+
+	/**
+	 * Must be called holding the lock of the deck path.
+	 */
+	private static void closeLoadedDeck(DeckInformation deckInformation, boolean waitToFinish) {
+		log.info("DeckManager: closing deck " + deckInformation.mKey);
+		sLoadedDecks.remove(deckInformation.mKey);
+		if (deckInformation.mKey.equals(mainDeckPath)) {
+			mainDeckPath = null;
+		}
+		try {
+			deckInformation.mDeck.closeDeck(waitToFinish);
+		} catch (RuntimeException e) {
+			log.error("DeckManager: error while closing deck " + deckInformation.mKey, e);
+		}
+	}
 	
 	
 	/**
@@ -101,16 +416,22 @@ public class DeckManager {
 	}
 	
 	public static void lockDeck(String path) {
-		if (!sDeckLocks.containsKey(path)) {
-			sDeckLocks.put(path, new ReentrantLock(true));
+		ReentrantLock lock = sDeckLocks.get(path);
+		if (lock == null) {
+			ReentrantLock created = new ReentrantLock(true);
+			lock = sDeckLocks.putIfAbsent(path, created);
+			if (lock == null) {
+				lock = created;
+			}
 		}
-		sDeckLocks.get(path).lock();
+		lock.lock();
 	}
 
 
 	public static void unlockDeck(String path) {
-		if (sDeckLocks.containsKey(path)) {
-			sDeckLocks.get(path).unlock();
+		ReentrantLock lock = sDeckLocks.get(path);
+		if (lock != null && lock.isHeldByCurrentThread()) {
+			lock.unlock();
 		}
 	}
 	
@@ -130,7 +451,12 @@ public class DeckManager {
 		public boolean mInitiallyRebuilt = true;
 		//public boolean mDeleteJournalModeForced = false;
 		public boolean mWaitForDeckTaskToFinish = false;
+		// One entry per getDeck() not yet released, guarded by the lock of the deck path
 		public ArrayList<Integer> mOpenedBy = new ArrayList<Integer>();
+		// Time of the last getDeck() or release, for idle and LRU eviction
+		public volatile long mLastUsed = System.currentTimeMillis();
+		// Deck.estimateRetainedSize() at the last eviction run
+		public long mRetainedSize = 0;
 
 		DeckInformation(String key, Deck deck, int openedBy, boolean initiallyRebuilt) {
 			this.mKey = key;
@@ -138,6 +464,10 @@ public class DeckManager {
 			this.mOpenedBy.add(openedBy);
 			this.mInitiallyRebuilt = initiallyRebuilt;
 		}
+
+		void touch() {
+			mLastUsed = System.currentTimeMillis();
+		}
 	}
 	
 	public static class CloseDeckInformation {
@@ -32,6 +32,7 @@ import org.slf4j.LoggerFactory;
 import com.ichi2.anki.BackupManager;
 import com.ichi2.anki.Utils;
 import com.ichi2.anki.db.AnkiDatabaseManager;
+import com.ichi2.anki.db.AnkiDb;
 import com.ichi2.anki.model.Card;
 import com.ichi2.anki.model.CardModel;
 import com.ichi2.anki.model.Deck;
@@ -256,12 +257,12 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
         LinkedHashMap<Long, CardModel> cardModels = params[0].getCardModels();
 
         AnkiDb ankiDB = deck.getDB();
-        ankiDB.getDatabase().beginTransaction();
+        ankiDB.beginTransaction();
         try {
         	publishProgress(new TaskData(deck.addFact(editFact, cardModels, false)));
-            ankiDB.getDatabase().setTransactionSuccessful();
+            ankiDB.setTransactionSuccessful();
         } finally {
-            ankiDB.getDatabase().endTransaction();
+            ankiDB.endTransaction();
         }
         return null;
     }
@@ -276,7 +277,7 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
 
         try {
 	        AnkiDb ankiDB = deck.getDB();
-	        ankiDB.getDatabase().beginTransaction();
+	        ankiDB.beginTransaction();
 	        try {
 	            // Start undo routine
 	            String undoName = Deck.UNDO_TYPE_EDIT_CARD;
@@ -302,9 +303,9 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
 	                publishProgress(new TaskData(showQuestion, null, deck.cardFromId(editCard.getId())));        	
 	            }
 
-	        	ankiDB.getDatabase().setTransactionSuccessful();
+	        	ankiDB.setTransactionSuccessful();
 	        } finally {
-	            ankiDB.getDatabase().endTransaction();
+	            ankiDB.endTransaction();
 	        }
 		} catch (RuntimeException e) {
 			log.error("doInBackgroundUpdateFact - RuntimeException on updating fact: " + e);
@@ -321,28 +322,22 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
         int ease = params[0].getInt();
         Card newCard = null;
         try {
-	        AnkiDb ankiDB = deck.getDB();
-	        ankiDB.getDatabase().beginTransaction();
-	        try {
-	            if (oldCard != null) {
-	                deck.answerCard(oldCard, ease);
-	                log.info("leech flag: " + oldCard.getLeechFlag());
-	            } else if (DeckManager.deckIsOpenedInBigWidget(deck.getDeckPath())) {
-	                // first card in reviewer is retrieved
-	            	log.info("doInBackgroundAnswerCard: get card from big widget");
-                	newCard = AnkiDroidWidgetBig.getCard();
-	            }
-	            if (newCard == null) {
-		            newCard = deck.getCard();	            	
-	            }
-	            if (oldCard != null) {
-	                publishProgress(new TaskData(newCard, oldCard.getLeechFlag(), oldCard.getSuspendedFlag()));
-	            } else {
-	                publishProgress(new TaskData(newCard));
-	            }
-	            ankiDB.getDatabase().setTransactionSuccessful();
-	        } finally {
-	            ankiDB.getDatabase().endTransaction();
+	        // No transaction around the answer: it writes its own, or goes to the answer journal
+	        if (oldCard != null) {
+	            deck.answerCard(oldCard, ease);
+	            log.info("leech flag: " + oldCard.getLeechFlag());
+	        } else if (DeckManager.deckIsOpenedInBigWidget(deck.getDeckPath())) {
+	            // first card in reviewer is retrieved
+	        	log.info("doInBackgroundAnswerCard: get card from big widget");
+            	newCard = AnkiDroidWidgetBig.getCard();
+	        }
+	        if (newCard == null) {
+	            newCard = deck.getCard();	            	
+	        }
+	        if (oldCard != null) {
+	            publishProgress(new TaskData(newCard, oldCard.getLeechFlag(), oldCard.getSuspendedFlag()));
+	        } else {
+	            publishProgress(new TaskData(newCard));
 	        }
 		} catch (RuntimeException e) {
 			log.error("doInBackgroundAnswerCard - RuntimeException on answering card: " + e);
@@ -418,7 +413,7 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
 
         try {
             AnkiDb ankiDB = deck.getDB();
-            ankiDB.getDatabase().beginTransaction();
+            ankiDB.beginTransaction();
             try {
                 if (oldCard != null) {
                     String undoName = Deck.UNDO_TYPE_SUSPEND_CARD;
@@ -434,9 +429,9 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
                 }
                 
                 publishProgress(new TaskData(newCard));
-                ankiDB.getDatabase().setTransactionSuccessful();
+                ankiDB.setTransactionSuccessful();
             } finally {
-                ankiDB.getDatabase().endTransaction();
+                ankiDB.endTransaction();
             }
     	} catch (RuntimeException e) {
     		log.error("doInBackgroundSuspendCard - RuntimeException on suspending card: " + e);
@@ -454,7 +449,7 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
 
         try {
             AnkiDb ankiDB = deck.getDB();
-            ankiDB.getDatabase().beginTransaction();
+            ankiDB.beginTransaction();
             try {
                 if (currentCard != null) {
                     String undoName = Deck.UNDO_TYPE_MARK_CARD;
@@ -469,9 +464,9 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
                 }
 
                 publishProgress(new TaskData(currentCard));
-                ankiDB.getDatabase().setTransactionSuccessful();
+                ankiDB.setTransactionSuccessful();
             } finally {
-                ankiDB.getDatabase().endTransaction();
+                ankiDB.endTransaction();
             }
     	} catch (RuntimeException e) {
     		log.error("doInBackgroundMarkCard - RuntimeException on marking card: " + e);
@@ -492,7 +487,7 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
         
         try {
             AnkiDb ankiDB = deck.getDB();
-            ankiDB.getDatabase().beginTransaction();
+            ankiDB.beginTransaction();
             try {
             	oldCardId = deck.undo(currentCardId, inReview);
             	undoType = deck.getUndoType();
@@ -504,9 +499,9 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
                 	newCard = deck.cardFromId(oldCardId);
                 }
                 publishProgress(new TaskData(newCard));
-                ankiDB.getDatabase().setTransactionSuccessful();
+                ankiDB.setTransactionSuccessful();
             } finally {
-                ankiDB.getDatabase().endTransaction();
+                ankiDB.endTransaction();
             }
     	} catch (RuntimeException e) {
     		log.error("doInBackgroundUndo - RuntimeException on undoing: " + e);
@@ -527,7 +522,7 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
 
         try {
             AnkiDb ankiDB = deck.getDB();
-            ankiDB.getDatabase().beginTransaction();
+            ankiDB.beginTransaction();
             try {
             	oldCardId = deck.redo(currentCardId, inReview);
                 newCard = deck.getCard();
@@ -535,9 +530,9 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
                 	newCard = deck.cardFromId(oldCardId);
                 }
                 publishProgress(new TaskData(newCard));
-                ankiDB.getDatabase().setTransactionSuccessful();
+                ankiDB.setTransactionSuccessful();
             } finally {
-                ankiDB.getDatabase().endTransaction();
+                ankiDB.endTransaction();
             }
             undoType = deck.getUndoType();
             if (undoType == Deck.UNDO_TYPE_SUSPEND_CARD) {
@@ -579,16 +574,16 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
 
         try {
             AnkiDb ankiDB = deck.getDB();
-            ankiDB.getDatabase().beginTransaction();
+            ankiDB.beginTransaction();
             try {
                 id = card.getId();
                 card.delete();
                 deck.reset();
                 newCard = deck.getCard();
                 publishProgress(new TaskData(newCard));
-                ankiDB.getDatabase().setTransactionSuccessful();
+                ankiDB.setTransactionSuccessful();
             } finally {
-                ankiDB.getDatabase().endTransaction();
+                ankiDB.endTransaction();
             }
     	} catch (RuntimeException e) {
     		log.error("doInBackgroundDeleteCard - RuntimeException on deleting card: " + e);
@@ -608,16 +603,16 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
 
         try {
             AnkiDb ankiDB = deck.getDB();
-            ankiDB.getDatabase().beginTransaction();
+            ankiDB.beginTransaction();
             try {
                 id = card.getId();
                 deck.buryFact(card.getFactId(), id);
                 deck.reset();
                 newCard = deck.getCard();
                 publishProgress(new TaskData(newCard));
-                ankiDB.getDatabase().setTransactionSuccessful();
+                ankiDB.setTransactionSuccessful();
             } finally {
-                ankiDB.getDatabase().endTransaction();
+                ankiDB.endTransaction();
             }
     	} catch (RuntimeException e) {
     		log.error("doInBackgroundSuspendCard - RuntimeException on suspending card: " + e);
@@ -749,7 +744,7 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
     		String[] sampleAnswers = res.getStringArray(R.array.tutorial_capitals_answers);
     		Deck deck = DeckManager.getDeck(sampleDeckFile.getAbsolutePath(), DeckManager.REQUESTING_ACTIVITY_STUDYOPTIONS, true);
             ankiDB = deck.getDB();
-            ankiDB.getDatabase().beginTransaction();
+            ankiDB.beginTransaction();
             try {
             	CardModel cardModel = null;
             	int len = Math.min(questions.length, answers.length);
@@ -775,9 +770,9 @@ public class DeckTask extends AsyncTask<DeckTask.TaskData, DeckTask.TaskData, De
             	deck.setSessionTimeLimit(0);
             	deck.flushMod();
             	deck.reset();
-            	ankiDB.getDatabase().setTransactionSuccessful();
+            	ankiDB.setTransactionSuccessful();
             } finally {
-        		ankiDB.getDatabase().endTransaction();
+        		ankiDB.endTransaction();
         	}
         	return new TaskData(DECK_LOADED, deck, null);
         } catch (IOException e) {
@@ -16,15 +16,23 @@
 
 package com.ichi2.anki.service;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.ichi2.anki.db.AnkiDatabaseManager;
+import com.ichi2.anki.db.AnkiDb;
 import com.ichi2.anki.model.Deck;
+import com.ichi2.anki.model.DeckSummary;
+import com.ichi2.anki.model.DueForecast;
 import com.ichi2.themes.Themes;
 
 import android.content.Context;
@@ -114,61 +122,105 @@ public class Statistics {
 
     public static boolean refreshAllDeckStatistics(Context context, String[] deckPaths, int type, int period, String title) {
         initVariables(context, type, period, title);
+        if (type == TYPE_DECK_SUMMARY) {
+            DeckSummary summary = getDeckSummaries(deckPaths);
+            if (summary == null) {
+                return false;
+            }
+            sDeckSummaryValues = summary.toMap();
+            sDeckSummaryValues.put("title", context.getResources().getString(R.string.deck_summary_all_decks));
+            return true;
+        }
      	for (String dp : deckPaths) {
     		sDeck = DeckManager.getDeck(dp, DeckManager.REQUESTING_ACTIVITY_STATISTICS);
             if (sDeck == null) {
                 continue;
             }
-    		if (type == TYPE_DECK_SUMMARY) {
-    			sDeckSummaryValues.put("title", context.getResources().getString(R.string.deck_summary_all_decks));
-    			Map<String, Object> values = sDeck.getDeckSummary();
-    			if (values == null) {
+            double[][] seriesList;
+            seriesList = getSeriesList(context, type, period);
+            for (int i = 0; i < sSeriesList.length; i++) {
+                for (int j = 0; j < period; j++) {
+                	sSeriesList[i][j] += seriesList[i][j];
+                }        	
+            }    			
+            DeckManager.closeDeck(dp, DeckManager.REQUESTING_ACTIVITY_STATISTICS);
+    	}
+        return sSeriesList != null ? true : false;        	
+    }
+
+
+    /**
+     * Compute the summaries of the decks in parallel, one deck per task, and merge them.
+     *
+     * @return the merged summary, or null if no deck could be read
+     */
+    private static DeckSummary getDeckSummaries(String[] deckPaths) {
+        int threads = Math.max(1, Math.min(deckPaths.length, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DeckSummary");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            ArrayList<Future<DeckSummary>> futures = new ArrayList<Future<DeckSummary>>();
+            for (final String dp : deckPaths) {
+                futures.add(executor.submit(new Callable<DeckSummary>() {
+                    public DeckSummary call() {
+                        Deck deck = DeckManager.getDeck(dp, DeckManager.REQUESTING_ACTIVITY_STATISTICS);
+                        if (deck == null) {
+                            return null;
+                        }
+                        try {
+                            return deck.getSummary();
+                        } finally {
+                            DeckManager.closeDeck(dp, DeckManager.REQUESTING_ACTIVITY_STATISTICS);
+                        }
+                    }
+                }));
+            }
+            DeckSummary merged = null;
+            for (int i = 0; i < futures.size(); i++) {
+                DeckSummary summary;
+                try {
+                    summary = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    log.error("Statistics - summary of deck " + deckPaths[i] + " failed", e.getCause());
                     continue;
                 }
-    			for (Entry<String, Object> entry : values.entrySet()) {
-    				if (entry.getKey().equals("deckAge")) {
-    					if (sDeckSummaryValues.containsKey(entry.getKey())) {
-    						sDeckSummaryValues.put(entry.getKey(), Math.max(sDeckSummaryValues.getAsInteger(entry.getKey()), (Integer) entry.getValue()));
-    					} else {
-    						sDeckSummaryValues.put(entry.getKey(), (Integer) entry.getValue());   
-    					}
-    				} else {
-    					if (sDeckSummaryValues.containsKey(entry.getKey())) {
-    						sDeckSummaryValues.put(entry.getKey(), sDeckSummaryValues.getAsInteger(entry.getKey()) + (Integer) entry.getValue());
-    					} else {
-    						sDeckSummaryValues.put(entry.getKey(), (Integer) entry.getValue());   
-    					}    					
-    				}
-				}
-    		} else {
-                double[][] seriesList;
-                seriesList = getSeriesList(context, type, period);
-                for (int i = 0; i < sSeriesList.length; i++) {
-                    for (int j = 0; j < period; j++) {
-                    	sSeriesList[i][j] += seriesList[i][j];
-                    }        	
-                }    			
-    		}
-            DeckManager.closeDeck(dp, DeckManager.REQUESTING_ACTIVITY_STATISTICS, false);
-    	}
-        if (type == TYPE_DECK_SUMMARY) {
-        	return (sDeckSummaryValues != null && sDeckSummaryValues.size() > 0) ? true : false;
-        } else {
-        	return sSeriesList != null ? true : false;        	
+                if (summary == null) {
+                    continue;
+                }
+                if (merged == null) {
+                    merged = summary;
+                } else {
+                    merged.merge(summary);
+                }
+            }
+            return merged;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Statistics - interrupted while computing deck summaries");
+            return null;
+        } finally {
+            executor.shutdownNow();
         }
     }
 
 
     public static double[][] getSeriesList(Context context, int type, int period) {
     	double[][] seriesList;
-        AnkiDb ankiDB = AnkiDatabaseManager.getDatabase(sDeck.getDeckPath());
-        ankiDB.getDatabase().beginTransaction();
+        AnkiDb ankiDB = sDeck.getDB();
+        ankiDB.beginTransaction();
         try {
+        	DueForecast forecast;
         	switch (type) {
             case TYPE_DUE:
             	seriesList = new double[3][period];
-            	seriesList[0] = getCardsByDue(period, false);
-            	seriesList[1] = getMatureCardsByDue(period, false);
+            	forecast = sDeck.getDueForecast(period, false);
+            	seriesList[0] = getCardsByDue(forecast, period, false);
+            	seriesList[1] = getMatureCardsByDue(forecast, period, false);
             	seriesList[2] = getFailedCardsByDue(period, false);
             	seriesList[0][1] += seriesList[2][1];
             	seriesList[1][0] += seriesList[2][0];
@@ -176,8 +228,9 @@ public class Statistics {
             	break;
             case TYPE_CUMULATIVE_DUE:
             	seriesList = new double[3][period];
-            	seriesList[0] = getCardsByDue(period, true);
-            	seriesList[1] = getMatureCardsByDue(period, true);
+            	forecast = sDeck.getDueForecast(period, false);
+            	seriesList[0] = getCardsByDue(forecast, period, true);
+            	seriesList[1] = getMatureCardsByDue(forecast, period, true);
             	seriesList[2] = getFailedCardsByDue(period, true);
             	seriesList[1][0] += seriesList[2][0];
                 for (int i = 1; i < period; i++) {
@@ -199,9 +252,9 @@ public class Statistics {
             default:
             	seriesList = null;
         	}
-        	ankiDB.getDatabase().setTransactionSuccessful();
+        	ankiDB.setTransactionSuccessful();
         } finally {
-            ankiDB.getDatabase().endTransaction();
+            ankiDB.endTransaction();
         }
         return seriesList;
     }
@@ -223,11 +276,15 @@ public class Statistics {
 
 
     public static double[] getCardsByDue(int length, boolean cumulative) {
+        return getCardsByDue(sDeck.getDueForecast(length, false), length, cumulative);
+    }
+
+
+    public static double[] getCardsByDue(DueForecast forecast, int length, boolean cumulative) {
         double series[] = new double[length];
         series[0] = sDeck.getDueCount();
         for (int i = 1; i < length; i++) {
-            int count = 0;
-            count = sDeck.getNextDueCards(i);
+            int count = forecast != null ? forecast.getDueCards(i) : 0;
             if (cumulative) {
                 series[i] = count + series[i - 1];
             } else {
@@ -239,10 +296,14 @@ public class Statistics {
 
 
     public static double[] getMatureCardsByDue(int length, boolean cumulative) {
+        return getMatureCardsByDue(sDeck.getDueForecast(length, false), length, cumulative);
+    }
+
+
+    public static double[] getMatureCardsByDue(DueForecast forecast, int length, boolean cumulative) {
         double series[] = new double[length];
         for (int i = 0; i < length; i++) {
-            int count = 0;
-            count = sDeck.getNextDueMatureCards(i);
+            int count = forecast != null ? forecast.getDueMatureCards(i) : 0;
             if (cumulative && i > 0) {
                 series[i] = count + series[i - 1];
             } else {
@@ -253,6 +314,23 @@ public class Statistics {
     }
 
 
+    /**
+     * @return the number of reviews per day if every review card is answered with ease when due, with the current
+     *         interval settings of the deck
+     */
+    public static double[] getProjectedReviews(int length, int ease) {
+        double series[] = new double[length];
+        DueForecast forecast = sDeck.getDueForecast(length, true);
+        if (forecast != null) {
+            int[] reviews = forecast.project(sDeck.getIntervalSimulator(), ease);
+            for (int i = 0; i < length; i++) {
+                series[i] = reviews[i];
+            }
+        }
+        return series;
+    }
+
+
     public static double[] getFailedCardsByDue(int length, boolean cumulative) {
         double series[] = new double[length];
         series[0] = sDeck.getFailedSoonCount();
@@ -56,6 +56,12 @@ import com.ichi2.anki.AnkiDroidProxy;
 import com.ichi2.anki.Utils;
 import com.ichi2.anki.db.AnkiDatabaseManager;
 import com.ichi2.anki.db.AnkiDb;
+import com.ichi2.anki.db.AnkiDbConfig;
+import com.ichi2.anki.db.BulkInsert;
+import com.ichi2.anki.db.IdSet;
+import com.ichi2.anki.db.Row;
+import com.ichi2.anki.db.RowCallback;
+import com.ichi2.anki.model.AnswerJournal;
 import com.ichi2.anki.model.Deck;
 import com.ichi2.anki.model.Stats;
 
@@ -182,32 +188,32 @@ public class SyncClient {
 
         String lastSyncString = String.format(Utils.ENGLISH_LOCALE, "%f", lastSync);
         // Cards
-        JSONArray cards = resultSetToJSONArray(ankiDB.rawQuery(
-                "SELECT id, modified FROM cards WHERE modified > " + lastSyncString));
+        JSONArray cards = queryToJSONArray(ankiDB,
+                "SELECT id, modified FROM cards WHERE modified > " + lastSyncString);
         // Cards - delcards
-        JSONArray delcards = resultSetToJSONArray(ankiDB.rawQuery(
-                "SELECT cardId, deletedTime FROM cardsDeleted WHERE deletedTime > " + lastSyncString));
+        JSONArray delcards = queryToJSONArray(ankiDB,
+                "SELECT cardId, deletedTime FROM cardsDeleted WHERE deletedTime > " + lastSyncString);
 
         // Facts
-        JSONArray facts = resultSetToJSONArray(ankiDB.rawQuery(
-                "SELECT id, modified FROM facts WHERE modified > " + lastSyncString));
+        JSONArray facts = queryToJSONArray(ankiDB,
+                "SELECT id, modified FROM facts WHERE modified > " + lastSyncString);
         // Facts - delfacts
-        JSONArray delfacts = resultSetToJSONArray(ankiDB.rawQuery(
-                "SELECT factId, deletedTime FROM factsDeleted WHERE deletedTime > " + lastSyncString));
+        JSONArray delfacts = queryToJSONArray(ankiDB,
+                "SELECT factId, deletedTime FROM factsDeleted WHERE deletedTime > " + lastSyncString);
 
         // Models
-        JSONArray models = resultSetToJSONArray(ankiDB.rawQuery(
-                "SELECT id, modified FROM models WHERE modified > " + lastSyncString));
+        JSONArray models = queryToJSONArray(ankiDB,
+                "SELECT id, modified FROM models WHERE modified > " + lastSyncString);
         // Models - delmodels
-        JSONArray delmodels = resultSetToJSONArray(ankiDB.rawQuery(
-                "SELECT modelId, deletedTime FROM modelsDeleted WHERE deletedTime > " + lastSyncString));
+        JSONArray delmodels = queryToJSONArray(ankiDB,
+                "SELECT modelId, deletedTime FROM modelsDeleted WHERE deletedTime > " + lastSyncString);
 
         // Media
-        JSONArray media = resultSetToJSONArray(ankiDB.rawQuery(
-                "SELECT id, created FROM media WHERE created > " + lastSyncString));
+        JSONArray media = queryToJSONArray(ankiDB,
+                "SELECT id, created FROM media WHERE created > " + lastSyncString);
         // Media - delmedia
-        JSONArray delmedia = resultSetToJSONArray(ankiDB.rawQuery(
-                "SELECT mediaId, deletedTime FROM mediaDeleted WHERE deletedTime > " + lastSyncString));
+        JSONArray delmedia = queryToJSONArray(ankiDB,
+                "SELECT mediaId, deletedTime FROM mediaDeleted WHERE deletedTime > " + lastSyncString);
 
         JSONObject summary = new JSONObject();
         try {
@@ -231,27 +237,20 @@ public class SyncClient {
     }
 
 
-    private JSONArray resultSetToJSONArray(ResultSet result) throws JSONException {
-        JSONArray jsonArray = new JSONArray();
-        try {
-			while (result.next()) {
-			    JSONArray element = new JSONArray();
-
-			    element.put(result.getLong(0));
-			    element.put(result.getDouble(1));
-			    jsonArray.put(element);
-			}
-		} catch (SQLException e) {
-			e.printStackTrace();
-		} finally {
-			if (result != null) {
-				try {
-					result.close();
-				} catch (SQLException e) {
-				}
-			}
-		}
-
+    private JSONArray queryToJSONArray(AnkiDb ankiDB, String query) {
+        final JSONArray jsonArray = new JSONArray();
+        ankiDB.forEachRow(query, new RowCallback() {
+            public void onRow(Row row) throws SQLException {
+                JSONArray element = new JSONArray();
+                element.put(row.getLong(1));
+                try {
+                    element.put(row.getDouble(2));
+                } catch (JSONException e) {
+                    throw new SQLException("Invalid value in row " + row.getPosition() + ": " + e.getMessage());
+                }
+                jsonArray.put(element);
+            }
+        });
         return jsonArray;
     }
 
@@ -541,7 +540,7 @@ public class SyncClient {
         } else if ("facts".equalsIgnoreCase(key)) {
             mDeck.deleteFacts(Utils.jsonArrayToListString(ids));
         } else if ("cards".equalsIgnoreCase(key)) {
-            mDeck.deleteCards(Utils.jsonArrayToListString(ids));
+            mDeck.deleteCards(Utils.jsonArrayToLongArray(ids));
         } else if ("media".equalsIgnoreCase(key)) {
             deleteMedia(ids);
         }
@@ -1362,11 +1361,10 @@ public class SyncClient {
         int len = cards.length();
         if (len > 0) {
             AnkiDb ankiDB = mDeck.getDB();
-            ArrayList<String> ids = new ArrayList<String>();
+            long[] ids = new long[len];
             for (int i = 0; i < len; i++) {
-                ids.add(cards.getJSONArray(i).getString(0));
+                ids[i] = cards.getJSONArray(i).getLong(0);
             }
-            String idsString = Utils.ids2str(ids);
 
             String sql = "INSERT OR REPLACE INTO cards (id, factId, cardModelId, created, modified, tags, ordinal, "
                     + "priority, interval, lastInterval, due, lastDue, factor, firstAnswered, reps, successive, "
@@ -1468,7 +1466,13 @@ public class SyncClient {
     			}
             }
 
-            ankiDB.execSQL("DELETE FROM cardsDeleted WHERE cardId IN " + idsString);
+            IdSet idSet = ankiDB.idSet(ids);
+            try {
+                ankiDB.delete("cardsDeleted", "cardId IN " + idSet.getSubquery());
+            } finally {
+                idSet.close();
+            }
+            mDeck.refreshDueCardIndex(ids);
         }
     }
     private String genType(JSONArray row) throws JSONException {
@@ -1662,7 +1666,7 @@ public class SyncClient {
         // Add meta information of the deck (deckVars table)
         JSONArray meta = new JSONArray();
         ResultSet result = mDeck.getDB().rawQuery(
-                "SELECT * FROM deckVars");
+                "SELECT * FROM deckVars WHERE key != '" + AnswerJournal.SEQ_KEY + "'");
         try {
 			while (result.next()) {
 			    JSONArray deckVar = new JSONArray();
@@ -1700,6 +1704,10 @@ public class SyncClient {
         int lenMeta = meta.length();
         for (int i = 0; i < lenMeta; i++) {
             JSONArray deckVar = meta.getJSONArray(i);
+            if (AnswerJournal.SEQ_KEY.equals(deckVar.getString(0))) {
+                // Local to this device
+                continue;
+            }
 
             // key
             try {
@@ -1852,52 +1860,20 @@ public class SyncClient {
 
 
     private void updateHistory(JSONArray history) throws JSONException {
-        String sql = "INSERT OR IGNORE INTO reviewHistory (cardId, time, lastInterval, nextInterval, ease, delay, "
-                    + "lastFactor, nextFactor, reps, thinkingTime, yesCount, noCount) VALUES(?,?,?,?,?,?,?,?,?,?,?,?)";
-        PreparedStatement statement = mDeck.getDB().compileStatement(sql);
-        int len = history.length();
-        for (int i = 0; i < len; i++) {
-            JSONArray h = history.getJSONArray(i);
-
-            // cardId
-            try {
-				statement.setLong(1, h.getLong(0));
-	            // time
-	            statement.setDouble(2, h.getDouble(1));
-	            // lastInterval
-	            statement.setDouble(3, h.getDouble(2));
-	            // nextInterval
-	            statement.setDouble(4, h.getDouble(3));
-	            // ease
-	            statement.setString(5, h.getString(4));
-	            // delay
-	            statement.setDouble(6, h.getDouble(5));
-	            // lastFactor
-	            statement.setDouble(7, h.getDouble(6));
-	            // nextFactor
-	            statement.setDouble(8, h.getDouble(7));
-	            // reps
-	            statement.setDouble(9, h.getDouble(8));
-	            // thinkingTime
-	            statement.setDouble(10, h.getDouble(9));
-	            // yesCount
-	            statement.setDouble(11, h.getDouble(10));
-	            // noCount
-	            statement.setDouble(12, h.getDouble(11));
-
-	            statement.executeUpdate();
-				
-			} catch (SQLException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-        }
-        if (statement != null) {
-        	try {
-				statement.close();
-			} catch (SQLException e) {
-				e.printStackTrace();
-			}
+        BulkInsert insert = mDeck.getDB().bulkInsertOrIgnore(mDeck, "reviewHistory", "cardId", "time",
+                "lastInterval", "nextInterval", "ease", "delay", "lastFactor", "nextFactor", "reps", "thinkingTime",
+                "yesCount", "noCount");
+        try {
+            int len = history.length();
+            for (int i = 0; i < len; i++) {
+                JSONArray h = history.getJSONArray(i);
+                insert.addRow(h.getLong(0), h.getDouble(1), h.getDouble(2), h.getDouble(3), h.getString(4),
+                        h.getDouble(5), h.getDouble(6), h.getDouble(7), h.getDouble(8), h.getDouble(9),
+                        h.getDouble(10), h.getDouble(11));
+            }
+            insert.finish();
+        } finally {
+            insert.close();
         }
     }
 
@@ -2065,17 +2041,25 @@ public class SyncClient {
             tmp.writeBytes(END);
 
             String deckPath = deck.getDeckPath();
-            FileInputStream fStream = new FileInputStream(deckPath);
-            byte[] buffer = new byte[Utils.CHUNK_SIZE];
-            int length = -1;
-            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
-            DeflaterOutputStream dos = new DeflaterOutputStream(tmp, deflater);
-            while ((length = fStream.read(buffer)) != -1) {
-                dos.write(buffer, 0, length);
-                log.info("Length = " + length);
+            // The server expects a self-contained deck file, without a WAL log next to it
+            AnkiDb ankiDB = deck.getDB();
+            AnkiDbConfig.JournalMode journalMode = ankiDB.getConfig().getJournalMode();
+            ankiDB.setJournalMode(AnkiDbConfig.JournalMode.DELETE);
+            try {
+                FileInputStream fStream = new FileInputStream(deckPath);
+                byte[] buffer = new byte[Utils.CHUNK_SIZE];
+                int length = -1;
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                DeflaterOutputStream dos = new DeflaterOutputStream(tmp, deflater);
+                while ((length = fStream.read(buffer)) != -1) {
+                    dos.write(buffer, 0, length);
+                    log.info("Length = " + length);
+                }
+                dos.finish();
+                fStream.close();
+            } finally {
+                ankiDB.setJournalMode(journalMode);
             }
-            dos.finish();
-            fStream.close();
 
             tmp.writeBytes(END);
             tmp.writeBytes(TWO_HYPHENS + MIME_BOUNDARY + TWO_HYPHENS + END + END);
@@ -2156,6 +2140,11 @@ public class SyncClient {
             int responseCode = response.getStatusLine().getStatusCode();
             String tempDeckPath = deckPath + ".tmp";
             if (responseCode == 200) {
+                if (AnkiDatabaseManager.isDatabaseOpen(deckPath)) {
+                    // A WAL log left next to the replaced file would be applied to the downloaded deck
+                    AnkiDatabaseManager.getDatabase(deckPath, true);
+                    AnkiDatabaseManager.closeDatabase(deckPath);
+                }
                 Utils.writeToFile(new InflaterInputStream(content), tempDeckPath);
                 File newFile = new File(tempDeckPath);
                 //File oldFile = new File(deckPath);
@@ -23,14 +23,30 @@ import java.sql.Time;
 import java.sql.Timestamp;
 import java.util.Calendar;
 
+import com.ichi2.anki.db.AnkiDbConnectionPool;
+
+/**
+ * PreparedStatement which commits its pending work and hands its connection back to the pool it was leased from
+ * when closed. A statement compiled inside a transaction scope leaves committing to that scope.
+ */
 public class ConnectionAwarePreparedStatement implements PreparedStatement {
 
 	private PreparedStatement statement;
 	private Connection conn;
+	private AnkiDbConnectionPool pool;
+	private boolean ownTransaction;
+	private boolean closed = false;
+	
+	public ConnectionAwarePreparedStatement(PreparedStatement statement, Connection conn, AnkiDbConnectionPool pool) {
+		this(statement, conn, pool, true);
+	}
 	
-	public ConnectionAwarePreparedStatement(PreparedStatement statement, Connection conn) {
+	public ConnectionAwarePreparedStatement(PreparedStatement statement, Connection conn, AnkiDbConnectionPool pool,
+			boolean ownTransaction) {
 		this.statement = statement;
 		this.conn = conn;
+		this.pool = pool;
+		this.ownTransaction = ownTransaction;
 	}
 	
 	public void addBatch() throws SQLException {
@@ -52,10 +68,29 @@ public class ConnectionAwarePreparedStatement implements PreparedStatement {
 		statement.clearWarnings();
 	}
 	public void close() throws SQLException {
-		conn.commit();
-		
-		statement.close();
-		conn.close();
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (!ownTransaction) {
+			try {
+				statement.close();
+			} finally {
+				pool.release(conn);
+			}
+			return;
+		}
+		try {
+			conn.commit();
+			statement.close();
+		} finally {
+			// The pooled connection outlives this statement, so restore autocommit
+			try {
+				conn.setAutoCommit(true);
+			} finally {
+				pool.release(conn);
+			}
+		}
 	}
 	public void closeOnCompletion() throws SQLException {
 		statement.closeOnCompletion();
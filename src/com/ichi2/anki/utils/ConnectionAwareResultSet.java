@@ -23,15 +23,23 @@ import java.sql.Timestamp;
 import java.util.Calendar;
 import java.util.Map;
 
+import com.ichi2.anki.db.AnkiDbConnectionPool;
+
+/**
+ * ResultSet which hands its connection back to the pool it was leased from when closed.
+ */
 public class ConnectionAwareResultSet implements ResultSet {
 
 	public ResultSet result;
 	public Connection conn;
+	private AnkiDbConnectionPool pool;
+	private boolean closed = false;
 
-	public ConnectionAwareResultSet(ResultSet result, Connection conn) {
+	public ConnectionAwareResultSet(ResultSet result, Connection conn, AnkiDbConnectionPool pool) {
 		super();
 		this.result = result;
 		this.conn = conn;
+		this.pool = pool;
 	}
 
 	public boolean absolute(int row) throws SQLException {
@@ -55,9 +63,20 @@ public class ConnectionAwareResultSet implements ResultSet {
 	}
 
 	public void close() throws SQLException {
-		result.close();
-		// CLOSE CONNECTION
-		conn.close();
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			Statement statement = result.getStatement();
+			result.close();
+			if (statement != null) {
+				statement.close();
+			}
+		} finally {
+			// Give the connection back instead of closing it
+			pool.release(conn);
+		}
 	}
 
 	public void deleteRow() throws SQLException {
@@ -0,0 +1,196 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.utils;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from primitive long keys to primitive double values, without boxing. Open addressing with linear probing;
+ * removals shift the following entries back, so there are no tombstones. Not thread safe.
+ */
+public class LongDoubleMap {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private long[] mKeys;
+	private double[] mValues;
+	private boolean[] mUsed;
+	private int mSize = 0;
+	private int mMask;
+
+
+	public LongDoubleMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+
+	/**
+	 * @param expectedSize
+	 *            number of entries the map can hold without growing
+	 */
+	public LongDoubleMap(int expectedSize) {
+		int capacity = DEFAULT_CAPACITY;
+		while (capacity * 3 / 4 < expectedSize) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+
+	public int size() {
+		return mSize;
+	}
+
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+
+	public boolean containsKey(long key) {
+		return mUsed[find(key)];
+	}
+
+
+	/**
+	 * @return the value of key, or defaultValue if the map does not contain it
+	 */
+	public double get(long key, double defaultValue) {
+		int slot = find(key);
+		return mUsed[slot] ? mValues[slot] : defaultValue;
+	}
+
+
+	public void put(long key, double value) {
+		int slot = find(key);
+		if (mUsed[slot]) {
+			mValues[slot] = value;
+			return;
+		}
+		mKeys[slot] = key;
+		mValues[slot] = value;
+		mUsed[slot] = true;
+		if (++mSize > mKeys.length * 3 / 4) {
+			rehash(mKeys.length << 1);
+		}
+	}
+
+
+	/**
+	 * @return true if key was in the map
+	 */
+	public boolean remove(long key) {
+		int slot = find(key);
+		if (!mUsed[slot]) {
+			return false;
+		}
+		mSize--;
+		// Shift back the entries of the same probe run which would no longer be reachable
+		int hole = slot;
+		int next = (hole + 1) & mMask;
+		while (mUsed[next]) {
+			int home = hash(mKeys[next]);
+			if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+				mKeys[hole] = mKeys[next];
+				mValues[hole] = mValues[next];
+				hole = next;
+			}
+			next = (next + 1) & mMask;
+		}
+		mUsed[hole] = false;
+		return true;
+	}
+
+
+	public void clear() {
+		if (mSize > 0) {
+			Arrays.fill(mUsed, false);
+			mSize = 0;
+		}
+	}
+
+
+	public LongDoubleMap copy() {
+		LongDoubleMap copy = new LongDoubleMap();
+		copy.mKeys = mKeys.clone();
+		copy.mValues = mValues.clone();
+		copy.mUsed = mUsed.clone();
+		copy.mSize = mSize;
+		copy.mMask = mMask;
+		return copy;
+	}
+
+
+	/**
+	 * @return the keys, in no particular order
+	 */
+	public long[] keys() {
+		long[] keys = new long[mSize];
+		int j = 0;
+		for (int i = 0; i < mKeys.length; i++) {
+			if (mUsed[i]) {
+				keys[j++] = mKeys[i];
+			}
+		}
+		return keys;
+	}
+
+
+	/**
+	 * @return the number of slots of the table, for memory estimates
+	 */
+	public int capacity() {
+		return mKeys.length;
+	}
+
+
+	private int find(long key) {
+		int slot = hash(key);
+		while (mUsed[slot] && mKeys[slot] != key) {
+			slot = (slot + 1) & mMask;
+		}
+		return slot;
+	}
+
+
+	private int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mMask;
+	}
+
+
+	private void allocate(int capacity) {
+		mKeys = new long[capacity];
+		mValues = new double[capacity];
+		mUsed = new boolean[capacity];
+		mMask = capacity - 1;
+	}
+
+
+	private void rehash(int capacity) {
+		long[] keys = mKeys;
+		double[] values = mValues;
+		boolean[] used = mUsed;
+		allocate(capacity);
+		for (int i = 0; i < keys.length; i++) {
+			if (used[i]) {
+				int slot = find(keys[i]);
+				mKeys[slot] = keys[i];
+				mValues[slot] = values[i];
+				mUsed[slot] = true;
+			}
+		}
+	}
+}
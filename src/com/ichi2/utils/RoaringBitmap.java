@@ -0,0 +1,495 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.utils;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of non-negative ints, after Roaring bitmaps: values are grouped by their high 16 bits, and each group
+ * is held as a sorted array of its low 16 bits while it has at most 4096 values, as a plain 65536 bit bitmap above
+ * that. Unions and differences work group by group, so their cost follows the compressed sizes rather than the range
+ * of the values. Not thread safe.
+ */
+public class RoaringBitmap {
+
+	/** Largest number of values held in an array container, the size of a bitmap container in chars */
+	private static final int ARRAY_MAX = 4096;
+
+	private char[] mKeys = new char[4];
+	private Container[] mContainers = new Container[4];
+	private int mSize = 0;
+
+
+	/**
+	 * @return true if the value was not in the set
+	 */
+	public boolean add(int value) {
+		char key = (char) (value >>> 16);
+		int i = search(key);
+		if (i < 0) {
+			i = -i - 1;
+			insert(i, key, new ArrayContainer());
+		}
+		Container container = mContainers[i];
+		int cardinality = container.mCardinality;
+		mContainers[i] = container.add((char) value);
+		return mContainers[i].mCardinality != cardinality;
+	}
+
+
+	/**
+	 * @return true if the value was in the set
+	 */
+	public boolean remove(int value) {
+		int i = search((char) (value >>> 16));
+		if (i < 0) {
+			return false;
+		}
+		Container container = mContainers[i];
+		int cardinality = container.mCardinality;
+		container = container.remove((char) value);
+		if (container.mCardinality == 0) {
+			delete(i);
+		} else {
+			mContainers[i] = container;
+		}
+		return container.mCardinality != cardinality;
+	}
+
+
+	public boolean contains(int value) {
+		int i = search((char) (value >>> 16));
+		return i >= 0 && mContainers[i].contains((char) value);
+	}
+
+
+	public int getCardinality() {
+		int cardinality = 0;
+		for (int i = 0; i < mSize; i++) {
+			cardinality += mContainers[i].mCardinality;
+		}
+		return cardinality;
+	}
+
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+
+	/**
+	 * @return the values, in ascending order
+	 */
+	public int[] toArray() {
+		int[] values = new int[getCardinality()];
+		int position = 0;
+		for (int i = 0; i < mSize; i++) {
+			position = mContainers[i].fill(mKeys[i] << 16, values, position);
+		}
+		return values;
+	}
+
+
+	public RoaringBitmap copy() {
+		RoaringBitmap copy = new RoaringBitmap();
+		copy.mKeys = Arrays.copyOf(mKeys, Math.max(mSize, 4));
+		copy.mContainers = new Container[copy.mKeys.length];
+		for (int i = 0; i < mSize; i++) {
+			copy.mContainers[i] = mContainers[i].copy();
+		}
+		copy.mSize = mSize;
+		return copy;
+	}
+
+
+	/**
+	 * @return the values in a or in b
+	 */
+	public static RoaringBitmap or(RoaringBitmap a, RoaringBitmap b) {
+		RoaringBitmap result = new RoaringBitmap();
+		int i = 0;
+		int j = 0;
+		while (i < a.mSize || j < b.mSize) {
+			if (j == b.mSize || (i < a.mSize && a.mKeys[i] < b.mKeys[j])) {
+				result.append(a.mKeys[i], a.mContainers[i++].copy());
+			} else if (i == a.mSize || b.mKeys[j] < a.mKeys[i]) {
+				result.append(b.mKeys[j], b.mContainers[j++].copy());
+			} else {
+				result.append(a.mKeys[i], a.mContainers[i++].or(b.mContainers[j++]));
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * @return the values in a which are not in b
+	 */
+	public static RoaringBitmap andNot(RoaringBitmap a, RoaringBitmap b) {
+		RoaringBitmap result = new RoaringBitmap();
+		int j = 0;
+		for (int i = 0; i < a.mSize; i++) {
+			char key = a.mKeys[i];
+			while (j < b.mSize && b.mKeys[j] < key) {
+				j++;
+			}
+			Container container;
+			if (j < b.mSize && b.mKeys[j] == key) {
+				container = a.mContainers[i].andNot(b.mContainers[j]);
+			} else {
+				container = a.mContainers[i].copy();
+			}
+			if (container.mCardinality > 0) {
+				result.append(key, container);
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * @return a rough estimate of the heap used, in bytes
+	 */
+	public long estimateRetainedSize() {
+		long size = 16 + 6L * mKeys.length;
+		for (int i = 0; i < mSize; i++) {
+			size += mContainers[i].estimateRetainedSize();
+		}
+		return size;
+	}
+
+
+	private int search(char key) {
+		return Arrays.binarySearch(mKeys, 0, mSize, key);
+	}
+
+
+	private void insert(int i, char key, Container container) {
+		if (mSize == mKeys.length) {
+			mKeys = Arrays.copyOf(mKeys, mSize * 2);
+			mContainers = Arrays.copyOf(mContainers, mSize * 2);
+		}
+		System.arraycopy(mKeys, i, mKeys, i + 1, mSize - i);
+		System.arraycopy(mContainers, i, mContainers, i + 1, mSize - i);
+		mKeys[i] = key;
+		mContainers[i] = container;
+		mSize++;
+	}
+
+
+	private void append(char key, Container container) {
+		insert(mSize, key, container);
+	}
+
+
+	private void delete(int i) {
+		System.arraycopy(mKeys, i + 1, mKeys, i, mSize - i - 1);
+		System.arraycopy(mContainers, i + 1, mContainers, i, mSize - i - 1);
+		mContainers[--mSize] = null;
+	}
+
+
+	/**
+	 * The low 16 bits of the values of one group. Updates return the container holding the result, which is this one
+	 * unless the representation changed.
+	 */
+	private abstract static class Container {
+		int mCardinality = 0;
+
+
+		abstract Container add(char value);
+
+
+		abstract Container remove(char value);
+
+
+		abstract boolean contains(char value);
+
+
+		abstract Container or(Container other);
+
+
+		abstract Container andNot(Container other);
+
+
+		abstract Container copy();
+
+
+		/**
+		 * Write the values, with high bits added, from position on.
+		 *
+		 * @return the position after the last value written
+		 */
+		abstract int fill(int high, int[] values, int position);
+
+
+		abstract long estimateRetainedSize();
+	}
+
+
+	private static final class ArrayContainer extends Container {
+		private char[] mValues;
+
+
+		ArrayContainer() {
+			mValues = new char[4];
+		}
+
+
+		ArrayContainer(char[] values, int cardinality) {
+			mValues = values;
+			mCardinality = cardinality;
+		}
+
+
+		@Override
+		Container add(char value) {
+			int i = Arrays.binarySearch(mValues, 0, mCardinality, value);
+			if (i >= 0) {
+				return this;
+			}
+			if (mCardinality == ARRAY_MAX) {
+				return toBitmap().add(value);
+			}
+			i = -i - 1;
+			if (mCardinality == mValues.length) {
+				mValues = Arrays.copyOf(mValues, Math.min(Math.max(mCardinality * 2, 4), ARRAY_MAX));
+			}
+			System.arraycopy(mValues, i, mValues, i + 1, mCardinality - i);
+			mValues[i] = value;
+			mCardinality++;
+			return this;
+		}
+
+
+		@Override
+		Container remove(char value) {
+			int i = Arrays.binarySearch(mValues, 0, mCardinality, value);
+			if (i >= 0) {
+				System.arraycopy(mValues, i + 1, mValues, i, mCardinality - i - 1);
+				mCardinality--;
+			}
+			return this;
+		}
+
+
+		@Override
+		boolean contains(char value) {
+			return Arrays.binarySearch(mValues, 0, mCardinality, value) >= 0;
+		}
+
+
+		@Override
+		Container or(Container other) {
+			if (other instanceof BitmapContainer) {
+				return other.or(this);
+			}
+			ArrayContainer array = (ArrayContainer) other;
+			char[] merged = new char[mCardinality + array.mCardinality];
+			int i = 0;
+			int j = 0;
+			int size = 0;
+			while (i < mCardinality || j < array.mCardinality) {
+				if (j == array.mCardinality || (i < mCardinality && mValues[i] < array.mValues[j])) {
+					merged[size++] = mValues[i++];
+				} else if (i == mCardinality || array.mValues[j] < mValues[i]) {
+					merged[size++] = array.mValues[j++];
+				} else {
+					merged[size++] = mValues[i++];
+					j++;
+				}
+			}
+			ArrayContainer result = new ArrayContainer(merged, size);
+			return size > ARRAY_MAX ? result.toBitmap() : result;
+		}
+
+
+		@Override
+		Container andNot(Container other) {
+			char[] kept = new char[mCardinality];
+			int size = 0;
+			for (int i = 0; i < mCardinality; i++) {
+				if (!other.contains(mValues[i])) {
+					kept[size++] = mValues[i];
+				}
+			}
+			return new ArrayContainer(kept, size);
+		}
+
+
+		@Override
+		Container copy() {
+			return new ArrayContainer(Arrays.copyOf(mValues, Math.max(mCardinality, 4)), mCardinality);
+		}
+
+
+		@Override
+		int fill(int high, int[] values, int position) {
+			for (int i = 0; i < mCardinality; i++) {
+				values[position++] = high | mValues[i];
+			}
+			return position;
+		}
+
+
+		@Override
+		long estimateRetainedSize() {
+			return 32 + 2L * mValues.length;
+		}
+
+
+		private BitmapContainer toBitmap() {
+			BitmapContainer bitmap = new BitmapContainer();
+			for (int i = 0; i < mCardinality; i++) {
+				bitmap.set(mValues[i]);
+			}
+			return bitmap;
+		}
+	}
+
+
+	private static final class BitmapContainer extends Container {
+		private final long[] mWords = new long[1024];
+
+
+		@Override
+		Container add(char value) {
+			set(value);
+			return this;
+		}
+
+
+		@Override
+		Container remove(char value) {
+			long bit = 1L << value;
+			if ((mWords[value >>> 6] & bit) != 0) {
+				mWords[value >>> 6] &= ~bit;
+				mCardinality--;
+				if (mCardinality <= ARRAY_MAX) {
+					return toArray();
+				}
+			}
+			return this;
+		}
+
+
+		@Override
+		boolean contains(char value) {
+			return (mWords[value >>> 6] & (1L << value)) != 0;
+		}
+
+
+		@Override
+		Container or(Container other) {
+			BitmapContainer result = (BitmapContainer) copy();
+			if (other instanceof BitmapContainer) {
+				long[] words = ((BitmapContainer) other).mWords;
+				int cardinality = 0;
+				for (int i = 0; i < words.length; i++) {
+					result.mWords[i] |= words[i];
+					cardinality += Long.bitCount(result.mWords[i]);
+				}
+				result.mCardinality = cardinality;
+			} else {
+				ArrayContainer array = (ArrayContainer) other;
+				for (int i = 0; i < array.mCardinality; i++) {
+					result.set(array.mValues[i]);
+				}
+			}
+			return result;
+		}
+
+
+		@Override
+		Container andNot(Container other) {
+			BitmapContainer result = (BitmapContainer) copy();
+			if (other instanceof BitmapContainer) {
+				long[] words = ((BitmapContainer) other).mWords;
+				int cardinality = 0;
+				for (int i = 0; i < words.length; i++) {
+					result.mWords[i] &= ~words[i];
+					cardinality += Long.bitCount(result.mWords[i]);
+				}
+				result.mCardinality = cardinality;
+			} else {
+				ArrayContainer array = (ArrayContainer) other;
+				for (int i = 0; i < array.mCardinality; i++) {
+					result.clear(array.mValues[i]);
+				}
+			}
+			return result.mCardinality <= ARRAY_MAX ? result.toArray() : result;
+		}
+
+
+		@Override
+		Container copy() {
+			BitmapContainer copy = new BitmapContainer();
+			System.arraycopy(mWords, 0, copy.mWords, 0, mWords.length);
+			copy.mCardinality = mCardinality;
+			return copy;
+		}
+
+
+		@Override
+		int fill(int high, int[] values, int position) {
+			for (int i = 0; i < mWords.length; i++) {
+				long word = mWords[i];
+				while (word != 0) {
+					values[position++] = high | (i << 6) | Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+				}
+			}
+			return position;
+		}
+
+
+		@Override
+		long estimateRetainedSize() {
+			return 32 + 8L * mWords.length;
+		}
+
+
+		void set(char value) {
+			long bit = 1L << value;
+			if ((mWords[value >>> 6] & bit) == 0) {
+				mWords[value >>> 6] |= bit;
+				mCardinality++;
+			}
+		}
+
+
+		private void clear(char value) {
+			long bit = 1L << value;
+			if ((mWords[value >>> 6] & bit) != 0) {
+				mWords[value >>> 6] &= ~bit;
+				mCardinality--;
+			}
+		}
+
+
+		private ArrayContainer toArray() {
+			char[] values = new char[mCardinality];
+			int size = 0;
+			for (int i = 0; i < mWords.length; i++) {
+				long word = mWords[i];
+				while (word != 0) {
+					values[size++] = (char) ((i << 6) | Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return new ArrayContainer(values, size);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+public class AnkiDatabaseManagerTest {
+
+	@Rule
+	public TemporaryDatabase mDatabase = new TemporaryDatabase("manager");
+
+
+	@Test
+	public void databaseStaysOpenUntilTheLastReferenceIsReleased() {
+		String path = mDatabase.getPath();
+		AnkiDb deck = AnkiDatabaseManager.getDatabase(path);
+		AnkiDb statistics = AnkiDatabaseManager.getDatabase(path);
+		assertSame(deck, statistics);
+
+		AnkiDatabaseManager.closeDatabase(path);
+		assertTrue(AnkiDatabaseManager.isDatabaseOpen(path));
+		assertEquals(1, statistics.queryScalar("SELECT 1"));
+
+		AnkiDatabaseManager.closeDatabase(path);
+		assertFalse(AnkiDatabaseManager.isDatabaseOpen(path));
+		// unpaired releases are ignored
+		AnkiDatabaseManager.closeDatabase(path);
+
+		AnkiDb reopened = AnkiDatabaseManager.getDatabase(path);
+		assertNotSame(deck, reopened);
+		AnkiDatabaseManager.closeDatabase(path);
+		assertFalse(AnkiDatabaseManager.isDatabaseOpen(path));
+	}
+
+
+	@Test
+	public void switchingTheJournalModeTakesAReference() {
+		String path = mDatabase.getPath();
+		AnkiDb deck = AnkiDatabaseManager.getDatabase(path);
+		assertSame(deck, AnkiDatabaseManager.getDatabase(path, true));
+		AnkiDatabaseManager.closeDatabase(path);
+		assertTrue(AnkiDatabaseManager.isDatabaseOpen(path));
+		AnkiDatabaseManager.closeDatabase(path);
+		assertFalse(AnkiDatabaseManager.isDatabaseOpen(path));
+	}
+
+
+	@Test
+	public void forceCloseIgnoresTheReferences() {
+		String path = mDatabase.getPath();
+		AnkiDb deck = AnkiDatabaseManager.getDatabase(path);
+		AnkiDatabaseManager.getDatabase(path);
+		AnkiDatabaseManager.forceCloseDatabase(path);
+		assertFalse(AnkiDatabaseManager.isDatabaseOpen(path));
+		assertTrue(deck.getPool().isClosed());
+	}
+}
@@ -0,0 +1,142 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteDataSource;
+
+public class AnkiDbConnectionPoolTest {
+
+	@Rule
+	public TemporaryDatabase mDatabase = new TemporaryDatabase("pool");
+
+	private AnkiDbConnectionPool mPool;
+
+
+	@Before
+	public void setUp() {
+		String path = mDatabase.getPath();
+		SQLiteDataSource writer = new SQLiteDataSource(new SQLiteConfig());
+		writer.setUrl("jdbc:sqlite:" + path);
+		SQLiteConfig readOnly = new SQLiteConfig();
+		readOnly.setReadOnly(true);
+		SQLiteDataSource reader = new SQLiteDataSource(readOnly);
+		reader.setUrl("jdbc:sqlite:" + path);
+		mPool = new AnkiDbConnectionPool(path, writer, reader, 1, 2, null);
+	}
+
+
+	@After
+	public void tearDown() {
+		mPool.close();
+	}
+
+
+	@Test
+	public void idleReaderIsReused() throws Exception {
+		Connection first = mPool.leaseReader();
+		mPool.release(first);
+		Connection second = mPool.leaseReader();
+		assertSame(first, second);
+		mPool.release(second);
+		assertEquals(1, mPool.getOpenCount());
+		assertEquals(1, mPool.getReuseCount());
+	}
+
+
+	@Test
+	public void readersBeyondTheCapUseTheWriter() throws Exception {
+		Connection first = mPool.leaseReader();
+		Connection second = mPool.leaseReader();
+		assertNotSame(first, second);
+		assertEquals(2, mPool.getOpenReaders());
+
+		Connection third = mPool.leaseReader();
+		assertTrue(mPool.isWriterHeldByCurrentThread());
+		assertEquals(1, mPool.getWriterFallbackCount());
+		assertEquals(2, mPool.getOpenReaders());
+		mPool.release(third);
+		assertFalse(mPool.isWriterHeldByCurrentThread());
+
+		// Only maxIdleReaders stay open once released
+		mPool.release(first);
+		mPool.release(second);
+		assertEquals(1, mPool.getOpenReaders());
+		assertEquals(0, mPool.getActiveLeases());
+	}
+
+
+	@Test
+	public void readerAtTheCapWaitsForTheWriter() throws Exception {
+		final Connection first = mPool.leaseReader();
+		final Connection second = mPool.leaseReader();
+		final CountDownLatch writerHeld = new CountDownLatch(1);
+		final CountDownLatch releaseWriter = new CountDownLatch(1);
+		Thread holder = new Thread() {
+			public void run() {
+				try {
+					Connection writer = mPool.leaseWriter();
+					writerHeld.countDown();
+					releaseWriter.await();
+					mPool.release(writer);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		holder.start();
+		assertTrue(writerHeld.await(5, TimeUnit.SECONDS));
+
+		final AtomicReference<Connection> leased = new AtomicReference<Connection>();
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread reader = new Thread() {
+			public void run() {
+				try {
+					Connection conn = mPool.leaseReader();
+					leased.set(conn);
+					mPool.release(conn);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+		reader.start();
+		assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+		releaseWriter.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		holder.join();
+		assertEquals(2, mPool.getOpenReaders());
+
+		mPool.release(first);
+		mPool.release(second);
+	}
+}
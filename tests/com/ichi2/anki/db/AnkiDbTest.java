@@ -0,0 +1,260 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class AnkiDbTest {
+
+	@Rule
+	public TemporaryDatabase mDatabase = new TemporaryDatabase("database");
+
+	private AnkiDb mDb;
+
+
+	@Before
+	public void setUp() {
+		mDb = mDatabase.getDb();
+		mDb.execSQL("CREATE TABLE cards (id INTEGER PRIMARY KEY, interval REAL, modified REAL)");
+	}
+
+
+	@Test
+	public void writesOfDifferentRowsShareOneStatement() {
+		Map<String, Object> values = new HashMap<String, Object>();
+		for (long id = 1; id <= 100; id++) {
+			values.put("id", id);
+			values.put("interval", 0.0);
+			values.put("modified", 0.0);
+			assertEquals(id, mDb.insert("cards", values));
+		}
+		long misses = mDb.getStatementCacheMisses();
+		long hits = mDb.getStatementCacheHits();
+		values.clear();
+		for (long id = 1; id <= 100; id++) {
+			values.put("interval", id * 1.5);
+			values.put("modified", 1.0);
+			assertEquals(1, mDb.update("cards", values, "id = ?", id));
+		}
+		assertTrue(mDb.getStatementCacheMisses() - misses <= 1);
+		assertTrue(mDb.getStatementCacheHits() - hits >= 99);
+		assertEquals(75, mDb.queryScalar("SELECT interval FROM cards WHERE id = 50"));
+		assertEquals(1, mDb.delete("cards", "id = ?", 50L));
+		assertEquals(99, mDb.queryScalar("SELECT count(*) FROM cards"));
+	}
+
+
+	@Test
+	public void innerScopesRollBackOnTheirOwn() {
+		mDb.beginTransaction();
+		try {
+			insert(1);
+			mDb.beginTransaction();
+			try {
+				insert(2);
+				// not marked successful
+			} finally {
+				mDb.endTransaction();
+			}
+			mDb.beginTransaction();
+			try {
+				insert(3);
+				mDb.setTransactionSuccessful();
+			} finally {
+				mDb.endTransaction();
+			}
+			assertTrue(mDb.inTransaction());
+			// reads inside the scope see its writes
+			assertEquals(2, mDb.queryScalar("SELECT count(*) FROM cards"));
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+		assertFalse(mDb.inTransaction());
+		assertEquals(4, mDb.queryScalar("SELECT sum(id) FROM cards"));
+	}
+
+
+	@Test
+	public void outerRollbackUndoesCommittedInnerScopes() {
+		mDb.beginTransaction();
+		try {
+			mDb.beginTransaction();
+			try {
+				insert(1);
+				mDb.setTransactionSuccessful();
+			} finally {
+				mDb.endTransaction();
+			}
+		} finally {
+			mDb.endTransaction();
+		}
+		assertEquals(0, mDb.queryScalar("SELECT count(*) FROM cards"));
+	}
+
+
+	@Test
+	public void runInTransactionCommitsOnReturnAndRollsBackOnThrow() {
+		int result = mDb.runInTransaction(new Callable<Integer>() {
+			public Integer call() {
+				insert(1);
+				// nested call joins as a savepoint
+				return mDb.runInTransaction(new Callable<Integer>() {
+					public Integer call() {
+						insert(2);
+						return 2;
+					}
+				});
+			}
+		});
+		assertEquals(2, result);
+		assertEquals(2, mDb.queryScalar("SELECT count(*) FROM cards"));
+
+		try {
+			mDb.runInTransaction(new Callable<Void>() {
+				public Void call() throws IOException {
+					insert(3);
+					throw new IOException("failed");
+				}
+			});
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertFalse(mDb.inTransaction());
+		assertEquals(2, mDb.queryScalar("SELECT count(*) FROM cards"));
+
+		mDb.runInTransaction(new Callable<Void>() {
+			public Void call() {
+				insert(4);
+				try {
+					mDb.runInTransaction(new Callable<Void>() {
+						public Void call() {
+							insert(5);
+							throw new IllegalStateException();
+						}
+					});
+					fail();
+				} catch (IllegalStateException e) {
+					// only the inner scope is rolled back
+				}
+				return null;
+			}
+		});
+		assertEquals(7, mDb.queryScalar("SELECT sum(id) FROM cards"));
+	}
+
+
+	@Test
+	public void bulkInsertOrIgnoreSkipsExistingRows() {
+		insert(2);
+		BulkInsert insert = mDb.bulkInsertOrIgnore(null, "cards", "id", "interval", "modified");
+		try {
+			for (long id = 1; id <= 3; id++) {
+				insert.addRow(id, 1.0, 0.0);
+			}
+			insert.finish();
+		} finally {
+			insert.close();
+		}
+		assertEquals(3, mDb.queryScalar("SELECT count(*) FROM cards"));
+		// the existing row is kept as it was
+		assertEquals(0, mDb.queryScalar("SELECT interval FROM cards WHERE id = 2"));
+	}
+
+
+	@Test
+	public void runOnWriterSeesTheTemporaryTablesOfTheWriter() {
+		final int[] barriers = new int[1];
+		mDb.setBarrier(new Runnable() {
+			public void run() {
+				barriers[0]++;
+			}
+		});
+		mDb.execSQL("CREATE TEMPORARY TABLE session (pos INTEGER PRIMARY KEY, cardId INTEGER NOT NULL)");
+		mDb.execSQL("INSERT INTO session (cardId) VALUES (?)", 7L);
+		barriers[0] = 0;
+		long count = mDb.runOnWriter(new Callable<Long>() {
+			public Long call() {
+				assertTrue(mDb.getPool().isWriterHeldByCurrentThread());
+				assertFalse(mDb.inTransaction());
+				return mDb.queryScalar("SELECT count(*) FROM session");
+			}
+		});
+		assertEquals(1, count);
+		// the barrier ran once, before the writer was taken
+		assertEquals(1, barriers[0]);
+		assertFalse(mDb.getPool().isWriterHeldByCurrentThread());
+	}
+
+
+	@Test
+	public void listenersHearHowTheTransactionEnds() {
+		final StringBuilder events = new StringBuilder();
+		mDb.beginTransaction();
+		try {
+			mDb.beginTransaction();
+			try {
+				mDb.addTransactionListener(listener(events, "a"));
+				mDb.setTransactionSuccessful();
+			} finally {
+				mDb.endTransaction();
+			}
+			mDb.beginTransaction();
+			try {
+				mDb.addTransactionListener(listener(events, "b"));
+			} finally {
+				mDb.endTransaction();
+			}
+			// the released savepoint waits for the outermost scope, the rolled back one is told at once
+			assertEquals("b-", events.toString());
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+		assertEquals("b-a+", events.toString());
+	}
+
+
+	private TransactionListener listener(final StringBuilder events, final String name) {
+		return new TransactionListener() {
+			public void onCommit() {
+				events.append(name).append("+");
+			}
+
+
+			public void onRollback() {
+				events.append(name).append("-");
+			}
+		};
+	}
+
+
+	private void insert(long id) {
+		assertEquals(1, mDb.execSQL("INSERT INTO cards VALUES (?, 0, 0)", id));
+	}
+}
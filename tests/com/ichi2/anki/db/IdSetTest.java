@@ -0,0 +1,123 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class IdSetTest {
+
+	@Rule
+	public TemporaryDatabase mDatabase = new TemporaryDatabase("idset");
+
+	private AnkiDb mDb;
+
+
+	@Before
+	public void setUp() {
+		mDb = mDatabase.getDb();
+		mDb.execSQL("CREATE TABLE cards (id INTEGER PRIMARY KEY)");
+		for (long id = 1; id <= 5; id++) {
+			mDb.execSQL("INSERT INTO cards VALUES (?)", id);
+		}
+	}
+
+
+	@Test
+	public void setsDoNotCommitTheCallersScope() {
+		mDb.beginTransaction();
+		try {
+			IdSet ids = mDb.idSet(new long[] { 1, 2, 2 });
+			try {
+				assertEquals(2, ids.size());
+				assertEquals(2, mDb.delete("cards", "id IN " + ids.getSubquery()));
+			} finally {
+				ids.close();
+			}
+			assertTrue(mDb.inTransaction());
+			// not marked successful
+		} finally {
+			mDb.endTransaction();
+		}
+		assertEquals(5, mDb.queryScalar("SELECT count(*) FROM cards"));
+
+		// Closed inside a scope opened after the set
+		IdSet ids = mDb.idSet(new long[] { 3 });
+		mDb.beginTransaction();
+		try {
+			mDb.delete("cards", "id IN " + ids.getSubquery());
+			ids.close();
+		} finally {
+			mDb.endTransaction();
+		}
+		assertEquals(5, mDb.queryScalar("SELECT count(*) FROM cards"));
+	}
+
+
+	@Test
+	public void writesWithoutAScopeRunOnTheirOwn() {
+		IdSet ids = mDb.idSetFromQuery("SELECT id FROM cards WHERE id > 3");
+		try {
+			assertFalse(mDb.inTransaction());
+			assertEquals(2, mDb.delete("cards", "id IN " + ids.getSubquery()));
+		} finally {
+			ids.close();
+		}
+		assertFalse(mDb.getPool().isWriterHeldByCurrentThread());
+		assertEquals(3, mDb.queryScalar("SELECT count(*) FROM cards"));
+	}
+
+
+	@Test
+	public void idsLeftByARolledBackCloseAreNotReused() {
+		IdSet ids = mDb.idSet(new long[] { 1, 2 });
+		mDb.beginTransaction();
+		try {
+			ids.close();
+		} finally {
+			mDb.endTransaction();
+		}
+		ids = mDb.idSet(new long[] { 3 });
+		try {
+			assertEquals(1, ids.size());
+			assertEquals(3, mDb.queryScalar("SELECT sum(id) FROM " + ids.getTable()));
+		} finally {
+			ids.close();
+		}
+	}
+
+
+	@Test
+	public void nestedSetsUseTheirOwnTables() {
+		IdSet outer = mDb.idSet(new long[] { 1, 2, 3 });
+		try {
+			IdSet inner = mDb.idSetFromQuery("SELECT id FROM cards WHERE id IN " + outer.getSubquery() + " AND id > 1");
+			try {
+				assertFalse(outer.getTable().equals(inner.getTable()));
+				assertEquals(2, inner.size());
+				assertEquals(6, mDb.queryScalar("SELECT sum(id) FROM " + outer.getTable()));
+			} finally {
+				inner.close();
+			}
+		} finally {
+			outer.close();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.db;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.rules.ExternalResource;
+
+/**
+ * A deck database in a temporary file, for the length of one test: the file is created before the test, and the
+ * database closed and the file deleted after it, with the files SQLite and the deck keep next to it. Use it as a rule:
+ * 
+ * <pre>
+ * &#064;Rule
+ * public TemporaryDatabase mDatabase = new TemporaryDatabase(&quot;name&quot;);
+ * </pre>
+ * 
+ * The database is opened through AnkiDatabaseManager on first use, so a test can open it in its own way instead.
+ */
+public class TemporaryDatabase extends ExternalResource {
+
+	private static final String[] SIDE_FILES = { "-journal", "-wal", "-shm", "-answers" };
+
+	private final String mPrefix;
+	private File mFile;
+	private AnkiDb mDb;
+
+
+	public TemporaryDatabase(String prefix) {
+		mPrefix = prefix;
+	}
+
+
+	@Override
+	protected void before() throws IOException {
+		mFile = File.createTempFile(mPrefix, ".anki");
+	}
+
+
+	@Override
+	protected void after() {
+		close();
+		mFile.delete();
+		for (String suffix : SIDE_FILES) {
+			new File(getPath() + suffix).delete();
+		}
+	}
+
+
+	public File getFile() {
+		return mFile;
+	}
+
+
+	public String getPath() {
+		return mFile.getPath();
+	}
+
+
+	/**
+	 * @return the database, opened on first use
+	 */
+	public AnkiDb getDb() {
+		if (mDb == null) {
+			mDb = AnkiDatabaseManager.getDatabase(getPath());
+		}
+		return mDb;
+	}
+
+
+	/**
+	 * Close the database, as a crash would leave it, and open it again.
+	 * 
+	 * @return the new database
+	 */
+	public AnkiDb reopen() {
+		close();
+		return getDb();
+	}
+
+
+	/**
+	 * Close the database if it is open. It is opened again on the next getDb().
+	 */
+	public void close() {
+		if (mDb != null) {
+			AnkiDatabaseManager.closeDatabase(getPath());
+			mDb = null;
+		}
+	}
+}
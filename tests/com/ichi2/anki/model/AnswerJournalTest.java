@@ -0,0 +1,242 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.ichi2.anki.db.AnkiDb;
+import com.ichi2.anki.db.TemporaryDatabase;
+
+public class AnswerJournalTest {
+
+    // Long enough for the flusher never to run during a test
+    private static final long FLUSH_INTERVAL = 3600 * 1000;
+
+    @Rule
+    public TemporaryDatabase mDatabase = new TemporaryDatabase("journal");
+
+    private String mPath;
+    private File mJournalFile;
+    private AnkiDb mDb;
+
+
+    @Before
+    public void setUp() {
+        mPath = mDatabase.getPath();
+        mJournalFile = new File(mPath + "-answers");
+        mDb = mDatabase.getDb();
+        mDb.execSQL("CREATE TABLE reviews (id INTEGER PRIMARY KEY, ease INTEGER)");
+        mDb.execSQL("CREATE TABLE other (id INTEGER PRIMARY KEY)");
+        mDb.execSQL("CREATE TABLE deckVars (key TEXT NOT NULL, value TEXT, PRIMARY KEY (key))");
+    }
+
+
+    @Test
+    public void answersAreReplayedAfterACrash() throws Exception {
+        AnswerJournal journal = open();
+        answer(journal, 1, 3);
+        answer(journal, 2, 1);
+        // Reads do not apply pending answers
+        assertEquals(0, mDb.queryScalar("SELECT count(*) FROM reviews"));
+        assertEquals(2, journal.getPendingCount());
+
+        crash();
+        // The journal still holds the answers: it can not be appended to
+        assertNull(open());
+        assertEquals(2, AnswerJournal.replay(mDb, mPath));
+        assertEquals(2, mDb.queryScalar("SELECT count(*) FROM reviews"));
+        assertEquals(1, mDb.queryScalar("SELECT ease FROM reviews WHERE id = 2"));
+        assertFalse(mJournalFile.exists());
+
+        // Numbering goes on after the replayed answers
+        journal = open();
+        assertNotNull(journal);
+        answer(journal, 3, 2);
+        journal.flush();
+        assertEquals(3, appliedSeq());
+        journal.close();
+        assertEquals(3, mDb.queryScalar("SELECT count(*) FROM reviews"));
+    }
+
+
+    @Test
+    public void appliedAnswersAreNotReplayedTwice() throws Exception {
+        AnswerJournal journal = open();
+        answer(journal, 1, 3);
+        answer(journal, 2, 4);
+        crash();
+        // As if the first answer had been applied just before the crash
+        mDb.execSQL("INSERT INTO deckVars VALUES (?, '1')", AnswerJournal.SEQ_KEY);
+        mDb.execSQL("INSERT INTO reviews VALUES (1, 3)");
+        assertEquals(1, AnswerJournal.replay(mDb, mPath));
+        assertEquals(2, mDb.queryScalar("SELECT count(*) FROM reviews"));
+        assertEquals(2, appliedSeq());
+    }
+
+
+    @Test
+    public void tornLastRecordIsIgnored() throws Exception {
+        AnswerJournal journal = open();
+        answer(journal, 1, 3);
+        answer(journal, 2, 4);
+        crash();
+        FileOutputStream out = new FileOutputStream(mJournalFile, true);
+        try {
+            // Length of a record whose write was interrupted
+            out.write(new byte[] { 0, 0, 1, 0, 42 });
+        } finally {
+            out.close();
+        }
+        assertEquals(2, AnswerJournal.replay(mDb, mPath));
+        assertEquals(2, mDb.queryScalar("SELECT count(*) FROM reviews"));
+    }
+
+
+    @Test
+    public void replayStopsAtACorruptRecord() throws Exception {
+        AnswerJournal journal = open();
+        answer(journal, 1, 3);
+        long firstRecord = mJournalFile.length();
+        answer(journal, 2, 4);
+        crash();
+        RandomAccessFile file = new RandomAccessFile(mJournalFile, "rw");
+        try {
+            // A byte of the second record, after its length and sequence number
+            long position = firstRecord + 4 + 8 + 2;
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xff);
+        } finally {
+            file.close();
+        }
+        assertEquals(1, AnswerJournal.replay(mDb, mPath));
+        assertEquals(1, mDb.queryScalar("SELECT count(*) FROM reviews"));
+    }
+
+
+    @Test
+    public void flushInsideATransactionIsCommittedWithIt() throws Exception {
+        AnswerJournal journal = open();
+        mDb.beginTransaction();
+        try {
+            // Appended after the barrier of the transaction
+            answer(journal, 1, 3);
+            journal.flush();
+            assertEquals(1, mDb.queryScalar("SELECT count(*) FROM reviews"));
+            // Kept until the transaction is committed, and not applied twice
+            assertEquals(1, journal.getPendingCount());
+            journal.flush();
+            mDb.execSQL("UPDATE reviews SET ease = 0 WHERE id = 1");
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        assertEquals(0, journal.getPendingCount());
+        assertEquals(0, mJournalFile.length());
+        assertEquals(0, mDb.queryScalar("SELECT ease FROM reviews WHERE id = 1"));
+        journal.close();
+    }
+
+
+    @Test
+    public void flushInsideARolledBackScopeIsAppliedAgain() throws Exception {
+        AnswerJournal journal = open();
+        mDb.beginTransaction();
+        try {
+            answer(journal, 1, 3);
+            journal.flush();
+        } finally {
+            mDb.endTransaction();
+        }
+        assertEquals(1, journal.getPendingCount());
+        assertEquals(0, mDb.queryScalar("SELECT count(*) FROM reviews"));
+
+        // The barrier applies the first answer
+        mDb.beginTransaction();
+        try {
+            assertEquals(0, journal.getPendingCount());
+            answer(journal, 2, 4);
+            mDb.beginTransaction();
+            try {
+                journal.flush();
+            } finally {
+                // Only the inner scope is rolled back
+                mDb.endTransaction();
+            }
+            assertEquals(1, mDb.queryScalar("SELECT count(*) FROM reviews"));
+            journal.flush();
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        assertEquals(0, journal.getPendingCount());
+        assertEquals(2, mDb.queryScalar("SELECT count(*) FROM reviews"));
+        journal.close();
+    }
+
+
+    @Test
+    public void writesAreNotReorderedBeforePendingAnswers() throws Exception {
+        AnswerJournal journal = open();
+        answer(journal, 1, 3);
+        mDb.execSQL("UPDATE reviews SET ease = 0 WHERE id = 1");
+        assertEquals(0, journal.getPendingCount());
+        assertEquals(0, mDb.queryScalar("SELECT ease FROM reviews WHERE id = 1"));
+        journal.close();
+    }
+
+
+    private long appliedSeq() {
+        return mDb.queryScalar("SELECT CAST(value AS INTEGER) FROM deckVars WHERE key = '" + AnswerJournal.SEQ_KEY
+                + "'");
+    }
+
+
+    private AnswerJournal open() {
+        return AnswerJournal.open(mDb, mPath, FLUSH_INTERVAL, 1000);
+    }
+
+
+    private void answer(AnswerJournal journal, long id, int ease) {
+        mDb.beginCapture();
+        try {
+            mDb.execSQL("INSERT INTO reviews VALUES (?, ?)", id, ease);
+        } finally {
+            journal.append(mDb.endCapture(), null);
+        }
+    }
+
+
+    /**
+     * Drop the database without closing the journal, and open it again.
+     */
+    private void crash() {
+        mDb = mDatabase.reopen();
+        assertTrue(mJournalFile.length() > 0);
+    }
+}
@@ -0,0 +1,124 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+public class CardPrefetcherTest {
+
+    // Ids of the cards loaded, in order; a card whose id is in mMissing fails to load
+    private final List<Long> mLoaded = new ArrayList<Long>();
+    private final List<Long> mMissing = new ArrayList<Long>();
+
+
+    private CardPrefetcher prefetcher(int lookahead) {
+        return new CardPrefetcher(null, lookahead) {
+            @Override
+            Callable<Card> newLoader(final long cardId) {
+                return new Callable<Card>() {
+                    public Card call() {
+                        synchronized (mLoaded) {
+                            mLoaded.add(cardId);
+                        }
+                        return mMissing.contains(cardId) ? null : new Card(null);
+                    }
+                };
+            }
+        };
+    }
+
+
+    private List<Long> loaded() {
+        synchronized (mLoaded) {
+            return new ArrayList<Long>(mLoaded);
+        }
+    }
+
+
+    @Test
+    public void aPrefetchedCardIsHandedOverOnce() {
+        CardPrefetcher prefetcher = prefetcher(3);
+        prefetcher.prefetch(new long[] { 1, 2 }, new long[] { 10, 20 }, 2);
+        assertNotNull(prefetcher.take(1));
+        assertNull(prefetcher.take(1));
+        assertEquals(1, prefetcher.getHits());
+        assertEquals(1, prefetcher.getMisses());
+    }
+
+
+    @Test
+    public void loadsAreBoundedByTheLookaheadAndTheCount() {
+        CardPrefetcher prefetcher = prefetcher(2);
+        prefetcher.prefetch(new long[] { 1, 2, 3, 4 }, new long[] { 10, 20, 30, 40 }, 3);
+        assertNotNull(prefetcher.take(1));
+        assertNotNull(prefetcher.take(2));
+        assertNull(prefetcher.take(3));
+        assertEquals(2, loaded().size());
+    }
+
+
+    @Test
+    public void prefetchKeepsTheCardsStillAheadAndDropsTheOthers() {
+        CardPrefetcher prefetcher = prefetcher(3);
+        prefetcher.prefetch(new long[] { 1, 2 }, new long[] { 10, 20 }, 2);
+        Card second = prefetcher.take(2);
+        prefetcher.prefetch(new long[] { 1, 3 }, new long[] { 10, 30 }, 2);
+        prefetcher.prefetch(new long[] { 3, 4 }, new long[] { 30, 40 }, 2);
+        assertNotNull(second);
+        assertNull(prefetcher.take(1));
+        assertNotNull(prefetcher.take(3));
+        assertNotNull(prefetcher.take(4));
+        // 1 and 3 are not loaded again by the prefetch which keeps them
+        assertEquals(4, loaded().size());
+    }
+
+
+    @Test
+    public void writesDropTheCardsOfTheirCardOrFact() {
+        CardPrefetcher prefetcher = prefetcher(4);
+        prefetcher.prefetch(new long[] { 1, 2, 3, 4 }, new long[] { 10, 10, 20, 30 }, 4);
+        prefetcher.invalidateFact(10);
+        prefetcher.invalidateCard(4);
+        assertEquals(3, prefetcher.getInvalidations());
+        assertNull(prefetcher.take(1));
+        assertNull(prefetcher.take(2));
+        assertNotNull(prefetcher.take(3));
+        assertNull(prefetcher.take(4));
+        prefetcher.prefetch(new long[] { 5 }, new long[] { 50 }, 1);
+        prefetcher.clear();
+        assertEquals(4, prefetcher.getInvalidations());
+        assertNull(prefetcher.take(5));
+    }
+
+
+    @Test
+    public void aCardWhichFailsToLoadIsAMiss() {
+        mMissing.add(2L);
+        CardPrefetcher prefetcher = prefetcher(2);
+        prefetcher.prefetch(new long[] { 1, 2 }, new long[] { 10, 20 }, 2);
+        assertNotNull(prefetcher.take(1));
+        assertNull(prefetcher.take(2));
+        assertEquals(1, prefetcher.getHits());
+        assertEquals(1, prefetcher.getMisses());
+    }
+}
@@ -0,0 +1,89 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CardQueueTest {
+
+    @Test
+    public void firstCardAddedIsTheLastEntry() {
+        CardQueue queue = new CardQueue(2);
+        assertTrue(queue.isEmpty());
+        queue.addFirst(1, 10, 1.5);
+        queue.addFirst(2, 20);
+        queue.addFirst(3, 30, 3.5);
+        assertEquals(3, queue.size());
+        assertEquals(1, queue.getLastCardId());
+        assertEquals(10, queue.getLastFactId());
+        assertEquals(1.5, queue.getLastDue(), 0.0);
+        assertEquals(2, queue.getCardId(1));
+        assertEquals(30, queue.getFactId(2));
+        assertEquals(1, queue.removeLast());
+        assertEquals(2, queue.getLastCardId());
+        assertEquals(0.0, queue.getLastDue(), 0.0);
+        queue.clear();
+        assertTrue(queue.isEmpty());
+    }
+
+
+    @Test(expected = NoSuchElementException.class)
+    public void emptyQueueHasNoLastEntry() {
+        new CardQueue().getLastCardId();
+    }
+
+
+    @Test(expected = NoSuchElementException.class)
+    public void entriesBeyondTheSizeAreRejected() {
+        CardQueue queue = new CardQueue();
+        queue.addFirst(1, 1);
+        queue.getCardId(1);
+    }
+
+
+    @Test
+    public void wrapsAndGrowsLikeADeque() {
+        Random random = new Random(13);
+        CardQueue queue = new CardQueue(1);
+        LinkedList<long[]> reference = new LinkedList<long[]>();
+        for (int i = 0; i < 10000; i++) {
+            if (!reference.isEmpty() && random.nextInt(3) == 0) {
+                assertEquals(reference.removeLast()[0], queue.removeLast());
+            } else {
+                long cardId = random.nextLong();
+                long factId = random.nextInt(100);
+                queue.addFirst(cardId, factId, cardId / 2.0);
+                reference.addFirst(new long[] { cardId, factId });
+            }
+            assertEquals(reference.size(), queue.size());
+            if (!reference.isEmpty()) {
+                assertEquals(reference.getLast()[0], queue.getLastCardId());
+                assertEquals(reference.getLast()[1], queue.getLastFactId());
+                assertEquals(reference.getLast()[0] / 2.0, queue.getLastDue(), 0.0);
+                int fromLast = random.nextInt(reference.size());
+                assertEquals(reference.get(reference.size() - 1 - fromLast)[0], queue.getCardId(fromLast));
+            }
+        }
+        assertFalse(queue.estimateRetainedSize() <= 0);
+    }
+}
@@ -0,0 +1,122 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.ichi2.anki.db.AnkiDb;
+import com.ichi2.anki.db.TemporaryDatabase;
+
+public class DeckSummaryTest {
+
+    @Rule
+    public TemporaryDatabase mDatabase = new TemporaryDatabase("summary");
+
+    private AnkiDb mDb;
+
+
+    @Before
+    public void setUp() {
+        mDb = mDatabase.getDb();
+    }
+
+
+    @Test
+    public void scansFillTheFiguresOfTheSummaryScreen() {
+        DeckSummary summary = summary(1, 30);
+        Map<String, Object> values = summary.toMap();
+        assertEquals(21, values.size());
+        assertEquals(10, values.get("cardCount"));
+        assertEquals(4, values.get("matureCount"));
+        assertEquals(2, values.get("unseenCount"));
+        assertEquals(150, values.get("intervalSum"));
+        assertEquals(7, values.get("factCount"));
+        assertEquals(100, values.get("repsMatCount"));
+        assertEquals(111, values.get("newsLastYear"));
+        assertEquals(30, values.get("deckAge"));
+        assertEquals(5, values.get("revTomorrow"));
+        assertEquals(6, values.get("newTomorrow"));
+        assertEquals(70, values.get("timeTomorrow"));
+        assertEquals(1, summary.getNewCards());
+        assertEquals(3, summary.getFailedDelayed());
+        assertEquals(8, summary.getDueTomorrow());
+    }
+
+
+    @Test
+    public void mergeAddsTheFiguresAndKeepsTheOldestAge() {
+        DeckSummary first = summary(1, 30);
+        DeckSummary second = summary(3, 400);
+        Map<String, Object> firstValues = first.toMap();
+        Map<String, Object> secondValues = second.toMap();
+        first.merge(second);
+        Map<String, Object> merged = first.toMap();
+        assertEquals(firstValues.keySet(), merged.keySet());
+        for (String key : merged.keySet()) {
+            int a = (Integer) firstValues.get(key);
+            int b = (Integer) secondValues.get(key);
+            assertEquals(key, key.equals("deckAge") ? Math.max(a, b) : a + b, merged.get(key));
+        }
+        assertEquals(400, merged.get("deckAge"));
+
+        // in any order
+        DeckSummary other = summary(3, 400);
+        other.merge(summary(1, 30));
+        assertEquals(merged, other.toMap());
+    }
+
+
+    @Test
+    public void mergingAnEmptySummaryChangesNothing() {
+        DeckSummary summary = summary(2, 12);
+        Map<String, Object> values = summary.toMap();
+        summary.merge(new DeckSummary());
+        assertEquals(values, summary.toMap());
+        DeckSummary empty = new DeckSummary();
+        empty.merge(summary(2, 12));
+        assertEquals(values, empty.toMap());
+    }
+
+
+    /**
+     * @return a summary with every figure multiplied by scale
+     */
+    private DeckSummary summary(int scale, int deckAge) {
+        DeckSummary summary = new DeckSummary();
+        assertTrue(summary.scanCards(mDb, select(scale, 10, 4, 2, 150, 1), false));
+        assertTrue(summary.scanDue(mDb, select(scale, 3, 8)));
+        assertTrue(summary.scanStats(mDb, select(scale, 100, 10, 50, 20, 30, 9, 40, 5, 160, 21, 900, 111)));
+        summary.setFactCount(7 * scale);
+        summary.setDeckAge(deckAge);
+        summary.setTomorrow(5 * scale, 6 * scale, 70 * scale);
+        return summary;
+    }
+
+
+    private static String select(int scale, int... values) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < values.length; i++) {
+            sql.append(i > 0 ? ", " : "").append(values[i] * scale);
+        }
+        return sql.toString();
+    }
+}
@@ -0,0 +1,271 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.ichi2.anki.db.AnkiDb;
+import com.ichi2.anki.db.TemporaryDatabase;
+
+public class DueCardIndexTest {
+
+    @Rule
+    public TemporaryDatabase mDatabase = new TemporaryDatabase("index");
+
+    private AnkiDb mDb;
+    private DueCardIndex mIndex;
+    /** What the index should hold, by card id */
+    private Map<Long, Entry> mCards = new HashMap<Long, Entry>();
+    private Random mRandom = new Random(5);
+
+
+    @Before
+    public void setUp() {
+        mDb = mDatabase.getDb();
+        mDb.execSQL("CREATE TABLE cards (id INTEGER PRIMARY KEY, factId INTEGER, type INTEGER, priority INTEGER, "
+                + "combinedDue REAL, interval REAL, due REAL)");
+        for (long id = 1; id <= 1000; id++) {
+            Entry entry = randomEntry(id);
+            mDb.execSQL("INSERT INTO cards VALUES (?, ?, ?, ?, ?, ?, ?)", id, entry.mFactId, entry.mType,
+                    entry.mPriority, entry.mCombinedDue, entry.mInterval, entry.mDue);
+            if (entry.mType <= 2) {
+                mCards.put(id, entry);
+            }
+        }
+        mIndex = DueCardIndex.build(mDb);
+    }
+
+
+    @Test
+    public void buildIndexesFailedReviewAndNewCards() {
+        assertEquals(mCards.size(), mIndex.size());
+        checkCounts();
+    }
+
+
+    @Test
+    public void countsAndSelectionsFollowChanges() {
+        // Enough changes to split and drop blocks many times
+        for (int i = 0; i < 20000; i++) {
+            long id = 1 + mRandom.nextInt(3000);
+            if (mRandom.nextInt(4) == 0) {
+                mIndex.remove(id);
+                mCards.remove(id);
+            } else {
+                Entry entry = randomEntry(id);
+                mIndex.put(id, entry.mFactId, entry.mType, entry.mPriority, entry.mCombinedDue, entry.mInterval,
+                        entry.mDue);
+                if (entry.mType <= 2) {
+                    mCards.put(id, entry);
+                } else {
+                    mCards.remove(id);
+                }
+            }
+            if (i % 1000 == 0) {
+                checkCounts();
+                checkSelections();
+            }
+        }
+        assertEquals(mCards.size(), mIndex.size());
+        checkCounts();
+        checkSelections();
+    }
+
+
+    @Test
+    public void filterRestrictsCountsAndSelections() {
+        DueCardIndex.CardFilter even = new DueCardIndex.CardFilter() {
+            public boolean accept(long cardId) {
+                return cardId % 2 == 0;
+            }
+        };
+        for (int type = 0; type <= 2; type++) {
+            List<Entry> due = due(type, 500);
+            List<Entry> evenDue = new ArrayList<Entry>();
+            for (Entry entry : due) {
+                if (entry.mId % 2 == 0) {
+                    evenDue.add(entry);
+                }
+            }
+            assertEquals(evenDue.size(), mIndex.count(type, 500, even));
+            sort(evenDue, DueCardIndex.ORDER_PRIORITY_INTERVAL);
+            assertEquals(ids(evenDue, 20), select(type, 500, DueCardIndex.ORDER_PRIORITY_INTERVAL, 20, even));
+        }
+    }
+
+
+    @Test
+    public void spaceFactDelaysSiblings() {
+        long factId = mCards.get(firstId(1)).mFactId;
+        mIndex.spaceFact(factId, -1, 1000, 0.5, 2000);
+        for (Entry entry : mCards.values()) {
+            if (entry.mFactId != factId || entry.mCombinedDue >= 1000) {
+                continue;
+            }
+            if (entry.mType == 1) {
+                double delay = entry.mInterval * 0.5;
+                entry.mCombinedDue += 86400 * (delay < 1 ? 0 : delay);
+            } else if (entry.mType == 2) {
+                entry.mCombinedDue = 2000;
+            }
+        }
+        checkCounts();
+        checkSelections();
+    }
+
+
+    private void checkCounts() {
+        for (int type = 0; type <= 2; type++) {
+            for (double before : new double[] { -1, 0, 17.5, 250, 999, 1000, 5000 }) {
+                assertEquals(due(type, before).size(), mIndex.count(type, before));
+            }
+        }
+    }
+
+
+    private void checkSelections() {
+        int[] orders = { DueCardIndex.ORDER_COMBINED_DUE, DueCardIndex.ORDER_PRIORITY_INTERVAL_DESC,
+                DueCardIndex.ORDER_PRIORITY_INTERVAL, DueCardIndex.ORDER_PRIORITY_COMBINED_DUE,
+                DueCardIndex.ORDER_PRIORITY_DUE, DueCardIndex.ORDER_PRIORITY_DUE_DESC };
+        for (int type = 0; type <= 2; type++) {
+            for (int order : orders) {
+                List<Entry> due = due(type, 600);
+                sort(due, order);
+                assertEquals(ids(due, 50), select(type, 600, order, 50, null));
+            }
+            // Random order keeps the highest priorities
+            List<Entry> due = due(type, 600);
+            sort(due, DueCardIndex.ORDER_PRIORITY_COMBINED_DUE);
+            List<Long> selected = select(type, 600, DueCardIndex.ORDER_PRIORITY_RANDOM, 50, null);
+            assertEquals(Math.min(50, due.size()), selected.size());
+            for (int i = 0; i < selected.size(); i++) {
+                assertEquals(due.get(i).mPriority, mCards.get(selected.get(i)).mPriority);
+            }
+        }
+    }
+
+
+    private List<Long> select(int type, double before, int order, int limit, DueCardIndex.CardFilter filter) {
+        final List<Long> ids = new ArrayList<Long>();
+        mIndex.select(type, before, order, limit, filter, new DueCardIndex.EntryCallback() {
+            public void onEntry(long cardId, long factId, double combinedDue) {
+                assertEquals(mCards.get(cardId).mCombinedDue, combinedDue, 0.0);
+                ids.add(cardId);
+            }
+        });
+        return ids;
+    }
+
+
+    private List<Entry> due(int type, double before) {
+        List<Entry> due = new ArrayList<Entry>();
+        for (Entry entry : mCards.values()) {
+            if (entry.mType == type && entry.mCombinedDue < before) {
+                due.add(entry);
+            }
+        }
+        return due;
+    }
+
+
+    private long firstId(int type) {
+        List<Entry> due = due(type, Double.MAX_VALUE);
+        assertTrue(!due.isEmpty());
+        return due.get(0).mId;
+    }
+
+
+    private static List<Long> ids(List<Entry> entries, int limit) {
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < entries.size() && i < limit; i++) {
+            ids.add(entries.get(i).mId);
+        }
+        return ids;
+    }
+
+
+    /**
+     * Sort as the ORDER BY clauses of Deck, then by (combinedDue, id) as the index breaks ties.
+     */
+    private static void sort(List<Entry> entries, final int order) {
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                int result = 0;
+                if (order != DueCardIndex.ORDER_COMBINED_DUE && a.mPriority != b.mPriority) {
+                    return b.mPriority - a.mPriority;
+                }
+                switch (order) {
+                    case DueCardIndex.ORDER_PRIORITY_INTERVAL_DESC:
+                        result = Double.compare(b.mInterval, a.mInterval);
+                        break;
+                    case DueCardIndex.ORDER_PRIORITY_INTERVAL:
+                        result = Double.compare(a.mInterval, b.mInterval);
+                        break;
+                    case DueCardIndex.ORDER_PRIORITY_DUE:
+                        result = Double.compare(a.mDue, b.mDue);
+                        break;
+                    case DueCardIndex.ORDER_PRIORITY_DUE_DESC:
+                        result = Double.compare(b.mDue, a.mDue);
+                        break;
+                    default:
+                        break;
+                }
+                if (result == 0) {
+                    result = Double.compare(a.mCombinedDue, b.mCombinedDue);
+                }
+                return result != 0 ? result : (a.mId < b.mId ? -1 : (a.mId == b.mId ? 0 : 1));
+            }
+        });
+    }
+
+
+    private Entry randomEntry(long id) {
+        Entry entry = new Entry();
+        entry.mId = id;
+        entry.mFactId = id / 3;
+        // Some cards are suspended or otherwise out of the queues
+        entry.mType = mRandom.nextInt(4);
+        entry.mPriority = mRandom.nextInt(5);
+        // Few distinct values, so that ties are common
+        entry.mCombinedDue = mRandom.nextInt(1200);
+        entry.mInterval = mRandom.nextInt(10);
+        entry.mDue = mRandom.nextInt(50);
+        return entry;
+    }
+
+
+    private static final class Entry {
+        long mId;
+        long mFactId;
+        int mType;
+        int mPriority;
+        double mCombinedDue;
+        double mInterval;
+        double mDue;
+    }
+}
@@ -0,0 +1,178 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.ichi2.anki.db.AnkiDb;
+import com.ichi2.anki.db.TemporaryDatabase;
+
+public class DueCountsTest {
+
+    private static final long ANCHOR = 14400;
+
+    @Rule
+    public TemporaryDatabase mDatabase = new TemporaryDatabase("counts");
+
+    private AnkiDb mDb;
+    private Random mRandom = new Random(17);
+
+
+    @Before
+    public void setUp() {
+        mDb = mDatabase.getDb();
+        mDb.execSQL("CREATE TABLE cards (id INTEGER PRIMARY KEY, factId INTEGER, type INTEGER, combinedDue REAL)");
+        mDb.execSQL("CREATE TABLE facts (id INTEGER PRIMARY KEY)");
+        for (int i = 1; i <= 500; i++) {
+            mDb.execSQL("INSERT INTO cards VALUES (?, ?, ?, ?)", i, i / 2, mRandom.nextInt(6) - 3, randomDue());
+        }
+        for (int i = 0; i <= 250; i++) {
+            mDb.execSQL("INSERT INTO facts VALUES (?)", i);
+        }
+    }
+
+
+    @Test
+    public void cardsBeforeTheAnchorAreCountedOnTheDayBefore() {
+        mDb.execSQL("DELETE FROM cards");
+        // Day -1 runs from ANCHOR - 86400 to ANCHOR, day 0 from ANCHOR
+        mDb.execSQL("INSERT INTO cards VALUES (1, 1, 1, ?)", ANCHOR - 10.5);
+        mDb.execSQL("INSERT INTO cards VALUES (2, 1, 1, ?)", (double) ANCHOR);
+        DueCounts counts = DueCounts.open(mDb, ANCHOR);
+        assertEquals(1, counts.count(1, ANCHOR));
+        assertEquals(0, counts.count(1, ANCHOR - 86400));
+        assertEquals(2, counts.count(1, ANCHOR + 86400));
+        // Moved by the triggers rather than by the rebuild
+        mDb.execSQL("INSERT INTO cards VALUES (3, 1, 1, ?)", ANCHOR - 86400 - 0.5);
+        assertEquals(1, counts.count(1, ANCHOR - 86400));
+        assertEquals(2, counts.count(1, ANCHOR));
+        assertTrue(counts.check());
+        counts.close();
+    }
+
+
+    @Test
+    public void countsFollowWritesToCardsAndFacts() {
+        DueCounts counts = DueCounts.open(mDb, ANCHOR);
+        checkCounts(counts);
+        for (int i = 0; i < 2000; i++) {
+            int op = mRandom.nextInt(10);
+            if (op < 6) {
+                mDb.execSQL("UPDATE cards SET type = ?, combinedDue = ? WHERE id = ?", mRandom.nextInt(6) - 3,
+                        randomDue(), 1 + mRandom.nextInt(700));
+            } else if (op < 8) {
+                mDb.execSQL("INSERT OR IGNORE INTO cards VALUES (?, ?, ?, ?)", 1 + mRandom.nextInt(700), 1,
+                        mRandom.nextInt(3), randomDue());
+            } else if (op < 9) {
+                mDb.execSQL("DELETE FROM cards WHERE id = ?", 1 + mRandom.nextInt(700));
+            } else {
+                mDb.execSQL("INSERT OR IGNORE INTO facts VALUES (?)", mRandom.nextInt(400));
+                mDb.execSQL("DELETE FROM facts WHERE id = ?", mRandom.nextInt(400));
+            }
+        }
+        assertTrue(counts.check());
+        checkCounts(counts);
+        counts.close();
+    }
+
+
+    @Test
+    public void tableIsNotStoredInTheDeck() {
+        DueCounts counts = DueCounts.open(mDb, ANCHOR);
+        assertEquals(0, mDb.queryScalar("SELECT count(*) FROM sqlite_master WHERE name = 'dueCounts'"));
+        counts.close();
+        // The cards table is written without the triggers afterwards
+        mDb.execSQL("INSERT INTO cards VALUES (1000, 1, 1, 0)");
+    }
+
+
+    @Test
+    public void persistentCountsAreKeptWhileTheStampMatches() {
+        DueCounts counts = DueCounts.openPersistent(mDb, ANCHOR, 100.0);
+        checkCounts(counts);
+        counts.close(100.0);
+        assertEquals(1, mDb.queryScalar("SELECT count(*) FROM sqlite_master WHERE name = 'dueCounts'"));
+
+        // Moved to another day behind the back of the triggers: only a rebuild sees it
+        long day = mDb.queryScalar("SELECT min(day) FROM dueCounts WHERE type = 1");
+        long moved = mDb.queryScalar("SELECT count FROM dueCounts WHERE type = 1 AND day = " + day);
+        assertTrue(moved > 0);
+        mDb.execSQL("UPDATE dueCounts SET day = day + 1000 WHERE type = 1 AND day = ?", day);
+        double cutoff = ANCHOR + 86400.0 * (day + 1);
+        long expected = mDb.queryScalar(String.format(Locale.ENGLISH,
+                "SELECT count(*) FROM cards WHERE type = 1 AND combinedDue < %f", cutoff));
+
+        counts = DueCounts.openPersistent(mDb, ANCHOR, 100.0);
+        assertEquals(expected - moved, counts.count(1, cutoff));
+        counts.close(100.0);
+
+        // The deck was saved by someone else
+        counts = DueCounts.openPersistent(mDb, ANCHOR, 200.0);
+        checkCounts(counts);
+        counts.close(200.0);
+    }
+
+
+    @Test
+    public void persistentCountsAreRebuiltAfterWritesWithoutTheTriggers() {
+        DueCounts counts = DueCounts.openPersistent(mDb, ANCHOR, 100.0);
+        counts.close(100.0);
+        mDb.execSQL("INSERT INTO cards VALUES (1000, 1, 1, ?)", (double) ANCHOR);
+        counts = DueCounts.openPersistent(mDb, ANCHOR, 100.0);
+        checkCounts(counts);
+
+        // A session which did not close leaves no stamp
+        mDb.execSQL("DELETE FROM cards WHERE id = 1000");
+        mDb = mDatabase.reopen();
+        mDb.execSQL("INSERT INTO cards VALUES (1001, 1, 2, ?)", (double) ANCHOR);
+        counts = DueCounts.openPersistent(mDb, ANCHOR, 100.0);
+        checkCounts(counts);
+        counts.close(100.0);
+    }
+
+
+    private void checkCounts(DueCounts counts) {
+        for (int type = 0; type <= 2; type++) {
+            for (int i = 0; i < 40; i++) {
+                double cutoff = randomDue();
+                if (i % 2 == 0) {
+                    // On a day boundary, served from the table alone
+                    cutoff = ANCHOR + 86400.0 * Math.floor((cutoff - ANCHOR) / 86400);
+                }
+                long expected = mDb.queryScalar(String.format(Locale.ENGLISH,
+                        "SELECT count(*) FROM cards WHERE type = %d AND combinedDue < %f", type, cutoff));
+                assertEquals(expected, counts.count(type, cutoff));
+            }
+        }
+        assertEquals(mDb.queryScalar("SELECT count(*) FROM cards"), counts.cardCount());
+        assertEquals(mDb.queryScalar("SELECT count(*) FROM facts"), counts.factCount());
+    }
+
+
+    /**
+     * Due times spread over the days around the anchor, some before it
+     */
+    private double randomDue() {
+        return ANCHOR + (mRandom.nextDouble() - 0.3) * 20 * 86400;
+    }
+}
@@ -0,0 +1,166 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.sql.SQLException;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.ichi2.anki.db.AnkiDb;
+import com.ichi2.anki.db.TemporaryDatabase;
+import com.ichi2.anki.db.Row;
+import com.ichi2.anki.db.RowCallback;
+
+public class DueForecastTest {
+
+    private static final double CUTOFF = 1000000;
+    private static final int DAYS = 30;
+    private static final String SQL = "SELECT combinedDue, interval, priority, factor, lastInterval, fuzz "
+            + "FROM cards c WHERE type = 1";
+
+    @Rule
+    public TemporaryDatabase mDatabase = new TemporaryDatabase("forecast");
+
+    private AnkiDb mDb;
+    private IntervalSimulator mSimulator;
+
+
+    @Before
+    public void setUp() {
+        mDb = mDatabase.getDb();
+        mDb.execSQL("CREATE TABLE cards (id INTEGER PRIMARY KEY, type INTEGER, combinedDue REAL, interval REAL, "
+                + "priority INTEGER, factor REAL, lastInterval REAL, fuzz REAL)");
+        Deck deck = new Deck();
+        deck.setHardIntervalMin(0.333);
+        deck.setHardIntervalMax(0.5);
+        deck.setMidIntervalMin(3.0);
+        deck.setMidIntervalMax(5.0);
+        deck.setEasyIntervalMin(7.0);
+        deck.setEasyIntervalMax(9.0);
+        deck.setDelay1(0);
+        deck.setDelay2(0.0);
+        mSimulator = deck.getIntervalSimulator();
+    }
+
+
+    @Test
+    public void dayCountsMatchOneQueryPerDay() {
+        Random random = new Random(5);
+        for (int i = 1; i <= 1000; i++) {
+            double due = DueForecast.start(CUTOFF) + (random.nextDouble() * (DAYS + 10) - 5) * 86400;
+            addCard(i, random.nextInt(4) == 0 ? 0 : 1, due, random.nextDouble() * 40, random.nextInt(5) - 1, 2.5,
+                    0.5);
+        }
+        DueForecast forecast = DueForecast.scan(mDb, SQL, CUTOFF, DAYS, false);
+        assertEquals(DAYS, forecast.getDays());
+        for (int day = 0; day < DAYS; day++) {
+            double from = DueForecast.start(CUTOFF) + day * 86400.0;
+            String range = " AND combinedDue >= " + from + " AND combinedDue < " + (from + 86400);
+            assertEquals(mDb.queryScalar(SQL.replace("combinedDue, interval, priority, factor, lastInterval, fuzz",
+                    "count(*)") + range + " AND priority > -1"), forecast.getDueCards(day));
+            assertEquals(mDb.queryScalar(SQL.replace("combinedDue, interval, priority, factor, lastInterval, fuzz",
+                    "count(*)") + range + " AND interval >= " + Card.MATURE_THRESHOLD), forecast.getDueMatureCards(day));
+        }
+        assertEquals(DueForecast.end(CUTOFF, DAYS), DueForecast.start(CUTOFF) + DAYS * 86400.0, 0.0);
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void projectionNeedsTheCards() {
+        DueForecast.scan(mDb, SQL, CUTOFF, DAYS, false).project(mSimulator, Card.EASE_MID);
+    }
+
+
+    @Test
+    public void cardsComeUpAgainAfterTheirNextInterval() {
+        double start = DueForecast.start(CUTOFF);
+        // due on day 1, then 25 days later
+        addCard(1, 1, start + 86400 + 100, 10, 0, 2.5, 0.5);
+        // overdue by 5 days: answered on day 0 with a 31.25 day interval
+        addCard(2, 1, start - 5 * 86400, 10, 0, 2.5, 0.5);
+        // suspended
+        addCard(3, 1, start + 2 * 86400, 10, -1, 2.5, 0.5);
+        DueForecast forecast = DueForecast.scan(mDb, SQL, CUTOFF, DAYS, true);
+        int[] expected = new int[DAYS];
+        expected[0] = 1;
+        expected[1] = 1;
+        expected[26] = 1;
+        assertArrayEquals(expected, forecast.project(mSimulator, Card.EASE_MID));
+        // failed cards do not move forward, so each is counted once
+        expected = new int[DAYS];
+        expected[0] = 1;
+        expected[1] = 1;
+        assertArrayEquals(expected, forecast.project(mSimulator, Card.EASE_FAILED));
+    }
+
+
+    @Test
+    public void projectionMatchesAnsweringOneCardAtATime() {
+        Random random = new Random(9);
+        for (int i = 1; i <= 500; i++) {
+            addCard(i, 1, DueForecast.start(CUTOFF) + (random.nextDouble() * 40 - 10) * 86400,
+                    random.nextDouble() * 30, random.nextInt(4) - 1, 1.3 + random.nextDouble() * 1.5,
+                    random.nextDouble());
+        }
+        DueForecast forecast = DueForecast.scan(mDb, SQL, CUTOFF, DAYS, true);
+        for (int ease = Card.EASE_HARD; ease <= Card.EASE_EASY; ease++) {
+            final int[] expected = new int[DAYS];
+            final int answer = ease;
+            mDb.forEachRow(SQL + " AND priority > -1", new RowCallback() {
+                public void onRow(Row row) throws SQLException {
+                    project(expected, row.getDouble(1), row.getDouble(2), row.getDouble(4), row.getDouble(5),
+                            row.getDouble(6), answer);
+                }
+            });
+            assertArrayEquals(expected, forecast.project(mSimulator, ease));
+        }
+    }
+
+
+    private void project(int[] reviews, double due, double interval, double factor, double lastInterval,
+            double fuzz, int ease) {
+        double start = DueForecast.start(CUTOFF);
+        while (true) {
+            double answer = Math.max(due, start);
+            int day = (int) Math.floor((answer - start) / 86400.0);
+            if (day >= DAYS) {
+                return;
+            }
+            reviews[day]++;
+            double next = mSimulator.nextInterval(interval, factor, lastInterval, fuzz, (answer - due) / 86400.0,
+                    true, ease);
+            double nextDue = mSimulator.nextDue(interval > Card.MATURE_THRESHOLD, next, ease, answer);
+            if (nextDue <= answer) {
+                return;
+            }
+            lastInterval = interval;
+            interval = next;
+            due = nextDue;
+        }
+    }
+
+
+    private void addCard(long id, int type, double due, double interval, int priority, double factor,
+            double fuzz) {
+        mDb.execSQL("INSERT INTO cards VALUES (?, ?, ?, ?, ?, ?, ?, ?)", id, type, due, interval, priority, factor,
+                interval / 2, fuzz);
+    }
+}
@@ -0,0 +1,141 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class IntervalSimulatorTest {
+
+    private Deck mDeck;
+
+
+    @Before
+    public void setUp() {
+        mDeck = new Deck();
+        mDeck.setHardIntervalMin(0.333);
+        mDeck.setHardIntervalMax(0.5);
+        mDeck.setMidIntervalMin(3.0);
+        mDeck.setMidIntervalMax(5.0);
+        mDeck.setEasyIntervalMin(7.0);
+        mDeck.setEasyIntervalMax(9.0);
+        mDeck.setDelay1(0);
+        mDeck.setDelay2(0.0);
+    }
+
+
+    @Test
+    public void newCardsTakeThePresetRanges() {
+        IntervalSimulator simulator = mDeck.getIntervalSimulator();
+        assertEquals(0.333, simulator.nextInterval(0, 2.5, 0, 0.0, 0, false, Card.EASE_HARD), 1e-9);
+        assertEquals(4.0, simulator.nextInterval(0, 2.5, 0, 0.5, 0, false, Card.EASE_MID), 1e-9);
+        assertEquals(9.0, simulator.nextInterval(0, 2.5, 0, 1.0, 0, false, Card.EASE_EASY), 1e-9);
+        assertEquals(0.0, simulator.nextInterval(10, 2.5, 5, 0.5, 0, true, Card.EASE_FAILED), 1e-9);
+    }
+
+
+    @Test
+    public void reviewedCardsGrowByTheirFactor() {
+        IntervalSimulator simulator = mDeck.getIntervalSimulator();
+        assertEquals(25.0, simulator.nextInterval(10, 2.5, 5, 0.5, 0, true, Card.EASE_MID), 1e-9);
+        assertEquals(12.3, simulator.nextInterval(10, 2.5, 5, 0.5, 1, true, Card.EASE_HARD), 1e-9);
+        assertEquals(11 * 2.0 * Deck.FACTOR_FOUR, simulator.nextInterval(10, 2.0, 5, 0.5, 1, true, Card.EASE_EASY),
+                1e-9);
+        // young cards are boosted to the middle of the mid range first
+        assertEquals(4.0, simulator.nextInterval(0.4, 2.0, 0, 0.5, 0, true, Card.EASE_MID), 1e-9);
+        // reviewed early, the delay comes off the interval but not below the last one
+        assertEquals(16.0, simulator.nextInterval(10, 2.0, 5, 0.5, -2, true, Card.EASE_MID), 1e-9);
+        assertEquals(Deck.MAX_SCHEDULE_TIME, simulator.nextInterval(30000, 2.5, 20000, 0.5, 0, true, Card.EASE_MID),
+                1e-9);
+    }
+
+
+    @Test
+    public void failedMatureCardsWaitForTheCutoffOnlyWithABonus() {
+        assertEquals(1000.0, mDeck.getIntervalSimulator().nextDue(true, 0, Card.EASE_FAILED, 1000), 0.0);
+        mDeck.setDelay1(600);
+        assertEquals(1000.0, mDeck.getIntervalSimulator().nextDue(true, 0, Card.EASE_FAILED, 1000), 0.0);
+        mDeck.setDelay1(2);
+        IntervalSimulator simulator = mDeck.getIntervalSimulator();
+        assertEquals(mDeck.getFailedCutoff() + 86400, simulator.nextDue(true, 0, Card.EASE_FAILED, 1000), 0.0);
+        assertEquals(1000.0, simulator.nextDue(false, 0, Card.EASE_FAILED, 1000), 0.0);
+        assertEquals(2.5 * 86400 + 1000, simulator.nextDue(true, 2.5, Card.EASE_MID, 1000), 0.0);
+    }
+
+
+    @Test
+    public void bulkRunsMatchSingleCards() {
+        int size = 1000;
+        Random random = new Random(1);
+        IntervalSimulator.Cards cards = new IntervalSimulator.Cards(size);
+        cards.delay = new double[size];
+        cards.rev = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            cards.interval[i] = random.nextInt(4) == 0 ? 0 : random.nextDouble() * 100;
+            cards.factor[i] = 1.3 + random.nextDouble() * 1.5;
+            cards.lastInterval[i] = cards.interval[i] / 2;
+            cards.fuzz[i] = random.nextDouble();
+            cards.ease[i] = Card.EASE_FAILED + random.nextInt(4);
+            cards.delay[i] = random.nextDouble() * 4 - 2;
+            cards.rev[i] = random.nextBoolean();
+        }
+        IntervalSimulator simulator = mDeck.getIntervalSimulator();
+        simulator.simulate(cards, 1000);
+        for (int i = 0; i < size; i++) {
+            double next = simulator.nextInterval(cards.interval[i], cards.factor[i], cards.lastInterval[i],
+                    cards.fuzz[i], cards.delay[i], cards.rev[i], cards.ease[i]);
+            assertEquals(next, cards.nextInterval[i], 0.0);
+            assertEquals(simulator.nextDue(cards.interval[i] > Card.MATURE_THRESHOLD, next, cards.ease[i], 1000),
+                    cards.nextDue[i], 0.0);
+        }
+
+        double[] nextInterval = cards.nextInterval.clone();
+        double[] nextDue = cards.nextDue.clone();
+        cards.nextInterval = new double[size];
+        cards.nextDue = new double[size];
+        simulator.simulate(new ForkJoinPool(2), cards, 1000, 7);
+        assertArrayEquals(nextInterval, cards.nextInterval, 0.0);
+        assertArrayEquals(nextDue, cards.nextDue, 0.0);
+    }
+
+
+    @Test
+    public void deckKeepsItsSimulatorUntilASettingChanges() {
+        IntervalSimulator simulator = mDeck.getIntervalSimulator();
+        assertSame(simulator, mDeck.getIntervalSimulator());
+        mDeck.setMidIntervalMin(4.0);
+        IntervalSimulator changed = mDeck.getIntervalSimulator();
+        assertNotSame(simulator, changed);
+        assertEquals(4.5, changed.nextInterval(0, 2.5, 0, 0.5, 0, false, Card.EASE_MID), 1e-9);
+        assertSame(changed, mDeck.getIntervalSimulator());
+    }
+
+
+    @Test
+    public void copiesDoNotChangeTheDeck() {
+        IntervalSimulator copy = new IntervalSimulator(mDeck);
+        copy.setMidIntervalMin(10.0);
+        assertEquals(3.0, mDeck.getMidIntervalMin(), 0.0);
+        assertEquals(4.0, mDeck.getIntervalSimulator().nextInterval(0, 2.5, 0, 0.5, 0, false, Card.EASE_MID), 1e-9);
+    }
+}
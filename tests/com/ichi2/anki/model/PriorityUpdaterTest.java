@@ -0,0 +1,155 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.ichi2.anki.db.AnkiDb;
+import com.ichi2.anki.db.TemporaryDatabase;
+import com.ichi2.anki.db.Row;
+import com.ichi2.anki.db.RowCallback;
+
+public class PriorityUpdaterTest {
+
+    /** The query the deck computed card priorities with before PriorityUpdater */
+    private static final String GROUPED = "SELECT cardTags.cardId, CASE WHEN max(tags.priority) > 2 "
+            + "THEN max(tags.priority) WHEN min(tags.priority) = 1 THEN 1 ELSE 2 END FROM cardTags, tags "
+            + "WHERE cardTags.tagId = tags.id GROUP BY cardTags.cardId";
+
+    @Rule
+    public TemporaryDatabase mDatabase = new TemporaryDatabase("priorities");
+
+    private AnkiDb mDb;
+
+
+    @Before
+    public void setUp() {
+        mDb = mDatabase.getDb();
+        mDb.execSQL("CREATE TABLE tags (id INTEGER PRIMARY KEY, tag TEXT, priority INTEGER)");
+        mDb.execSQL("CREATE TABLE cards (id INTEGER PRIMARY KEY, priority INTEGER, modified REAL)");
+        mDb.execSQL("CREATE TABLE cardTags (id INTEGER PRIMARY KEY, cardId INTEGER, tagId INTEGER, src INTEGER)");
+    }
+
+
+    @Test
+    public void highTagsWinThenLowTags() {
+        assertEquals(Card.PRIORITY_HIGH, PriorityUpdater.cardPriority(Card.PRIORITY_HIGH, Card.PRIORITY_LOW));
+        assertEquals(Card.PRIORITY_MEDIUM, PriorityUpdater.cardPriority(Card.PRIORITY_MEDIUM, Card.PRIORITY_NONE));
+        assertEquals(Card.PRIORITY_LOW, PriorityUpdater.cardPriority(Card.PRIORITY_NORMAL, Card.PRIORITY_LOW));
+        assertEquals(Card.PRIORITY_LOW, PriorityUpdater.cardPriority(Card.PRIORITY_LOW, Card.PRIORITY_LOW));
+        assertEquals(Card.PRIORITY_NORMAL, PriorityUpdater.cardPriority(Card.PRIORITY_NORMAL, Card.PRIORITY_NORMAL));
+        // a tag of no priority does not lower the card
+        assertEquals(Card.PRIORITY_NORMAL, PriorityUpdater.cardPriority(Card.PRIORITY_NORMAL, Card.PRIORITY_NONE));
+        assertEquals(Card.PRIORITY_NORMAL, PriorityUpdater.cardPriority(Card.PRIORITY_NONE, Card.PRIORITY_NONE));
+    }
+
+
+    @Test
+    public void everyPairMatchesTheGroupedQuery() {
+        int card = 0;
+        for (int max = Card.PRIORITY_NONE; max <= Card.PRIORITY_HIGH; max++) {
+            for (int min = Card.PRIORITY_NONE; min <= max; min++) {
+                card++;
+                mDb.execSQL("INSERT INTO tags VALUES (?, ?, ?)", 2 * card, "max" + card, max);
+                mDb.execSQL("INSERT INTO tags VALUES (?, ?, ?)", 2 * card + 1, "min" + card, min);
+                mDb.execSQL("INSERT INTO cardTags (cardId, tagId, src) VALUES (?, ?, 0)", card, 2 * card);
+                mDb.execSQL("INSERT INTO cardTags (cardId, tagId, src) VALUES (?, ?, 1)", card, 2 * card + 1);
+            }
+        }
+        HashMap<Long, Integer> grouped = grouped();
+        card = 0;
+        for (int max = Card.PRIORITY_NONE; max <= Card.PRIORITY_HIGH; max++) {
+            for (int min = Card.PRIORITY_NONE; min <= max; min++) {
+                card++;
+                assertEquals("max " + max + " min " + min, grouped.get((long) card).intValue(),
+                        PriorityUpdater.cardPriority(max, min));
+            }
+        }
+    }
+
+
+    @Test
+    public void onlyChangedCardsAreWritten() {
+        Random random = new Random(31);
+        for (int tag = 1; tag <= 20; tag++) {
+            mDb.execSQL("INSERT INTO tags VALUES (?, ?, ?)", tag, "tag" + tag, random.nextInt(5));
+        }
+        for (int card = 1; card <= 500; card++) {
+            mDb.execSQL("INSERT INTO cards VALUES (?, ?, 0)", card, random.nextInt(7) - 2);
+            int tags = 1 + random.nextInt(4);
+            for (int i = 0; i < tags; i++) {
+                // tag 21 is missing from the tags table
+                mDb.execSQL("INSERT INTO cardTags (cardId, tagId, src) VALUES (?, ?, ?)", card,
+                        1 + random.nextInt(21), random.nextInt(3));
+            }
+        }
+        mDb.execSQL("UPDATE cards SET priority = " + Card.PRIORITY_SUSPENDED + " WHERE id % 50 = 0");
+        HashMap<Long, Integer> grouped = grouped();
+        HashMap<Long, Integer> before = priorities();
+
+        long[] changed = new PriorityUpdater(null, mDb).updateCardPriorities(null, true);
+
+        HashMap<Long, Integer> after = priorities();
+        long[] expected = new long[changed.length];
+        int count = 0;
+        for (long card = 1; card <= 500; card++) {
+            int old = before.get(card);
+            Integer priority = grouped.get(card);
+            if (old == Card.PRIORITY_SUSPENDED || priority == null) {
+                assertEquals(old, after.get(card).intValue());
+            } else {
+                assertEquals(priority, after.get(card));
+                if (priority != old) {
+                    expected[count++] = card;
+                }
+            }
+        }
+        Arrays.sort(changed);
+        assertArrayEquals(Arrays.copyOf(expected, count), changed);
+        assertEquals(count, mDb.queryScalar("SELECT count(*) FROM cards WHERE modified > 0"));
+        assertEquals(0, new PriorityUpdater(null, mDb).updateCardPriorities(null, false).length);
+    }
+
+
+    private HashMap<Long, Integer> grouped() {
+        return query(GROUPED);
+    }
+
+
+    private HashMap<Long, Integer> priorities() {
+        return query("SELECT id, priority FROM cards");
+    }
+
+
+    private HashMap<Long, Integer> query(String sql) {
+        final HashMap<Long, Integer> result = new HashMap<Long, Integer>();
+        mDb.forEachRow(sql, new RowCallback() {
+            public void onRow(Row row) throws SQLException {
+                result.put(row.getLong(1), row.getInt(2));
+            }
+        });
+        return result;
+    }
+}
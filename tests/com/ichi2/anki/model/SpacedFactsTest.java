@@ -0,0 +1,124 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SpacedFactsTest {
+
+    private static final double NOW = 1000000;
+    private static final double DAY = 86400;
+
+
+    @Test
+    public void siblingsDueBeforeTheCutoffAreSpaced() {
+        SpacedFacts spaced = new SpacedFacts();
+        spaced.addSibling(1, 10, Card.TYPE_REV, NOW - 5, 0);
+        // Answered card
+        spaced.addSibling(1, 11, Card.TYPE_REV, NOW - 5, 4);
+        spaced.addSibling(1, 12, Card.TYPE_REV, NOW - 5, 4);
+        // Below a day: left in place
+        spaced.addSibling(1, 13, Card.TYPE_REV, NOW - 5, 1);
+        spaced.addSibling(1, 14, Card.TYPE_NEW, NOW - 5, 0);
+        spaced.addSibling(1, 15, Card.TYPE_FAILED, NOW - 5, 3);
+        // Due after the cutoff
+        spaced.addSibling(1, 16, Card.TYPE_NEW, NOW + 5, 0);
+        spaced.addSibling(2, 20, Card.TYPE_NEW, NOW - 5, 0);
+
+        assertEquals(2, spaced.space(1, 11, NOW, 0.5, NOW + 600));
+        Map<Long, Double> changed = changed(spaced);
+        assertEquals(2, changed.size());
+        assertEquals(NOW - 5 + 2 * DAY, changed.get(12L), 0);
+        assertEquals(NOW + 600, changed.get(14L), 0);
+    }
+
+
+    @Test
+    public void spacedRowsAreKeptForTheNextAnswer() {
+        SpacedFacts spaced = new SpacedFacts();
+        spaced.addSibling(1, 10, Card.TYPE_NEW, NOW - 5, 0);
+        spaced.addSibling(1, 11, Card.TYPE_NEW, NOW - 5, 0);
+        assertEquals(1, spaced.space(1, 10, NOW, 0.5, NOW + 600));
+        // 11 is now due after the cutoff; 10, answered, is due again
+        spaced.cardAnswered(1, 10, Card.TYPE_NEW, NOW - 1, 0);
+        assertEquals(1, spaced.space(1, 11, NOW, 0.5, NOW + 600));
+        assertEquals(10, spaced.getChangedCardId(0));
+        spaced.clearChanged();
+        assertEquals(0, spaced.getChangedCount());
+        assertEquals(0, spaced.space(1, 10, NOW, 0.5, NOW + 600));
+    }
+
+
+    @Test
+    public void anAnsweredCardNotLoadedYetIsAdded() {
+        SpacedFacts spaced = new SpacedFacts();
+        spaced.addSibling(1, 10, Card.TYPE_NEW, NOW - 5, 0);
+        spaced.cardAnswered(1, 11, Card.TYPE_NEW, NOW - 5, 0);
+        // Rows of a fact which is not loaded are ignored
+        spaced.cardAnswered(2, 20, Card.TYPE_NEW, NOW - 5, 0);
+        assertFalse(spaced.hasSiblings(2));
+        assertEquals(1, spaced.space(1, 10, NOW, 0.5, NOW + 600));
+        assertEquals(11, spaced.getChangedCardId(0));
+        assertEquals(0, spaced.space(2, 20, NOW, 0.5, NOW + 600));
+    }
+
+
+    @Test
+    public void manySiblingsAreSpaced() {
+        SpacedFacts spaced = new SpacedFacts();
+        for (int i = 0; i < 50; i++) {
+            spaced.addSibling(1, 100 + i, Card.TYPE_NEW, NOW - i, 0);
+        }
+        assertEquals(49, spaced.space(1, 100, NOW, 0.5, NOW + 600));
+        Map<Long, Double> changed = changed(spaced);
+        for (int i = 1; i < 50; i++) {
+            assertEquals(NOW + 600, changed.get(100L + i), 0);
+        }
+    }
+
+
+    @Test
+    public void clearForgetsTheFactsAndTheirRows() {
+        SpacedFacts spaced = new SpacedFacts();
+        spaced.put(1, NOW + 600);
+        spaced.addSibling(1, 10, Card.TYPE_NEW, NOW - 5, 0);
+        long size = spaced.estimateRetainedSize();
+        assertTrue(spaced.containsKey(1));
+        assertEquals(NOW + 600, spaced.get(1, 0), 0);
+        spaced.dropSiblings();
+        assertTrue(spaced.containsKey(1));
+        assertFalse(spaced.hasSiblings(1));
+        assertTrue(spaced.estimateRetainedSize() < size);
+        spaced.clear();
+        assertFalse(spaced.containsKey(1));
+        assertEquals(-1, spaced.get(1, -1), 0);
+    }
+
+
+    private static Map<Long, Double> changed(SpacedFacts spaced) {
+        Map<Long, Double> changed = new HashMap<Long, Double>();
+        for (int i = 0; i < spaced.getChangedCount(); i++) {
+            changed.put(spaced.getChangedCardId(i), spaced.getChangedCombinedDue(i));
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,118 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.ichi2.anki.db.AnkiDb;
+import com.ichi2.anki.db.TemporaryDatabase;
+
+public class TagBitmapIndexTest {
+
+    @Rule
+    public TemporaryDatabase mDatabase = new TemporaryDatabase("tags");
+
+    private AnkiDb mDb;
+
+
+    @Before
+    public void setUp() {
+        mDb = mDatabase.getDb();
+        mDb.execSQL("CREATE TABLE cardTags (id INTEGER PRIMARY KEY, cardId INTEGER, tagId INTEGER, src INTEGER)");
+        // tag 1 on cards 10 and 20 from the fact, tag 2 on card 20 from the model and on 30 from the template
+        mDb.execSQL("INSERT INTO cardTags (cardId, tagId, src) VALUES (10, 1, 0)");
+        mDb.execSQL("INSERT INTO cardTags (cardId, tagId, src) VALUES (20, 1, 0)");
+        mDb.execSQL("INSERT INTO cardTags (cardId, tagId, src) VALUES (20, 2, 1)");
+        mDb.execSQL("INSERT INTO cardTags (cardId, tagId, src) VALUES (30, 2, 2)");
+    }
+
+
+    @Test
+    public void filtersSelectActiveAndDropInactiveTags() {
+        TagBitmapIndex index = TagBitmapIndex.build(mDb);
+        assertArrayEquals(new long[] { 10, 20 }, index.cardIds(new long[] { 1 }, new long[0]));
+        assertArrayEquals(new long[] { 10 }, index.cardIds(new long[] { 1 }, new long[] { 2 }));
+
+        TagBitmapIndex.Filter active = index.filter(new long[] { 2 }, new long[0]);
+        assertTrue(active.accept(20));
+        assertTrue(active.accept(30));
+        assertFalse(active.accept(10));
+        assertFalse(active.accept(40));
+
+        TagBitmapIndex.Filter inactive = index.filter(null, new long[] { 1 });
+        assertFalse(inactive.accept(10));
+        assertTrue(inactive.accept(30));
+        // cards without any tag are kept
+        assertTrue(inactive.accept(40));
+    }
+
+
+    @Test
+    public void filtersKeepTheCardsOfWhenTheyWereMade() {
+        TagBitmapIndex index = TagBitmapIndex.build(mDb);
+        TagBitmapIndex.Filter filter = index.filter(new long[] { 1 }, new long[0]);
+        assertTrue(filter.isCurrent());
+        index.add(40, 1, 0);
+        index.remove(10, 1, 0);
+        index.removeCards(new long[] { 20 });
+        assertFalse(filter.isCurrent());
+        assertTrue(filter.accept(10));
+        assertTrue(filter.accept(20));
+        assertFalse(filter.accept(40));
+
+        TagBitmapIndex.Filter current = index.filter(new long[] { 1 }, new long[0]);
+        assertFalse(current.accept(10));
+        assertFalse(current.accept(20));
+        assertTrue(current.accept(40));
+        index.clear();
+        assertTrue(current.accept(40));
+        assertArrayEquals(new long[0], index.cardIds(new long[] { 1 }, new long[0]));
+    }
+
+
+    @Test
+    public void filtersCanBeReadWhileTheIndexChanges() throws Exception {
+        final TagBitmapIndex index = TagBitmapIndex.build(mDb);
+        final TagBitmapIndex.Filter filter = index.filter(new long[] { 1 }, new long[0]);
+        final boolean[] wrong = new boolean[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 200000; i++) {
+                    if (!filter.accept(10) || !filter.accept(20) || filter.accept(30) || filter.accept(1000 + i)) {
+                        wrong[0] = true;
+                    }
+                }
+            }
+        };
+        reader.start();
+        for (int i = 0; i < 20000; i++) {
+            index.add(1000 + i, 1, 0);
+            if (i % 100 == 0) {
+                index.filter(new long[] { 1 }, new long[0]);
+                index.removeCards(new long[] { 1000 + i });
+            }
+        }
+        reader.join();
+        assertFalse(wrong[0]);
+    }
+}
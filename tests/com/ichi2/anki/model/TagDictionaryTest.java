@@ -0,0 +1,105 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TagDictionaryTest {
+
+    @Test
+    public void tagsAreToldApartWithoutCase() {
+        TagDictionary dictionary = new TagDictionary();
+        assertEquals(-1, dictionary.lookup("Verb"));
+        int verb = dictionary.intern("Verb");
+        assertEquals(verb, dictionary.intern("VERB"));
+        assertEquals(verb, dictionary.lookup("verb"));
+        assertEquals("Verb", dictionary.getName(verb));
+        int umlaut = dictionary.intern("\u00c4rger");
+        assertEquals(umlaut, dictionary.lookup("\u00e4RGER"));
+        assertEquals(2, dictionary.size());
+    }
+
+
+    @Test
+    public void parsingSplitsOnSeparatorsAndDropsRepeats() {
+        TagDictionary dictionary = new TagDictionary();
+        assertArrayEquals(new int[0], dictionary.parse(null));
+        assertArrayEquals(new int[0], dictionary.parse(""));
+        assertArrayEquals(new int[0], dictionary.parse(" , "));
+        int[] codes = dictionary.parse(" noun,Verb  NOUN, adj ,verb");
+        assertEquals(3, codes.length);
+        assertEquals("noun", dictionary.getName(codes[0]));
+        assertEquals("Verb", dictionary.getName(codes[1]));
+        assertEquals("adj", dictionary.getName(codes[2]));
+        assertArrayEquals(new int[] { codes[2], codes[0] }, dictionary.parse("ADJ Noun"));
+    }
+
+
+    @Test
+    public void collectedTagsComeBackSorted() {
+        TagDictionary dictionary = new TagDictionary();
+        BitSet codes = new BitSet();
+        dictionary.collect("zeta alpha", codes);
+        dictionary.collect("Mid, ALPHA", codes);
+        dictionary.collect(null, codes);
+        assertEquals(3, codes.cardinality());
+        assertArrayEquals(new String[] { "Mid", "alpha", "zeta" }, dictionary.getNames(codes));
+    }
+
+
+    @Test
+    public void matchesAMapOfFoldedTags() {
+        Random random = new Random(23);
+        TagDictionary dictionary = new TagDictionary();
+        HashMap<String, Integer> reference = new HashMap<String, Integer>();
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder tag = new StringBuilder();
+            int length = 1 + random.nextInt(4);
+            for (int j = 0; j < length; j++) {
+                char c = (char) ('a' + random.nextInt(6));
+                tag.append(random.nextBoolean() ? Character.toUpperCase(c) : c);
+            }
+            String name = tag.toString();
+            String folded = name.toLowerCase();
+            Integer code = reference.get(folded);
+            if (random.nextInt(3) == 0) {
+                assertEquals(code == null ? -1 : code.intValue(), dictionary.lookup(name));
+                continue;
+            }
+            int interned = dictionary.intern(name);
+            if (code == null) {
+                assertEquals(reference.size(), interned);
+                reference.put(folded, interned);
+                names.add(name);
+            } else {
+                assertEquals(code.intValue(), interned);
+            }
+        }
+        assertEquals(reference.size(), dictionary.size());
+        for (int code = 0; code < names.size(); code++) {
+            assertEquals(names.get(code), dictionary.getName(code));
+        }
+    }
+}
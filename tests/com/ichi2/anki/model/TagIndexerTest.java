@@ -0,0 +1,157 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.ichi2.anki.db.AnkiDb;
+import com.ichi2.anki.db.TemporaryDatabase;
+
+public class TagIndexerTest {
+
+    @Rule
+    public TemporaryDatabase mDatabase = new TemporaryDatabase("indexer");
+
+    private AnkiDb mDb;
+    private TagDictionary mDictionary = new TagDictionary();
+
+
+    @Before
+    public void setUp() {
+        mDb = mDatabase.getDb();
+        mDb.execSQL("CREATE TABLE tags (id INTEGER PRIMARY KEY, tag TEXT NOT NULL UNIQUE COLLATE NOCASE, "
+                + "priority INTEGER NOT NULL DEFAULT 2)");
+        mDb.execSQL("CREATE TABLE cardTags (id INTEGER PRIMARY KEY, cardId INTEGER NOT NULL, tagId INTEGER NOT NULL, "
+                + "src INTEGER NOT NULL)");
+        mDb.execSQL("CREATE TABLE cards (id INTEGER PRIMARY KEY, factId INTEGER, cardModelId INTEGER)");
+        mDb.execSQL("CREATE TABLE facts (id INTEGER PRIMARY KEY, modelId INTEGER, tags TEXT)");
+        mDb.execSQL("CREATE TABLE models (id INTEGER PRIMARY KEY, tags TEXT)");
+        mDb.execSQL("CREATE TABLE cardModels (id INTEGER PRIMARY KEY, name TEXT)");
+        mDb.execSQL("INSERT INTO models VALUES (1, 'Basic')");
+        mDb.execSQL("INSERT INTO cardModels VALUES (1, 'Forward')");
+        mDb.execSQL("INSERT INTO cardModels VALUES (2, 'Reverse')");
+        mDb.execSQL("INSERT INTO facts VALUES (1, 1, 'verb  irregular verb')");
+        mDb.execSQL("INSERT INTO facts VALUES (2, 1, 'noun')");
+        mDb.execSQL("INSERT INTO cards VALUES (10, 1, 1)");
+        mDb.execSQL("INSERT INTO cards VALUES (11, 1, 2)");
+        mDb.execSQL("INSERT INTO cards VALUES (20, 2, 1)");
+        // A tag of priority 2 no card uses, and a tag with a user priority
+        mDb.execSQL("INSERT INTO tags (tag) VALUES ('unused')");
+        mDb.execSQL("INSERT INTO tags (tag, priority) VALUES ('kept', 3)");
+    }
+
+
+    @Test
+    public void rebuildIndexesTheTagsOfEveryCard() {
+        mDb.execSQL("INSERT INTO cardTags (cardId, tagId, src) VALUES (99, 1, 0)");
+        TagIndexer indexer = new TagIndexer(mDb, mDictionary, null);
+        indexer.rebuild();
+        assertEquals(expected(), cardTags());
+        assertEquals(cardTags().size(), indexer.getInsertedCount());
+        assertEquals(0, mDb.queryScalar("SELECT count(*) FROM tags WHERE tag = 'unused'"));
+        assertEquals(1, mDb.queryScalar("SELECT count(*) FROM tags WHERE tag = 'kept'"));
+    }
+
+
+    @Test
+    public void updateOnlyWritesTheRowsWhichChanged() {
+        new TagIndexer(mDb, mDictionary, null).rebuild();
+        long verb = tagId("verb");
+        long rowId = mDb.queryScalar("SELECT id FROM cardTags WHERE cardId = 10 AND tagId = " + verb);
+        long otherCard = mDb.queryScalar("SELECT max(id) FROM cardTags WHERE cardId = 20");
+
+        mDb.execSQL("UPDATE facts SET tags = 'verb regular' WHERE id = 1");
+        TagIndexer indexer = new TagIndexer(mDb, mDictionary, null);
+        indexer.update("(10, 11)");
+        assertEquals(expected(), cardTags());
+        // regular added to both cards, irregular removed from both
+        assertEquals(2, indexer.getInsertedCount());
+        assertEquals(2, indexer.getDeletedCount());
+        assertEquals(rowId, mDb.queryScalar("SELECT id FROM cardTags WHERE cardId = 10 AND tagId = " + verb));
+        assertEquals(otherCard, mDb.queryScalar("SELECT max(id) FROM cardTags WHERE cardId = 20"));
+        assertEquals(0, mDb.queryScalar("SELECT count(*) FROM tags WHERE tag = 'irregular'"));
+    }
+
+
+    @Test
+    public void updateWithoutChangesWritesNothing() {
+        new TagIndexer(mDb, mDictionary, null).rebuild();
+        TagIndexer indexer = new TagIndexer(mDb, mDictionary, null);
+        indexer.update("(10, 11, 20)");
+        assertEquals(0, indexer.getInsertedCount());
+        assertEquals(0, indexer.getDeletedCount());
+        assertEquals(expected(), cardTags());
+    }
+
+
+    @Test
+    public void updateKeepsTheBitmapsInLine() {
+        new TagIndexer(mDb, mDictionary, null).rebuild();
+        TagBitmapIndex bitmaps = TagBitmapIndex.build(mDb);
+        mDb.execSQL("UPDATE facts SET tags = 'noun' WHERE id = 1");
+        mDb.execSQL("UPDATE facts SET tags = 'adjective' WHERE id = 2");
+        new TagIndexer(mDb, mDictionary, bitmaps).update("(10, 11, 20)");
+        assertEquals(expected(), cardTags());
+        assertArrayEquals(new long[] { 10, 11 }, bitmaps.cardIds(new long[] { tagId("noun") }, new long[0]));
+        assertArrayEquals(new long[] { 20 }, bitmaps.cardIds(new long[] { tagId("adjective") }, new long[0]));
+        assertArrayEquals(new long[] { 11 }, bitmaps.cardIds(new long[] { tagId("Reverse") }, new long[0]));
+    }
+
+
+    private long tagId(String tag) {
+        return mDb.queryScalar("SELECT id FROM tags WHERE tag = '" + tag + "'");
+    }
+
+
+    /**
+     * @return the rows of cardTags as "cardId tag src", sorted
+     */
+    private ArrayList<String> cardTags() {
+        ArrayList<String> rows = mDb.queryColumn(String.class, "SELECT cardId || ' ' || tag || ' ' || src "
+                + "FROM cardTags, tags WHERE cardTags.tagId = tags.id", 1);
+        Collections.sort(rows);
+        return rows;
+    }
+
+
+    /**
+     * @return the rows cardTags should have for the tags of the cards, as cardTags() returns them
+     */
+    private ArrayList<String> expected() {
+        TreeSet<String> rows = new TreeSet<String>();
+        ArrayList<String> cards = mDb.queryColumn(String.class, "SELECT cards.id || ',' || facts.tags || ',' "
+                + "|| models.tags || ',' || cardModels.name FROM cards, facts, models, cardModels "
+                + "WHERE cards.factId = facts.id AND facts.modelId = models.id AND cards.cardModelId = cardModels.id",
+                1);
+        for (String card : cards) {
+            String[] columns = card.split(",");
+            for (int src = 0; src < 3; src++) {
+                for (int code : mDictionary.parse(columns[src + 1])) {
+                    rows.add(columns[0] + " " + mDictionary.getName(code) + " " + src);
+                }
+            }
+        }
+        return new ArrayList<String>(rows);
+    }
+}
@@ -0,0 +1,140 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.ichi2.anki.db.AnkiDb;
+import com.ichi2.anki.db.TemporaryDatabase;
+
+public class UndoLogTest {
+
+    @Rule
+    public TemporaryDatabase mDatabase = new TemporaryDatabase("undo");
+
+    private AnkiDb mDb;
+
+
+    @Before
+    public void setUp() {
+        mDb = mDatabase.getDb();
+        // "order" checks that the generated statements quote the column names
+        mDb.execSQL("CREATE TABLE facts (id INTEGER PRIMARY KEY, \"order\" INTEGER, text TEXT, due REAL)");
+        mDb.execSQL("INSERT INTO facts VALUES (1, 1, 'plain', 1.5)");
+        mDb.execSQL("INSERT INTO facts VALUES (2, 2, 'it''s quoted', NULL)");
+        mDb.execSQL("INSERT INTO facts VALUES (3, 3, NULL, 1e-7)");
+    }
+
+
+    @Test
+    public void replayRevertsInsertsUpdatesAndDeletes() {
+        UndoLog log = UndoLog.install(mDb);
+        ArrayList<String> before = rows();
+        long start = log.latest();
+        log.setFlag(true);
+        mDb.execSQL("INSERT INTO facts VALUES (4, 4, 'new', 2.0)");
+        mDb.execSQL("UPDATE facts SET text = 'changed', due = NULL WHERE id = 2");
+        mDb.execSQL("UPDATE facts SET \"order\" = 7, text = 'a '' quote' WHERE id = 3");
+        mDb.execSQL("DELETE FROM facts WHERE id = 1");
+        log.setFlag(false);
+        long end = log.latest();
+        assertEquals(start + 4, end);
+        ArrayList<String> after = rows();
+
+        long[] inverse = log.replay(start, end);
+        assertEquals(before, rows());
+        // The replay logged its own reverse, which redoes the action
+        assertEquals(4, inverse[1] - inverse[0]);
+        log.replay(inverse[0], inverse[1]);
+        assertEquals(after, rows());
+    }
+
+
+    @Test
+    public void writesWithoutTheFlagAreNotLogged() {
+        UndoLog log = UndoLog.install(mDb);
+        mDb.execSQL("UPDATE facts SET text = 'unlogged'");
+        mDb.execSQL("DELETE FROM facts WHERE id = 1");
+        assertEquals(0, log.latest());
+        assertFalse(mDb.inTransaction());
+    }
+
+
+    @Test
+    public void dueCountsAreNotLogged() {
+        mDb.execSQL("CREATE TABLE dueCounts (type INTEGER NOT NULL, day INTEGER NOT NULL, count INTEGER NOT NULL)");
+        UndoLog log = UndoLog.install(mDb);
+        log.setFlag(true);
+        mDb.execSQL("INSERT INTO dueCounts VALUES (1, 0, 5)");
+        log.setFlag(false);
+        assertEquals(0, log.latest());
+    }
+
+
+    @Test
+    public void installEmptiesTheLog() {
+        UndoLog log = UndoLog.install(mDb);
+        log.setFlag(true);
+        mDb.execSQL("DELETE FROM facts WHERE id = 1");
+        log.setFlag(false);
+        assertEquals(1, log.latest());
+        log = UndoLog.install(mDb);
+        assertEquals(0, log.latest());
+    }
+
+
+    @Test
+    public void holdKeepsTheWritesOfOtherThreadsOutOfTheRange() throws Exception {
+        final UndoLog log = UndoLog.install(mDb);
+        log.hold();
+        long start = log.latest();
+        log.setFlag(true);
+        final CountDownLatch written = new CountDownLatch(1);
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                // Would be logged in the range if it ran while the flag is set
+                mDb.execSQL("INSERT INTO facts VALUES (5, 5, 'other thread', 0)");
+                written.countDown();
+            }
+        };
+        other.start();
+        assertFalse(written.await(200, TimeUnit.MILLISECONDS));
+        mDb.execSQL("UPDATE facts SET text = 'held' WHERE id = 1");
+        log.setFlag(false);
+        long end = log.latest();
+        log.release();
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        other.join();
+        assertEquals(start + 1, end);
+        assertEquals(end, log.latest());
+    }
+
+
+    private ArrayList<String> rows() {
+        return mDb.queryColumn(String.class, "SELECT id || '|' || quote(\"order\") || '|' || quote(text) || '|' "
+                + "|| quote(due) FROM facts ORDER BY id", 1);
+    }
+}
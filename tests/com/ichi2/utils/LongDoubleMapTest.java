@@ -0,0 +1,96 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongDoubleMapTest {
+
+	@Test
+	public void putGetRemove() {
+		LongDoubleMap map = new LongDoubleMap();
+		assertTrue(map.isEmpty());
+		map.put(7, 1.5);
+		map.put(0, -2.0);
+		map.put(7, 3.0);
+		assertEquals(2, map.size());
+		assertEquals(3.0, map.get(7, 0.0), 0.0);
+		assertEquals(-2.0, map.get(0, 1.0), 0.0);
+		assertEquals(9.0, map.get(8, 9.0), 0.0);
+		assertTrue(map.remove(7));
+		assertFalse(map.remove(7));
+		assertFalse(map.containsKey(7));
+		assertTrue(map.containsKey(0));
+		map.clear();
+		assertEquals(0, map.size());
+	}
+
+
+	@Test
+	public void copiesAreIndependent() {
+		LongDoubleMap map = new LongDoubleMap();
+		map.put(1, 1.0);
+		map.put(2, 2.0);
+		LongDoubleMap copy = map.copy();
+		map.remove(1);
+		map.put(3, 3.0);
+		copy.put(2, 4.0);
+		assertEquals(2, copy.size());
+		assertEquals(1.0, copy.get(1, 0.0), 0.0);
+		assertFalse(copy.containsKey(3));
+		assertEquals(2.0, map.get(2, 0.0), 0.0);
+	}
+
+
+	@Test
+	public void matchesHashMapUnderRandomChanges() {
+		Random random = new Random(12);
+		LongDoubleMap map = new LongDoubleMap(4);
+		Map<Long, Double> reference = new HashMap<Long, Double>();
+		for (int i = 0; i < 100000; i++) {
+			// Keys spaced like card ids, which are not small
+			long key = (random.nextInt(5000) * 4294967296L) ^ random.nextInt(8);
+			if (random.nextInt(3) == 0) {
+				assertEquals(reference.remove(key) != null, map.remove(key));
+			} else {
+				double value = random.nextDouble();
+				map.put(key, value);
+				reference.put(key, value);
+			}
+		}
+		assertEquals(reference.size(), map.size());
+		for (Map.Entry<Long, Double> entry : reference.entrySet()) {
+			assertEquals(entry.getValue().doubleValue(), map.get(entry.getKey(), -1.0), 0.0);
+		}
+		long[] keys = map.keys();
+		Arrays.sort(keys);
+		long[] expected = new long[reference.size()];
+		int i = 0;
+		for (long key : reference.keySet()) {
+			expected[i++] = key;
+		}
+		Arrays.sort(expected);
+		assertTrue(Arrays.equals(expected, keys));
+	}
+}
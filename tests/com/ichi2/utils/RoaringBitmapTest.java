@@ -0,0 +1,130 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class RoaringBitmapTest {
+
+	@Test
+	public void addRemoveContains() {
+		RoaringBitmap bitmap = new RoaringBitmap();
+		assertTrue(bitmap.isEmpty());
+		assertTrue(bitmap.add(70000));
+		assertTrue(bitmap.add(3));
+		assertFalse(bitmap.add(3));
+		assertTrue(bitmap.contains(3));
+		assertTrue(bitmap.contains(70000));
+		assertFalse(bitmap.contains(70001));
+		assertFalse(bitmap.contains(3 + 65536));
+		assertArrayEquals(new int[] { 3, 70000 }, bitmap.toArray());
+		assertTrue(bitmap.remove(70000));
+		assertFalse(bitmap.remove(70000));
+		assertEquals(1, bitmap.getCardinality());
+		assertTrue(bitmap.remove(3));
+		assertTrue(bitmap.isEmpty());
+	}
+
+
+	@Test
+	public void fullGroupsTurnIntoBitmapsAndBack() {
+		RoaringBitmap bitmap = new RoaringBitmap();
+		for (int i = 0; i < 10000; i++) {
+			bitmap.add(2 * i);
+		}
+		assertEquals(10000, bitmap.getCardinality());
+		assertTrue(bitmap.contains(19998));
+		assertFalse(bitmap.contains(19999));
+		for (int i = 0; i < 9000; i++) {
+			assertTrue(bitmap.remove(2 * i));
+		}
+		assertEquals(1000, bitmap.getCardinality());
+		assertFalse(bitmap.contains(0));
+		assertTrue(bitmap.contains(18000));
+		assertEquals(18000, bitmap.toArray()[0]);
+	}
+
+
+	@Test
+	public void matchesTreeSetUnderRandomChanges() {
+		Random random = new Random(3);
+		RoaringBitmap a = new RoaringBitmap();
+		RoaringBitmap b = new RoaringBitmap();
+		TreeSet<Integer> referenceA = new TreeSet<Integer>();
+		TreeSet<Integer> referenceB = new TreeSet<Integer>();
+		for (int i = 0; i < 200000; i++) {
+			// Dense in the first group, to get bitmap containers, sparse beyond
+			int value = random.nextBoolean() ? random.nextInt(8000) : random.nextInt(1 << 20);
+			boolean toA = random.nextBoolean();
+			if (random.nextInt(4) == 0) {
+				assertEquals((toA ? referenceA : referenceB).remove(value), (toA ? a : b).remove(value));
+			} else {
+				assertEquals((toA ? referenceA : referenceB).add(value), (toA ? a : b).add(value));
+			}
+		}
+		assertArrayEquals(toArray(referenceA), a.toArray());
+		assertArrayEquals(toArray(referenceB), b.toArray());
+		assertEquals(referenceA.size(), a.getCardinality());
+
+		TreeSet<Integer> union = new TreeSet<Integer>(referenceA);
+		union.addAll(referenceB);
+		assertArrayEquals(toArray(union), RoaringBitmap.or(a, b).toArray());
+		TreeSet<Integer> difference = new TreeSet<Integer>(referenceA);
+		difference.removeAll(referenceB);
+		assertArrayEquals(toArray(difference), RoaringBitmap.andNot(a, b).toArray());
+		assertArrayEquals(new int[0], RoaringBitmap.andNot(a, a).toArray());
+	}
+
+
+	@Test
+	public void resultsDoNotShareContainersWithTheirInputs() {
+		RoaringBitmap a = new RoaringBitmap();
+		RoaringBitmap b = new RoaringBitmap();
+		for (int i = 0; i < 5000; i++) {
+			a.add(i);
+			b.add(100000 + i);
+		}
+		RoaringBitmap union = RoaringBitmap.or(a, b);
+		RoaringBitmap difference = RoaringBitmap.andNot(a, new RoaringBitmap());
+		RoaringBitmap copy = a.copy();
+		a.remove(1);
+		a.add(200000);
+		b.remove(100001);
+		assertTrue(union.contains(1));
+		assertTrue(union.contains(100001));
+		assertFalse(union.contains(200000));
+		assertTrue(difference.contains(1));
+		assertTrue(copy.contains(1));
+		assertEquals(5000, copy.getCardinality());
+	}
+
+
+	private static int[] toArray(TreeSet<Integer> set) {
+		int[] values = new int[set.size()];
+		int i = 0;
+		for (int value : set) {
+			values[i++] = value;
+		}
+		return values;
+	}
+}